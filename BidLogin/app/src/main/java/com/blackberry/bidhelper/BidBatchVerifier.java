@@ -0,0 +1,153 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies batches of failure reports in parallel.
+ * <p/>
+ * The reports are spread over a shared pool with one thread per core. The
+ * calling thread takes part in the work as well, so a batch never waits
+ * for the pool to have a thread free. Pool threads exit when idle.
+ */
+final class BidBatchVerifier {
+
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Lazily initialized holder for the shared pool.
+     */
+    private static final class PoolHolder {
+        static final ExecutorService POOL = createPool();
+    }
+
+    private BidBatchVerifier() {
+    }
+
+    private static ExecutorService createPool() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(PARALLELISM, PARALLELISM,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "BidBatchVerifier-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Verifies each of the specified reports with the specified certificate
+     * verifier, whose chain should already have been verified.
+     *
+     * @param reports      the reports to be verified.
+     * @param certVerifier the verifier for the certificate chain and the TZ signatures.
+     * @param engine       the parser engine to run the XML reports through.
+     * @param order        the order to run the stages of each verification in.
+     * @param limits       the limits to parse the XML reports within.
+     * @param stats        the statistics to record the verifications in.
+     * @return a result for each report, in the same order as the reports.
+     */
+    static BidVerificationResult[] verifyAll(final BidFailureReport[] reports,
+                                             final BidCertificateVerifier certVerifier,
+                                             final BidParserEngine engine,
+                                             final BidVerificationOrder order,
+                                             final BidParserLimits limits,
+                                             final BidVerificationStats stats) {
+        final BidVerificationResult[] results = new BidVerificationResult[reports.length];
+        final AtomicInteger next = new AtomicInteger();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < reports.length) {
+                    results[i] = verify(reports[i], certVerifier, engine, order, limits, stats);
+                }
+            }
+        };
+
+        int helpers = Math.min(PARALLELISM, reports.length) - 1;
+        List<Future<?>> futures = new ArrayList<Future<?>>(Math.max(helpers, 0));
+        for (int i = 0; i < helpers; i++) {
+            futures.add(PoolHolder.POOL.submit(worker));
+        }
+        worker.run();
+
+        boolean interrupted = false;
+        try {
+            for (Future<?> future : futures) {
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException ie) {
+                        // The helpers are close to done; finish the batch
+                        // and restore the interrupt afterwards.
+                        interrupted = true;
+                    } catch (ExecutionException ee) {
+                        // verify() catches exceptions, so only errors get here
+                        throw new IllegalStateException(ee.getCause());
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Verifies a single report, capturing any exception in the result.
+     *
+     * @param report       the report to be verified.
+     * @param certVerifier the verifier for the certificate chain and the TZ signature.
+     * @param engine       the parser engine to run the XML reports through.
+     * @param order        the order to run the stages of the verification in.
+     * @param limits       the limits to parse the XML reports within.
+     * @param stats        the statistics to record the verification in.
+     * @return the result of the verification.
+     */
+    private static BidVerificationResult verify(BidFailureReport report, BidCertificateVerifier certVerifier,
+                                                BidParserEngine engine, BidVerificationOrder order,
+                                                BidParserLimits limits, BidVerificationStats stats) {
+        try {
+            report.verify(certVerifier, engine, false, order, limits);
+            return new BidVerificationResult(report, null);
+        } catch (Exception e) {
+            return new BidVerificationResult(report, e);
+        } finally {
+            stats.record(report);
+        }
+    }
+}
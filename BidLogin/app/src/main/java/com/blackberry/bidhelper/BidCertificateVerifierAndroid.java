@@ -15,39 +15,60 @@
 package com.blackberry.bidhelper;
 
 import org.bouncycastle.cert.X509CertificateHolder;
-import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
 import org.bouncycastle.cms.CMSException;
-import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSProcessable;
 import org.bouncycastle.cms.CMSSignedData;
 import org.bouncycastle.cms.SignerInformation;
 import org.bouncycastle.cms.SignerInformationStore;
+import org.bouncycastle.cms.SignerInformationVerifier;
 import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.util.Store;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertPath;
-import java.security.cert.CertPathValidator;
-import java.security.cert.CertPathValidatorException;
-import java.security.cert.CertPathValidatorResult;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.Provider;
+import java.security.Security;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
-import java.security.cert.PKIXParameters;
-import java.security.cert.TrustAnchor;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 
 public final class BidCertificateVerifierAndroid implements BidCertificateVerifier {
     private static final String LOG_TAG = BidCertificateVerifierAndroid.class.getSimpleName();
+    /**
+     * Number of report verification outcomes remembered
+     */
+    private static final int REPORT_CACHE_SIZE = 1024;
+    /**
+     * Number of signer certificates whose verifiers are remembered
+     */
+    private static final int SIGNER_CACHE_SIZE = 16;
+    /**
+     * Outcomes of <code>verifyReport</code>, shared by all verifiers and keyed by the
+     * SHA-256 hash of the TZ report, the signature and the BID certificate, so that
+     * verifying an unchanged report again skips the CMS parsing and the signature math
+     */
+    private static final BidLruCache<ByteBuffer, Boolean> reportOutcomes =
+            new BidLruCache<ByteBuffer, Boolean>(REPORT_CACHE_SIZE);
+    /**
+     * Signer verifiers, which hold the public key and the content verifier provider,
+     * keyed by the SHA-256 hash of the encoded signer certificate
+     */
+    private static final BidLruCache<ByteBuffer, SignerInformationVerifier> signerVerifiers =
+            new BidLruCache<ByteBuffer, SignerInformationVerifier>(SIGNER_CACHE_SIZE);
+    /**
+     * The "BC" provider, looked up on first use
+     */
+    private static volatile Provider provider;
     /**
      * Bid Certificate
      */
@@ -56,13 +77,26 @@ public final class BidCertificateVerifierAndroid implements BidCertificateVerifi
      * State of the verifier
      */
     private boolean certificateVerified = false;
-
-    ;
+    /**
+     * Trust anchors the BID certificate must chain up to
+     */
+    private final BidTrustAnchors trustAnchors;
 
     /**
      * Create a new BID Certificate Cerifier
      */
     public BidCertificateVerifierAndroid() {
+        this(BidTrustAnchors.getDefault());
+    }
+
+    /**
+     * Create a new BID Certificate Verifier which trusts the specified anchors
+     * instead of the BlackBerry Core PKI.
+     *
+     * @param trustAnchors the trust anchors the BID certificate must chain up to.
+     */
+    public BidCertificateVerifierAndroid(BidTrustAnchors trustAnchors) {
+        this.trustAnchors = trustAnchors;
     }
 
     public static final List<Certificate> loadCertificates(String[] pemEncodedCerts) throws CertificateException {
@@ -91,65 +125,102 @@ public final class BidCertificateVerifierAndroid implements BidCertificateVerifi
             throw new IllegalStateException("Certificate not yet set");
         }
 
-        List<Certificate> bideCertList = loadCertificates(BidCertificateVerifier.BIDE_CERT_PATH);
-        Certificate entityCert = this.bidCert;
-        Certificate rootCert = bideCertList.get(1);
+        trustAnchors.validate(this.bidCert);
+    }
+
+    @Override
+    public boolean verifyReport(byte[] tzReport, byte[] signature)
+            throws CertificateException {
+        return verifyReport(tzReport, 0, tzReport.length, signature);
+    }
 
-        Set<TrustAnchor> trustAnchorSet = new HashSet<>();
-        trustAnchorSet.add(new TrustAnchor((X509Certificate) rootCert, null));
-        PKIXParameters params;
-        try {
-            params = new PKIXParameters(trustAnchorSet);
-            params.setRevocationEnabled(false);
-        } catch (InvalidAlgorithmParameterException e) {
-            throw new CertificateException("Failed to initialize PKIXParameters", e);
+    /**
+     * Verify that the report held in the specified range of an array was
+     * signed by the given certificate, without copying it out of the array.
+     * Not part of <code>BidCertificateVerifier</code>, so that other
+     * implementations need not provide it; see
+     * <code>BidReportBody.verifySignature</code>.
+     *
+     * @param tzReport  the array holding the report for which we are checking the signature.
+     * @param offset    the index of the first byte of the report.
+     * @param length    the length of the report, in bytes.
+     * @param signature the signature to verify.
+     * @return <code>true</code> if the report signatures  <code>false</code> otherwise.
+     */
+    boolean verifyReport(byte[] tzReport, int offset, int length, byte[] signature)
+            throws CertificateException {
+        if (this.bidCert == null) {
+            throw new IllegalStateException("Certificate not yet set");
         }
 
-        // Build the certificate chain
-        CertificateFactory cf = CertificateFactory.getInstance("X.509");
-        CertPath certPath;
-        try {
-            List<Certificate> certChain = new ArrayList<>();
-
-            // Add the bide certifcate
-            certChain.add((X509Certificate) entityCert);
+        ByteRange content = new ByteRange(tzReport, offset, length);
+        byte[] hash = BidDigester.sha256Parts(tzReport, offset, length, signature, this.bidCert.getEncoded());
+        if (hash.length == 0) {
+            // No SHA-256, so nothing to key the cache with
+            return verifySignature(content, signature);
+        }
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        Boolean outcome = reportOutcomes.get(key);
+        if (outcome == null) {
+            outcome = verifySignature(content, signature);
+            reportOutcomes.put(key, outcome);
+        }
+        return outcome;
+    }
 
-            // Add the intermediate certificate
-            certChain.add((X509Certificate) bideCertList.get(0));
+    /**
+     * Signed content held in a range of an array, which is written to the
+     * digest in place instead of being copied out first.
+     */
+    private static final class ByteRange implements CMSProcessable {
+        private final byte[] bytes;
+        private final int offset;
+        private final int length;
 
-            certPath = cf.generateCertPath(certChain);
-        } catch (CertificateException ce) {
-            //android.util.Log.d(LOG_TAG, "Failed to use Build cert chain: " + ce.toString());
-            throw ce;
+        ByteRange(byte[] bytes, int offset, int length) {
+            if (offset < 0 || length < 0 || offset > bytes.length - length) {
+                throw new IndexOutOfBoundsException();
+            }
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
         }
 
-        CertPathValidator validator;
-        try {
-            validator = CertPathValidator.getInstance("PKIX");
-        } catch (NoSuchAlgorithmException e) {
-            //android.util.Log.d(LOG_TAG, "NoSuchAlgorithmException thrown: " + e.toString());
-            throw new CertificateException("Failed to initialize CertPathValidator", e);
+        @Override
+        public void write(OutputStream out) throws IOException {
+            out.write(bytes, offset, length);
         }
 
-        CertPathValidatorResult result;
-        try {
-            result = validator.validate(certPath, params);
-        } catch (InvalidAlgorithmParameterException e) {
-            throw new CertificateException("Validation failed", e);
-        } catch (CertPathValidatorException e) {
-            throw new CertificateException("Validation failed", e);
+        @Override
+        public Object getContent() {
+            return Arrays.copyOfRange(bytes, offset, offset + length);
         }
     }
 
-    @Override
-    public boolean verifyReport(byte[] tzReport, byte[] signature)
-            throws CertificateException {
-        if (this.bidCert == null) {
-            throw new IllegalStateException("Certificate not yet set");
-        }
+    /**
+     * Forgets the outcomes of all previous report verifications, and the
+     * verifiers of all signer certificates.
+     */
+    public static void clearCaches() {
+        reportOutcomes.clear();
+        signerVerifiers.clear();
+    }
 
+    /**
+     * Forgets the outcomes of all previous report verifications, but not the
+     * verifiers of the signer certificates.
+     */
+    static void clearReportOutcomes() {
+        reportOutcomes.clear();
+    }
+
+    /**
+     * Runs the CMS signature check of <code>verifyReport</code>.
+     */
+    private boolean verifySignature(ByteRange tzReport, byte[] signature)
+            throws CertificateException {
         try {
-            CMSSignedData cms = new CMSSignedData(new CMSProcessableByteArray(tzReport), signature);
+            CMSSignedData cms = new CMSSignedData(tzReport, signature);
 
             Store certStore = cms.getCertificates();
             SignerInformationStore signers = cms.getSignerInfos();
@@ -168,21 +239,66 @@ public final class BidCertificateVerifierAndroid implements BidCertificateVerifi
                 // If there is no certificate part of the signature then the report may have been created before 
                 // the certificate was cut.
                 if (certCollection.size() == 0) {
-                    return signer.verify(new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC").build(this.bidCert));
+                    return signer.verify(getSignerVerifier(this.bidCert));
                 }
 
                 X509CertificateHolder certHolder = (X509CertificateHolder) certIt.next();
-                X509Certificate cert = new JcaX509CertificateConverter().setProvider("BC").getCertificate(certHolder);
-                return signer.verify(new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC").build(cert));
+                return signer.verify(getSignerVerifier(certHolder));
             }
         } catch (CMSException e) {
             throw new CertificateException(e.toString());
         } catch (OperatorCreationException oce) {
             throw new CertificateException(oce.toString());
-        } catch (Exception ex) {
-            throw ex;
+        } catch (IOException ioe) {
+            throw new CertificateException(ioe.toString());
         }
 
         return false;
     }
+
+    /**
+     * Returns the verifier of signatures by the specified certificate,
+     * creating it on first use.
+     */
+    private static SignerInformationVerifier getSignerVerifier(X509Certificate cert)
+            throws CertificateException, OperatorCreationException {
+        ByteBuffer key = ByteBuffer.wrap(BidDigester.sha256(cert.getEncoded()));
+        SignerInformationVerifier verifier = key.hasRemaining() ? signerVerifiers.get(key) : null;
+        if (verifier == null) {
+            verifier = new JcaSimpleSignerInfoVerifierBuilder().setProvider(getProvider()).build(cert);
+            if (key.hasRemaining()) {
+                signerVerifiers.put(key, verifier);
+            }
+        }
+        return verifier;
+    }
+
+    /**
+     * Returns the verifier of signatures by the specified certificate,
+     * creating it on first use, without converting the certificate.
+     */
+    private static SignerInformationVerifier getSignerVerifier(X509CertificateHolder certHolder)
+            throws CertificateException, OperatorCreationException, IOException {
+        ByteBuffer key = ByteBuffer.wrap(BidDigester.sha256(certHolder.getEncoded()));
+        SignerInformationVerifier verifier = key.hasRemaining() ? signerVerifiers.get(key) : null;
+        if (verifier == null) {
+            verifier = new JcaSimpleSignerInfoVerifierBuilder().setProvider(getProvider()).build(certHolder);
+            if (key.hasRemaining()) {
+                signerVerifiers.put(key, verifier);
+            }
+        }
+        return verifier;
+    }
+
+    private static Provider getProvider() throws CertificateException {
+        Provider p = provider;
+        if (p == null) {
+            p = Security.getProvider("BC");
+            if (p == null) {
+                throw new CertificateException("no such provider: BC");
+            }
+            provider = p;
+        }
+        return p;
+    }
 }
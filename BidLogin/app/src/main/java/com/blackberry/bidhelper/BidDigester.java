@@ -0,0 +1,112 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes SHA-256 hashes of reports from the UTF-8 bytes BID hashes them
+ * in, and of the certificates and signatures checked with them.
+ * <p/>
+ * Each thread keeps one digester. If SHA-256 is not available, every hash
+ * is empty, which matches no embedded hash.
+ */
+final class BidDigester {
+
+    private static final ThreadLocal<BidDigester> digesters = new ThreadLocal<BidDigester>() {
+        @Override
+        protected BidDigester initialValue() {
+            return new BidDigester();
+        }
+    };
+
+    private final MessageDigest digester;
+
+    private BidDigester() {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is ubiquitous and required in all Java implementations.
+            // Nonetheless, force a mismatch.
+            md = null;
+        }
+        digester = md;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the specified bytes.
+     *
+     * @param data the bytes whose hash value is desired.
+     * @return the SHA-256 hash of the specified bytes.
+     */
+    static byte[] sha256(byte[] data) {
+        MessageDigest digester = digesters.get().digester;
+        if (digester == null) {
+            return new byte[0];
+        }
+        digester.reset();
+        return digester.digest(data);
+    }
+
+    /**
+     * Returns the SHA-256 hash of the specified range of bytes.
+     *
+     * @param data   the bytes whose hash value is desired.
+     * @param offset the index of the first byte.
+     * @param length the number of bytes.
+     * @return the SHA-256 hash of the specified range of bytes.
+     */
+    static byte[] sha256(byte[] data, int offset, int length) {
+        MessageDigest digester = digesters.get().digester;
+        if (digester == null) {
+            return new byte[0];
+        }
+        digester.reset();
+        digester.update(data, offset, length);
+        return digester.digest();
+    }
+
+    /**
+     * Returns the SHA-256 hash of the specified range of bytes followed by
+     * the specified byte arrays, each preceded by its length, so that
+     * different splits of the same bytes hash differently.
+     *
+     * @param data   the bytes of the first part.
+     * @param offset the index of the first byte of the first part.
+     * @param length the number of bytes of the first part.
+     * @param parts  the byte arrays of the other parts.
+     * @return the SHA-256 hash of the parts.
+     */
+    static byte[] sha256Parts(byte[] data, int offset, int length, byte[]... parts) {
+        MessageDigest digester = digesters.get().digester;
+        if (digester == null) {
+            return new byte[0];
+        }
+        digester.reset();
+        update(digester, data, offset, length);
+        for (byte[] part : parts) {
+            update(digester, part, 0, part.length);
+        }
+        return digester.digest();
+    }
+
+    private static void update(MessageDigest digester, byte[] data, int offset, int length) {
+        digester.update(new byte[]{(byte) (length >>> 24), (byte) (length >>> 16),
+                (byte) (length >>> 8), (byte) length});
+        digester.update(data, offset, length);
+    }
+}
@@ -0,0 +1,240 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A report source which reads its reports and certificate from files in a
+ * directory, laid out as follows:
+ * <pre>
+ *     certificate                  the BID certificate, DER or PEM encoded
+ *     status/                      the status report
+ *         jbide.xml
+ *         kbide.xml
+ *         tz.xml
+ *         tz.sig                   the signature of tz.xml
+ *     failures/&lt;report id&gt;/     one directory per failure report
+ *         jbide.xml
+ *         kbide.xml
+ *         tz.xml
+ *         tz.sig
+ *         date_received            optional, in milliseconds; defaults to the
+ *                                  last-modified time of tz.xml
+ * </pre>
+ * Reports are text encoded in UTF-8. The files are read on every query, so
+ * reports may be added to the directory while it is in use.
+ * <p/>
+ * As with <code>BidMemoryReportSource</code>, the status report is returned
+ * whatever the nonce of the request.
+ */
+public final class BidDirectoryReportSource implements BidReportSource {
+
+    private static final String CERTIFICATE_FILE = "certificate";
+    private static final String STATUS_DIRECTORY = "status";
+    private static final String FAILURES_DIRECTORY = "failures";
+    private static final String JBIDE_FILE = "jbide.xml";
+    private static final String KBIDE_FILE = "kbide.xml";
+    private static final String TZ_FILE = "tz.xml";
+    private static final String TZ_SIGNATURE_FILE = "tz.sig";
+    private static final String DATE_RECEIVED_FILE = "date_received";
+
+    private final File directory;
+
+    /**
+     * Creates a new source over the specified directory.
+     *
+     * @param directory the directory holding the reports and certificate.
+     */
+    public BidDirectoryReportSource(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the directory holding the reports and certificate.
+     *
+     * @return the directory holding the reports and certificate.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public BidReportRecord queryStatusReport(BigInteger nonce)
+            throws BidRequestException {
+        try {
+            return readRecord(new File(directory, STATUS_DIRECTORY), false);
+        } catch (IOException ioe) {
+            throw new BidRequestException(ioe);
+        }
+    }
+
+    @Override
+    public BidReportRecord queryFailureReport(String reportId)
+            throws BidRequestException {
+        File reportDirectory = new File(new File(directory, FAILURES_DIRECTORY), reportId);
+        if (!reportId.equals(reportDirectory.getName()) || !reportDirectory.isDirectory()) {
+            throw new BidRequestException("no failure report with id " + reportId);
+        }
+        try {
+            return readRecord(reportDirectory, true);
+        } catch (IOException ioe) {
+            throw new BidRequestException(ioe);
+        }
+    }
+
+    @Override
+    public List<BidReportRecord> queryFailureReports(long dateReceived, int offset, int limit)
+            throws BidRequestException {
+        File[] reportDirectories = new File(directory, FAILURES_DIRECTORY).listFiles();
+        if (reportDirectories == null) {
+            return Collections.emptyList();
+        }
+
+        try {
+            // Read the dates first, and the reports only for the window.
+            List<DatedDirectory> dated = new ArrayList<DatedDirectory>(reportDirectories.length);
+            for (File reportDirectory : reportDirectories) {
+                if (reportDirectory.isDirectory()) {
+                    long date = readDateReceived(reportDirectory);
+                    if (dateReceived < 0 || date > dateReceived) {
+                        dated.add(new DatedDirectory(reportDirectory, date));
+                    }
+                }
+            }
+            Collections.sort(dated, DatedDirectory.BY_DATE);
+
+            int end = limit > 0 ? Math.min(dated.size(), offset + limit) : dated.size();
+            List<BidReportRecord> result = new ArrayList<BidReportRecord>(Math.max(end - offset, 0));
+            for (int i = offset; i < end; i++) {
+                result.add(readRecord(dated.get(i).directory, true));
+            }
+            return result;
+        } catch (IOException ioe) {
+            throw new BidRequestException(ioe);
+        }
+    }
+
+    @Override
+    public byte[] queryCertificate()
+            throws BidCertificateUnavailableException,
+            BidRequestException {
+        File file = new File(directory, CERTIFICATE_FILE);
+        if (!file.isFile()) {
+            throw new BidCertificateUnavailableException("no certificate in " + directory);
+        }
+        try {
+            return readBytes(file);
+        } catch (IOException ioe) {
+            throw new BidRequestException(ioe);
+        }
+    }
+
+    /**
+     * Reads a report from the files in the specified directory.
+     *
+     * @param reportDirectory the directory holding the report.
+     * @param dated           whether to read the date the report was received.
+     * @return the raw report.
+     * @throws java.io.IOException if an i/o error occurs.
+     */
+    private static BidReportRecord readRecord(File reportDirectory, boolean dated)
+            throws IOException {
+        return new BidReportRecord(BidReportBody.fromUtf8(readBytes(new File(reportDirectory, JBIDE_FILE))),
+                BidReportBody.fromUtf8(readBytes(new File(reportDirectory, KBIDE_FILE))),
+                BidReportBody.fromUtf8(readBytes(new File(reportDirectory, TZ_FILE))),
+                readBytes(new File(reportDirectory, TZ_SIGNATURE_FILE)),
+                dated ? readDateReceived(reportDirectory) : -1);
+    }
+
+    /**
+     * Reads the date the report in the specified directory was received.
+     *
+     * @param reportDirectory the directory holding the report.
+     * @return the date the report was received, in milliseconds.
+     * @throws java.io.IOException if an i/o error occurs.
+     */
+    private static long readDateReceived(File reportDirectory)
+            throws IOException {
+        File file = new File(reportDirectory, DATE_RECEIVED_FILE);
+        if (!file.isFile()) {
+            return new File(reportDirectory, TZ_FILE).lastModified();
+        }
+        try {
+            return Long.parseLong(readString(file).trim());
+        } catch (NumberFormatException nfe) {
+            throw new IOException("invalid date in " + file, nfe);
+        }
+    }
+
+    private static String readString(File file)
+            throws IOException {
+        return new String(readBytes(file), "UTF-8");
+    }
+
+    private static byte[] readBytes(File file)
+            throws IOException {
+        InputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (FileNotFoundException fnfe) {
+            throw new IOException("missing " + file, fnfe);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(file.length(), 32));
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A report directory and the date its report was received.
+     */
+    private static final class DatedDirectory {
+        static final Comparator<DatedDirectory> BY_DATE = new Comparator<DatedDirectory>() {
+            @Override
+            public int compare(DatedDirectory a, DatedDirectory b) {
+                if (a.date != b.date) {
+                    return a.date < b.date ? -1 : 1;
+                }
+                return a.directory.getName().compareTo(b.directory.getName());
+            }
+        };
+
+        final File directory;
+        final long date;
+
+        DatedDirectory(File directory, long date) {
+            this.directory = directory;
+            this.date = date;
+        }
+    }
+}
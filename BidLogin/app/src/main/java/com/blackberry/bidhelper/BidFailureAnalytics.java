@@ -0,0 +1,665 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Running aggregates over verified failure reports, which are consumed one
+ * at a time with <code>add()</code> and not kept, so that the memory used
+ * is bounded however many reports are seen:
+ * <ul>
+ * <li>the number of reports and failures, and the number of failures at
+ * each severity;</li>
+ * <li>for each sensor, the number of failures and of reports with a
+ * failure, the failures at each severity, and the first and last time
+ * the sensor failed;</li>
+ * <li>the number of reports and failures in each time bucket, over the
+ * latest buckets, for trends and windowed rates;</li>
+ * <li>the first and last report times.</li>
+ * </ul>
+ * Sensors are tracked by a Space-Saving summary of a fixed capacity: the
+ * counts are exact as long as there are no more sensors than the capacity.
+ * Past that, a new sensor replaces the one with the lowest count and takes
+ * over that count, so that counts may be overestimated by up to
+ * <code>SensorStats.getError()</code>, and the sensors with the highest
+ * counts, <code>getTopSensors()</code>, are still found.
+ * <p/>
+ * Aggregates with the same configuration can be merged, for example to
+ * roll up the aggregates of a fleet of devices, which are sent in the form
+ * written by <code>write()</code>. Report times are taken from the report,
+ * in seconds since the epoch, and reports without a valid time only count
+ * towards the totals. This class is not thread-safe.
+ */
+public final class BidFailureAnalytics {
+
+    /**
+     * The default number of sensors tracked.
+     */
+    public static final int DEFAULT_SENSOR_CAPACITY = 64;
+
+    /**
+     * The default width of the time buckets, one hour.
+     */
+    public static final long DEFAULT_BUCKET_MILLIS = 60 * 60 * 1000L;
+
+    /**
+     * The default number of time buckets kept, thirty days of one-hour buckets.
+     */
+    public static final int DEFAULT_BUCKET_COUNT = 30 * 24;
+
+    private static final int MAGIC = 0x42494441;
+    private static final int VERSION = 1;
+
+    private final int sensorCapacity;
+    private final long bucketMillis;
+    private final int bucketCount;
+    private long reportCount;
+    private long failureCount;
+    private long firstSeen = Long.MAX_VALUE;
+    private long lastSeen = Long.MIN_VALUE;
+    private final SortedMap<Integer, Long> severityCounts = new TreeMap<Integer, Long>();
+    private final Map<String, SensorStats> sensors = new HashMap<String, SensorStats>();
+    // bucket index, the time divided by the bucket width, to {reports, failures}
+    private final TreeMap<Long, long[]> buckets = new TreeMap<Long, long[]>();
+
+    /**
+     * The aggregates of one sensor.
+     */
+    public static final class SensorStats {
+        private final String sensorName;
+        private long count;
+        private long error;
+        private long reportCount;
+        private long firstSeen = Long.MAX_VALUE;
+        private long lastSeen = Long.MIN_VALUE;
+        private final SortedMap<Integer, Long> severityCounts = new TreeMap<Integer, Long>();
+
+        SensorStats(String sensorName) {
+            this.sensorName = sensorName;
+        }
+
+        /**
+         * Returns the sensor name.
+         *
+         * @return the sensor name.
+         */
+        public String getSensorName() {
+            return sensorName;
+        }
+
+        /**
+         * Returns the number of failures of the sensor, which overestimates
+         * the true number by up to <code>getError()</code>.
+         *
+         * @return the number of failures of the sensor.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the most by which <code>getCount()</code> overestimates the
+         * number of failures, which is 0 unless the sensor took the place of
+         * another one.
+         *
+         * @return the maximum overestimation of the count.
+         */
+        public long getError() {
+            return error;
+        }
+
+        /**
+         * Returns the number of reports with a failure of the sensor, since
+         * the sensor was last tracked.
+         *
+         * @return the number of reports with a failure of the sensor.
+         */
+        public long getReportCount() {
+            return reportCount;
+        }
+
+        /**
+         * Returns the number of failures of the sensor at each severity,
+         * since the sensor was last tracked.
+         *
+         * @return the number of failures by severity.
+         */
+        public SortedMap<Integer, Long> getSeverityCounts() {
+            return Collections.unmodifiableSortedMap(severityCounts);
+        }
+
+        /**
+         * Returns the time of the first report with a failure of the sensor,
+         * in milliseconds since the epoch, or <code>Long.MAX_VALUE</code> if none.
+         *
+         * @return the time the sensor was first seen failing.
+         */
+        public long getFirstSeen() {
+            return firstSeen;
+        }
+
+        /**
+         * Returns the time of the last report with a failure of the sensor,
+         * in milliseconds since the epoch, or <code>Long.MIN_VALUE</code> if none.
+         *
+         * @return the time the sensor was last seen failing.
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        private void mergeFrom(SensorStats other) {
+            reportCount += other.reportCount;
+            firstSeen = Math.min(firstSeen, other.firstSeen);
+            lastSeen = Math.max(lastSeen, other.lastSeen);
+            addAll(severityCounts, other.severityCounts);
+        }
+    }
+
+    /**
+     * The number of reports and failures in one time bucket.
+     */
+    public static final class Bucket {
+        private final long startMillis;
+        private final long reportCount;
+        private final long failureCount;
+
+        Bucket(long startMillis, long reportCount, long failureCount) {
+            this.startMillis = startMillis;
+            this.reportCount = reportCount;
+            this.failureCount = failureCount;
+        }
+
+        /**
+         * Returns the start time of the bucket, in milliseconds since the epoch.
+         *
+         * @return the start time of the bucket.
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * Returns the number of reports in the bucket.
+         *
+         * @return the number of reports in the bucket.
+         */
+        public long getReportCount() {
+            return reportCount;
+        }
+
+        /**
+         * Returns the number of failures in the bucket.
+         *
+         * @return the number of failures in the bucket.
+         */
+        public long getFailureCount() {
+            return failureCount;
+        }
+    }
+
+    /**
+     * Creates new, empty aggregates with the default configuration.
+     */
+    public BidFailureAnalytics() {
+        this(DEFAULT_SENSOR_CAPACITY, DEFAULT_BUCKET_MILLIS, DEFAULT_BUCKET_COUNT);
+    }
+
+    /**
+     * Creates new, empty aggregates.
+     *
+     * @param sensorCapacity the number of sensors tracked.
+     * @param bucketMillis   the width of the time buckets, in milliseconds.
+     * @param bucketCount    the number of latest time buckets kept.
+     */
+    public BidFailureAnalytics(int sensorCapacity, long bucketMillis, int bucketCount) {
+        if (sensorCapacity <= 0 || bucketMillis <= 0 || bucketCount <= 0) {
+            throw new IllegalArgumentException("sensorCapacity, bucketMillis and bucketCount must be positive");
+        }
+        this.sensorCapacity = sensorCapacity;
+        this.bucketMillis = bucketMillis;
+        this.bucketCount = bucketCount;
+    }
+
+    /**
+     * Adds the failures of the specified verified report to the aggregates.
+     * The caller must make sure that the same report is not added twice.
+     *
+     * @param report the verified report.
+     * @throws java.lang.IllegalStateException if the report has not been verified.
+     */
+    public void add(BidFailureReport report) {
+        BidFailure[] failures = report.getFailures();
+        long time = getTimeMillis(report.getTime());
+        reportCount++;
+        failureCount += failures.length;
+
+        Map<String, SensorStats> seen = new HashMap<String, SensorStats>();
+        for (BidFailure failure : failures) {
+            increment(severityCounts, failure.getSeverity(), 1);
+            SensorStats stats = track(failure.getSensorName());
+            stats.count++;
+            increment(stats.severityCounts, failure.getSeverity(), 1);
+            // a sensor evicted since it was last seen in this report is new stats
+            if (seen.put(failure.getSensorName(), stats) != stats) {
+                stats.reportCount++;
+                if (time != Long.MIN_VALUE) {
+                    stats.firstSeen = Math.min(stats.firstSeen, time);
+                    stats.lastSeen = Math.max(stats.lastSeen, time);
+                }
+            }
+        }
+
+        if (time != Long.MIN_VALUE) {
+            firstSeen = Math.min(firstSeen, time);
+            lastSeen = Math.max(lastSeen, time);
+            long index = time / bucketMillis;
+            long[] bucket = buckets.get(index);
+            if (bucket == null) {
+                bucket = new long[2];
+                buckets.put(index, bucket);
+            }
+            bucket[0]++;
+            bucket[1] += failures.length;
+            trimBuckets();
+        }
+    }
+
+    /**
+     * Returns the stats of the specified sensor, replacing the sensor with
+     * the lowest count if it is not tracked and the summary is full.
+     */
+    private SensorStats track(String sensorName) {
+        SensorStats stats = sensors.get(sensorName);
+        if (stats == null) {
+            stats = new SensorStats(sensorName);
+            if (sensors.size() == sensorCapacity) {
+                SensorStats min = findMin(sensors);
+                sensors.remove(min.sensorName);
+                // the new sensor may have failed up to min.count times before
+                stats.count = min.count;
+                stats.error = min.count;
+            }
+            sensors.put(sensorName, stats);
+        }
+        return stats;
+    }
+
+    private static SensorStats findMin(Map<String, SensorStats> sensors) {
+        SensorStats min = null;
+        for (SensorStats stats : sensors.values()) {
+            if (min == null || stats.count < min.count) {
+                min = stats;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Converts a report time, in seconds since the epoch, to milliseconds,
+     * or returns <code>Long.MIN_VALUE</code> if it is not a valid time.
+     */
+    private static long getTimeMillis(String time) {
+        if (time == null) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            long seconds = Long.parseLong(time.trim());
+            if (seconds < 0 || seconds > Long.MAX_VALUE / 1000) {
+                return Long.MIN_VALUE;
+            }
+            return seconds * 1000;
+        } catch (NumberFormatException nfe) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private static void increment(Map<Integer, Long> counts, int key, long delta) {
+        Long count = counts.get(key);
+        counts.put(key, count != null ? count + delta : delta);
+    }
+
+    private static void addAll(Map<Integer, Long> counts, Map<Integer, Long> other) {
+        for (Map.Entry<Integer, Long> entry : other.entrySet()) {
+            increment(counts, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Drops the oldest buckets past the number kept.
+     */
+    private void trimBuckets() {
+        while (buckets.size() > bucketCount) {
+            buckets.pollFirstEntry();
+        }
+    }
+
+    /**
+     * Merges the specified aggregates, for example of another device, into
+     * these ones. The result is the same as if the reports of both had been
+     * added here, except that sensor counts may be overestimated if there are
+     * more sensors than the capacity.
+     *
+     * @param other aggregates with the same configuration.
+     * @throws java.lang.IllegalArgumentException if the configurations differ.
+     */
+    public void merge(BidFailureAnalytics other) {
+        if (other.sensorCapacity != sensorCapacity || other.bucketMillis != bucketMillis
+                || other.bucketCount != bucketCount) {
+            throw new IllegalArgumentException("aggregates of a different configuration");
+        }
+        reportCount += other.reportCount;
+        failureCount += other.failureCount;
+        firstSeen = Math.min(firstSeen, other.firstSeen);
+        lastSeen = Math.max(lastSeen, other.lastSeen);
+        addAll(severityCounts, other.severityCounts);
+
+        for (Map.Entry<Long, long[]> entry : other.buckets.entrySet()) {
+            long[] bucket = buckets.get(entry.getKey());
+            if (bucket == null) {
+                buckets.put(entry.getKey(), entry.getValue().clone());
+            } else {
+                bucket[0] += entry.getValue()[0];
+                bucket[1] += entry.getValue()[1];
+            }
+        }
+        trimBuckets();
+
+        // A sensor missing from a full summary may have failed there up to
+        // the lowest count of that summary.
+        long minThis = sensors.size() == sensorCapacity ? findMin(sensors).count : 0;
+        long minOther = other.sensors.size() == sensorCapacity ? findMin(other.sensors).count : 0;
+        Map<String, SensorStats> merged = new HashMap<String, SensorStats>();
+        for (SensorStats stats : sensors.values()) {
+            SensorStats otherStats = other.sensors.get(stats.sensorName);
+            if (otherStats == null) {
+                stats.count += minOther;
+                stats.error += minOther;
+            } else {
+                stats.count += otherStats.count;
+                stats.error += otherStats.error;
+                stats.mergeFrom(otherStats);
+            }
+            merged.put(stats.sensorName, stats);
+        }
+        for (SensorStats otherStats : other.sensors.values()) {
+            if (!merged.containsKey(otherStats.sensorName)) {
+                SensorStats stats = new SensorStats(otherStats.sensorName);
+                stats.count = otherStats.count + minThis;
+                stats.error = otherStats.error + minThis;
+                stats.mergeFrom(otherStats);
+                merged.put(stats.sensorName, stats);
+            }
+        }
+
+        sensors.clear();
+        for (SensorStats stats : sortByCount(merged.values())) {
+            if (sensors.size() == sensorCapacity) {
+                break;
+            }
+            sensors.put(stats.sensorName, stats);
+        }
+    }
+
+    private static List<SensorStats> sortByCount(Iterable<SensorStats> stats) {
+        List<SensorStats> sorted = new ArrayList<SensorStats>();
+        for (SensorStats s : stats) {
+            sorted.add(s);
+        }
+        Collections.sort(sorted, new Comparator<SensorStats>() {
+            @Override
+            public int compare(SensorStats a, SensorStats b) {
+                if (a.count != b.count) {
+                    return a.count > b.count ? -1 : 1;
+                }
+                return String.valueOf(a.sensorName).compareTo(String.valueOf(b.sensorName));
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Returns the number of reports added.
+     *
+     * @return the number of reports added.
+     */
+    public long getReportCount() {
+        return reportCount;
+    }
+
+    /**
+     * Returns the number of failures in the reports added.
+     *
+     * @return the number of failures.
+     */
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Returns the number of failures at each severity.
+     *
+     * @return the number of failures by severity.
+     */
+    public SortedMap<Integer, Long> getSeverityCounts() {
+        return Collections.unmodifiableSortedMap(severityCounts);
+    }
+
+    /**
+     * Returns the time of the earliest report, in milliseconds since the
+     * epoch, or <code>Long.MAX_VALUE</code> if none.
+     *
+     * @return the time of the earliest report.
+     */
+    public long getFirstSeen() {
+        return firstSeen;
+    }
+
+    /**
+     * Returns the time of the latest report, in milliseconds since the
+     * epoch, or <code>Long.MIN_VALUE</code> if none.
+     *
+     * @return the time of the latest report.
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Returns the aggregates of the specified sensor.
+     *
+     * @param sensorName the sensor name.
+     * @return the aggregates of the sensor, or null if it is not tracked.
+     */
+    public SensorStats getSensorStats(String sensorName) {
+        return sensors.get(sensorName);
+    }
+
+    /**
+     * Returns the fraction of the reports added with a failure of the
+     * specified sensor.
+     *
+     * @param sensorName the sensor name.
+     * @return the failure rate of the sensor, between 0 and 1.
+     */
+    public double getSensorFailureRate(String sensorName) {
+        SensorStats stats = sensors.get(sensorName);
+        return stats != null && reportCount > 0 ? Math.min(1.0, stats.reportCount / (double) reportCount) : 0;
+    }
+
+    /**
+     * Returns the tracked sensors with the highest failure counts.
+     *
+     * @param k the number of sensors to return at most.
+     * @return the sensors with the highest counts, highest first.
+     */
+    public List<SensorStats> getTopSensors(int k) {
+        List<SensorStats> sorted = sortByCount(sensors.values());
+        return sorted.size() > k ? new ArrayList<SensorStats>(sorted.subList(0, k)) : sorted;
+    }
+
+    /**
+     * Returns the time buckets kept, oldest first. Buckets without any
+     * report are left out.
+     *
+     * @return the time buckets.
+     */
+    public List<Bucket> getTrend() {
+        List<Bucket> trend = new ArrayList<Bucket>(buckets.size());
+        for (Map.Entry<Long, long[]> entry : buckets.entrySet()) {
+            trend.add(new Bucket(entry.getKey() * bucketMillis, entry.getValue()[0], entry.getValue()[1]));
+        }
+        return trend;
+    }
+
+    /**
+     * Returns the number of failures per hour over the specified window,
+     * which ends with the bucket of the latest report. The window is rounded
+     * up to whole buckets, and must be within the buckets kept to be exact.
+     *
+     * @param windowMillis the length of the window, in milliseconds.
+     * @return the number of failures per hour over the window.
+     */
+    public double getFailuresPerHour(long windowMillis) {
+        if (buckets.isEmpty() || windowMillis <= 0) {
+            return 0;
+        }
+        long windowBuckets = (windowMillis + bucketMillis - 1) / bucketMillis;
+        long last = buckets.lastKey();
+        long failures = 0;
+        for (long[] bucket : buckets.tailMap(last - windowBuckets + 1, true).values()) {
+            failures += bucket[1];
+        }
+        return failures * (60 * 60 * 1000.0) / (windowBuckets * bucketMillis);
+    }
+
+    /**
+     * Writes these aggregates, to be read back with <code>read()</code> and
+     * merged elsewhere.
+     *
+     * @param out the stream to write to.
+     * @throws java.io.IOException if an i/o error occurs.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(sensorCapacity);
+        out.writeLong(bucketMillis);
+        out.writeInt(bucketCount);
+        out.writeLong(reportCount);
+        out.writeLong(failureCount);
+        out.writeLong(firstSeen);
+        out.writeLong(lastSeen);
+        writeCounts(out, severityCounts);
+        out.writeInt(sensors.size());
+        for (SensorStats stats : sensors.values()) {
+            BidReportSnapshot.writeString(out, stats.sensorName);
+            out.writeLong(stats.count);
+            out.writeLong(stats.error);
+            out.writeLong(stats.reportCount);
+            out.writeLong(stats.firstSeen);
+            out.writeLong(stats.lastSeen);
+            writeCounts(out, stats.severityCounts);
+        }
+        out.writeInt(buckets.size());
+        for (Map.Entry<Long, long[]> entry : buckets.entrySet()) {
+            out.writeLong(entry.getKey());
+            out.writeLong(entry.getValue()[0]);
+            out.writeLong(entry.getValue()[1]);
+        }
+    }
+
+    /**
+     * Reads aggregates written by <code>write()</code>.
+     *
+     * @param in the stream to read from.
+     * @return the aggregates.
+     * @throws java.io.IOException if the stream is malformed, of another version,
+     *                             or an i/o error occurs.
+     */
+    public static BidFailureAnalytics read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not BID failure analytics");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported analytics version " + version);
+        }
+        BidFailureAnalytics analytics;
+        try {
+            analytics = new BidFailureAnalytics(in.readInt(), in.readLong(), in.readInt());
+        } catch (IllegalArgumentException iae) {
+            throw new IOException(iae);
+        }
+        analytics.reportCount = in.readLong();
+        analytics.failureCount = in.readLong();
+        analytics.firstSeen = in.readLong();
+        analytics.lastSeen = in.readLong();
+        readCounts(in, analytics.severityCounts);
+        int sensorCount = readCount(in, analytics.sensorCapacity);
+        for (int i = 0; i < sensorCount; i++) {
+            SensorStats stats = new SensorStats(BidReportSnapshot.readString(in));
+            stats.count = in.readLong();
+            stats.error = in.readLong();
+            stats.reportCount = in.readLong();
+            stats.firstSeen = in.readLong();
+            stats.lastSeen = in.readLong();
+            readCounts(in, stats.severityCounts);
+            analytics.sensors.put(stats.sensorName, stats);
+        }
+        int bucketCount = readCount(in, analytics.bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            analytics.buckets.put(in.readLong(), new long[]{in.readLong(), in.readLong()});
+        }
+        return analytics;
+    }
+
+    private static int readCount(DataInputStream in, int max) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > max) {
+            throw new IOException("invalid count " + count);
+        }
+        return count;
+    }
+
+    private static void writeCounts(DataOutputStream out, Map<Integer, Long> counts) throws IOException {
+        out.writeInt(counts.size());
+        for (Map.Entry<Integer, Long> entry : counts.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+    }
+
+    private static void readCounts(DataInputStream in, Map<Integer, Long> counts) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("invalid count " + size);
+        }
+        for (int i = 0; i < size; i++) {
+            counts.put(in.readInt(), in.readLong());
+        }
+    }
+}
@@ -17,15 +17,15 @@ package com.blackberry.bidhelper;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import static com.blackberry.bidhelper.BidConstants.ATT_SENSOR;
 import static com.blackberry.bidhelper.BidConstants.ATT_SEVERITY;
-import static com.blackberry.bidhelper.BidConstants.TAG_FAILURE;
-import static com.blackberry.bidhelper.BidConstants.TAG_REPORTID;
-import static com.blackberry.bidhelper.BidConstants.TAG_TIME;
 
 /**
  * This class contains methods for accessing the contents of a BID
@@ -39,9 +39,20 @@ import static com.blackberry.bidhelper.BidConstants.TAG_TIME;
  * an exception to be thrown.
  */
 public final class BidFailureReport extends BidVerifiable {
+    /**
+     * Each thread reuses one handler across the failure reports it verifies.
+     */
+    private static final ThreadLocal<FailureXmlHandler> xmlHandlers = new ThreadLocal<FailureXmlHandler>() {
+        @Override
+        protected FailureXmlHandler initialValue() {
+            return new FailureXmlHandler();
+        }
+    };
+
     private String time;
     private String id;
     private BidFailure[] failures;
+    private long dateReceived = -1;
     /**
      * Creates a new instance based on the specified raw, un-verified data.
      *
@@ -57,9 +68,86 @@ public final class BidFailureReport extends BidVerifiable {
         super(jbideReport, kbideReport, tzReport, tzSignature, base64Decoder);
     }
 
+    /**
+     * Creates a new instance based on the specified raw, un-verified bodies.
+     *
+     * @param jbideReport   the un-verified JBIDE report.
+     * @param kbideReport   the un-verified KBIDE report.
+     * @param tzReport      the un-verified TZ report.
+     * @param tzSignature   the un-verified TZ signature.
+     * @param base64Decoder a Base64 decoder to use as needed.
+     */
+    BidFailureReport(BidReportBody jbideReport, BidReportBody kbideReport,
+                     BidReportBody tzReport, byte[] tzSignature,
+                     Base64Decoder base64Decoder) {
+        super(jbideReport, kbideReport, tzReport, tzSignature, base64Decoder);
+    }
+
+    /**
+     * Creates a verified instance restored from a snapshot.
+     *
+     * @param devicemodel       the device model from the snapshot.
+     * @param osversion         the OS version from the snapshot.
+     * @param tzSignatureDigest the SHA-256 hash of the TZ signature of the original report.
+     */
+    private BidFailureReport(String devicemodel, String osversion, byte[] tzSignatureDigest) {
+        super(devicemodel, osversion, tzSignatureDigest);
+    }
+
+    /**
+     * Reads the fields written by <code>writeSnapshotFields</code> and
+     * returns the restored report.
+     *
+     * @param in                the snapshot, positioned on the failure report fields.
+     * @param devicemodel       the device model from the snapshot.
+     * @param osversion         the OS version from the snapshot.
+     * @param tzSignatureDigest the SHA-256 hash of the TZ signature of the original report.
+     * @return the restored report.
+     * @throws java.io.IOException if the snapshot is truncated or malformed.
+     */
+    static BidFailureReport readSnapshotFields(DataInputStream in, String devicemodel, String osversion,
+                                               byte[] tzSignatureDigest) throws IOException {
+        BidFailureReport report = new BidFailureReport(devicemodel, osversion, tzSignatureDigest);
+        report.time = BidReportSnapshot.readString(in);
+        report.id = BidReportSnapshot.readString(in);
+        report.dateReceived = in.readLong();
+        int count = in.readInt();
+        // each failure takes at least 12 bytes
+        if (count < 0 || count > in.available() / 12) {
+            throw new IOException("invalid failure count " + count);
+        }
+        report.failures = new BidFailure[count];
+        for (int i = 0; i < count; i++) {
+            String sensorName = BidReportSnapshot.readString(in);
+            int severity = in.readInt();
+            String details = BidReportSnapshot.readString(in);
+            report.failures[i] = new BidFailure(sensorName, severity, details);
+        }
+        return report;
+    }
+
+    @Override
+    void writeSnapshotFields(DataOutputStream out) throws IOException {
+        BidReportSnapshot.writeString(out, time);
+        BidReportSnapshot.writeString(out, id);
+        out.writeLong(dateReceived);
+        out.writeInt(failures.length);
+        for (BidFailure failure : failures) {
+            BidReportSnapshot.writeString(out, failure.getSensorName());
+            out.writeInt(failure.getSeverity());
+            BidReportSnapshot.writeString(out, failure.getDetails());
+        }
+    }
+
     @Override
     BidXmlHandler getBideXmlHandler() {
-        return new FailureXmlHandler();
+        FailureXmlHandler handler = xmlHandlers.get();
+        if (handler.report != null) {
+            // already in use further up this thread's stack
+            handler = new FailureXmlHandler();
+        }
+        handler.report = this;
+        return handler;
     }
 
     /**
@@ -86,6 +174,27 @@ public final class BidFailureReport extends BidVerifiable {
         return id;
     }
 
+    /**
+     * Returns the date BID received this report, as recorded by the BID content
+     * provider, or -1 if unknown. This value is not part of the signed report
+     * and can be read whether or not the report has been verified.
+     *
+     * @return the date BID received this report, or -1 if unknown.
+     */
+    public final long getDateReceived() {
+        return dateReceived;
+    }
+
+    /**
+     * Sets the date BID received this report, as recorded by the BID content
+     * provider.
+     *
+     * @param dateReceived the date BID received this report.
+     */
+    final void setDateReceived(long dateReceived) {
+        this.dateReceived = dateReceived;
+    }
+
     /**
      * Returns a copy of the failures as extracted from the report.
      * Throws an exception if this report is currently un-verified.
@@ -102,42 +211,45 @@ public final class BidFailureReport extends BidVerifiable {
      * A handler specific to BID failure reports. The handler uses parser events
      * to verify hash values and to populate the report object.
      */
-    private class FailureXmlHandler extends BidXmlHandler {
-        private List<BidFailure> failureList;
-        private Attributes failureAtts;
+    private static final class FailureXmlHandler extends BidXmlHandler {
+        private final List<BidFailure> failureList = new ArrayList<BidFailure>();
+        private BidFailureReport report;
 
         @Override
-        public void startDocumentSet()
-                throws SAXException {
-            failureList = new ArrayList<BidFailure>();
+        void reset() {
+            super.reset();
+            report = null;
+            failureList.clear();
         }
 
         @Override
-        public void startElement(String uri, String localName, String qName, Attributes atts)
-                throws SAXException {
-            if (isFailureTag()) {
-                failureAtts = getAttributes();
-            }
-        }
-
-        @Override
-        public void endElement(String uri, String localName, String qName)
+        public void startDocumentSet()
                 throws SAXException {
-            if (isFailureTag() && failureAtts != null) {
-                // tag was empty
-                addFailure("(none)");
-            }
+            failureList.clear();
         }
 
         @Override
-        public void characters(char[] ch, int start, int length)
+        void elementText()
                 throws SAXException {
-            if (isTypeAndTag(KBIDE_XML_TYPE, TAG_TIME)) {
-                time = new String(ch, start, length);
-            } else if (isTypeAndTag(TZ_XML_TYPE, TAG_REPORTID)) {
-                id = new String(ch, start, length);
-            } else if (failureAtts != null) {
-                addFailure(new String(ch, start, length));
+            switch (getTag()) {
+                case TAG_ID_TIME:
+                    if (isType(KBIDE_XML_TYPE)) {
+                        report.time = getText();
+                    }
+                    break;
+                case TAG_ID_REPORTID:
+                    if (isType(TZ_XML_TYPE)) {
+                        report.id = getText();
+                    }
+                    break;
+                case TAG_ID_FAILURE:
+                    if (isFailureTag()) {
+                        // the text of the whole element, which may be empty
+                        addFailure(hasText() ? getText() : "(none)");
+                    }
+                    break;
+                default:
+                    break;
             }
         }
 
@@ -149,18 +261,19 @@ public final class BidFailureReport extends BidVerifiable {
          * false otherwise.
          */
         private boolean isFailureTag() {
-            return isTypeAndTag(JBIDE_XML_TYPE | KBIDE_XML_TYPE, TAG_FAILURE);
+            return isTypeAndTag(JBIDE_XML_TYPE | KBIDE_XML_TYPE, TAG_ID_FAILURE);
         }
 
         /**
-         * Adds a BID failure to this handler's list of failures and
-         * then clear the failure attributes marker.
+         * Adds a BID failure with the attributes of the current
+         * <code>failure</code> element to this handler's list of failures.
          *
          * @param details failure details.
          * @throws org.xml.sax.SAXException if a parse error occurs.
          */
         private void addFailure(String details)
                 throws SAXException {
+            Attributes failureAtts = getAttributes();
             String sensorName = failureAtts.getValue("", ATT_SENSOR);
             int severity;
             try {
@@ -170,14 +283,13 @@ public final class BidFailureReport extends BidVerifiable {
                 throw new SAXException(nfe);
             }
             failureList.add(new BidFailure(sensorName, severity, details));
-            failureAtts = null;
         }
 
         @Override
         public void endDocumentSet()
                 throws SAXException {
             int size = failureList.size();
-            failures = failureList.toArray(new BidFailure[size]);
+            report.failures = failureList.toArray(new BidFailure[size]);
         }
     }
 }
\ No newline at end of file
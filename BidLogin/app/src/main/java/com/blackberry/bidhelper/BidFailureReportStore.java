@@ -0,0 +1,515 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only local store of verified failure reports, so that history
+ * screens and exports can read past reports without querying the BID
+ * content provider or verifying them again.
+ * <p/>
+ * Reports are kept as <code>BidReportSnapshot</code>s, whose MAC is checked
+ * again whenever a report is restored, in a single file which is read
+ * through a memory mapping. Each record is framed as follows, all values
+ * big-endian:
+ * <pre>
+ * int     length of the payload
+ * int     CRC-32 of the payload
+ * payload:
+ * long    age of the report, in milliseconds since the epoch
+ * short   length of the report ID, followed by its UTF-8 bytes
+ * byte[]  snapshot of the report
+ * </pre>
+ * Records are only ever appended. A record torn by a crash fails its length
+ * or CRC check, and is truncated away together with anything after it when
+ * the store is next opened, so a crash loses at most the appends since the
+ * last <code>sync()</code> and never corrupts the records before them.
+ * <p/>
+ * The offset of each record is kept in an open-addressing hash table keyed
+ * by report ID, which holds the hash of the ID and the offset of the record
+ * in two arrays and compares IDs against the mapped file, so that a lookup
+ * takes constant time and the index takes 12 bytes or so per report.
+ * <p/>
+ * Reports age from the date BID received them or, if unknown, from the time
+ * in the report. Those older than the retention period are dropped by
+ * <code>compact()</code>, which rewrites the remaining records to a new file
+ * and renames it over the store. Compaction runs when the store is opened,
+ * and when an append finds that the oldest report has been out of the
+ * retention period for more than a quarter of it.
+ * <p/>
+ * The store file is mapped as a whole, so it holds up to 2 GB of reports.
+ * All methods are thread-safe. Buffers returned by <code>getSnapshot</code>
+ * stay valid after later appends and compactions.
+ */
+public final class BidFailureReportStore implements Closeable {
+
+    private static final int MAGIC = 0x42494452;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final int FRAME_LENGTH = 8;
+    // timestamp and ID length
+    private static final int MIN_PAYLOAD_LENGTH = 10;
+    private static final int MAX_ID_LENGTH = Short.MAX_VALUE;
+    private static final int INITIAL_INDEX_CAPACITY = 64;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final byte[] key;
+    private final long retentionMillis;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private long end;
+    private int[] indexHashes;
+    private long[] indexOffsets;
+    private int size;
+    private long oldestTimestamp;
+
+    private BidFailureReportStore(File file, byte[] key, long retentionMillis) {
+        this.file = file;
+        this.key = key.clone();
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * Opens the store in the specified file, creating it if it does not
+     * exist, recovering from a torn append and compacting it if reports
+     * have aged out.
+     *
+     * @param file            the store file.
+     * @param key             the MAC key of the snapshots.
+     * @param retentionMillis how long reports are kept, or <code>Long.MAX_VALUE</code> to keep them all.
+     * @return the open store.
+     * @throws java.io.IOException if the file is not a store, or an i/o error occurs.
+     */
+    public static BidFailureReportStore open(File file, byte[] key, long retentionMillis) throws IOException {
+        if (retentionMillis <= 0) {
+            throw new IllegalArgumentException("retentionMillis must be positive");
+        }
+        BidFailureReportStore store = new BidFailureReportStore(file, key, retentionMillis);
+        store.load();
+        if (store.oldestTimestamp < store.getCutoff()) {
+            try {
+                store.compact();
+            } catch (IOException e) {
+                store.close();
+                throw e;
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Opens the store file, checks or writes its header and indexes its
+     * records, truncating any torn record at the end.
+     */
+    private void load() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        try {
+            long length = channel.size();
+            if (length < HEADER_LENGTH) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                channel.truncate(0);
+                writeFully(header, 0);
+                channel.force(true);
+                length = HEADER_LENGTH;
+            }
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+                throw new IOException("not a BID failure report store: " + file);
+            }
+
+            indexHashes = new int[INITIAL_INDEX_CAPACITY];
+            indexOffsets = new long[INITIAL_INDEX_CAPACITY];
+            size = 0;
+            oldestTimestamp = Long.MAX_VALUE;
+            long offset = HEADER_LENGTH;
+            while (offset < length) {
+                int payloadLength = checkRecord(offset, length);
+                if (payloadLength < 0) {
+                    // torn by a crash during an append
+                    channel.truncate(offset);
+                    channel.force(true);
+                    map = channel.map(FileChannel.MapMode.READ_ONLY, 0, offset);
+                    break;
+                }
+                index(offset);
+                offset += FRAME_LENGTH + payloadLength;
+            }
+            end = offset;
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the payload length of the record at the specified offset of
+     * the mapped file, or -1 if the record is incomplete or corrupt.
+     */
+    private int checkRecord(long offset, long length) {
+        if (length - offset < FRAME_LENGTH) {
+            return -1;
+        }
+        int position = (int) offset;
+        int payloadLength = map.getInt(position);
+        if (payloadLength < MIN_PAYLOAD_LENGTH || payloadLength > length - offset - FRAME_LENGTH) {
+            return -1;
+        }
+        ByteBuffer payload = map.duplicate();
+        payload.limit(position + FRAME_LENGTH + payloadLength).position(position + FRAME_LENGTH);
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[Math.min(payloadLength, 4096)];
+        while (payload.hasRemaining()) {
+            int n = Math.min(chunk.length, payload.remaining());
+            payload.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        if ((int) crc.getValue() != map.getInt(position + 4)) {
+            return -1;
+        }
+        int idLength = map.getShort(position + FRAME_LENGTH + 8) & 0xffff;
+        if (idLength > payloadLength - MIN_PAYLOAD_LENGTH) {
+            return -1;
+        }
+        return payloadLength;
+    }
+
+    /**
+     * Appends the specified verified report, unless a report with the same
+     * ID is already stored. The append is durable after the next
+     * <code>sync()</code>.
+     *
+     * @param report the verified report.
+     * @return <code>true</code> if the report was appended, <code>false</code> if already stored.
+     * @throws java.lang.IllegalStateException if the report has not been verified.
+     * @throws java.io.IOException             if an i/o error occurs.
+     */
+    public synchronized boolean append(BidFailureReport report) throws IOException {
+        checkOpen();
+        byte[] id = report.getId().getBytes(UTF_8);
+        if (id.length > MAX_ID_LENGTH) {
+            throw new IOException("report ID too long");
+        }
+        if (find(id) >= 0) {
+            return false;
+        }
+        byte[] snapshot = BidReportSnapshot.write(report, key);
+
+        int payloadLength = MIN_PAYLOAD_LENGTH + id.length + snapshot.length;
+        if (end + FRAME_LENGTH + payloadLength > Integer.MAX_VALUE) {
+            throw new IOException("store full: " + file);
+        }
+        ByteBuffer record = ByteBuffer.allocate(FRAME_LENGTH + payloadLength);
+        record.putInt(payloadLength).putInt(0)
+                .putLong(getTimestamp(report))
+                .putShort((short) id.length).put(id)
+                .put(snapshot);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), FRAME_LENGTH, payloadLength);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+
+        long offset = end;
+        try {
+            writeFully(record, offset);
+        } catch (IOException e) {
+            // leave no partial record behind for the next append
+            channel.truncate(offset);
+            throw e;
+        }
+        end = offset + record.limit();
+        if (end > map.capacity()) {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+        }
+        index(offset);
+
+        long cutoff = getCutoff();
+        if (oldestTimestamp < cutoff && cutoff - oldestTimestamp > retentionMillis / 4) {
+            compact();
+        }
+        return true;
+    }
+
+    /**
+     * Forces the appended reports to the storage device.
+     *
+     * @throws java.io.IOException if an i/o error occurs.
+     */
+    public synchronized void sync() throws IOException {
+        checkOpen();
+        channel.force(false);
+    }
+
+    /**
+     * Returns <code>true</code> if a report with the specified ID is stored.
+     *
+     * @param id the report ID.
+     * @return <code>true</code> if the report is stored.
+     */
+    public synchronized boolean contains(String id) {
+        checkOpen();
+        return find(id.getBytes(UTF_8)) >= 0;
+    }
+
+    /**
+     * Returns the number of reports stored.
+     *
+     * @return the number of reports stored.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the IDs of the stored reports, in the order they were appended.
+     *
+     * @return the IDs of the stored reports.
+     */
+    public synchronized List<String> getReportIds() {
+        checkOpen();
+        List<String> ids = new ArrayList<String>(size);
+        for (long offset = HEADER_LENGTH; offset < end; offset += FRAME_LENGTH + map.getInt((int) offset)) {
+            int idLength = map.getShort((int) offset + FRAME_LENGTH + 8) & 0xffff;
+            byte[] id = new byte[idLength];
+            ByteBuffer view = map.duplicate();
+            view.position((int) offset + FRAME_LENGTH + MIN_PAYLOAD_LENGTH);
+            view.get(id);
+            ids.add(new String(id, UTF_8));
+        }
+        return ids;
+    }
+
+    /**
+     * Returns a read-only view of the snapshot of the specified report in
+     * the mapped file, without copying it, for
+     * <code>BidReportSnapshot.readFailureReport</code> or for export.
+     *
+     * @param id the report ID.
+     * @return the snapshot of the report, or null if it is not stored.
+     */
+    public synchronized ByteBuffer getSnapshot(String id) {
+        checkOpen();
+        long offset = find(id.getBytes(UTF_8));
+        if (offset < 0) {
+            return null;
+        }
+        int position = (int) offset;
+        int idLength = map.getShort(position + FRAME_LENGTH + 8) & 0xffff;
+        ByteBuffer view = map.duplicate();
+        view.limit(position + FRAME_LENGTH + map.getInt(position));
+        view.position(position + FRAME_LENGTH + MIN_PAYLOAD_LENGTH + idLength);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Restores the specified report from its snapshot, checking its MAC.
+     *
+     * @param id the report ID.
+     * @return the verified report, or null if it is not stored.
+     * @throws java.io.IOException               if the snapshot is malformed.
+     * @throws BidSignatureVerificationException if the MAC of the snapshot does not match.
+     */
+    public BidFailureReport get(String id) throws IOException, BidSignatureVerificationException {
+        ByteBuffer snapshot = getSnapshot(id);
+        return snapshot != null ? BidReportSnapshot.readFailureReport(snapshot, key) : null;
+    }
+
+    /**
+     * Drops the reports older than the retention period, by copying the
+     * others to a new file which then replaces the store file.
+     *
+     * @return the number of reports dropped.
+     * @throws java.io.IOException if an i/o error occurs, in which case the store is unchanged.
+     */
+    public synchronized int compact() throws IOException {
+        checkOpen();
+        long cutoff = getCutoff();
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        int dropped = 0;
+        try {
+            FileChannel outChannel = out.getChannel();
+            outChannel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            while (header.hasRemaining()) {
+                outChannel.write(header);
+            }
+            for (long offset = HEADER_LENGTH; offset < end; ) {
+                int position = (int) offset;
+                int recordLength = FRAME_LENGTH + map.getInt(position);
+                if (map.getLong(position + FRAME_LENGTH) < cutoff) {
+                    dropped++;
+                } else {
+                    ByteBuffer record = map.duplicate();
+                    record.limit(position + recordLength).position(position);
+                    while (record.hasRemaining()) {
+                        outChannel.write(record);
+                    }
+                }
+                offset += recordLength;
+            }
+            outChannel.force(true);
+        } finally {
+            out.close();
+        }
+        if (dropped == 0) {
+            tmp.delete();
+            return 0;
+        }
+
+        // the rename is atomic, so a crash leaves either store intact
+        raf.close();
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            load();
+            throw new IOException("cannot replace " + file);
+        }
+        load();
+        return dropped;
+    }
+
+    /**
+     * Closes the store. Buffers returned by <code>getSnapshot</code> stay valid.
+     *
+     * @throws java.io.IOException if an i/o error occurs.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (raf != null) {
+            raf.close();
+            raf = null;
+            channel = null;
+        }
+    }
+
+    private void checkOpen() {
+        if (raf == null) {
+            throw new IllegalStateException("store closed");
+        }
+    }
+
+    private long getCutoff() {
+        long now = System.currentTimeMillis();
+        return retentionMillis < now ? now - retentionMillis : Long.MIN_VALUE;
+    }
+
+    /**
+     * Returns the time the report ages from: the date BID received it or,
+     * if unknown, the time in the report, which is in seconds.
+     */
+    private static long getTimestamp(BidFailureReport report) {
+        long dateReceived = report.getDateReceived();
+        if (dateReceived >= 0) {
+            return dateReceived;
+        }
+        try {
+            return Long.parseLong(report.getTime()) * 1000;
+        } catch (NumberFormatException nfe) {
+            return System.currentTimeMillis();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static int hash(byte[] id) {
+        int h = Arrays.hashCode(id);
+        // spread the high bits, as the table is indexed by the low bits
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Adds the record at the specified offset of the mapped file to the index.
+     */
+    private void index(long offset) {
+        if ((size + 1) * 4 > indexOffsets.length * 3) {
+            int[] oldHashes = indexHashes;
+            long[] oldOffsets = indexOffsets;
+            indexHashes = new int[oldHashes.length * 2];
+            indexOffsets = new long[oldOffsets.length * 2];
+            for (int i = 0; i < oldOffsets.length; i++) {
+                if (oldOffsets[i] != 0) {
+                    insert(oldHashes[i], oldOffsets[i]);
+                }
+            }
+        }
+        int position = (int) offset;
+        int idLength = map.getShort(position + FRAME_LENGTH + 8) & 0xffff;
+        byte[] id = new byte[idLength];
+        ByteBuffer view = map.duplicate();
+        view.position(position + FRAME_LENGTH + MIN_PAYLOAD_LENGTH);
+        view.get(id);
+        insert(hash(id), offset);
+        size++;
+        oldestTimestamp = Math.min(oldestTimestamp, map.getLong(position + FRAME_LENGTH));
+    }
+
+    private void insert(int hash, long offset) {
+        int mask = indexOffsets.length - 1;
+        int i = hash & mask;
+        while (indexOffsets[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        indexHashes[i] = hash;
+        indexOffsets[i] = offset;
+    }
+
+    /**
+     * Returns the offset of the record of the specified report ID, or -1 if
+     * there is none.
+     */
+    private long find(byte[] id) {
+        int hash = hash(id);
+        int mask = indexOffsets.length - 1;
+        for (int i = hash & mask; indexOffsets[i] != 0; i = (i + 1) & mask) {
+            if (indexHashes[i] == hash && idEquals((int) indexOffsets[i], id)) {
+                return indexOffsets[i];
+            }
+        }
+        return -1;
+    }
+
+    private boolean idEquals(int position, byte[] id) {
+        int idStart = position + FRAME_LENGTH + MIN_PAYLOAD_LENGTH;
+        if ((map.getShort(idStart - 2) & 0xffff) != id.length) {
+            return false;
+        }
+        for (int i = 0; i < id.length; i++) {
+            if (map.get(idStart + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
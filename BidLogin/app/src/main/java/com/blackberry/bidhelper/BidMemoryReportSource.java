@@ -0,0 +1,136 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A report source which holds its reports and certificate in memory.
+ * <p/>
+ * The status report is fixed: it is returned whatever the nonce of the
+ * request, so its verification fails with a nonce mismatch unless it was
+ * generated for the nonce passed to <code>verifyStatusReport</code>.
+ * Failure reports are returned in the order they were received; reports
+ * with the same date are returned in the order they were added.
+ * <p/>
+ * This class is thread-safe.
+ */
+public final class BidMemoryReportSource implements BidReportSource {
+
+    private final List<BidReportRecord> failureReports = new ArrayList<BidReportRecord>();
+    private final Map<String, BidReportRecord> failureReportsById = new HashMap<String, BidReportRecord>();
+    private BidReportRecord statusReport;
+    private byte[] certificate;
+
+    /**
+     * Sets the status report to be returned for every nonce.
+     *
+     * @param statusReport the raw status report, or null for none.
+     */
+    public synchronized void setStatusReport(BidReportRecord statusReport) {
+        this.statusReport = statusReport;
+    }
+
+    /**
+     * Sets the BID certificate.
+     *
+     * @param certificate the certificate in its encoded form, or null for none.
+     */
+    public synchronized void setCertificate(byte[] certificate) {
+        this.certificate = certificate;
+    }
+
+    /**
+     * Adds a failure report, replacing any report with the same id. The
+     * record should have a received date for the report to be ordered and
+     * selected by date.
+     *
+     * @param reportId the id of the report.
+     * @param record   the raw failure report.
+     */
+    public synchronized void addFailureReport(String reportId, BidReportRecord record) {
+        BidReportRecord previous = failureReportsById.put(reportId, record);
+        if (previous != null) {
+            failureReports.remove(previous);
+        }
+        int i = failureReports.size();
+        while (i > 0 && failureReports.get(i - 1).getDateReceived() > record.getDateReceived()) {
+            i--;
+        }
+        failureReports.add(i, record);
+    }
+
+    /**
+     * Removes all failure reports.
+     */
+    public synchronized void clearFailureReports() {
+        failureReports.clear();
+        failureReportsById.clear();
+    }
+
+    @Override
+    public synchronized BidReportRecord queryStatusReport(BigInteger nonce)
+            throws BidRequestException {
+        if (statusReport == null) {
+            throw new BidRequestException("no status report");
+        }
+        return statusReport;
+    }
+
+    @Override
+    public synchronized BidReportRecord queryFailureReport(String reportId)
+            throws BidRequestException {
+        BidReportRecord record = failureReportsById.get(reportId);
+        if (record == null) {
+            throw new BidRequestException("no failure report with id " + reportId);
+        }
+        return record;
+    }
+
+    @Override
+    public synchronized List<BidReportRecord> queryFailureReports(long dateReceived, int offset, int limit)
+            throws BidRequestException {
+        List<BidReportRecord> result = new ArrayList<BidReportRecord>();
+        int skipped = 0;
+        for (BidReportRecord record : failureReports) {
+            if (limit > 0 && result.size() == limit) {
+                break;
+            }
+            if (dateReceived >= 0 && record.getDateReceived() <= dateReceived) {
+                continue;
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            result.add(record);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized byte[] queryCertificate()
+            throws BidCertificateUnavailableException,
+            BidRequestException {
+        if (certificate == null) {
+            throw new BidCertificateUnavailableException("no certificate");
+        }
+        return certificate;
+    }
+}
@@ -0,0 +1,34 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+/**
+ * The XML parsers a <code>BidHelper</code> can verify reports with. Both
+ * engines check the same hashes and populate the same fields.
+ */
+public enum BidParserEngine {
+    /**
+     * A SAX parser, which delivers every event of the reports to the
+     * handlers. This is the default.
+     */
+    SAX,
+
+    /**
+     * An <code>XmlPullParser</code>, which only delivers the text of the
+     * elements the report types read. On the JVM, a pull parser such as
+     * kXML 2 must be on the class path.
+     */
+    PULL
+}
@@ -0,0 +1,198 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.IOException;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * A configured <code>XmlPullParser</code>, reused across reports.
+ * <p/>
+ * Instead of forwarding every SAX event through
+ * <code>BidVerifiable.Verifier</code>, the pipeline pulls the events itself
+ * and drives the handler directly. It only reads the text which the
+ * handler keeps, see <code>BidXmlHandler.isTextKept</code>, and only copies
+ * the attributes of <code>failure</code> elements. No subtree is skipped: the hash checks of
+ * <code>handleCommonText</code> must see an embedded hash wherever it is
+ * nested. The handler sees the same element events and the same
+ * accumulated text for the elements it reads as under SAX, so both engines
+ * populate the same fields and reject the same reports.
+ * <p/>
+ * Like <code>BidSaxPipeline</code>, each thread keeps one pipeline which is
+ * configured once, and refuses document type declarations.
+ */
+final class BidPullPipeline implements BidXmlPipeline {
+
+    private static final ThreadLocal<BidPullPipeline> pipelines = new ThreadLocal<BidPullPipeline>();
+
+    private final XmlPullParser parser;
+    private final AttributesImpl attributes;
+    private final int[] textBounds;
+    private BidParserLimits limits = BidParserLimits.DEFAULT;
+    private boolean inUse;
+
+    /**
+     * Creates a new pipeline around the specified parser.
+     *
+     * @param parser the parser, which is configured here.
+     * @throws org.xmlpull.v1.XmlPullParserException if the parser does not support a required feature.
+     */
+    private BidPullPipeline(XmlPullParser parser) throws XmlPullParserException {
+        this.parser = parser;
+        this.attributes = new AttributesImpl();
+        this.textBounds = new int[2];
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+    }
+
+    /**
+     * Creates a new, un-shared pipeline.
+     *
+     * @return a new pipeline.
+     * @throws javax.xml.parsers.ParserConfigurationException if a parser cannot be created or configured.
+     */
+    static BidPullPipeline create() throws ParserConfigurationException {
+        try {
+            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+            return new BidPullPipeline(factory.newPullParser());
+        } catch (XmlPullParserException e) {
+            ParserConfigurationException pce = new ParserConfigurationException(e.getMessage());
+            pce.initCause(e);
+            throw pce;
+        }
+    }
+
+    /**
+     * Returns the calling thread's pipeline, marked as in use. If that pipeline
+     * is already in use further up the stack, a new one is returned instead.
+     * Callers must call <code>release()</code> when done.
+     *
+     * @return a pipeline ready to parse a report.
+     * @throws javax.xml.parsers.ParserConfigurationException if a parser cannot be created or configured.
+     */
+    static BidPullPipeline acquire() throws ParserConfigurationException {
+        BidPullPipeline pipeline = pipelines.get();
+        if (pipeline == null) {
+            pipeline = create();
+            pipelines.set(pipeline);
+        } else if (pipeline.inUse) {
+            pipeline = create();
+        }
+        pipeline.inUse = true;
+        return pipeline;
+    }
+
+    @Override
+    public void release() {
+        unbind();
+        limits = BidParserLimits.DEFAULT;
+        inUse = false;
+    }
+
+    @Override
+    public void setLimits(BidParserLimits limits) {
+        this.limits = limits;
+    }
+
+    @Override
+    public BidParserLimits getLimits() {
+        return limits;
+    }
+
+    @Override
+    public void parse(BidVerifiable report, BidXmlHandler handler, BidReportBody xml, int xmlType)
+            throws IOException, SAXException {
+        limits.checkReportLength(xml.length());
+        handler.setXmlType(xmlType);
+        handler.setLimits(limits);
+        try {
+            parser.setInput(xml.openStream(), "UTF-8");
+            handler.startDocument();
+            for (int event = skipProlog(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+                switch (event) {
+                    case XmlPullParser.START_TAG:
+                        startElement(handler);
+                        break;
+                    case XmlPullParser.END_TAG:
+                        String name = parser.getName();
+                        report.handleCommonText(handler);
+                        handler.elementText();
+                        handler.endElement(parser.getNamespace(), name, name);
+                        handler.pop();
+                        break;
+                    case XmlPullParser.TEXT:
+                        if (handler.isTextKept()) {
+                            char[] ch = parser.getTextCharacters(textBounds);
+                            handler.appendText(ch, textBounds[0], textBounds[1]);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            handler.endDocument();
+        } catch (XmlPullParserException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    /**
+     * Handles the start tag the parser is positioned on.
+     *
+     * @param handler the handler for the report.
+     */
+    private void startElement(BidXmlHandler handler) throws SAXException {
+        String name = parser.getName();
+        int tagId = BidXmlHandler.getTagId(name);
+        attributes.clear();
+        if (tagId == BidXmlHandler.TAG_ID_FAILURE) {
+            for (int i = 0; i < parser.getAttributeCount(); i++) {
+                String attName = parser.getAttributeName(i);
+                attributes.addAttribute(parser.getAttributeNamespace(i), attName, attName,
+                        parser.getAttributeType(i), parser.getAttributeValue(i));
+            }
+        }
+        handler.push(tagId, attributes);
+        handler.startElement(parser.getNamespace(), name, name, attributes);
+    }
+
+    /**
+     * Advances the parser past the prolog to the root element, refusing a
+     * document type declaration, which <code>next()</code> would skip.
+     *
+     * @return the event the parser is positioned on.
+     */
+    private int skipProlog() throws IOException, SAXException, XmlPullParserException {
+        int event = parser.nextToken();
+        while (event != XmlPullParser.START_TAG && event != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.DOCDECL) {
+                throw new SAXException("document type declarations are not allowed");
+            }
+            event = parser.nextToken();
+        }
+        return event;
+    }
+
+    @Override
+    public void unbind() {
+        attributes.clear();
+    }
+}
@@ -0,0 +1,346 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Compact binary snapshots of the contents of verified reports, so that a
+ * verified posture can be kept across process restarts without keeping, or
+ * parsing again, the raw XML reports.
+ * <p/>
+ * A snapshot holds the fields extracted from the report (time, nonce,
+ * severity, report IDs, security tokens, failures, device model and OS
+ * version) and the SHA-256 hash of the TZ signature of the original report,
+ * followed by an HMAC-SHA256 over all of the preceding bytes. The MAC key
+ * is the application's: a snapshot read back with the same key is known to
+ * have been written by the application from a verified report, and cannot
+ * be moved onto the identity of another signed report. Anyone holding the
+ * key can forge snapshots, so it must be kept at least as safe as the
+ * snapshots themselves, for example in the Android key store.
+ * <p/>
+ * The format is versioned; snapshots of another version are rejected, and
+ * callers should then request and verify the report again. All values are
+ * big-endian:
+ * <pre>
+ * int     magic 0x42494453 ("BIDS")
+ * byte    version
+ * byte    type, 1 for a status report and 2 for a failure report
+ * byte[]  SHA-256 hash of the TZ signature
+ * string  device model
+ * string  OS version
+ * ...     the fields of the report type
+ * byte[]  HMAC-SHA256 of all of the above
+ * </pre>
+ * Strings are written as their UTF-8 byte arrays, and byte arrays as their
+ * length followed by their bytes, with a length of -1 for null.
+ */
+public final class BidReportSnapshot {
+
+    /**
+     * The current snapshot format version.
+     */
+    public static final int VERSION = 1;
+
+    private static final int MAGIC = 0x42494453;
+    private static final int TYPE_STATUS = 1;
+    private static final int TYPE_FAILURE = 2;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_LENGTH = 32;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private BidReportSnapshot() {
+    }
+
+    /**
+     * Returns a snapshot of the specified verified report.
+     *
+     * @param report the verified report.
+     * @param key    the MAC key.
+     * @return the snapshot.
+     * @throws java.lang.IllegalStateException    if the report has not been verified.
+     * @throws java.lang.IllegalArgumentException if the key is empty.
+     */
+    public static byte[] write(BidVerifiable report, byte[] key) {
+        if (!report.isVerified()) {
+            // a snapshot vouches for the verification, so bypassing it is not enough
+            throw new IllegalStateException("attempt to snapshot an unverified report");
+        }
+
+        Mac mac = createMac(key);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(report instanceof BidStatusReport ? TYPE_STATUS : TYPE_FAILURE);
+            writeBytes(out, report.getTzSignatureDigest());
+            writeString(out, report.getDeviceModel());
+            writeString(out, report.getOsVersion());
+            report.writeSnapshotFields(out);
+            out.flush();
+            out.write(mac.doFinal(bytes.toByteArray()));
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Restores a verified report from the specified snapshot, after checking
+     * its MAC. The raw XML reports of the restored report are null.
+     *
+     * @param snapshot the snapshot written by <code>write</code>.
+     * @param key      the MAC key the snapshot was written with.
+     * @return the restored report, a <code>BidStatusReport</code> or a <code>BidFailureReport</code>.
+     * @throws java.io.IOException                if the snapshot is malformed or of another version.
+     * @throws BidSignatureVerificationException  if the MAC does not match.
+     * @throws java.lang.IllegalArgumentException if the key is empty.
+     */
+    public static BidVerifiable read(byte[] snapshot, byte[] key)
+            throws IOException, BidSignatureVerificationException {
+        return read(ByteBuffer.wrap(snapshot), key);
+    }
+
+    /**
+     * Restores a verified report from the snapshot between the position and
+     * the limit of the specified buffer, after checking its MAC. The snapshot
+     * is read in place, for example from a memory-mapped file, and the
+     * position of the buffer is not changed.
+     *
+     * @param snapshot the snapshot written by <code>write</code>.
+     * @param key      the MAC key the snapshot was written with.
+     * @return the restored report, a <code>BidStatusReport</code> or a <code>BidFailureReport</code>.
+     * @throws java.io.IOException                if the snapshot is malformed or of another version.
+     * @throws BidSignatureVerificationException  if the MAC does not match.
+     * @throws java.lang.IllegalArgumentException if the key is empty.
+     */
+    public static BidVerifiable read(ByteBuffer snapshot, byte[] key)
+            throws IOException, BidSignatureVerificationException {
+        Mac mac = createMac(key);
+        int length = snapshot.remaining() - MAC_LENGTH;
+        if (length < 6) {
+            throw new IOException("truncated snapshot");
+        }
+        ByteBuffer contents = snapshot.duplicate();
+        contents.limit(contents.position() + length);
+        mac.update(contents.duplicate());
+        byte[] expected = new byte[MAC_LENGTH];
+        ByteBuffer trailer = snapshot.duplicate();
+        trailer.position(trailer.position() + length);
+        trailer.get(expected);
+        if (!MessageDigest.isEqual(mac.doFinal(), expected)) {
+            throw new BidSignatureVerificationException("Snapshot MAC Verification Failed.");
+        }
+
+        DataInputStream in = new DataInputStream(new ByteBufferInputStream(contents));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a BID report snapshot");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported snapshot version " + version);
+        }
+        int type = in.readUnsignedByte();
+        byte[] tzSignatureDigest = readBytes(in);
+        String devicemodel = readString(in);
+        String osversion = readString(in);
+
+        BidVerifiable report;
+        switch (type) {
+            case TYPE_STATUS:
+                report = BidStatusReport.readSnapshotFields(in, devicemodel, osversion, tzSignatureDigest);
+                break;
+            case TYPE_FAILURE:
+                report = BidFailureReport.readSnapshotFields(in, devicemodel, osversion, tzSignatureDigest);
+                break;
+            default:
+                throw new IOException("unknown snapshot type " + type);
+        }
+        if (in.available() != 0) {
+            throw new IOException("trailing bytes in snapshot");
+        }
+        return report;
+    }
+
+    /**
+     * Restores a verified status report from the specified snapshot.
+     *
+     * @param snapshot the snapshot written by <code>write</code>.
+     * @param key      the MAC key the snapshot was written with.
+     * @return the restored status report.
+     * @throws java.io.IOException               if the snapshot is malformed, of another version,
+     *                                           or not of a status report.
+     * @throws BidSignatureVerificationException if the MAC does not match.
+     */
+    public static BidStatusReport readStatusReport(byte[] snapshot, byte[] key)
+            throws IOException, BidSignatureVerificationException {
+        BidVerifiable report = read(snapshot, key);
+        if (!(report instanceof BidStatusReport)) {
+            throw new IOException("not a status report snapshot");
+        }
+        return (BidStatusReport) report;
+    }
+
+    /**
+     * Restores a verified failure report from the specified snapshot.
+     *
+     * @param snapshot the snapshot written by <code>write</code>.
+     * @param key      the MAC key the snapshot was written with.
+     * @return the restored failure report.
+     * @throws java.io.IOException               if the snapshot is malformed, of another version,
+     *                                           or not of a failure report.
+     * @throws BidSignatureVerificationException if the MAC does not match.
+     */
+    public static BidFailureReport readFailureReport(byte[] snapshot, byte[] key)
+            throws IOException, BidSignatureVerificationException {
+        return readFailureReport(ByteBuffer.wrap(snapshot), key);
+    }
+
+    /**
+     * Restores a verified failure report from the snapshot between the
+     * position and the limit of the specified buffer, in place.
+     *
+     * @param snapshot the snapshot written by <code>write</code>.
+     * @param key      the MAC key the snapshot was written with.
+     * @return the restored failure report.
+     * @throws java.io.IOException               if the snapshot is malformed, of another version,
+     *                                           or not of a failure report.
+     * @throws BidSignatureVerificationException if the MAC does not match.
+     */
+    public static BidFailureReport readFailureReport(ByteBuffer snapshot, byte[] key)
+            throws IOException, BidSignatureVerificationException {
+        BidVerifiable report = read(snapshot, key);
+        if (!(report instanceof BidFailureReport)) {
+            throw new IOException("not a failure report snapshot");
+        }
+        return (BidFailureReport) report;
+    }
+
+    /**
+     * Reads a buffer, from its position to its limit, as a stream.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    private static Mac createMac(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is required in all Java implementations
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.available()) {
+            throw new IOException("invalid length " + length);
+        }
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return b;
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s != null ? s.getBytes(UTF_8) : null);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] b = readBytes(in);
+        return b != null ? new String(b, UTF_8) : null;
+    }
+
+    static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        if (strings == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(strings.length);
+            for (String s : strings) {
+                writeString(out, s);
+            }
+        }
+    }
+
+    static String[] readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count == -1) {
+            return null;
+        }
+        // each string takes at least its length
+        if (count < 0 || count > in.available() / 4) {
+            throw new IOException("invalid count " + count);
+        }
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            strings[i] = readString(in);
+        }
+        return strings;
+    }
+}
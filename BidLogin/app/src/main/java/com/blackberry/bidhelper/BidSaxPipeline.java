@@ -0,0 +1,152 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+
+import java.io.IOException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * A configured SAX parser and its <code>BidVerifiable.Verifier</code>,
+ * reused across reports.
+ * <p/>
+ * Looking up a <code>SAXParserFactory</code> and configuring a new
+ * <code>XMLReader</code> is expensive, particularly on Android, so each
+ * thread keeps one pipeline which is configured once. The reader is reset
+ * by the parser itself between the JBIDE, KBIDE and TZ documents; the
+ * verifier is re-bound to each report in turn.
+ * <p/>
+ * Document type declarations are refused, by the parser where it supports
+ * doing so and by the verifier otherwise, so that no entity can be declared,
+ * expanded or fetched.
+ */
+final class BidSaxPipeline implements BidXmlPipeline {
+
+    private static final ThreadLocal<BidSaxPipeline> pipelines = new ThreadLocal<BidSaxPipeline>();
+
+    private final XMLReader reader;
+    private final BidVerifiable.Verifier verifier;
+    private BidParserLimits limits = BidParserLimits.DEFAULT;
+    private boolean inUse;
+
+    /**
+     * Creates a new pipeline around the specified reader.
+     *
+     * @param reader the reader, which is configured here.
+     * @throws org.xml.sax.SAXException if the reader does not support a required feature.
+     */
+    private BidSaxPipeline(XMLReader reader) throws SAXException {
+        this.reader = reader;
+        this.verifier = new BidVerifiable.Verifier();
+        reader.setEntityResolver(verifier);
+        reader.setDTDHandler(verifier);
+        reader.setContentHandler(verifier);
+        reader.setErrorHandler(verifier);
+        reader.setFeature("http://xml.org/sax/features/namespaces", true);
+        reader.setFeature("http://xml.org/sax/features/namespace-prefixes", false);
+        // The verifier refuses a DTD as it starts, if the parser does not
+        reader.setProperty("http://xml.org/sax/properties/lexical-handler", verifier);
+        setOptionalFeature(reader, "http://apache.org/xml/features/disallow-doctype-decl", true);
+        setOptionalFeature(reader, "http://xml.org/sax/features/external-general-entities", false);
+        setOptionalFeature(reader, "http://xml.org/sax/features/external-parameter-entities", false);
+    }
+
+    /**
+     * Sets a feature the reader may not recognize or support.
+     */
+    private static void setOptionalFeature(XMLReader reader, String name, boolean value) {
+        try {
+            reader.setFeature(name, value);
+        } catch (SAXNotRecognizedException e) {
+            // not needed, the verifier refuses what the feature would
+        } catch (SAXNotSupportedException e) {
+            // not needed, the verifier refuses what the feature would
+        }
+    }
+
+    /**
+     * Creates a new, un-shared pipeline.
+     *
+     * @return a new pipeline.
+     * @throws javax.xml.parsers.ParserConfigurationException if a parser cannot be created.
+     * @throws org.xml.sax.SAXException                        if the parser cannot be configured.
+     */
+    static BidSaxPipeline create() throws ParserConfigurationException, SAXException {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        return new BidSaxPipeline(factory.newSAXParser().getXMLReader());
+    }
+
+    /**
+     * Returns the calling thread's pipeline, marked as in use. If that pipeline
+     * is already in use further up the stack, a new one is returned instead.
+     * Callers must call <code>release()</code> when done.
+     *
+     * @return a pipeline ready to be bound to a report.
+     * @throws javax.xml.parsers.ParserConfigurationException if a parser cannot be created.
+     * @throws org.xml.sax.SAXException                        if the parser cannot be configured.
+     */
+    static BidSaxPipeline acquire() throws ParserConfigurationException, SAXException {
+        BidSaxPipeline pipeline = pipelines.get();
+        if (pipeline == null) {
+            pipeline = create();
+            pipelines.set(pipeline);
+        } else if (pipeline.inUse) {
+            pipeline = create();
+        }
+        pipeline.inUse = true;
+        return pipeline;
+    }
+
+    @Override
+    public void release() {
+        unbind();
+        limits = BidParserLimits.DEFAULT;
+        inUse = false;
+    }
+
+    @Override
+    public void setLimits(BidParserLimits limits) {
+        this.limits = limits;
+    }
+
+    @Override
+    public BidParserLimits getLimits() {
+        return limits;
+    }
+
+    @Override
+    public void parse(BidVerifiable report, BidXmlHandler handler, BidReportBody xml, int xmlType)
+            throws IOException, SAXException {
+        limits.checkReportLength(xml.length());
+        verifier.bind(report, handler);
+        handler.setXmlType(xmlType);
+        handler.setLimits(limits);
+        InputSource source = new InputSource(xml.openStream());
+        source.setEncoding("UTF-8");
+        reader.parse(source);
+    }
+
+    @Override
+    public void unbind() {
+        verifier.bind(null, null);
+    }
+}
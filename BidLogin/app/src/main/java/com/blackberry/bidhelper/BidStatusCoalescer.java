@@ -0,0 +1,217 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.security.cert.CertificateException;
+
+/**
+ * Requests and verifies status reports on behalf of concurrent callers,
+ * sharing one request among all callers that arrive close together.
+ * <p/>
+ * At most one request is in flight at a time. Callers that arrive while a
+ * request is in flight do not join it, since it was issued before they
+ * asked; they are grouped into the next request instead, which is issued
+ * as soon as the current one completes. Every caller therefore receives a
+ * report requested after its call began, while the number of requests made
+ * to BID stays bounded however many callers there are.
+ * <p/>
+ * All callers of a request share the same nonce, the same verified report
+ * and, if the request fails, the same exception.
+ */
+public final class BidStatusCoalescer {
+
+    private static final int NONCE_BITS = 256;
+
+    /**
+     * A single request and verification, shared by the callers grouped into it.
+     */
+    private static final class Flight {
+        BidStatusReport report;
+        Exception exception;
+        boolean done;
+    }
+
+    private final BidHelper helper;
+    private final boolean certReqd;
+    private final SecureRandom random;
+    private Flight running;
+    private Flight waiting;
+
+    /**
+     * Creates a new coalescer.
+     *
+     * @param helper   the helper used to request and verify the reports.
+     * @param certReqd indicates whether a certificate is required for verification.
+     *                 See <code>BidHelper.verifyStatusReport</code>.
+     */
+    public BidStatusCoalescer(BidHelper helper, boolean certReqd) {
+        this.helper = helper;
+        this.certReqd = certReqd;
+        this.random = new SecureRandom();
+    }
+
+    /**
+     * Returns the helper used to request and verify the reports.
+     *
+     * @return the helper used to request and verify the reports.
+     */
+    public BidHelper getHelper() {
+        return helper;
+    }
+
+    /**
+     * Returns a verified status report requested after this call began,
+     * waiting for a request shared with other callers if there is one.
+     *
+     * @return a verified status report.
+     * @throws BidRequestException                     if an error occurred while attempting to fetch the report.
+     * @throws BidCertificateUnavailableException      if the certificate is not available and a certificate
+     *                                                 is required.
+     * @throws java.io.IOException                     if an i/o error occurs.
+     * @throws BidHashMismatchException                if the hash values do not match.
+     * @throws BidSignatureVerificationException       if the signature verification fails.
+     * @throws BidNonceMismatchException               if the nonce values do not match.
+     * @throws java.security.cert.CertificateException if the certificate chain part of the report is invalid
+     */
+    public BidStatusReport getStatus()
+            throws BidRequestException,
+            BidCertificateUnavailableException,
+            IOException,
+            BidHashMismatchException,
+            BidSignatureVerificationException,
+            BidNonceMismatchException,
+            CertificateException {
+        Flight flight;
+        boolean leader = false;
+        boolean interrupted = false;
+        try {
+            synchronized (this) {
+                if (waiting == null) {
+                    waiting = new Flight();
+                    leader = true;
+                }
+                flight = waiting;
+                if (leader) {
+                    // Keep collecting callers until the previous flight lands.
+                    while (running != null) {
+                        try {
+                            wait();
+                        } catch (InterruptedException ie) {
+                            interrupted = true;
+                        }
+                    }
+                    running = flight;
+                    waiting = null;
+                }
+            }
+
+            if (leader) {
+                fly(flight);
+            } else {
+                synchronized (this) {
+                    while (!flight.done) {
+                        try {
+                            wait();
+                        } catch (InterruptedException ie) {
+                            interrupted = true;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return getResult(flight);
+    }
+
+    /**
+     * Requests and verifies a report for the specified flight and wakes its
+     * callers and the leader of the next flight.
+     *
+     * @param flight the flight, which must be the running one.
+     */
+    private void fly(Flight flight) {
+        BidStatusReport report = null;
+        Exception exception = null;
+        try {
+            BigInteger nonce = new BigInteger(NONCE_BITS, random);
+            report = helper.requestStatusReport(nonce);
+            helper.verifyStatusReport(report, nonce, certReqd);
+        } catch (Exception e) {
+            exception = e;
+        } catch (Error err) {
+            exception = new IllegalStateException(err);
+            throw err;
+        } finally {
+            synchronized (this) {
+                flight.report = report;
+                flight.exception = exception;
+                flight.done = true;
+                running = null;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the report of the specified completed flight, or throws its exception.
+     *
+     * @param flight the completed flight.
+     * @return the verified report.
+     */
+    private static BidStatusReport getResult(Flight flight)
+            throws BidRequestException,
+            BidCertificateUnavailableException,
+            IOException,
+            BidHashMismatchException,
+            BidSignatureVerificationException,
+            BidNonceMismatchException,
+            CertificateException {
+        Exception e = flight.exception;
+        if (e == null) {
+            return flight.report;
+        }
+        if (e instanceof BidRequestException) {
+            throw (BidRequestException) e;
+        }
+        if (e instanceof BidCertificateUnavailableException) {
+            throw (BidCertificateUnavailableException) e;
+        }
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        if (e instanceof BidHashMismatchException) {
+            throw (BidHashMismatchException) e;
+        }
+        if (e instanceof BidSignatureVerificationException) {
+            throw (BidSignatureVerificationException) e;
+        }
+        if (e instanceof BidNonceMismatchException) {
+            throw (BidNonceMismatchException) e;
+        }
+        if (e instanceof CertificateException) {
+            throw (CertificateException) e;
+        }
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        throw new IllegalStateException(e);
+    }
+}
@@ -0,0 +1,259 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertPath;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A registry of decoded trust anchors used to validate BID certificates.
+ * <p/>
+ * The intermediate and root certificates are decoded once, when the
+ * registry is created, and the PKIX machinery needed to validate a chain
+ * is kept for reuse. Certificates which have been validated successfully
+ * are remembered by their SHA-256 fingerprint until their
+ * <code>notAfter</code> date, so repeated verifications of reports signed
+ * by the same BID certificate skip the chain check entirely.
+ * <p/>
+ * The default registry, built from <code>BidCertificateVerifier.BIDE_CERT_PATH</code>,
+ * is shared process-wide. Instances are thread-safe.
+ */
+public final class BidTrustAnchors {
+
+    private final X509Certificate intermediateCert;
+    private final X509Certificate rootCert;
+    private final PKIXParameters params;
+    private final CertificateFactory certFactory;
+    private final CertPathValidator validator;
+
+    /**
+     * Validated certificates keyed by SHA-256 fingerprint, mapped to the
+     * time in milliseconds after which the validation no longer holds.
+     */
+    private final Map<String, Long> validated;
+
+    /**
+     * The most recently validated certificate, checked by identity before
+     * computing a fingerprint.
+     */
+    private volatile ValidatedCertificate lastValidated;
+
+    /**
+     * Lazily initialized holder for the default registry.
+     */
+    private static final class DefaultHolder {
+        static final BidTrustAnchors INSTANCE;
+
+        static {
+            try {
+                INSTANCE = fromPem(BidCertificateVerifier.BIDE_CERT_PATH);
+            } catch (CertificateException ce) {
+                // The built-in certificates are constants; failing to
+                // decode them is a programming error.
+                throw new ExceptionInInitializerError(ce);
+            }
+        }
+    }
+
+    /**
+     * Creates a new registry from already decoded certificates.
+     *
+     * @param intermediateCert the intermediate CA certificate which issues BID certificates.
+     * @param rootCert         the root CA certificate which is trusted.
+     * @throws java.security.cert.CertificateException if the PKIX machinery cannot be initialized.
+     */
+    public BidTrustAnchors(X509Certificate intermediateCert, X509Certificate rootCert)
+            throws CertificateException {
+        this.intermediateCert = intermediateCert;
+        this.rootCert = rootCert;
+        this.validated = new ConcurrentHashMap<String, Long>();
+
+        try {
+            params = new PKIXParameters(Collections.singleton(new TrustAnchor(rootCert, null)));
+            params.setRevocationEnabled(false);
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new CertificateException("Failed to initialize PKIXParameters", e);
+        }
+
+        certFactory = CertificateFactory.getInstance("X.509");
+        try {
+            validator = CertPathValidator.getInstance("PKIX");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CertificateException("Failed to initialize CertPathValidator", e);
+        }
+    }
+
+    /**
+     * Returns the process-wide registry for the BlackBerry Core PKI, decoding
+     * the built-in certificates on first use.
+     *
+     * @return the process-wide registry for the BlackBerry Core PKI.
+     */
+    public static BidTrustAnchors getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * Creates a new registry from PEM encoded certificates laid out like
+     * <code>BidCertificateVerifier.BIDE_CERT_PATH</code>: the intermediate
+     * certificate first, followed by the root certificate.
+     *
+     * @param pemEncodedCerts the PEM encoded intermediate and root certificates.
+     * @return a new registry trusting the given root.
+     * @throws java.security.cert.CertificateException if the certificates cannot be decoded.
+     */
+    public static BidTrustAnchors fromPem(String[] pemEncodedCerts) throws CertificateException {
+        if (pemEncodedCerts.length != 2) {
+            throw new CertificateException("expected an intermediate and a root certificate");
+        }
+        List<Certificate> certs = BidCertificateVerifierAndroid.loadCertificates(pemEncodedCerts);
+        return new BidTrustAnchors((X509Certificate) certs.get(0), (X509Certificate) certs.get(1));
+    }
+
+    /**
+     * Returns the intermediate CA certificate.
+     *
+     * @return the intermediate CA certificate.
+     */
+    public X509Certificate getIntermediateCertificate() {
+        return intermediateCert;
+    }
+
+    /**
+     * Returns the root CA certificate.
+     *
+     * @return the root CA certificate.
+     */
+    public X509Certificate getRootCertificate() {
+        return rootCert;
+    }
+
+    /**
+     * Verifies that the specified certificate chains up to the root through the
+     * intermediate certificate. A successful result is remembered until the
+     * certificate expires.
+     *
+     * @param bidCert the BID certificate to be validated.
+     * @throws java.security.cert.CertificateException if the certificate validation failed.
+     */
+    public void validate(X509Certificate bidCert) throws CertificateException {
+        long now = System.currentTimeMillis();
+
+        ValidatedCertificate last = lastValidated;
+        if (last != null && last.certificate == bidCert && now <= last.notAfter) {
+            return;
+        }
+
+        String fingerprint = getFingerprint(bidCert);
+        Long notAfter = validated.get(fingerprint);
+        if (notAfter == null || now > notAfter) {
+            validateChain(bidCert);
+            notAfter = bidCert.getNotAfter().getTime();
+            purgeExpired(now);
+            validated.put(fingerprint, notAfter);
+        }
+        lastValidated = new ValidatedCertificate(bidCert, notAfter);
+    }
+
+    /**
+     * Forgets all previously validated certificates.
+     */
+    public void clearValidated() {
+        validated.clear();
+        lastValidated = null;
+    }
+
+    /**
+     * Runs the PKIX validation of the chain formed by the specified certificate
+     * and the intermediate certificate. The factory and validator are shared,
+     * and neither is guaranteed to be thread-safe.
+     *
+     * @param bidCert the BID certificate to be validated.
+     * @throws java.security.cert.CertificateException if the certificate validation failed.
+     */
+    private synchronized void validateChain(X509Certificate bidCert) throws CertificateException {
+        List<Certificate> certChain = new ArrayList<Certificate>(2);
+        certChain.add(bidCert);
+        certChain.add(intermediateCert);
+        CertPath certPath = certFactory.generateCertPath(certChain);
+
+        try {
+            validator.validate(certPath, params);
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new CertificateException("Validation failed", e);
+        } catch (CertPathValidatorException e) {
+            throw new CertificateException("Validation failed", e);
+        }
+    }
+
+    /**
+     * Removes entries whose validation no longer holds.
+     *
+     * @param now the current time in milliseconds.
+     */
+    private void purgeExpired(long now) {
+        Iterator<Long> it = validated.values().iterator();
+        while (it.hasNext()) {
+            if (now > it.next()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the SHA-256 fingerprint of the specified certificate as a hex string.
+     *
+     * @param cert the certificate whose fingerprint is desired.
+     * @return the SHA-256 fingerprint of the specified certificate.
+     * @throws java.security.cert.CertificateException if the certificate cannot be encoded.
+     */
+    static String getFingerprint(X509Certificate cert) throws CertificateException {
+        try {
+            MessageDigest digester = MessageDigest.getInstance("SHA-256");
+            return BidUtilities.bytesToHex(digester.digest(cert.getEncoded()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new CertificateException(e);
+        }
+    }
+
+    /**
+     * A certificate paired with the end of its validity.
+     */
+    private static final class ValidatedCertificate {
+        final X509Certificate certificate;
+        final long notAfter;
+
+        ValidatedCertificate(X509Certificate certificate, long notAfter) {
+            this.certificate = certificate;
+            this.notAfter = notAfter;
+        }
+    }
+}
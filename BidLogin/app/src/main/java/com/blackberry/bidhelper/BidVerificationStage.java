@@ -0,0 +1,43 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+/**
+ * The stages of verifying a report, in the order a
+ * <code>CHEAPEST_FIRST</code> verification runs them. A report records the
+ * stage which rejected it and how long each stage took.
+ */
+public enum BidVerificationStage {
+    /**
+     * Checks that each XML report is framed as a document, without parsing it.
+     */
+    STRUCTURE,
+
+    /**
+     * Checks the hash of the JBIDE report embedded in the KBIDE report, and
+     * the hash of the KBIDE report embedded in the TZ report.
+     */
+    HASH_LINKS,
+
+    /**
+     * Checks the certificate chain and the CMS signature of the TZ report.
+     */
+    SIGNATURE,
+
+    /**
+     * Parses the XML reports and extracts their fields.
+     */
+    FIELDS
+}
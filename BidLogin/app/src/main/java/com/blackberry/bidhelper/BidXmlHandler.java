@@ -19,7 +19,26 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
 import org.xml.sax.helpers.DefaultHandler;
 
-import java.util.Stack;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import static com.blackberry.bidhelper.BidConstants.TAG_BIDE_STATUS;
+import static com.blackberry.bidhelper.BidConstants.TAG_DEVICEMODEL;
+import static com.blackberry.bidhelper.BidConstants.TAG_FAILED_REPORTS;
+import static com.blackberry.bidhelper.BidConstants.TAG_FAILURE;
+import static com.blackberry.bidhelper.BidConstants.TAG_HIGH_TOKENS;
+import static com.blackberry.bidhelper.BidConstants.TAG_JBIDEHASH;
+import static com.blackberry.bidhelper.BidConstants.TAG_KBIDEHASH;
+import static com.blackberry.bidhelper.BidConstants.TAG_LOW_TOKENS;
+import static com.blackberry.bidhelper.BidConstants.TAG_MEDIUM_TOKENS;
+import static com.blackberry.bidhelper.BidConstants.TAG_NONCE;
+import static com.blackberry.bidhelper.BidConstants.TAG_OSVERSION;
+import static com.blackberry.bidhelper.BidConstants.TAG_REPORTID;
+import static com.blackberry.bidhelper.BidConstants.TAG_SEVERITY;
+import static com.blackberry.bidhelper.BidConstants.TAG_SIGNATURE_TOKEN_VALUE;
+import static com.blackberry.bidhelper.BidConstants.TAG_STATUS;
+import static com.blackberry.bidhelper.BidConstants.TAG_TIME;
+import static com.blackberry.bidhelper.BidConstants.TAG_TOKEN;
 
 /**
  * Base functionality for platform-independent XML parsing of BID reports.
@@ -27,6 +46,24 @@ import java.util.Stack;
  * parser interface. The reason for relying on SAX is because it is
  * cross-platform and because the DOM parser would be overkill for BIDE
  * reports.
+ * <p/>
+ * Elements are identified by small integer tag IDs rather than by name, so
+ * that subclasses can dispatch parser events with a single
+ * <code>switch</code>. The element stack is an array of tag IDs, and the
+ * attributes are only kept for <code>failure</code> elements, the only
+ * ones whose attributes are read, in a stack of attribute sets indexed by
+ * depth alongside it. Each depth reuses its attribute set from one element
+ * to the next, so that tracking an element allocates nothing once the
+ * stack has grown, and a nested <code>failure</code> element does not
+ * disturb the attributes of the one enclosing it.
+ * <p/>
+ * The text of an element may arrive in any number of chunks, so it is
+ * accumulated in a buffer which the handler reuses from one element to the
+ * next, and dispatched once to <code>elementText()</code> when the element
+ * ends. Only the text of elements with a known tag ID is kept, except
+ * within a <code>failure</code> element: there the text of every element is
+ * kept and left in the buffer when the element ends, so that the text of
+ * the failure is the text of its whole subtree, wherever its details sit.
  */
 abstract class BidXmlHandler extends DefaultHandler {
     /**
@@ -49,16 +86,100 @@ abstract class BidXmlHandler extends DefaultHandler {
      */
     public static final int TZ_SIG_XML_TYPE = 1 << 3;
 
+    /**
+     * Tag ID of elements not used by any handler, and of the parent of the
+     * root element.
+     */
+    static final int TAG_ID_OTHER = 0;
+    static final int TAG_ID_BIDE_STATUS = 1;
+    static final int TAG_ID_DEVICEMODEL = 2;
+    static final int TAG_ID_FAILED_REPORTS = 3;
+    static final int TAG_ID_FAILURE = 4;
+    static final int TAG_ID_JBIDEHASH = 5;
+    static final int TAG_ID_KBIDEHASH = 6;
+    static final int TAG_ID_NONCE = 7;
+    static final int TAG_ID_OSVERSION = 8;
+    static final int TAG_ID_REPORTID = 9;
+    static final int TAG_ID_SEVERITY = 10;
+    static final int TAG_ID_STATUS = 11;
+    static final int TAG_ID_SIGNATURE_TOKEN_VALUE = 12;
+    static final int TAG_ID_TIME = 13;
+    static final int TAG_ID_HIGH_TOKENS = 14;
+    static final int TAG_ID_MEDIUM_TOKENS = 15;
+    static final int TAG_ID_LOW_TOKENS = 16;
+    static final int TAG_ID_TOKEN = 17;
+
+    private static final int INITIAL_DEPTH = 8;
+    private static final int INITIAL_TEXT_CAPACITY = 128;
+    private static final Attributes NO_ATTRIBUTES = new AttributesImpl();
+
     private int xmlType;
-    private Stack<String> tagNames;
-    private Stack<AttributesImpl> attributes;
+    private int[] tagIds;
+    private int[] textStarts;
+    private int depth;
+    private char[] text;
+    private int textLength;
+    private int openFailures;
+    private int failureTextStart;
+    private AttributesImpl[] failureAttributes;
+    private BidParserLimits limits = BidParserLimits.DEFAULT;
+    private int failureCount;
 
     /**
      * Creates a new <code>BidXmlHandler</code>.
      */
     BidXmlHandler() {
-        tagNames = new Stack<String>();
-        attributes = new Stack<AttributesImpl>();
+        tagIds = new int[INITIAL_DEPTH];
+        textStarts = new int[INITIAL_DEPTH];
+        text = new char[INITIAL_TEXT_CAPACITY];
+        failureAttributes = new AttributesImpl[INITIAL_DEPTH];
+    }
+
+    /**
+     * Returns the tag ID of the specified element name.
+     *
+     * @param tagName the name of the element.
+     * @return the tag ID, or <code>TAG_ID_OTHER</code> if no handler uses the element.
+     */
+    static int getTagId(String tagName) {
+        switch (tagName) {
+            case TAG_BIDE_STATUS:
+                return TAG_ID_BIDE_STATUS;
+            case TAG_DEVICEMODEL:
+                return TAG_ID_DEVICEMODEL;
+            case TAG_FAILED_REPORTS:
+                return TAG_ID_FAILED_REPORTS;
+            case TAG_FAILURE:
+                return TAG_ID_FAILURE;
+            case TAG_JBIDEHASH:
+                return TAG_ID_JBIDEHASH;
+            case TAG_KBIDEHASH:
+                return TAG_ID_KBIDEHASH;
+            case TAG_NONCE:
+                return TAG_ID_NONCE;
+            case TAG_OSVERSION:
+                return TAG_ID_OSVERSION;
+            case TAG_REPORTID:
+                return TAG_ID_REPORTID;
+            case TAG_SEVERITY:
+                return TAG_ID_SEVERITY;
+            case TAG_STATUS:
+                return TAG_ID_STATUS;
+            case TAG_SIGNATURE_TOKEN_VALUE:
+                return TAG_ID_SIGNATURE_TOKEN_VALUE;
+            case TAG_TIME:
+                return TAG_ID_TIME;
+            case TAG_HIGH_TOKENS:
+                return TAG_ID_HIGH_TOKENS;
+            case TAG_MEDIUM_TOKENS:
+                return TAG_ID_MEDIUM_TOKENS;
+            case TAG_LOW_TOKENS:
+                return TAG_ID_LOW_TOKENS;
+            case TAG_TOKEN:
+                return TAG_ID_TOKEN;
+            default:
+                return TAG_ID_OTHER;
+        }
     }
 
     /**
@@ -77,28 +198,267 @@ abstract class BidXmlHandler extends DefaultHandler {
     }
 
     /**
-     * Pushes the specified tag name and corresponding
-     * attributes. To be called from <code>startElement</code>.
+     * Sets the limits which <code>push</code> and <code>appendText</code>
+     * enforce, until the next <code>reset</code>.
      *
-     * @param tagName the name of the element.
-     * @param atts    the corresponding attributes.
+     * @param limits the parser limits.
+     */
+    final void setLimits(BidParserLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Returns the depth of element nesting, which is 0 outside the root element.
+     *
+     * @return the depth of element nesting.
+     */
+    final int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Pushes the specified element, and its attributes if it is a
+     * <code>failure</code> element. To be called from <code>startElement</code>.
+     *
+     * @param tagId the tag ID of the element, see <code>getTagId</code>.
+     * @param atts  the corresponding attributes.
+     * @throws org.xml.sax.SAXException if the element exceeds the depth or
+     *                                  failure limits.
      */
-    final void push(String tagName, Attributes atts) {
-        tagNames.push(tagName);
-        attributes.push(new AttributesImpl(atts));
+    final void push(int tagId, Attributes atts) throws SAXException {
+        limits.checkDepth(depth + 1);
+        if (tagId == TAG_ID_FAILURE) {
+            limits.checkFailures(++failureCount);
+        }
+        if (depth == tagIds.length) {
+            tagIds = Arrays.copyOf(tagIds, depth * 2);
+            textStarts = Arrays.copyOf(textStarts, depth * 2);
+            failureAttributes = Arrays.copyOf(failureAttributes, depth * 2);
+        }
+        if (tagId == TAG_ID_FAILURE) {
+            if (failureAttributes[depth] == null) {
+                failureAttributes[depth] = new AttributesImpl();
+            }
+            failureAttributes[depth].setAttributes(atts);
+            if (openFailures++ == 0) {
+                failureTextStart = textLength;
+            }
+        }
+        textStarts[depth] = textLength;
+        tagIds[depth++] = tagId;
     }
 
     /**
-     * Pops the tag name and attributes from the top of
-     * the stack. To be called from <code>endElement</code>.
+     * Pops the element from the top of the stack. Its text is discarded,
+     * unless it is within a <code>failure</code> element, whose text it
+     * becomes part of. To be called from <code>endElement</code>.
      */
     final void pop() {
-        tagNames.pop();
-        attributes.pop();
+        if (tagIds[--depth] == TAG_ID_FAILURE) {
+            failureAttributes[depth].clear();
+            openFailures--;
+        }
+        if (openFailures == 0) {
+            textLength = textStarts[depth];
+        }
     }
 
     /**
-     * Returns <code>true</code> if the given type flags and tag name
+     * Returns <code>true</code> if the text of the current element is kept,
+     * that is if its tag is known or it is within a <code>failure</code>
+     * element, <code>false</code> otherwise.
+     *
+     * @return <code>true</code> if the text of the current element is kept.
+     */
+    final boolean isTextKept() {
+        return openFailures > 0 || getTag() != TAG_ID_OTHER;
+    }
+
+    /**
+     * Appends a chunk of the text of the current element, unless it is not
+     * kept, see <code>isTextKept</code>. To be called from <code>characters</code>.
+     *
+     * @param ch     the characters.
+     * @param start  the start position in the character array.
+     * @param length the number of characters to use from the character array.
+     * @throws org.xml.sax.SAXException if the text exceeds the text length limit.
+     */
+    final void appendText(char[] ch, int start, int length) throws SAXException {
+        if (!isTextKept()) {
+            return;
+        }
+        // the text of a failure element spans its subtree
+        limits.checkTextLength(textLength - (openFailures > 0 ? failureTextStart : getTextStart()) + length);
+        if (textLength + length > text.length) {
+            text = Arrays.copyOf(text, Math.max(text.length * 2, textLength + length));
+        }
+        System.arraycopy(ch, start, text, textLength, length);
+        textLength += length;
+    }
+
+    /**
+     * Returns the position in the text buffer where the text of the
+     * current element starts.
+     */
+    private int getTextStart() {
+        return depth > 0 ? textStarts[depth - 1] : textLength;
+    }
+
+    /**
+     * Returns the text of the current element accumulated so far. The text
+     * of child elements is not included, unless the element is within a
+     * <code>failure</code> element.
+     *
+     * @return the text of the current element.
+     */
+    final String getText() {
+        int start = getTextStart();
+        return new String(text, start, textLength - start);
+    }
+
+    /**
+     * Returns <code>true</code> if the text of the current element has any
+     * characters, <code>false</code> otherwise.
+     *
+     * @return <code>true</code> if the current element has text.
+     */
+    final boolean hasText() {
+        return textLength > getTextStart();
+    }
+
+    /**
+     * Compares the text of the current element to the specified string,
+     * without creating a string from the text.
+     *
+     * @param s the string to compare to.
+     * @return <code>true</code> if the text is equal to the string.
+     */
+    final boolean textEquals(String s) {
+        int start = getTextStart();
+        if (textLength - start != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (text[start + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the text of the current element as a signed decimal integer,
+     * like <code>Integer.parseInt</code> but without creating a string from
+     * the text.
+     *
+     * @return the integer value of the text.
+     * @throws java.lang.NumberFormatException if the text is not a parsable integer.
+     */
+    final int getTextAsInt() {
+        int i = getTextStart();
+        int end = textLength;
+        boolean negative = false;
+        if (i < end && (text[i] == '-' || text[i] == '+')) {
+            negative = text[i++] == '-';
+        }
+        if (i == end) {
+            throw new NumberFormatException("For input string: \"" + getText() + "\"");
+        }
+        // accumulate negatively, as Integer.parseInt does, to reach MIN_VALUE
+        int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        int multiplicationLimit = limit / 10;
+        int result = 0;
+        for (; i < end; i++) {
+            int digit = Character.digit(text[i], 10);
+            if (digit < 0 || result < multiplicationLimit) {
+                throw new NumberFormatException("For input string: \"" + getText() + "\"");
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw new NumberFormatException("For input string: \"" + getText() + "\"");
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    /**
+     * Parses the text of the current element as a signed integer in the
+     * specified radix, like the <code>BigInteger(String, int)</code>
+     * constructor. Hexadecimal text is converted straight from the buffer.
+     *
+     * @param radix the radix of the text.
+     * @return the integer value of the text.
+     * @throws java.lang.NumberFormatException if the text is not a parsable integer.
+     */
+    final BigInteger getTextAsBigInteger(int radix) {
+        if (radix != 16) {
+            return new BigInteger(getText(), radix);
+        }
+
+        int start = getTextStart();
+        int end = textLength;
+        boolean negative = false;
+        if (start < end && (text[start] == '-' || text[start] == '+')) {
+            negative = text[start++] == '-';
+        }
+        if (start == end) {
+            throw new NumberFormatException("Zero length BigInteger");
+        }
+
+        // two digits per byte, from the least significant end
+        byte[] magnitude = new byte[(end - start + 1) / 2];
+        int j = magnitude.length;
+        for (int i = end; i > start; i -= 2) {
+            int low = hexDigit(text[i - 1]);
+            int high = i - 2 >= start ? hexDigit(text[i - 2]) : 0;
+            magnitude[--j] = (byte) (high << 4 | low);
+        }
+        BigInteger value = new BigInteger(1, magnitude);
+        return negative ? value.negate() : value;
+    }
+
+    private static int hexDigit(char c) {
+        int digit = Character.digit(c, 16);
+        if (digit < 0) {
+            throw new NumberFormatException("Illegal digit");
+        }
+        return digit;
+    }
+
+    /**
+     * Returns <code>true</code> if the XML type currently being processed
+     * matches one of the given type flags.
+     *
+     * @param typeFlags a bitwise combination of the XML type flags.
+     * @return <code>true</code> if the current XML type matches.
+     */
+    final boolean isType(int typeFlags) {
+        return (typeFlags & xmlType) != 0;
+    }
+
+    /**
+     * Returns the tag ID of the current element.
+     *
+     * @return the tag ID of the current element, or <code>TAG_ID_OTHER</code>
+     * outside the root element.
+     */
+    final int getTag() {
+        return depth > 0 ? tagIds[depth - 1] : TAG_ID_OTHER;
+    }
+
+    /**
+     * Returns the tag ID of the parent of the current element.
+     *
+     * @return the tag ID of the parent element, or <code>TAG_ID_OTHER</code>
+     * if the depth of element nesting is less than 2.
+     */
+    final int getParentTag() {
+        return depth > 1 ? tagIds[depth - 2] : TAG_ID_OTHER;
+    }
+
+    /**
+     * Returns <code>true</code> if the given type flags and tag ID
      * match what is currently being processed, <code>false</code>
      * otherwise. Multiple types can be combined to effect a logical
      * disjunction.
@@ -110,51 +470,55 @@ abstract class BidXmlHandler extends DefaultHandler {
      *                  <li><code>TZ_XML_TYPE</code></li>
      *                  <li><code>TZ_SIG_XML_TYPE</code></li>
      *                  </ul>
-     * @param tagName   the name of the element.
-     * @return <code>true</code> if the given type flags and tag name
+     * @param tagId     the tag ID of the element.
+     * @return <code>true</code> if the given type flags and tag ID
      * match what is currently being processed, <code>false</code>
      * otherwise.
      */
-    public final boolean isTypeAndTag(int typeFlags, String tagName) {
-        String head = tagNames.peek();
-        return (typeFlags & xmlType) != 0 && tagName.equals(head);
+    public final boolean isTypeAndTag(int typeFlags, int tagId) {
+        return (typeFlags & xmlType) != 0 && getTag() == tagId;
     }
 
     /**
-     * Returns <code>true</code> if the given type flags, tag name,
-     * and parent name match what is currently being processed,
-     * <code>false</code> otherwise. Multiple types can be combined
-     * to effect a logical disjunction.
-     * <p/>
-     * Returns <code>false</code> if the depth of element nesting is
-     * less than 2.
+     * Returns the attributes of the current element if it is a
+     * <code>failure</code> element. The returned object is reused for
+     * the next <code>failure</code> element at the same depth.
      *
-     * @param typeFlags  a bitwise combination of the following values:
-     *                   <ul>
-     *                   <li><code>JBIDE_XML_TYPE</code></li>
-     *                   <li><code>KBIDE_XML_TYPE</code></li>
-     *                   <li><code>TZ_XML_TYPE</code></li>
-     *                   <li><code>TZ_SIG_XML_TYPE</code></li>
-     *                   </ul>
-     * @param tagName    the name of the current element.
-     * @param parentName the name of the parent element.
-     * @return <code>true</code> if the given type flags, tag name,
-     * and parent name match what is currently being processed,
-     * <code>false</code> otherwise.
+     * @return the attributes of the current <code>failure</code> element,
+     * or no attributes for any other element.
      */
-    public final boolean isTypeTagAndParent(int typeFlags, String tagName, String parentName) {
-        int size = tagNames.size();
-        boolean matchingParent = size > 1 && parentName.equals(tagNames.get(size - 2));
-        return isTypeAndTag(typeFlags, tagName) && matchingParent;
+    public final Attributes getAttributes() {
+        return getTag() == TAG_ID_FAILURE ? failureAttributes[depth - 1] : NO_ATTRIBUTES;
     }
 
     /**
-     * Returns the attributes corresponding to the current element.
+     * Called at the end of each element, before <code>endElement</code>,
+     * with the text of the element available from <code>getText()</code>
+     * and the related methods. The default implementation does nothing.
      *
-     * @return the attributes corresponding to the current element.
+     * @throws org.xml.sax.SAXException if a parsing error occurs.
      */
-    public final Attributes getAttributes() {
-        return attributes.peek();
+    void elementText() throws SAXException {
+    }
+
+    /**
+     * Clears the element stack and any state left over from the last set of
+     * BID XML documents, so that the handler can be reused. Subclasses that
+     * hold state of their own must override this method and call it.
+     */
+    void reset() {
+        xmlType = 0;
+        depth = 0;
+        textLength = 0;
+        openFailures = 0;
+        failureTextStart = 0;
+        for (AttributesImpl atts : failureAttributes) {
+            if (atts != null) {
+                atts.clear();
+            }
+        }
+        limits = BidParserLimits.DEFAULT;
+        failureCount = 0;
     }
 
     /**
@@ -19,10 +19,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.Message;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -31,13 +27,16 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.Toast;
 
+import com.blackberry.bidhelper.BidCallback;
+import com.blackberry.bidhelper.BidFuture;
 import com.blackberry.bidhelper.BidHelperAndroid;
+import com.blackberry.bidhelper.BidHelperAsync;
 import com.blackberry.bidhelper.BidListener;
+import com.blackberry.bidhelper.BidPostureCache;
 import com.blackberry.bidhelper.BidSignatureVerificationException;
 import com.blackberry.bidhelper.BidStatusReport;
 
-import java.math.BigInteger;
-import java.util.Random;
+import java.util.concurrent.CancellationException;
 
 
 /**
@@ -47,13 +46,10 @@ import java.util.Random;
 public class BidLoginActivity extends Activity implements BidListener {
 
     public static final boolean DEBUG = false;
-    public static final int GET_BID_REPORT = 1;
-    public static final int DEVICE_COMPROMISED = 2;
-    public static final int DEVICE_SAFE = 3;
     private static final String TAG = "BlackBerryBidTestApp";
-    private final HandlerThread mHandlerThread = new HandlerThread("BidLoginActivity", android.os.Process.THREAD_PRIORITY_BACKGROUND);
-    private BidReportHandler mHandler;
-    private Handler mUIHandler;
+    private static final long POSTURE_TTL_MILLIS = 5 * 60 * 1000;
+    private static BidPostureCache sPostureCache;
+    private BidFuture<BidStatusReport> mStatusFuture;
 
     private Context context;
 
@@ -62,6 +58,7 @@ public class BidLoginActivity extends Activity implements BidListener {
     private EditText password;
 
     private BidHelperAndroid mHelper;
+    private BidHelperAsync mHelperAsync;
     private OnClickListener mLoginListener = new OnClickListener() {
         public void onClick(View v) {
             String user = username.getText().toString();
@@ -92,7 +89,8 @@ public class BidLoginActivity extends Activity implements BidListener {
 
         context = this;
         mHelper = new BidHelperAndroid(this);
-        mHelper.addBidListener(this);
+        mHelper.addBidListener(this, BidHelperAndroid.getMainThreadExecutor());
+        mHelperAsync = new BidHelperAsync(mHelper);
 
         setContentView(R.layout.activity_login_screen);
         this.getWindow().setSoftInputMode(WindowManager.LayoutParams.SOFT_INPUT_STATE_ALWAYS_HIDDEN);
@@ -116,25 +114,50 @@ public class BidLoginActivity extends Activity implements BidListener {
     }
 
     /**
-     * gets the report by sending a message
-     * GET_BID_REPORT to the message queue.
+     * returns the posture cache shared by all instances of the activity.
+     * Its helper is bound to the application context, so the verified
+     * status outlives the activity and is reused on the next launch.
+     */
+    private static synchronized BidPostureCache getPostureCache(Context context) {
+        if (sPostureCache == null) {
+            BidHelperAndroid helper = new BidHelperAndroid(context.getApplicationContext());
+            sPostureCache = new BidPostureCache(helper, POSTURE_TTL_MILLIS, true);
+        }
+        return sPostureCache;
+    }
+
+    /**
+     * gets the verified status report from the posture cache, requesting
+     * and verifying a new one in the background if needed, and handles
+     * the result on the main thread.
      */
     private void getBidReport() {
-        mUIHandler = new Handler() {
-            public void handleMessage(Message msg) {
-                final int what = msg.what;
-                switch (what) {
-                    case DEVICE_SAFE:
-                        enableControls();
-                        break;
-                    default:
-                        break;
+        mStatusFuture = mHelperAsync.getStatusAsync(getPostureCache(this));
+        mStatusFuture.addCallback(new BidCallback<BidStatusReport>() {
+            @Override
+            public void onSuccess(BidStatusReport report) {
+                if (report.hasFailure()) {
+                    Toast.makeText(context, "Device has been compromised and the severity is: " + report.getMaxSeverity(), Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(context, "Device is safe.", Toast.LENGTH_LONG).show();
+                    enableControls();
                 }
             }
-        };
-        mHandlerThread.start();
-        mHandler = new BidReportHandler(mHandlerThread.getLooper());
-        mHandler.sendEmptyMessage(GET_BID_REPORT);
+
+            @Override
+            public void onFailure(Exception e) {
+                if (e instanceof BidSignatureVerificationException) {
+                    Log.e(TAG, "verification failed.");
+                    /**
+                     * You can read a particular report without verifying
+                     * it by using report.bypassVerification().
+                     * THIS IS NOT RECOMMENDED.
+                     */
+                } else if (!(e instanceof CancellationException)) {
+                    e.printStackTrace();
+                }
+            }
+        }, BidHelperAndroid.getMainThreadExecutor());
     }
 
     /**
@@ -172,6 +195,9 @@ public class BidLoginActivity extends Activity implements BidListener {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (mStatusFuture != null) {
+            mStatusFuture.cancel(true);
+        }
         mHelper.destroy();
     }
 
@@ -184,50 +210,4 @@ public class BidLoginActivity extends Activity implements BidListener {
     public void reportInserted() {
         Toast.makeText(this, R.string.report_inserted, Toast.LENGTH_SHORT).show();
     }
-
-    /**
-     * It allows for requesting the status report and verifying it.
-     * The report generated should be verified before opening.
-     */
-    private void queryStatus() {
-        try {
-            BigInteger bi = new BigInteger(256, new Random());
-            BidStatusReport report = mHelper.requestStatusReport(bi);
-            try {
-                mHelper.verifyStatusReport(report, bi, true);
-            } catch (BidSignatureVerificationException ex) {
-                Log.e(TAG, "verification failed.");
-                /**
-                 * You can read a particular report without verifying
-                 * it by using the below call. THIS IS NOT RECOMMENDED.
-                 */
-                //report.bypassVerification();
-            }
-            if (report.hasFailure()) {
-                Toast.makeText(context, "Device has been compromised and the severity is: " + report.getMaxSeverity(), Toast.LENGTH_LONG).show();
-            } else {
-                Toast.makeText(context, "Device is safe.", Toast.LENGTH_LONG).show();
-                mUIHandler.sendEmptyMessage(DEVICE_SAFE);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
-    /**
-     * class handles the calls for getting the BID report.
-     */
-    private class BidReportHandler extends Handler {
-        public BidReportHandler(Looper looper) {
-            super(looper);
-        }
-
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case GET_BID_REPORT:
-                    //do the processing and get the device state
-                    queryStatus();
-            }
-        }
-    }
 }
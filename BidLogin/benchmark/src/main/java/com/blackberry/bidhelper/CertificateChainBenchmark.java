@@ -0,0 +1,70 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of <code>verifyCertificateChain</code> for a test PKI. The
+ * <code>cold</code> case forgets the validated certificates before every
+ * call, so each call runs the PKIX validation; the <code>warm</code> case
+ * hits the cache of <code>BidTrustAnchors</code>. The trust anchors are
+ * shared by all threads, as they are in an application.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CertificateChainBenchmark {
+
+    @Param({"cold", "warm"})
+    public String cache;
+
+    private BidTrustAnchors trustAnchors;
+    private BidCertificateVerifier verifier;
+    private boolean cold;
+
+    @Setup
+    public void setUp() throws Exception {
+        TestPki pki = new TestPki(30);
+        trustAnchors = pki.trustAnchors();
+        verifier = new BidCertificateVerifierAndroid(trustAnchors);
+        verifier.setCertificate(pki.getBidCertificate());
+        cold = "cold".equals(cache);
+    }
+
+    @Benchmark
+    public BidCertificateVerifier verifyCertificateChain() throws Exception {
+        if (cold) {
+            trustAnchors.clearValidated();
+        }
+        verifier.verifyCertificateChain();
+        return verifier;
+    }
+}
@@ -0,0 +1,83 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of <code>verifyReport</code>, the detached CMS signature check, for
+ * signed content of the specified size. Real TZ reports are small, so the
+ * smallest size is the common case; the larger ones show how the digest of
+ * the content comes to dominate.
+ * <p/>
+ * <code>cache</code> selects what is remembered between calls: <code>none</code>
+ * clears every cache before each call, <code>verifier</code> keeps only the signer
+ * verifiers, and <code>outcome</code> also keeps the outcome of the report, which is
+ * what verifying an unchanged report again costs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CmsVerifyBenchmark {
+
+    @Param({"1024", "16384", "131072", "1048576"})
+    public int size;
+
+    @Param({"none", "verifier", "outcome"})
+    public String cache;
+
+    private byte[] content;
+    private byte[] signature;
+    private BidCertificateVerifier verifier;
+
+    @Setup
+    public void setUp() throws Exception {
+        TestPki pki = new TestPki(30);
+        content = new byte[size];
+        Arrays.fill(content, (byte) 'x');
+        signature = pki.sign(content);
+        verifier = new BidCertificateVerifierAndroid(pki.trustAnchors());
+        verifier.setCertificate(pki.getBidCertificate());
+        if (!verifier.verifyReport(content, signature)) {
+            throw new IllegalStateException("signature does not verify");
+        }
+    }
+
+    @Benchmark
+    public boolean verifyReport() throws Exception {
+        if ("none".equals(cache)) {
+            BidCertificateVerifierAndroid.clearCaches();
+        } else if ("verifier".equals(cache)) {
+            BidCertificateVerifierAndroid.clearReportOutcomes();
+        }
+        return verifier.verifyReport(content, signature);
+    }
+}
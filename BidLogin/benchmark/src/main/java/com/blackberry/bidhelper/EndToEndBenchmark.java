@@ -0,0 +1,94 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of requesting and fully verifying a signed report through
+ * <code>BidHelperJvm</code> over an in-memory source: hashing, parsing,
+ * certificate chain and CMS signature, with a certificate required. Every
+ * call requests a new report object, so nothing cached on a report is
+ * reused, and the cached outcomes of signature checks are cleared. The
+ * helper is shared by all threads.
+ * <p/>
+ * With <code>pipelined</code>, the certificate chain and signature are
+ * checked on a worker thread while the calling thread parses the report.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+
+    private static final BigInteger NONCE = new BigInteger("1f2e3d4c5b6a7988", 16);
+
+    @Param({"status", "failure"})
+    public String type;
+
+    @Param({"1024", "16384", "131072", "1048576"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean pipelined;
+
+    private BidHelperJvm helper;
+    private boolean status;
+    private String reportId;
+
+    @Setup
+    public void setUp() throws Exception {
+        TestPki pki = new TestPki(30);
+        BidMemoryReportSource source = new BidMemoryReportSource();
+        source.setCertificate(pki.getBidCertificate().getEncoded());
+        source.setStatusReport(
+                SyntheticReports.statusRecord(NONCE, SyntheticReports.tokenCountForSize(size), pki));
+        source.addFailureReport(SyntheticReports.reportId(0),
+                SyntheticReports.failureRecord(0, SyntheticReports.failureCountForSize(size), pki));
+        helper = new BidHelperJvm(source, pki.trustAnchors());
+        helper.setPipelinedVerification(pipelined);
+        status = "status".equals(type);
+        reportId = SyntheticReports.reportId(0);
+        verify();
+    }
+
+    @Benchmark
+    public BidVerifiable verify() throws Exception {
+        BidCertificateVerifierAndroid.clearReportOutcomes();
+        if (status) {
+            BidStatusReport report = helper.requestStatusReport(NONCE);
+            helper.verifyStatusReport(report, NONCE, true);
+            return report;
+        }
+        BidFailureReport report = helper.requestFailureReport(reportId);
+        helper.verifyFailureReport(report, true);
+        return report;
+    }
+}
@@ -0,0 +1,222 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates a load-testing set of signed BID reports. The set is written
+ * to a directory as:
+ * <ul>
+ * <li><code>reports.bin</code> (or <code>reports.bin.gz</code>): an archive,
+ * see <code>ReportArchiveWriter</code>, holding the BID certificate, one
+ * status report and the failure reports;</li>
+ * <li><code>intermediate.pem</code> and <code>root.pem</code>: the trust
+ * anchors of the generated test PKI.</li>
+ * </ul>
+ * The real verification code accepts the reports once it trusts the anchors
+ * and, off Android, the Bouncy Castle provider is registered:
+ * <pre>
+ *     Security.addProvider(new BouncyCastleProvider());
+ *     BidTrustAnchors anchors = BidTrustAnchors.fromPem(new String[]{intermediatePem, rootPem});
+ *     BidHelper helper = new BidHelperJvm(ReportArchiveReader.load(archive), anchors);
+ * </pre>
+ * Usage:
+ * <pre>
+ *     GenerateReports [--out DIR] [--count N] [--failures N] [--severity MIN-MAX]
+ *                     [--size BYTES] [--high-tokens T,...] [--medium-tokens T,...]
+ *                     [--low-tokens T,...] [--threads N] [--validity DAYS] [--gzip]
+ * </pre>
+ */
+public final class GenerateReports {
+
+    /**
+     * The most failure report IDs the status report lists; BID lists them
+     * all, but a status report listing millions would not be realistic.
+     */
+    private static final int MAX_LISTED_REPORTS = 1000;
+
+    private static final int BATCH_SIZE = 1024;
+
+    private File outDir = new File("reports");
+    private int count = 1000;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int validityDays = 365;
+    private boolean gzip;
+    private ReportGenerator generator;
+
+    private GenerateReports() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        GenerateReports tool = new GenerateReports();
+        try {
+            tool.parse(args);
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.err.println("usage: GenerateReports [--out DIR] [--count N] [--failures N] [--severity MIN-MAX]"
+                    + " [--size BYTES] [--high-tokens T,...] [--medium-tokens T,...] [--low-tokens T,...]"
+                    + " [--threads N] [--validity DAYS] [--gzip]");
+            System.exit(2);
+        }
+        tool.run();
+    }
+
+    private void parse(String[] args) throws Exception {
+        List<String[]> settings = new ArrayList<String[]>();
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--gzip")) {
+                gzip = true;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("missing value for " + option);
+            }
+            String value = args[++i];
+            if (option.equals("--out")) {
+                outDir = new File(value);
+            } else if (option.equals("--count")) {
+                count = parseInt(option, value);
+            } else if (option.equals("--threads")) {
+                threads = Math.max(1, parseInt(option, value));
+            } else if (option.equals("--validity")) {
+                validityDays = parseInt(option, value);
+            } else {
+                settings.add(new String[]{option, value});
+            }
+        }
+
+        generator = new ReportGenerator(new TestPki(validityDays));
+        for (String[] setting : settings) {
+            String option = setting[0];
+            String value = setting[1];
+            if (option.equals("--failures")) {
+                generator.setFailureCount(parseInt(option, value));
+            } else if (option.equals("--severity")) {
+                String[] range = value.split("-", 2);
+                int min = parseInt(option, range[0]);
+                generator.setSeverities(min, range.length == 2 ? parseInt(option, range[1]) : min);
+            } else if (option.equals("--size")) {
+                generator.setXmlSize(parseInt(option, value));
+            } else if (option.equals("--high-tokens")) {
+                generator.setSecurityTokens(BidStatusReport.Severity.HIGH, value.split(","));
+            } else if (option.equals("--medium-tokens")) {
+                generator.setSecurityTokens(BidStatusReport.Severity.MEDIUM, value.split(","));
+            } else if (option.equals("--low-tokens")) {
+                generator.setSecurityTokens(BidStatusReport.Severity.LOW, value.split(","));
+            } else {
+                throw new IllegalArgumentException("unknown option " + option);
+            }
+        }
+    }
+
+    private static int parseInt(String option, String value) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n < 0) {
+                throw new IllegalArgumentException("negative value for " + option);
+            }
+            return n;
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("invalid value for " + option + ": " + value);
+        }
+    }
+
+    private void run() throws Exception {
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("cannot create " + outDir);
+        }
+        TestPki pki = generator.getSigner();
+        String[] anchors = pki.trustAnchorsPem();
+        writeText(new File(outDir, "intermediate.pem"), anchors[0]);
+        writeText(new File(outDir, "root.pem"), anchors[1]);
+
+        long start = System.nanoTime();
+        File archive = new File(outDir, gzip ? "reports.bin.gz" : "reports.bin");
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ReportArchiveWriter writer = ReportArchiveWriter.create(archive);
+        try {
+            writer.writeCertificate(pki.getBidCertificate().getEncoded());
+
+            String[] listed = new String[Math.min(count, MAX_LISTED_REPORTS)];
+            for (int i = 0; i < listed.length; i++) {
+                listed[i] = ReportGenerator.reportId(count - listed.length + i);
+            }
+            BigInteger nonce = new BigInteger(128, new SecureRandom());
+            writer.writeStatusReport(nonce, generator.statusRecord(nonce, listed));
+
+            // sign in parallel, write in order
+            for (int batchStart = 0; batchStart < count; batchStart += BATCH_SIZE) {
+                int batchEnd = Math.min(count, batchStart + BATCH_SIZE);
+                List<Future<BidReportRecord>> batch = new ArrayList<Future<BidReportRecord>>(batchEnd - batchStart);
+                for (int i = batchStart; i < batchEnd; i++) {
+                    final int index = i;
+                    batch.add(pool.submit(new Callable<BidReportRecord>() {
+                        @Override
+                        public BidReportRecord call() {
+                            return generator.failureRecord(index);
+                        }
+                    }));
+                }
+                for (int i = batchStart; i < batchEnd; i++) {
+                    writer.writeFailureReport(ReportGenerator.reportId(i), get(batch.get(i - batchStart)));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            writer.close();
+        }
+
+        long millis = (System.nanoTime() - start) / 1000000;
+        System.out.println("wrote " + count + " failure reports to " + archive + " ("
+                + archive.length() + " bytes) in " + millis + " ms");
+    }
+
+    private static BidReportRecord get(Future<BidReportRecord> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            throw cause instanceof Exception ? (Exception) cause : ee;
+        }
+    }
+
+    private static void writeText(File file, String text) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.US_ASCII);
+            writer.write(text);
+            writer.flush();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of hashing the JBIDE and KBIDE documents of a failure report, the
+ * first stage of verification, from their strings with
+ * <code>StringDigester</code> and from the UTF-8 bytes of their
+ * <code>BidReportBody</code>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HashBenchmark {
+
+    @Param({"1024", "16384", "131072", "1048576"})
+    public int size;
+
+    private String jbide;
+    private String kbide;
+    private BidReportBody jbideBody;
+    private BidReportBody kbideBody;
+
+    @Setup
+    public void setUp() {
+        BidReportRecord record = SyntheticReports.failureRecord(0, SyntheticReports.failureCountForSize(size), null);
+        jbide = record.getJbideReport();
+        kbide = record.getKbideReport();
+        jbideBody = record.getJbideReportBody();
+        kbideBody = record.getKbideReportBody();
+    }
+
+    @Benchmark
+    public void sha256(Blackhole bh) {
+        bh.consume(StringDigester.sha256(jbide));
+        bh.consume(StringDigester.sha256(kbide));
+    }
+
+    @Benchmark
+    public void sha256Body(Blackhole bh) {
+        bh.consume(jbideBody.sha256());
+        bh.consume(kbideBody.sha256());
+    }
+}
@@ -0,0 +1,66 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of checking an embedded hash: decoding its Base64 text and comparing
+ * it with the computed hash, with the decoder <code>BidHelperJvm</code> uses
+ * (<code>bid</code>) and with the JDK MIME decoder (<code>jdk</code>).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HashCompareBenchmark {
+
+    @Param({"bid", "jdk"})
+    public String decoder;
+
+    private Base64Decoder base64Decoder;
+    private String encoded;
+    private byte[] expected;
+
+    @Setup
+    public void setUp() {
+        base64Decoder = "bid".equals(decoder) ? BidBase64.DECODER : SyntheticReports.BASE64_DECODER;
+        String document = SyntheticReports.failureRecord(0, 4, null).getJbideReport();
+        encoded = SyntheticReports.hash(document);
+        expected = BidDigester.sha256(document.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public boolean compare() {
+        byte[] candidate = base64Decoder.decode(encoded);
+        return candidate != null && Arrays.equals(expected, candidate);
+    }
+}
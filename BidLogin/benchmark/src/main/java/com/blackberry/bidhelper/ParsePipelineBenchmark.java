@@ -0,0 +1,75 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-report latency of <code>BidVerifiable.verify</code> over a backlog of
+ * failure reports, with a freshly created parser for every report (the
+ * <code>fresh</code> pipeline, as verification used to work) and with the
+ * thread's reused pipeline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParsePipelineBenchmark {
+
+    @Param({"1", "100", "10000"})
+    public int reportCount;
+
+    @Param({"fresh", "reused"})
+    public String pipeline;
+
+    private BidFailureReport[] reports;
+    private boolean fresh;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        reports = new BidFailureReport[reportCount];
+        for (int i = 0; i < reportCount; i++) {
+            reports[i] = SyntheticReports.failureReport(i, 4);
+        }
+        fresh = "fresh".equals(pipeline);
+    }
+
+    @Benchmark
+    public BidFailureReport verifyReport() throws Exception {
+        BidFailureReport report = reports[next];
+        next = (next + 1) % reports.length;
+        if (fresh) {
+            report.verify(SyntheticReports.ACCEPT_ALL, BidSaxPipeline.create());
+        } else {
+            report.verify(SyntheticReports.ACCEPT_ALL);
+        }
+        return report;
+    }
+}
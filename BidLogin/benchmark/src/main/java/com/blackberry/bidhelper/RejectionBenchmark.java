@@ -0,0 +1,93 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of rejecting a signed failure report with one fault, in either
+ * verification order: a JBIDE report which no longer matches its hash, a
+ * TZ report cut in half, or a signature with one bit flipped. The cached
+ * outcomes of signature checks are cleared on each call, as for a stream of
+ * distinct bad reports.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RejectionBenchmark {
+
+    @Param({"hash", "truncated", "signature"})
+    public String fault;
+
+    @Param({"PARSE_FIRST", "CHEAPEST_FIRST"})
+    public BidVerificationOrder order;
+
+    @Param({"1024", "131072"})
+    public int size;
+
+    private BidReportRecord record;
+    private BidCertificateVerifier verifier;
+
+    @Setup
+    public void setUp() throws Exception {
+        TestPki pki = new TestPki(30);
+        BidReportRecord signed = SyntheticReports.failureRecord(0, SyntheticReports.failureCountForSize(size), pki);
+        String jbide = signed.getJbideReport();
+        String tz = signed.getTzReport();
+        byte[] signature = signed.getTzSignature();
+        if ("hash".equals(fault)) {
+            jbide = jbide.replace("</bidereport>", "<extra/></bidereport>");
+        } else if ("truncated".equals(fault)) {
+            tz = tz.substring(0, tz.length() / 2);
+        } else {
+            signature = signature.clone();
+            signature[signature.length - 1] ^= 1;
+        }
+        record = new BidReportRecord(jbide, signed.getKbideReport(), tz, signature);
+        verifier = new BidCertificateVerifierAndroid(pki.trustAnchors());
+        verifier.setCertificate(pki.getBidCertificate());
+        if (verify() == null) {
+            throw new IllegalStateException("report was not rejected");
+        }
+    }
+
+    @Benchmark
+    public BidVerificationStage verify() throws Exception {
+        BidCertificateVerifierAndroid.clearReportOutcomes();
+        BidFailureReport report = new BidFailureReport(record.getJbideReport(), record.getKbideReport(),
+                record.getTzReport(), record.getTzSignature(), SyntheticReports.BASE64_DECODER);
+        try {
+            report.verify(verifier, BidParserEngine.SAX, false, order, BidParserLimits.DEFAULT);
+        } catch (Exception e) {
+            // expected; the stage is recorded on the report
+        }
+        return report.getRejectedStage();
+    }
+}
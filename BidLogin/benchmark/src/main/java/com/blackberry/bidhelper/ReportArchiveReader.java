@@ -0,0 +1,211 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads an archive written by <code>ReportArchiveWriter</code>, one entry at
+ * a time, so that archives larger than memory can be replayed.
+ */
+final class ReportArchiveReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * An entry of an archive.
+     */
+    static final class Entry {
+        /**
+         * One of <code>ReportArchiveWriter.CERTIFICATE</code>, <code>STATUS</code>
+         * and <code>FAILURE</code>.
+         */
+        final byte type;
+
+        /**
+         * The nonce of a status report, or else null.
+         */
+        final BigInteger nonce;
+
+        /**
+         * The ID of a failure report, or else null.
+         */
+        final String reportId;
+
+        /**
+         * The report, or null for a certificate.
+         */
+        final BidReportRecord record;
+
+        /**
+         * The encoded certificate, or else null.
+         */
+        final byte[] certificate;
+
+        Entry(byte type, BigInteger nonce, String reportId, BidReportRecord record, byte[] certificate) {
+            this.type = type;
+            this.nonce = nonce;
+            this.reportId = reportId;
+            this.record = record;
+            this.certificate = certificate;
+        }
+    }
+
+    private final DataInputStream in;
+    private boolean ended;
+
+    /**
+     * Opens an archive on the specified stream and reads its header.
+     *
+     * @param in the stream to read the archive from.
+     * @throws java.io.IOException if an i/o error occurs or the stream is not an archive.
+     */
+    ReportArchiveReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        if (this.in.readInt() != ReportArchiveWriter.MAGIC) {
+            throw new IOException("not a report archive");
+        }
+        int version = this.in.readInt();
+        if (version != ReportArchiveWriter.VERSION) {
+            throw new IOException("unsupported archive version " + version);
+        }
+    }
+
+    /**
+     * Opens an archive file, gzip compressed if its name ends in <code>.gz</code>.
+     *
+     * @param file the archive file.
+     * @return a reader for the archive.
+     * @throws java.io.IOException if an i/o error occurs or the file is not an archive.
+     */
+    static ReportArchiveReader open(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            if (file.getName().endsWith(".gz")) {
+                in = new GZIPInputStream(in, BUFFER_SIZE);
+            }
+            return new ReportArchiveReader(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Loads an entire archive file into a new in-memory source.
+     *
+     * @param file the archive file.
+     * @return a source serving the reports and certificate of the archive.
+     * @throws java.io.IOException if an i/o error occurs or the file is not a complete archive.
+     */
+    static BidMemoryReportSource load(File file) throws IOException {
+        BidMemoryReportSource source = new BidMemoryReportSource();
+        ReportArchiveReader reader = open(file);
+        try {
+            Entry entry;
+            while ((entry = reader.next()) != null) {
+                switch (entry.type) {
+                    case ReportArchiveWriter.CERTIFICATE:
+                        source.setCertificate(entry.certificate);
+                        break;
+                    case ReportArchiveWriter.STATUS:
+                        source.setStatusReport(entry.record);
+                        break;
+                    default:
+                        source.addFailureReport(entry.reportId, entry.record);
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return source;
+    }
+
+    /**
+     * Reads the next entry.
+     *
+     * @return the next entry, or null at the end of the archive.
+     * @throws java.io.IOException if an i/o error occurs or the archive is truncated or corrupt.
+     */
+    Entry next() throws IOException {
+        if (ended) {
+            return null;
+        }
+        byte type;
+        try {
+            type = in.readByte();
+        } catch (EOFException e) {
+            throw new IOException("truncated archive", e);
+        }
+        switch (type) {
+            case ReportArchiveWriter.END:
+                ended = true;
+                return null;
+            case ReportArchiveWriter.CERTIFICATE:
+                return new Entry(type, null, null, null, readBytes());
+            case ReportArchiveWriter.STATUS:
+                BigInteger nonce;
+                try {
+                    nonce = new BigInteger(readString(), BidConstants.NONCE_RADIX);
+                } catch (NumberFormatException nfe) {
+                    throw new IOException("invalid nonce", nfe);
+                }
+                return new Entry(type, nonce, null, readRecord(), null);
+            case ReportArchiveWriter.FAILURE:
+                String reportId = readString();
+                return new Entry(type, null, reportId, readRecord(), null);
+            default:
+                throw new IOException("unknown entry type " + type);
+        }
+    }
+
+    private BidReportRecord readRecord() throws IOException {
+        long dateReceived = in.readLong();
+        String jbide = readString();
+        String kbide = readString();
+        String tz = readString();
+        return new BidReportRecord(jbide, kbide, tz, readBytes(), dateReceived);
+    }
+
+    private String readString() throws IOException {
+        return new String(readBytes(), StandardCharsets.UTF_8);
+    }
+
+    private byte[] readBytes() throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("negative length");
+        }
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return b;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,174 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes BID reports to a compact, append-only archive, so that large sets
+ * of generated reports can be streamed to disk and replayed later with
+ * <code>ReportArchiveReader</code>.
+ * <p/>
+ * An archive is a header followed by entries, all in the big-endian
+ * encoding of <code>DataOutputStream</code>:
+ * <pre>
+ *     archive     = MAGIC VERSION entry* END
+ *     entry       = CERTIFICATE bytes
+ *                 | STATUS string:nonce record
+ *                 | FAILURE string:reportId record
+ *     record      = long:dateReceived string:jbide string:kbide string:tz bytes:signature
+ *     string      = bytes of the UTF-8 encoding
+ *     bytes       = int:length byte[length]
+ * </pre>
+ * The nonce is written in radix <code>NONCE_RADIX</code>. Archives whose file
+ * name ends in <code>.gz</code> are gzip compressed.
+ */
+final class ReportArchiveWriter implements Closeable {
+
+    static final int MAGIC = 0x42494452; // "BIDR"
+    static final int VERSION = 1;
+
+    static final byte END = 0;
+    static final byte CERTIFICATE = 1;
+    static final byte STATUS = 2;
+    static final byte FAILURE = 3;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataOutputStream out;
+    private long count;
+
+    /**
+     * Creates a new archive on the specified stream and writes its header.
+     *
+     * @param out the stream to write the archive to.
+     * @throws java.io.IOException if an i/o error occurs.
+     */
+    ReportArchiveWriter(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        this.out.writeInt(MAGIC);
+        this.out.writeInt(VERSION);
+    }
+
+    /**
+     * Creates a new archive file, gzip compressed if its name ends in <code>.gz</code>.
+     *
+     * @param file the file to be created or replaced.
+     * @return a writer for the archive.
+     * @throws java.io.IOException if an i/o error occurs.
+     */
+    static ReportArchiveWriter create(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            if (file.getName().endsWith(".gz")) {
+                out = new GZIPOutputStream(out, BUFFER_SIZE);
+            }
+            return new ReportArchiveWriter(out);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of entries written so far.
+     *
+     * @return the number of entries written so far.
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Writes the DER encoded BID certificate.
+     *
+     * @param certificate the encoded certificate.
+     * @throws java.io.IOException if an i/o error occurs.
+     */
+    void writeCertificate(byte[] certificate) throws IOException {
+        out.writeByte(CERTIFICATE);
+        writeBytes(certificate);
+        count++;
+    }
+
+    /**
+     * Writes a status report.
+     *
+     * @param nonce  the nonce included in the report.
+     * @param record the report.
+     * @throws java.io.IOException if an i/o error occurs.
+     */
+    void writeStatusReport(BigInteger nonce, BidReportRecord record) throws IOException {
+        out.writeByte(STATUS);
+        writeString(nonce.toString(BidConstants.NONCE_RADIX));
+        writeRecord(record);
+        count++;
+    }
+
+    /**
+     * Writes a failure report.
+     *
+     * @param reportId the ID of the report.
+     * @param record   the report.
+     * @throws java.io.IOException if an i/o error occurs.
+     */
+    void writeFailureReport(String reportId, BidReportRecord record) throws IOException {
+        out.writeByte(FAILURE);
+        writeString(reportId);
+        writeRecord(record);
+        count++;
+    }
+
+    private void writeRecord(BidReportRecord record) throws IOException {
+        out.writeLong(record.getDateReceived());
+        writeString(record.getJbideReport());
+        writeString(record.getKbideReport());
+        writeString(record.getTzReport());
+        writeBytes(record.getTzSignature());
+    }
+
+    private void writeString(String s) throws IOException {
+        // not writeUTF, which is limited to 64 KB
+        writeBytes(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeBytes(byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    /**
+     * Writes the end marker and closes the archive.
+     *
+     * @throws java.io.IOException if an i/o error occurs.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            out.writeByte(END);
+        } finally {
+            out.close();
+        }
+    }
+}
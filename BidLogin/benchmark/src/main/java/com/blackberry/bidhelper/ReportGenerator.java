@@ -0,0 +1,301 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates BID report sets whose JBIDE, KBIDE and TZ documents are
+ * hash-linked exactly as BID links them, and whose TZ report is signed by a
+ * <code>TestPki</code>, so that the real verification code accepts them
+ * when it trusts the PKI's anchors.
+ * <p/>
+ * A generator is configured once and then creates any number of reports;
+ * the content of a report depends only on the configuration and its index.
+ * It is not thread-safe while being configured, but once configured,
+ * reports may be created from several threads.
+ */
+final class ReportGenerator {
+
+    private static final byte[] PLACEHOLDER_SIGNATURE = new byte[64];
+
+    /**
+     * The <code>kbide</code> time of the report at index 0, in seconds.
+     */
+    static final long FIRST_TIME = 1450000000L;
+
+    private static final int SENSOR_COUNT = 7;
+
+    private final TestPki signer;
+    private int failureCount = 4;
+    private int minSeverity = 1;
+    private int maxSeverity = 3;
+    private int xmlSize;
+    private int randomSensorCount;
+    private long randomSeed;
+    private String[] highTokens = new String[0];
+    private String[] mediumTokens = new String[0];
+    private String[] lowTokens = new String[0];
+
+    /**
+     * Creates a new generator.
+     *
+     * @param signer the PKI which signs the TZ reports, or null to give the
+     *               reports a placeholder signature, which only verifies
+     *               with a verifier accepting every signature.
+     */
+    ReportGenerator(TestPki signer) {
+        this.signer = signer;
+    }
+
+    /**
+     * Returns the PKI which signs the TZ reports.
+     *
+     * @return the signing PKI, or null if the reports carry a placeholder signature.
+     */
+    TestPki getSigner() {
+        return signer;
+    }
+
+    /**
+     * Sets the number of failures in the JBIDE and KBIDE reports of each
+     * failure report. The default is 4.
+     *
+     * @param failureCount the number of failures.
+     * @return this generator.
+     */
+    ReportGenerator setFailureCount(int failureCount) {
+        if (failureCount < 0) {
+            throw new IllegalArgumentException("negative failure count");
+        }
+        this.failureCount = failureCount;
+        return this;
+    }
+
+    /**
+     * Sets the range the failure severities cycle through. The default is 1 to 3.
+     *
+     * @param minSeverity the lowest severity.
+     * @param maxSeverity the highest severity.
+     * @return this generator.
+     */
+    ReportGenerator setSeverities(int minSeverity, int maxSeverity) {
+        if (minSeverity > maxSeverity) {
+            throw new IllegalArgumentException("empty severity range");
+        }
+        this.minSeverity = minSeverity;
+        this.maxSeverity = maxSeverity;
+        return this;
+    }
+
+    /**
+     * Sets the security tokens listed by status reports. There are none by default.
+     *
+     * @param severity the severity of the tokens.
+     * @param tokens   the tokens.
+     * @return this generator.
+     */
+    ReportGenerator setSecurityTokens(BidStatusReport.Severity severity, String... tokens) {
+        String[] copy = Arrays.copyOf(tokens, tokens.length);
+        switch (severity) {
+            case HIGH:
+                highTokens = copy;
+                break;
+            case MEDIUM:
+                mediumTokens = copy;
+                break;
+            default:
+                lowTokens = copy;
+                break;
+        }
+        return this;
+    }
+
+    /**
+     * Sets the minimum size of the JBIDE reports in bytes. Shorter reports
+     * are padded with a comment, which the parser reads but the report
+     * handlers ignore. The default is 0, for no padding.
+     *
+     * @param xmlSize the minimum size of a JBIDE report.
+     * @return this generator.
+     */
+    ReportGenerator setXmlSize(int xmlSize) {
+        this.xmlSize = xmlSize;
+        return this;
+    }
+
+    /**
+     * Makes each failure report draw its failures at random instead of
+     * cycling through the sensors and severities: between one and the
+     * failure count of them, each from one of the specified number of
+     * sensors, the lower-numbered ones the more often, and possibly the
+     * same sensor more than once. The failures of a report still depend
+     * only on the seed and its index. By default the failures cycle.
+     *
+     * @param sensorCount the number of sensors to draw from, or 0 to cycle.
+     * @param seed        the seed of the draws.
+     * @return this generator.
+     */
+    ReportGenerator setRandomFailures(int sensorCount, long seed) {
+        if (sensorCount < 0) {
+            throw new IllegalArgumentException("negative sensor count");
+        }
+        this.randomSensorCount = sensorCount;
+        this.randomSeed = seed;
+        return this;
+    }
+
+    /**
+     * Returns the report ID of the failure report at the specified index.
+     *
+     * @param index the index of the report.
+     * @return the report ID.
+     */
+    static String reportId(int index) {
+        return String.format("%08x", index);
+    }
+
+    /**
+     * Creates the failure report at the specified index, received one second
+     * after the report at the previous index.
+     *
+     * @param index distinguishes the report ID, time and failure details.
+     * @return the record of the report.
+     */
+    BidReportRecord failureRecord(int index) {
+        StringBuilder jbide = new StringBuilder();
+        jbide.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<bidereport>\n");
+        jbide.append("  <devicemodel>STV100-1</devicemodel>\n");
+        jbide.append("  <osversion>6.0.1</osversion>\n");
+        appendFailures(jbide, "jbide", index);
+        endJbide(jbide);
+
+        StringBuilder kbide = new StringBuilder();
+        kbide.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<bidereport>\n");
+        kbide.append("  <jbidehash>").append(SyntheticReports.hash(jbide.toString())).append("</jbidehash>\n");
+        kbide.append("  <time>").append(FIRST_TIME + index).append("</time>\n");
+        appendFailures(kbide, "kbide", index);
+        kbide.append("</bidereport>\n");
+
+        StringBuilder tz = new StringBuilder();
+        tz.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<tzreport>\n");
+        tz.append("  <kbidehash>").append(SyntheticReports.hash(kbide.toString())).append("</kbidehash>\n");
+        tz.append("  <reportid>").append(reportId(index)).append("</reportid>\n");
+        tz.append("  <status>0x0001</status>\n");
+        tz.append("</tzreport>\n");
+
+        return createRecord(jbide.toString(), kbide.toString(), tz.toString(), (FIRST_TIME + index) * 1000);
+    }
+
+    /**
+     * Creates a status report. The report passes if no failed reports are
+     * listed, and otherwise fails with the highest configured severity.
+     *
+     * @param nonce         the nonce to be included in the report.
+     * @param failedReports the IDs of the failure reports to be listed.
+     * @return the record of the report.
+     */
+    BidReportRecord statusRecord(BigInteger nonce, String... failedReports) {
+        boolean pass = failedReports.length == 0;
+
+        StringBuilder jbide = new StringBuilder();
+        jbide.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<bidereport>\n");
+        jbide.append("  <nonce>").append(nonce.toString(BidConstants.NONCE_RADIX)).append("</nonce>\n");
+        jbide.append("  <bidestatus>\n");
+        jbide.append("    <status>").append(pass ? "pass" : "fail").append("</status>\n");
+        jbide.append("    <severity>").append(pass ? 0 : maxSeverity).append("</severity>\n");
+        jbide.append("  </bidestatus>\n");
+        jbide.append("  <sigtokenvalue>release</sigtokenvalue>\n");
+        appendTokens(jbide, "highsecuritytokens", highTokens);
+        appendTokens(jbide, "mediumsecuritytokens", mediumTokens);
+        appendTokens(jbide, "lowsecuritytokens", lowTokens);
+        jbide.append("  <failedreports>\n");
+        for (String id : failedReports) {
+            jbide.append("    <reportid>").append(id).append("</reportid>\n");
+        }
+        jbide.append("  </failedreports>\n");
+        endJbide(jbide);
+
+        StringBuilder kbide = new StringBuilder();
+        kbide.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<bidereport>\n");
+        kbide.append("  <jbidehash>").append(SyntheticReports.hash(jbide.toString())).append("</jbidehash>\n");
+        kbide.append("  <time>").append(FIRST_TIME).append("</time>\n");
+        kbide.append("</bidereport>\n");
+
+        StringBuilder tz = new StringBuilder();
+        tz.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<tzreport>\n");
+        tz.append("  <kbidehash>").append(SyntheticReports.hash(kbide.toString())).append("</kbidehash>\n");
+        tz.append("  <status>").append(pass ? "0x0000" : "0x0001").append("</status>\n");
+        tz.append("</tzreport>\n");
+
+        return createRecord(jbide.toString(), kbide.toString(), tz.toString(), -1);
+    }
+
+    private BidReportRecord createRecord(String jbide, String kbide, String tz, long dateReceived) {
+        // verification checks the platform encoding of the TZ report, which is ASCII
+        byte[] signature = signer == null ? PLACEHOLDER_SIGNATURE : signer.sign(tz.getBytes(StandardCharsets.UTF_8));
+        return new BidReportRecord(jbide, kbide, tz, signature, dateReceived);
+    }
+
+    private void appendFailures(StringBuilder xml, String source, int index) {
+        int severities = maxSeverity - minSeverity + 1;
+        if (randomSensorCount > 0 && failureCount > 0) {
+            Random random = new Random(randomSeed * 31 + index);
+            int count = 1 + random.nextInt(failureCount);
+            for (int i = 0; i < count; i++) {
+                double skew = random.nextDouble();
+                xml.append("  <failure sensor=\"").append(source).append(".sensor.")
+                        .append((int) (skew * skew * randomSensorCount))
+                        .append("\" severity=\"").append(minSeverity + random.nextInt(severities)).append("\">")
+                        .append("synthetic failure ").append(index).append('.').append(i)
+                        .append("</failure>\n");
+            }
+            return;
+        }
+        for (int i = 0; i < failureCount; i++) {
+            xml.append("  <failure sensor=\"").append(source).append(".sensor.").append(i % SENSOR_COUNT)
+                    .append("\" severity=\"").append(minSeverity + (index + i) % severities).append("\">")
+                    .append("synthetic failure ").append(index).append('.').append(i)
+                    .append("</failure>\n");
+        }
+    }
+
+    private static void appendTokens(StringBuilder xml, String group, String[] tokens) {
+        xml.append("  <").append(group).append(">\n");
+        for (String token : tokens) {
+            xml.append("    <token>").append(token).append("</token>\n");
+        }
+        xml.append("  </").append(group).append(">\n");
+    }
+
+    /**
+     * Pads the JBIDE report to the configured size and closes it.
+     */
+    private void endJbide(StringBuilder jbide) {
+        String end = "</bidereport>\n";
+        int padding = xmlSize - jbide.length() - end.length() - "  <!--  -->\n".length();
+        if (padding > 0) {
+            jbide.append("  <!-- ");
+            for (int i = 0; i < padding; i++) {
+                jbide.append((char) ('a' + i % 26));
+            }
+            jbide.append(" -->\n");
+        }
+        jbide.append(end);
+    }
+}
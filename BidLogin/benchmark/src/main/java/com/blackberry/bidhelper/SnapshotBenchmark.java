@@ -0,0 +1,81 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of writing a verified report to a <code>BidReportSnapshot</code> and
+ * of restoring it, MAC check included, which stands in for parsing and
+ * verifying the report again on a warm start.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SnapshotBenchmark {
+
+    private static final byte[] KEY = "snapshot benchmark key".getBytes();
+
+    @Param({"status", "failure"})
+    public String type;
+
+    @Param({"1024", "16384", "131072", "1048576"})
+    public int size;
+
+    private BidVerifiable report;
+    private byte[] snapshot;
+
+    @Setup
+    public void setUp() throws Exception {
+        BidReportRecord record;
+        if ("status".equals(type)) {
+            record = SyntheticReports.statusRecord(BigInteger.ONE, SyntheticReports.tokenCountForSize(size), null);
+            report = new BidStatusReport(record.getJbideReport(), record.getKbideReport(), record.getTzReport(),
+                    record.getTzSignature(), SyntheticReports.BASE64_DECODER);
+        } else {
+            record = SyntheticReports.failureRecord(0, SyntheticReports.failureCountForSize(size), null);
+            report = new BidFailureReport(record.getJbideReport(), record.getKbideReport(), record.getTzReport(),
+                    record.getTzSignature(), SyntheticReports.BASE64_DECODER);
+        }
+        report.verify(SyntheticReports.ACCEPT_ALL);
+        snapshot = BidReportSnapshot.write(report, KEY);
+    }
+
+    @Benchmark
+    public byte[] write() {
+        return BidReportSnapshot.write(report, KEY);
+    }
+
+    @Benchmark
+    public BidVerifiable read() throws Exception {
+        return BidReportSnapshot.read(snapshot, KEY);
+    }
+}
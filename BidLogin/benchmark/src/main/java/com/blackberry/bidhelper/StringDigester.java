@@ -0,0 +1,99 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes SHA-256 hashes of reports held as strings, encoding them to
+ * UTF-8 in chunks through a fixed-size buffer, the way reports were hashed
+ * before they were verified from their bytes. Kept as the baseline of
+ * <code>HashBenchmark</code>.
+ * <p/>
+ * Each thread keeps one digester.
+ */
+final class StringDigester {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final ThreadLocal<StringDigester> digesters = new ThreadLocal<StringDigester>() {
+        @Override
+        protected StringDigester initialValue() {
+            return new StringDigester();
+        }
+    };
+
+    private final MessageDigest digester;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer buffer;
+
+    private StringDigester() {
+        try {
+            digester = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        // Replace malformed input the same way String.getBytes() does
+        encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * Returns the SHA-256 hash of the UTF-8 encoding of the specified string.
+     *
+     * @param s the string whose hash value is desired.
+     * @return the SHA-256 hash of the specified string.
+     */
+    static byte[] sha256(CharSequence s) {
+        return digesters.get().digest(s);
+    }
+
+    private byte[] digest(CharSequence s) {
+        CharBuffer in = CharBuffer.wrap(s);
+        encoder.reset();
+        digester.reset();
+        buffer.clear();
+
+        CoderResult result;
+        do {
+            result = encoder.encode(in, buffer, true);
+            drain();
+        } while (result.isOverflow());
+        do {
+            result = encoder.flush(buffer);
+            drain();
+        } while (result.isOverflow());
+
+        return digester.digest();
+    }
+
+    /**
+     * Feeds the encoded bytes in the buffer to the digest and clears it.
+     */
+    private void drain() {
+        buffer.flip();
+        digester.update(buffer);
+        buffer.clear();
+    }
+}
@@ -0,0 +1,181 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Builds synthetic BID reports of a given size for benchmarking, with a
+ * <code>ReportGenerator</code>. Reports created without a <code>TestPki</code>
+ * carry a placeholder TZ signature and must be verified with
+ * <code>ACCEPT_ALL</code>; reports signed by a <code>TestPki</code> verify
+ * against its trust anchors.
+ */
+final class SyntheticReports {
+
+    /**
+     * A Base64 decoder for the JVM.
+     */
+    static final Base64Decoder BASE64_DECODER = new Base64Decoder() {
+        @Override
+        public byte[] decode(String s) {
+            try {
+                return Base64.getMimeDecoder().decode(s);
+            } catch (IllegalArgumentException iae) {
+                return null;
+            }
+        }
+    };
+
+    /**
+     * A certificate verifier which accepts every chain and every signature,
+     * so that benchmarks measure parsing and hashing only.
+     */
+    static final BidCertificateVerifier ACCEPT_ALL = new BidCertificateVerifier() {
+        @Override
+        public void setCertificate(X509Certificate certificate) {
+        }
+
+        @Override
+        public void verifyCertificateChain() {
+        }
+
+        @Override
+        public boolean verifyReport(byte[] tzReport, byte[] signature) {
+            return true;
+        }
+    };
+
+    /**
+     * The approximate size of a failure element, which is repeated in both
+     * the JBIDE and the KBIDE report.
+     */
+    private static final int FAILURE_BYTES = 80;
+
+    /**
+     * The approximate size of a token element of a status report.
+     */
+    private static final int TOKEN_BYTES = 40;
+
+    /**
+     * The approximate size of the elements which do not repeat.
+     */
+    private static final int FIXED_BYTES = 600;
+
+    private SyntheticReports() {
+    }
+
+    /**
+     * Returns the number of failures which makes the JBIDE, KBIDE and TZ
+     * reports of a failure report add up to roughly the specified size.
+     *
+     * @param size the desired size of the report set in bytes.
+     * @return the number of failures, at least one.
+     */
+    static int failureCountForSize(int size) {
+        return Math.max(1, (size - FIXED_BYTES) / (2 * FAILURE_BYTES));
+    }
+
+    /**
+     * Returns the number of security tokens which makes the JBIDE, KBIDE and
+     * TZ reports of a status report add up to roughly the specified size.
+     *
+     * @param size the desired size of the report set in bytes.
+     * @return the number of tokens, at least one.
+     */
+    static int tokenCountForSize(int size) {
+        return Math.max(1, (size - FIXED_BYTES) / TOKEN_BYTES);
+    }
+
+    /**
+     * Creates an un-verified failure report with a placeholder signature.
+     *
+     * @param index        distinguishes the report ID, time and failure details.
+     * @param failureCount the number of failures in each of the JBIDE and KBIDE reports.
+     * @return an un-verified failure report.
+     */
+    static BidFailureReport failureReport(int index, int failureCount) {
+        BidReportRecord record = failureRecord(index, failureCount, null);
+        return new BidFailureReport(record.getJbideReport(), record.getKbideReport(), record.getTzReport(),
+                record.getTzSignature(), BASE64_DECODER);
+    }
+
+    /**
+     * Creates the record of a failure report, received one second after the
+     * report at the previous index.
+     *
+     * @param index        distinguishes the report ID, time and failure details.
+     * @param failureCount the number of failures in each of the JBIDE and KBIDE reports.
+     * @param signer       the PKI which signs the TZ report, or null for a placeholder signature.
+     * @return the record of a failure report.
+     */
+    static BidReportRecord failureRecord(int index, int failureCount, TestPki signer) {
+        return new ReportGenerator(signer).setFailureCount(failureCount).failureRecord(index);
+    }
+
+    /**
+     * Creates the record of a passing status report.
+     *
+     * @param nonce      the nonce to be included in the report.
+     * @param tokenCount the number of security tokens in the JBIDE report.
+     * @param signer     the PKI which signs the TZ report, or null for a placeholder signature.
+     * @return the record of a status report.
+     */
+    static BidReportRecord statusRecord(BigInteger nonce, int tokenCount, TestPki signer) {
+        ReportGenerator generator = new ReportGenerator(signer);
+        BidStatusReport.Severity[] severities = BidStatusReport.Severity.values();
+        for (int s = 0; s < severities.length; s++) {
+            List<String> tokens = new ArrayList<String>();
+            for (int i = s; i < tokenCount; i += severities.length) {
+                tokens.add("synthetic.token." + i);
+            }
+            generator.setSecurityTokens(severities[s], tokens.toArray(new String[tokens.size()]));
+        }
+        return generator.statusRecord(nonce);
+    }
+
+    /**
+     * Returns the report ID used for the report at the specified index.
+     *
+     * @param index the index the report was created with.
+     * @return the report ID.
+     */
+    static String reportId(int index) {
+        return ReportGenerator.reportId(index);
+    }
+
+    /**
+     * Returns the Base64 encoded SHA-256 hash of the specified document, as
+     * embedded in the next document of a report.
+     *
+     * @param xml the document.
+     * @return the encoded hash.
+     */
+    static String hash(String xml) {
+        try {
+            MessageDigest digester = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(digester.digest(xml.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
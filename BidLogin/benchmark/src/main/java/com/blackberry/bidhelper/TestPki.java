@@ -0,0 +1,216 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.asn1.x509.X509Extension;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A throwaway EC P-256 PKI shaped like the BID one: a root CA, an
+ * intermediate CA and a BID certificate issued by the intermediate, whose
+ * key signs TZ reports as detached CMS signatures.
+ * <p/>
+ * Its trust anchors are passed to <code>BidCertificateVerifierAndroid</code>
+ * or <code>BidHelperJvm</code> in place of the BlackBerry production ones.
+ * Creating a PKI registers the Bouncy Castle provider, which the CMS
+ * verification requires on a plain JVM.
+ */
+final class TestPki {
+
+    private static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+
+    private final X509Certificate rootCert;
+    private final X509Certificate intermediateCert;
+    private final X509Certificate bidCert;
+    private final PrivateKey bidKey;
+    private final ThreadLocal<CMSSignedDataGenerator> cmsGenerators = new ThreadLocal<CMSSignedDataGenerator>() {
+        @Override
+        protected CMSSignedDataGenerator initialValue() {
+            try {
+                return createCmsGenerator();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * Creates a new PKI with freshly generated keys, valid from a day ago
+     * for the specified number of days.
+     *
+     * @param validityDays the number of days the certificates remain valid.
+     * @throws java.security.GeneralSecurityException if the keys or certificates cannot be created.
+     */
+    TestPki(int validityDays) throws GeneralSecurityException {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+
+        Date notBefore = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1));
+        Date notAfter = new Date(notBefore.getTime() + TimeUnit.DAYS.toMillis(validityDays + 1));
+
+        KeyPair rootKeys = generateKeyPair();
+        X500Name rootName = new X500Name("CN=BID Test Root CA");
+        rootCert = issue(rootName, rootKeys.getPrivate(), rootName, rootKeys, notBefore, notAfter, 1, true);
+
+        KeyPair intermediateKeys = generateKeyPair();
+        X500Name intermediateName = new X500Name("CN=BID Test Intermediate CA");
+        intermediateCert = issue(rootName, rootKeys.getPrivate(), intermediateName, intermediateKeys,
+                notBefore, notAfter, 2, true);
+
+        KeyPair bidKeys = generateKeyPair();
+        bidCert = issue(intermediateName, intermediateKeys.getPrivate(), new X500Name("CN=BID Test Device"),
+                bidKeys, notBefore, notAfter, 3, false);
+        bidKey = bidKeys.getPrivate();
+        // fail early if the signer cannot be built
+        cmsGenerators.get();
+    }
+
+    /**
+     * Creates a CMS generator which signs with the BID key. Generators are
+     * not thread-safe, so each thread has its own.
+     */
+    private CMSSignedDataGenerator createCmsGenerator() throws GeneralSecurityException {
+        try {
+            // the platform provider signs several times faster than Bouncy Castle
+            ContentSigner signer = new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(bidKey);
+            CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+            generator.addSignerInfoGenerator(new JcaSignerInfoGeneratorBuilder(
+                    new JcaDigestCalculatorProviderBuilder().build()).build(signer, bidCert));
+            generator.addCertificates(new JcaCertStore(Collections.singletonList(bidCert)));
+            return generator;
+        } catch (Exception e) {
+            throw new GeneralSecurityException(e);
+        }
+    }
+
+    private static KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return generator.generateKeyPair();
+    }
+
+    private static X509Certificate issue(X500Name issuer, PrivateKey issuerKey, X500Name subject, KeyPair subjectKeys,
+                                         Date notBefore, Date notAfter, long serial, boolean ca)
+            throws GeneralSecurityException {
+        try {
+            X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(issuer, BigInteger.valueOf(serial),
+                    notBefore, notAfter, subject, subjectKeys.getPublic());
+            if (ca) {
+                builder.addExtension(X509Extension.basicConstraints, true, new BasicConstraints(true));
+                builder.addExtension(X509Extension.keyUsage, true,
+                        new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign));
+            } else {
+                builder.addExtension(X509Extension.keyUsage, true, new KeyUsage(KeyUsage.digitalSignature));
+            }
+            ContentSigner signer = new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(issuerKey);
+            // the platform provider's certificates, as on a device
+            return new JcaX509CertificateConverter().getCertificate(builder.build(signer));
+        } catch (GeneralSecurityException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new GeneralSecurityException(e);
+        }
+    }
+
+    /**
+     * Returns trust anchors which trust this PKI's root and intermediate.
+     *
+     * @return trust anchors for this PKI.
+     * @throws java.security.cert.CertificateException if the trust anchors cannot be initialized.
+     */
+    BidTrustAnchors trustAnchors() throws java.security.cert.CertificateException {
+        return new BidTrustAnchors(intermediateCert, rootCert);
+    }
+
+    /**
+     * Returns the PEM encoded intermediate and root certificates, in the
+     * order <code>BidTrustAnchors.fromPem</code> expects them.
+     *
+     * @return the PEM encoded trust anchors.
+     * @throws java.security.cert.CertificateException if a certificate cannot be encoded.
+     */
+    String[] trustAnchorsPem() throws java.security.cert.CertificateException {
+        return new String[]{toPem(intermediateCert), toPem(rootCert)};
+    }
+
+    /**
+     * Returns the PEM encoding of the specified certificate.
+     *
+     * @param cert the certificate.
+     * @return the PEM encoded certificate.
+     * @throws java.security.cert.CertificateException if the certificate cannot be encoded.
+     */
+    static String toPem(X509Certificate cert) throws java.security.cert.CertificateException {
+        Base64.Encoder encoder = Base64.getMimeEncoder(64, new byte[]{'\n'});
+        return "-----BEGIN CERTIFICATE-----\n"
+                + encoder.encodeToString(cert.getEncoded())
+                + "\n-----END CERTIFICATE-----\n";
+    }
+
+    X509Certificate getRootCertificate() {
+        return rootCert;
+    }
+
+    X509Certificate getIntermediateCertificate() {
+        return intermediateCert;
+    }
+
+    X509Certificate getBidCertificate() {
+        return bidCert;
+    }
+
+    /**
+     * Signs the specified content with the BID key as a detached CMS
+     * signature which carries the BID certificate, as BID signs TZ reports.
+     * May be called from several threads at once.
+     *
+     * @param content the content to be signed.
+     * @return the DER encoded CMS signature.
+     */
+    byte[] sign(byte[] content) {
+        try {
+            return cmsGenerators.get().generate(new CMSProcessableByteArray(content), false).getEncoded();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that failure analytics merged from two halves, one of them sent
+ * through <code>write()</code> and <code>read()</code>, match a single pass
+ * over every report, that the sensor counts stay within their bounds once
+ * the summaries are full, and that <code>read()</code> rejects malformed
+ * input.
+ */
+public class FailureAnalyticsTest {
+
+    private static final int REPORT_COUNT = 2000;
+    private static final int SENSOR_COUNT = 24;
+    private static final long BUCKET_MILLIS = 60 * 1000L;
+    private static final int BUCKET_COUNT = 100;
+
+    private static List<BidFailureReport> reports;
+    // the true number of failures of each sensor
+    private static Map<String, Long> sensorCounts;
+    private static long failureCount;
+
+    @BeforeClass
+    public static void createReports() throws Exception {
+        ReportGenerator generator = new ReportGenerator(null).setFailureCount(6).setSeverities(1, 5)
+                .setRandomFailures(SENSOR_COUNT, 20);
+        reports = new ArrayList<BidFailureReport>();
+        sensorCounts = new HashMap<String, Long>();
+        for (int i = 0; i < REPORT_COUNT; i++) {
+            BidReportRecord record = generator.failureRecord(i);
+            BidFailureReport report = new BidFailureReport(record.getJbideReportBody(),
+                    record.getKbideReportBody(), record.getTzReportBody(), record.getTzSignature(),
+                    SyntheticReports.BASE64_DECODER);
+            report.verify(SyntheticReports.ACCEPT_ALL);
+            reports.add(report);
+            for (BidFailure failure : report.getFailures()) {
+                Long count = sensorCounts.get(failure.getSensorName());
+                sensorCounts.put(failure.getSensorName(), count != null ? count + 1 : 1);
+                failureCount++;
+            }
+        }
+    }
+
+    private static BidFailureAnalytics analytics(int sensorCapacity) {
+        return new BidFailureAnalytics(sensorCapacity, BUCKET_MILLIS, BUCKET_COUNT);
+    }
+
+    private static byte[] write(BidFailureAnalytics analytics) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        analytics.write(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static BidFailureAnalytics read(byte[] bytes) throws IOException {
+        return BidFailureAnalytics.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * Adds the reports at even or odd indexes, so that the halves share time buckets.
+     */
+    private static void addHalf(BidFailureAnalytics analytics, int parity) {
+        for (int i = parity; i < REPORT_COUNT; i += 2) {
+            analytics.add(reports.get(i));
+        }
+    }
+
+    private static void assertSameAggregates(BidFailureAnalytics expected, BidFailureAnalytics actual) {
+        assertEquals(expected.getReportCount(), actual.getReportCount());
+        assertEquals(expected.getFailureCount(), actual.getFailureCount());
+        assertEquals(expected.getSeverityCounts(), actual.getSeverityCounts());
+        assertEquals(expected.getFirstSeen(), actual.getFirstSeen());
+        assertEquals(expected.getLastSeen(), actual.getLastSeen());
+        assertEquals(describe(expected.getTrend()), describe(actual.getTrend()));
+        assertEquals(describeSensors(expected), describeSensors(actual));
+    }
+
+    private static List<String> describe(List<BidFailureAnalytics.Bucket> trend) {
+        List<String> described = new ArrayList<String>();
+        for (BidFailureAnalytics.Bucket bucket : trend) {
+            described.add(bucket.getStartMillis() + " " + bucket.getReportCount() + " " + bucket.getFailureCount());
+        }
+        return described;
+    }
+
+    private static List<String> describeSensors(BidFailureAnalytics analytics) {
+        List<String> described = new ArrayList<String>();
+        for (BidFailureAnalytics.SensorStats stats : analytics.getTopSensors(Integer.MAX_VALUE)) {
+            described.add(stats.getSensorName() + " " + stats.getCount() + "+-" + stats.getError()
+                    + " in " + stats.getReportCount() + " " + stats.getSeverityCounts()
+                    + " " + stats.getFirstSeen() + ".." + stats.getLastSeen());
+        }
+        return described;
+    }
+
+    /**
+     * Checks that every tracked sensor's count bounds its true count over
+     * all reports, and that its report count and times are set.
+     */
+    private static void assertSensorBounds(BidFailureAnalytics analytics) {
+        assertSensorsSeen(analytics);
+        for (BidFailureAnalytics.SensorStats stats : analytics.getTopSensors(Integer.MAX_VALUE)) {
+            long actual = sensorCounts.get(stats.getSensorName());
+            String sensor = stats.getSensorName();
+            assertTrue(sensor + " undercounted", stats.getCount() >= actual);
+            assertTrue(sensor + " error too small", stats.getCount() - stats.getError() <= actual);
+        }
+    }
+
+    /**
+     * Checks that every tracked sensor's report count and times were set
+     * when it was tracked.
+     */
+    private static void assertSensorsSeen(BidFailureAnalytics analytics) {
+        for (BidFailureAnalytics.SensorStats stats : analytics.getTopSensors(Integer.MAX_VALUE)) {
+            String sensor = stats.getSensorName();
+            assertTrue(sensor + " without reports", stats.getReportCount() > 0);
+            assertTrue(sensor + " without times", stats.getFirstSeen() <= stats.getLastSeen());
+        }
+    }
+
+    @Test
+    public void mergedHalvesMatchSinglePass() throws IOException {
+        // room for every sensor, so that the counts are exact
+        BidFailureAnalytics single = analytics(2 * SENSOR_COUNT);
+        addHalf(single, 0);
+        addHalf(single, 1);
+
+        BidFailureAnalytics even = analytics(2 * SENSOR_COUNT);
+        addHalf(even, 0);
+        BidFailureAnalytics odd = analytics(2 * SENSOR_COUNT);
+        addHalf(odd, 1);
+        even.merge(read(write(odd)));
+
+        assertSameAggregates(single, even);
+        assertEquals(REPORT_COUNT, single.getReportCount());
+        assertEquals(failureCount, single.getFailureCount());
+        for (Map.Entry<String, Long> entry : sensorCounts.entrySet()) {
+            BidFailureAnalytics.SensorStats stats = single.getSensorStats(entry.getKey());
+            assertNotNull(entry.getKey(), stats);
+            assertEquals(entry.getKey(), (long) entry.getValue(), stats.getCount());
+            assertEquals(entry.getKey(), 0, stats.getError());
+        }
+    }
+
+    @Test
+    public void writeAndReadRoundTrip() throws IOException {
+        BidFailureAnalytics analytics = analytics(8);
+        addHalf(analytics, 0);
+        assertSameAggregates(analytics, read(write(analytics)));
+        assertSameAggregates(analytics(8), read(write(analytics(8))));
+    }
+
+    @Test
+    public void fullSummariesBoundCounts() throws IOException {
+        BidFailureAnalytics single = analytics(8);
+        addHalf(single, 0);
+        addHalf(single, 1);
+        assertSensorBounds(single);
+        assertEquals(8, single.getTopSensors(Integer.MAX_VALUE).size());
+        // a single pass tracks every sensor with more than 1/capacity of the failures
+        for (Map.Entry<String, Long> entry : sensorCounts.entrySet()) {
+            if (entry.getValue() > failureCount / 8) {
+                assertNotNull(entry.getKey(), single.getSensorStats(entry.getKey()));
+            }
+        }
+
+        // both full
+        BidFailureAnalytics even = analytics(8);
+        addHalf(even, 0);
+        BidFailureAnalytics odd = analytics(8);
+        addHalf(odd, 1);
+        even.merge(read(write(odd)));
+        assertSensorBounds(even);
+        assertEquals(REPORT_COUNT, even.getReportCount());
+        assertEquals(failureCount, even.getFailureCount());
+        assertEquals(single.getSeverityCounts(), even.getSeverityCounts());
+        assertEquals(describe(single.getTrend()), describe(even.getTrend()));
+
+        // one full and one with a single report of few failures, merged either way
+        BidFailureAnalytics full = analytics(8);
+        BidFailureAnalytics partial = analytics(8);
+        for (BidFailureReport report : reports) {
+            if (partial.getReportCount() == 0 && report.getFailures().length < 8) {
+                partial.add(report);
+            } else {
+                full.add(report);
+            }
+        }
+        assertTrue(partial.getTopSensors(Integer.MAX_VALUE).size() < 8);
+        BidFailureAnalytics fullFirst = read(write(full));
+        fullFirst.merge(partial);
+        assertSensorBounds(fullFirst);
+        BidFailureAnalytics partialFirst = read(write(partial));
+        partialFirst.merge(full);
+        assertSensorBounds(partialFirst);
+        assertEquals(describeSensors(fullFirst), describeSensors(partialFirst));
+    }
+
+    @Test
+    public void sensorEvictedWithinReportIsTrackedAnew() {
+        // with room for one sensor, a report with failures from A, B and
+        // then A again evicts A and tracks it anew within the report
+        BidFailureAnalytics analytics = analytics(1);
+        int evictedAndSeenAgain = 0;
+        for (BidFailureReport report : reports) {
+            analytics.add(report);
+            assertSensorsSeen(analytics);
+            BidFailure[] failures = report.getFailures();
+            String last = failures[failures.length - 1].getSensorName();
+            for (int i = 0; i < failures.length - 2; i++) {
+                if (failures[i].getSensorName().equals(last) && !failures[i + 1].getSensorName().equals(last)) {
+                    evictedAndSeenAgain++;
+                    break;
+                }
+            }
+        }
+        assertTrue("reports evicting and seeing a sensor again", evictedAndSeenAgain > 0);
+    }
+
+    @Test
+    public void mergeRejectsOtherConfiguration() {
+        try {
+            analytics(8).merge(new BidFailureAnalytics(8, BUCKET_MILLIS, BUCKET_COUNT + 1));
+            fail("merged another configuration");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void readRejectsMalformedInput() throws IOException {
+        BidFailureAnalytics analytics = analytics(4);
+        analytics.add(reports.get(0));
+        byte[] valid = write(analytics);
+        read(valid);
+
+        // magic, version, then the configuration: capacity, bucket width and count
+        assertUnreadable("magic", withInt(valid, 0, 0x12345678));
+        assertUnreadable("version", withByte(valid, 4, 2));
+        assertUnreadable("capacity", withInt(valid, 5, 0));
+        assertUnreadable("bucket width", withLong(valid, 9, -1));
+
+        // an empty summary, whose counts follow at fixed offsets
+        byte[] empty = write(analytics(4));
+        int severities = 4 + 1 + 4 + 8 + 4 + 8 + 8 + 8 + 8;
+        assertUnreadable("severity count", withInt(empty, severities, -1));
+        assertUnreadable("sensor count", withInt(empty, severities + 4, 5));
+        assertUnreadable("negative sensor count", withInt(empty, severities + 4, -1));
+        assertUnreadable("bucket count", withInt(empty, severities + 8, BUCKET_COUNT + 1));
+
+        for (int length = 0; length < valid.length; length++) {
+            assertUnreadable("truncated to " + length, Arrays.copyOf(valid, length));
+        }
+    }
+
+    private static void assertUnreadable(String message, byte[] bytes) {
+        try {
+            read(bytes);
+            fail(message + " accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static byte[] withByte(byte[] bytes, int offset, int value) {
+        byte[] copy = bytes.clone();
+        copy[offset] = (byte) value;
+        return copy;
+    }
+
+    private static byte[] withInt(byte[] bytes, int offset, int value) {
+        byte[] copy = bytes.clone();
+        ByteBuffer.wrap(copy).putInt(offset, value);
+        return copy;
+    }
+
+    private static byte[] withLong(byte[] bytes, int offset, long value) {
+        byte[] copy = bytes.clone();
+        ByteBuffer.wrap(copy).putLong(offset, value);
+        return copy;
+    }
+}
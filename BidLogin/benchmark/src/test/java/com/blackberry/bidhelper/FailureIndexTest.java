@@ -0,0 +1,201 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the queries of a failure index against a scan of every failure of
+ * every report, over reports whose sensors and severities are drawn at
+ * random.
+ */
+public class FailureIndexTest {
+
+    private static final int REPORT_COUNT = 400;
+    private static final int SENSOR_COUNT = 12;
+    private static final int MIN_SEVERITY = 1;
+    private static final int MAX_SEVERITY = 10;
+
+    private static List<BidFailureReport> reports;
+    private static BidFailureIndex index;
+    private static List<String> sensorNames;
+
+    @BeforeClass
+    public static void createIndex() throws Exception {
+        ReportGenerator generator = new ReportGenerator(null).setFailureCount(8)
+                .setSeverities(MIN_SEVERITY, MAX_SEVERITY).setRandomFailures(SENSOR_COUNT, 19);
+        reports = new ArrayList<BidFailureReport>();
+        index = new BidFailureIndex();
+        for (int i = 0; i < REPORT_COUNT; i++) {
+            BidReportRecord record = generator.failureRecord(i);
+            BidFailureReport report = new BidFailureReport(record.getJbideReportBody(),
+                    record.getKbideReportBody(), record.getTzReportBody(), record.getTzSignature(),
+                    SyntheticReports.BASE64_DECODER);
+            report.verify(SyntheticReports.ACCEPT_ALL);
+            reports.add(report);
+            assertTrue(index.add(report));
+        }
+        sensorNames = index.getSensorNames();
+    }
+
+    /**
+     * Returns the failures from the sensor, or any sensor if null, in the
+     * severity range, by scanning every report.
+     */
+    private static List<String> scanFailures(String sensorName, int minSeverity, int maxSeverity) {
+        List<String> matches = new ArrayList<String>();
+        for (BidFailureReport report : reports) {
+            BidFailure[] failures = report.getFailures();
+            for (int i = 0; i < failures.length; i++) {
+                BidFailure failure = failures[i];
+                if ((sensorName == null || sensorName.equals(failure.getSensorName()))
+                        && failure.getSeverity() >= minSeverity && failure.getSeverity() <= maxSeverity) {
+                    matches.add(describe(report.getId(), i, failure.getSensorName(), failure.getSeverity()));
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the IDs of the reports with a failure from every one of the
+     * sensors in the severity range, by scanning every report.
+     */
+    private static List<String> scanReportsWithAll(Collection<String> sensorNames,
+                                                   int minSeverity, int maxSeverity) {
+        List<String> ids = new ArrayList<String>();
+        for (BidFailureReport report : reports) {
+            Set<String> found = new LinkedHashSet<String>();
+            for (BidFailure failure : report.getFailures()) {
+                if (failure.getSeverity() >= minSeverity && failure.getSeverity() <= maxSeverity) {
+                    found.add(failure.getSensorName());
+                }
+            }
+            if (!sensorNames.isEmpty() && found.containsAll(sensorNames)) {
+                ids.add(report.getId());
+            }
+        }
+        return ids;
+    }
+
+    private static String describe(String reportId, int failureIndex, String sensorName, int severity) {
+        return reportId + '/' + failureIndex + ' ' + sensorName + ' ' + severity;
+    }
+
+    private static List<String> describe(List<BidFailureIndex.Match> matches) {
+        List<String> described = new ArrayList<String>();
+        for (BidFailureIndex.Match match : matches) {
+            described.add(describe(match.getReportId(), match.getFailureIndex(), match.getSensorName(),
+                    match.getSeverity()));
+        }
+        return described;
+    }
+
+    private static List<String> distinctReports(List<String> failures) {
+        Set<String> ids = new LinkedHashSet<String>();
+        for (String failure : failures) {
+            ids.add(failure.substring(0, failure.indexOf('/')));
+        }
+        return new ArrayList<String>(ids);
+    }
+
+    @Test
+    public void failuresMatchScan() {
+        // a sensor query scans the sensor's postings when it has no more
+        // failures than the severity range, and merges the two otherwise
+        int scans = 0;
+        int merges = 0;
+        List<String> queried = new ArrayList<String>(sensorNames);
+        queried.add(null);
+        queried.add("no.such.sensor");
+        for (String sensorName : queried) {
+            for (int min = MIN_SEVERITY - 1; min <= MAX_SEVERITY + 1; min++) {
+                for (int max = min - 1; max <= MAX_SEVERITY + 1; max++) {
+                    List<String> expected = scanFailures(sensorName, min, max);
+                    String query = sensorName + " " + min + ".." + max;
+                    assertEquals(query, expected, describe(index.findFailures(sensorName, min, max)));
+                    assertEquals(query, distinctReports(expected), index.findReports(sensorName, min, max));
+                    if (sensorName != null && index.getFailureCount(sensorName) > 0 && min <= max) {
+                        if (index.getFailureCount(sensorName) <= scanFailures(null, min, max).size()) {
+                            scans++;
+                        } else {
+                            merges++;
+                        }
+                    }
+                }
+            }
+        }
+        assertTrue("sensor scans", scans > 0);
+        assertTrue("posting merges", merges > 0);
+    }
+
+    @Test
+    public void reportsWithAllMatchScan() {
+        int nonEmpty = 0;
+        for (int a = 0; a < sensorNames.size(); a++) {
+            for (int b = a + 1; b < sensorNames.size(); b++) {
+                for (int c = b; c < sensorNames.size(); c += 5) {
+                    List<String> pair = Arrays.asList(sensorNames.get(a), sensorNames.get(b));
+                    List<String> triple = Arrays.asList(sensorNames.get(a), sensorNames.get(b), sensorNames.get(c));
+                    for (int min = MIN_SEVERITY; min <= MAX_SEVERITY; min += 3) {
+                        int max = min + 4;
+                        List<String> expected = scanReportsWithAll(pair, min, max);
+                        assertEquals(pair + " " + min, expected, index.findReportsWithAll(pair, min, max));
+                        assertEquals(triple + " " + min, scanReportsWithAll(triple, min, max),
+                                index.findReportsWithAll(triple, min, max));
+                        if (!expected.isEmpty()) {
+                            nonEmpty++;
+                        }
+                    }
+                }
+            }
+        }
+        assertTrue("non-empty intersections", nonEmpty > 0);
+
+        List<String> unknown = Arrays.asList(sensorNames.get(0), "no.such.sensor");
+        assertEquals(Collections.<String>emptyList(), index.findReportsWithAll(unknown, MIN_SEVERITY, MAX_SEVERITY));
+        assertEquals(Collections.<String>emptyList(),
+                index.findReportsWithAll(Collections.<String>emptyList(), MIN_SEVERITY, MAX_SEVERITY));
+    }
+
+    @Test
+    public void countsMatchScan() {
+        int failures = 0;
+        for (BidFailureReport report : reports) {
+            failures += report.getFailures().length;
+            assertTrue(index.contains(report.getId()));
+            assertFalse(index.add(report));
+        }
+        assertEquals(REPORT_COUNT, index.getReportCount());
+        assertEquals(failures, index.getFailureCount());
+        for (String sensorName : sensorNames) {
+            assertEquals(sensorName, scanFailures(sensorName, Integer.MIN_VALUE, Integer.MAX_VALUE).size(),
+                    index.getFailureCount(sensorName));
+        }
+    }
+}
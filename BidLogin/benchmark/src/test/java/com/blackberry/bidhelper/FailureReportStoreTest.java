@@ -0,0 +1,291 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a failure report store recovers from a torn or corrupted
+ * tail by truncating it, and that compaction through its temporary file
+ * keeps the reports in retention across reopening.
+ */
+public class FailureReportStoreTest {
+
+    private static final byte[] KEY = "failure report store test key".getBytes();
+    private static final int REPORT_COUNT = 5;
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private File file;
+    private File tmp;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("store", ".store");
+        file.delete();
+        tmp = new File(file.getPath() + ".tmp");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        tmp.delete();
+    }
+
+    /**
+     * Returns the verified report at the specified index, received at the specified date.
+     */
+    private static BidFailureReport report(int index, long dateReceived) throws Exception {
+        BidReportRecord record = new ReportGenerator(null).setFailureCount(3).failureRecord(index);
+        BidFailureReport report = new BidFailureReport(record.getJbideReportBody(), record.getKbideReportBody(),
+                record.getTzReportBody(), record.getTzSignature(), SyntheticReports.BASE64_DECODER);
+        report.verify(SyntheticReports.ACCEPT_ALL);
+        report.setDateReceived(dateReceived);
+        return report;
+    }
+
+    private static List<String> reportIds(int from, int to) {
+        List<String> ids = new ArrayList<String>();
+        for (int i = from; i < to; i++) {
+            ids.add(ReportGenerator.reportId(i));
+        }
+        return ids;
+    }
+
+    /**
+     * Appends the reports at indexes 0 to <code>REPORT_COUNT</code> and
+     * returns the file length after the header and after each of them.
+     */
+    private long[] appendReports() throws Exception {
+        long now = System.currentTimeMillis();
+        long[] ends = new long[REPORT_COUNT + 1];
+        BidFailureReportStore store = BidFailureReportStore.open(file, KEY, Long.MAX_VALUE);
+        try {
+            ends[0] = file.length();
+            for (int i = 0; i < REPORT_COUNT; i++) {
+                assertTrue(store.append(report(i, now)));
+                ends[i + 1] = file.length();
+            }
+            store.sync();
+        } finally {
+            store.close();
+        }
+        return ends;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void flipByte(File file, long position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0x01);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Opens the store and checks that it holds the reports at indexes 0 to
+     * <code>count</code>, each restored with its failures.
+     */
+    private void assertReopened(int count, long length) throws Exception {
+        BidFailureReportStore store = BidFailureReportStore.open(file, KEY, Long.MAX_VALUE);
+        try {
+            assertEquals(length, file.length());
+            assertEquals(count, store.size());
+            assertEquals(reportIds(0, count), store.getReportIds());
+            for (int i = 0; i < REPORT_COUNT; i++) {
+                String id = ReportGenerator.reportId(i);
+                assertEquals(id, i < count, store.contains(id));
+                BidFailureReport restored = store.get(id);
+                if (i < count) {
+                    assertEquals(id, restored.getId());
+                    assertEquals(report(i, 0).getFailures().length, restored.getFailures().length);
+                } else {
+                    assertNull(restored);
+                }
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void reopenKeepsReports() throws Exception {
+        long[] ends = appendReports();
+        assertReopened(REPORT_COUNT, ends[REPORT_COUNT]);
+
+        BidFailureReportStore store = BidFailureReportStore.open(file, KEY, Long.MAX_VALUE);
+        try {
+            assertFalse(store.append(report(0, System.currentTimeMillis())));
+        } finally {
+            store.close();
+        }
+        assertEquals(ends[REPORT_COUNT], file.length());
+    }
+
+    @Test
+    public void tornTailIsTruncated() throws Exception {
+        long[] ends = appendReports();
+        byte[] complete = Files.readAllBytes(file.toPath());
+        // every length which cuts the last record, including within its frame
+        for (long length = ends[REPORT_COUNT - 1] + 1; length < ends[REPORT_COUNT]; length++) {
+            writeFile(complete, (int) length);
+            assertReopened(REPORT_COUNT - 1, ends[REPORT_COUNT - 1]);
+        }
+    }
+
+    @Test
+    public void corruptRecordIsTruncatedWithEverythingAfterIt() throws Exception {
+        long[] ends = appendReports();
+        byte[] complete = Files.readAllBytes(file.toPath());
+
+        // a payload byte, which fails the CRC check
+        writeFile(complete, complete.length);
+        flipByte(file, ends[2] + (ends[3] - ends[2]) / 2);
+        assertReopened(2, ends[2]);
+
+        // the CRC itself
+        writeFile(complete, complete.length);
+        flipByte(file, ends[2] + 7);
+        assertReopened(2, ends[2]);
+
+        // a length past the end of the file
+        writeFile(complete, complete.length);
+        flipByte(file, ends[2]);
+        assertReopened(2, ends[2]);
+    }
+
+    @Test
+    public void appendAfterRecoveryIsKept() throws Exception {
+        long[] ends = appendReports();
+        truncate(file, ends[REPORT_COUNT] - 3);
+
+        BidFailureReportStore store = BidFailureReportStore.open(file, KEY, Long.MAX_VALUE);
+        try {
+            assertEquals(REPORT_COUNT - 1, store.size());
+            assertTrue(store.append(report(REPORT_COUNT - 1, System.currentTimeMillis())));
+            store.sync();
+        } finally {
+            store.close();
+        }
+        assertReopened(REPORT_COUNT, ends[REPORT_COUNT]);
+    }
+
+    @Test
+    public void foreignFileIsRejected() throws Exception {
+        writeFile(new byte[]{'n', 'o', 't', ' ', 'a', ' ', 's', 't', 'o', 'r', 'e'}, 11);
+        try {
+            BidFailureReportStore.open(file, KEY, Long.MAX_VALUE).close();
+            fail("opened a foreign file");
+        } catch (IOException expected) {
+        }
+        assertEquals(11, file.length());
+    }
+
+    @Test
+    public void compactionKeepsReportsInRetentionAcrossReopen() throws Exception {
+        long now = System.currentTimeMillis();
+        BidFailureReportStore store = BidFailureReportStore.open(file, KEY, Long.MAX_VALUE);
+        try {
+            for (int i = 0; i < REPORT_COUNT; i++) {
+                // the even reports are ten days old, the odd ones an hour
+                store.append(report(i, i % 2 == 0 ? now - 10 * DAY_MILLIS : now - DAY_MILLIS / 24));
+            }
+            assertEquals(0, store.compact());
+            assertFalse(tmp.exists());
+            store.sync();
+        } finally {
+            store.close();
+        }
+        long uncompacted = file.length();
+
+        // a temporary file left behind by a crashed compaction
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(new byte[]{1, 2, 3});
+        } finally {
+            out.close();
+        }
+
+        List<String> kept = new ArrayList<String>();
+        for (int i = 1; i < REPORT_COUNT; i += 2) {
+            kept.add(ReportGenerator.reportId(i));
+        }
+        store = BidFailureReportStore.open(file, KEY, DAY_MILLIS);
+        try {
+            assertEquals(kept, store.getReportIds());
+            assertFalse(tmp.exists());
+            assertTrue(file.length() < uncompacted);
+
+            // an append beyond a quarter of the retention compacts again
+            assertTrue(store.append(report(REPORT_COUNT, now - 2 * DAY_MILLIS)));
+            assertEquals(kept, store.getReportIds());
+            assertTrue(store.append(report(REPORT_COUNT + 1, now)));
+            kept.add(ReportGenerator.reportId(REPORT_COUNT + 1));
+            store.sync();
+        } finally {
+            store.close();
+        }
+        long compacted = file.length();
+
+        store = BidFailureReportStore.open(file, KEY, DAY_MILLIS);
+        try {
+            assertEquals(compacted, file.length());
+            assertEquals(kept, store.getReportIds());
+            for (String id : kept) {
+                assertEquals(id, store.get(id).getId());
+            }
+            assertEquals(kept.size(), store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    private void writeFile(byte[] bytes, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes, 0, length);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a windowed failure report stream returns every report once,
+ * whether the source honours, ignores or rejects the offset and limit of a
+ * window, and while reports are added and removed as it is iterated.
+ */
+public class FailureReportStreamTest {
+
+    // several reports on each date, so windows end within a date
+    private static final long[] DATES = {5, 5, 5, 6, 7, 7, 8, 8, 8, 8, 9};
+
+    private static BidReportRecord record(int index, long dateReceived) {
+        return new BidReportRecord("", "", "", new byte[]{(byte) index}, dateReceived);
+    }
+
+    private static BidMemoryReportSource corpus() {
+        BidMemoryReportSource source = new BidMemoryReportSource();
+        for (int i = 0; i < DATES.length; i++) {
+            source.addFailureReport(ReportGenerator.reportId(i), record(i, DATES[i]));
+        }
+        return source;
+    }
+
+    /**
+     * Returns the indexes of the reports of the stream, as set in their signatures.
+     */
+    private static List<Integer> indexes(BidReportSource source, long dateReceived, int windowSize)
+            throws Exception {
+        List<Integer> indexes = new ArrayList<Integer>();
+        BidFailureReportStream stream = new BidHelperJvm(source)
+                .requestFailureReportsReceivedAfter(dateReceived, windowSize);
+        try {
+            for (BidFailureReport report : stream) {
+                indexes.add(indexOf(report));
+            }
+        } finally {
+            stream.close();
+        }
+        return indexes;
+    }
+
+    private static int indexOf(BidFailureReport report) {
+        for (int i = 0; i < 256; i++) {
+            if (Arrays.equals(BidDigester.sha256(new byte[]{(byte) i}), report.getTzSignatureDigest())) {
+                return i;
+            }
+        }
+        throw new AssertionError("unknown report");
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> range = new ArrayList<Integer>();
+        for (int i = from; i < to; i++) {
+            range.add(i);
+        }
+        return range;
+    }
+
+    @Test
+    public void everyWindowSizeReturnsEveryReportOnce() throws Exception {
+        BidMemoryReportSource source = corpus();
+        for (int windowSize = 0; windowSize <= DATES.length + 1; windowSize++) {
+            assertEquals("window " + windowSize, range(0, DATES.length), indexes(source, -1, windowSize));
+            assertEquals("window " + windowSize, range(4, DATES.length), indexes(source, 6, windowSize));
+        }
+    }
+
+    @Test
+    public void sourcesIgnoringPagingDoNotRepeatReports() throws Exception {
+        final BidMemoryReportSource source = corpus();
+        BidReportSource ignoresBoth = new ForwardingSource(source) {
+            @Override
+            public List<BidReportRecord> queryFailureReports(long dateReceived, int offset, int limit)
+                    throws BidRequestException {
+                return source.queryFailureReports(dateReceived, 0, 0);
+            }
+        };
+        BidReportSource ignoresOffset = new ForwardingSource(source) {
+            @Override
+            public List<BidReportRecord> queryFailureReports(long dateReceived, int offset, int limit)
+                    throws BidRequestException {
+                return source.queryFailureReports(dateReceived, 0, limit);
+            }
+        };
+        for (int windowSize = 1; windowSize <= DATES.length; windowSize++) {
+            assertEquals("window " + windowSize, range(0, DATES.length), indexes(ignoresBoth, -1, windowSize));
+            assertEquals("window " + windowSize, range(0, DATES.length), indexes(ignoresOffset, -1, windowSize));
+        }
+    }
+
+    @Test
+    public void sourcesRejectingPagingAreQueriedOnce() throws Exception {
+        final BidMemoryReportSource source = corpus();
+        final List<Integer> limits = new ArrayList<Integer>();
+        BidReportSource rejectsPaging = new ForwardingSource(source) {
+            @Override
+            public List<BidReportRecord> queryFailureReports(long dateReceived, int offset, int limit)
+                    throws BidRequestException {
+                limits.add(limit);
+                if (limit > 0) {
+                    throw new BidRequestException(new IllegalArgumentException("invalid sort order"));
+                }
+                return source.queryFailureReports(dateReceived, offset, limit);
+            }
+        };
+        for (int windowSize = 1; windowSize <= DATES.length + 1; windowSize++) {
+            limits.clear();
+            assertEquals("window " + windowSize, range(0, DATES.length), indexes(rejectsPaging, -1, windowSize));
+            assertEquals(Arrays.asList(windowSize, 0), limits);
+            assertEquals("window " + windowSize, range(4, DATES.length), indexes(rejectsPaging, 6, windowSize));
+        }
+
+        // a failure of the unpaged query itself is not retried
+        BidReportSource failing = new ForwardingSource(source) {
+            @Override
+            public List<BidReportRecord> queryFailureReports(long dateReceived, int offset, int limit)
+                    throws BidRequestException {
+                limits.add(limit);
+                throw new BidRequestException("provider unavailable");
+            }
+        };
+        limits.clear();
+        try {
+            indexes(failing, -1, 0);
+            fail("the stream was opened");
+        } catch (BidRequestException expected) {
+        }
+        assertEquals(Arrays.asList(0), limits);
+    }
+
+    @Test
+    public void changesDuringIterationDoNotShiftWindows() throws Exception {
+        BidMemoryReportSource source = corpus();
+        List<Integer> indexes = new ArrayList<Integer>();
+        BidFailureReportStream stream = new BidHelperJvm(source).requestFailureReportStream(2);
+        try {
+            for (BidFailureReport report : stream) {
+                int index = indexOf(report);
+                indexes.add(index);
+                if (index == 4) {
+                    // remove the reports already returned, and add one on the current date
+                    source.clearFailureReports();
+                    for (int i = 3; i < DATES.length; i++) {
+                        source.addFailureReport(ReportGenerator.reportId(i), record(i, DATES[i]));
+                    }
+                    source.addFailureReport(ReportGenerator.reportId(20), record(20, 7));
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        List<Integer> expected = range(0, 6);
+        expected.add(20);
+        expected.addAll(range(6, DATES.length));
+        assertEquals(expected, indexes);
+    }
+
+    /**
+     * A source which forwards every query to another source.
+     */
+    private static class ForwardingSource implements BidReportSource {
+        private final BidReportSource source;
+
+        ForwardingSource(BidReportSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public BidReportRecord queryStatusReport(BigInteger nonce) throws BidRequestException {
+            return source.queryStatusReport(nonce);
+        }
+
+        @Override
+        public BidReportRecord queryFailureReport(String reportId) throws BidRequestException {
+            return source.queryFailureReport(reportId);
+        }
+
+        @Override
+        public List<BidReportRecord> queryFailureReports(long dateReceived, int offset, int limit)
+                throws BidRequestException {
+            return source.queryFailureReports(dateReceived, offset, limit);
+        }
+
+        @Override
+        public byte[] queryCertificate() throws BidCertificateUnavailableException, BidRequestException {
+            return source.queryCertificate();
+        }
+    }
+}
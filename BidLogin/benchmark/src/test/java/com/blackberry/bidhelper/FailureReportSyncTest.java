@@ -0,0 +1,175 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a failure report sync restores its verified reports and
+ * watermark across sessions, and fetches each report received on the
+ * watermark date exactly once.
+ */
+public class FailureReportSyncTest {
+
+    private static final byte[] KEY = "failure report sync test key".getBytes();
+
+    private static TestPki pki;
+
+    private File file;
+    private BidMemoryReportSource source;
+    private MemoryWatermarkStore watermarks;
+
+    @BeforeClass
+    public static void createPki() throws Exception {
+        pki = new TestPki(1);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("sync", ".store");
+        file.delete();
+        source = new BidMemoryReportSource();
+        source.setCertificate(pki.getBidCertificate().getEncoded());
+        watermarks = new MemoryWatermarkStore();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    /**
+     * Adds the signed report at the specified index, received on the specified date.
+     */
+    private void addReport(int index, long dateReceived) {
+        BidReportRecord record = new ReportGenerator(pki).setFailureCount(2).failureRecord(index);
+        source.addFailureReport(ReportGenerator.reportId(index), new BidReportRecord(record.getJbideReportBody(),
+                record.getKbideReportBody(), record.getTzReportBody(), record.getTzSignature(), dateReceived));
+    }
+
+    /**
+     * Adds a report at the specified index whose signature does not verify.
+     */
+    private void addForgedReport(int index, long dateReceived) {
+        BidReportRecord record = new ReportGenerator(pki).setFailureCount(2).failureRecord(index);
+        byte[] signature = record.getTzSignature().clone();
+        signature[signature.length - 1] ^= 1;
+        source.addFailureReport(ReportGenerator.reportId(index), new BidReportRecord(record.getJbideReportBody(),
+                record.getKbideReportBody(), record.getTzReportBody(), signature, dateReceived));
+    }
+
+    private BidHelperJvm helper() throws Exception {
+        return new BidHelperJvm(source, pki.trustAnchors());
+    }
+
+    private static List<String> ids(List<BidFailureReport> reports) {
+        List<String> ids = new ArrayList<String>();
+        for (BidFailureReport report : reports) {
+            ids.add(report.getId());
+        }
+        return ids;
+    }
+
+    private static List<String> reportIds(int... indexes) {
+        List<String> ids = new ArrayList<String>();
+        for (int index : indexes) {
+            ids.add(ReportGenerator.reportId(index));
+        }
+        return ids;
+    }
+
+    @Test
+    public void storedSyncRestoresReportsAcrossSessions() throws Exception {
+        addReport(1, 1000);
+        addReport(2, 2000);
+        addReport(3, 2000);
+
+        BidFailureReportStore store = BidFailureReportStore.open(file, KEY, Long.MAX_VALUE);
+        BidFailureReportSync sync = new BidFailureReportSync(helper(), watermarks, store, true, 2);
+        assertEquals(reportIds(1, 2, 3), ids(sync.refresh()));
+        assertEquals(2000, watermarks.watermark);
+        store.close();
+
+        // a report received later on the watermark date, and one after it
+        addReport(4, 2000);
+        addReport(5, 3000);
+
+        store = BidFailureReportStore.open(file, KEY, Long.MAX_VALUE);
+        sync = new BidFailureReportSync(helper(), watermarks, store, true, 2);
+        assertEquals(reportIds(1, 2, 3), ids(sync.getVerifiedReports()));
+        assertEquals(2000, sync.getWatermark());
+        assertEquals(reportIds(4, 5), ids(sync.refresh()));
+        assertEquals(reportIds(1, 2, 3, 4, 5), ids(sync.getVerifiedReports()));
+        assertEquals(5, store.size());
+
+        BidFailureIndex index = new BidFailureIndex();
+        sync.setFailureIndex(index);
+        assertEquals(5, index.getReportCount());
+        store.close();
+    }
+
+    @Test
+    public void memorySyncDoesNotReloadWatermark() throws Exception {
+        addReport(1, 1000);
+        addReport(2, 2000);
+        watermarks.watermark = 2000;
+
+        BidFailureReportSync sync = new BidFailureReportSync(helper(), watermarks, true, 2);
+        assertEquals(-1, sync.getWatermark());
+        assertEquals(reportIds(1, 2), ids(sync.refresh()));
+    }
+
+    @Test
+    public void reportsOnWatermarkDateAreHandledOnce() throws Exception {
+        addReport(1, 1000);
+        addForgedReport(2, 1000);
+
+        BidFailureReportSync sync = new BidFailureReportSync(helper(), watermarks, true, 1);
+        assertEquals(reportIds(1), ids(sync.refresh()));
+        assertEquals(1, sync.getRejected().size());
+
+        assertEquals(0, sync.refresh().size());
+        assertEquals(1, sync.getRejected().size());
+
+        addReport(3, 1000);
+        assertEquals(reportIds(3), ids(sync.refresh()));
+        assertEquals(reportIds(1, 3), ids(sync.getVerifiedReports()));
+        assertEquals(1, sync.getRejected().size());
+    }
+
+    private static final class MemoryWatermarkStore implements BidFailureReportSync.WatermarkStore {
+        long watermark = -1;
+
+        @Override
+        public long loadWatermark() {
+            return watermark;
+        }
+
+        @Override
+        public void saveWatermark(long watermark) {
+            this.watermark = watermark;
+        }
+    }
+}
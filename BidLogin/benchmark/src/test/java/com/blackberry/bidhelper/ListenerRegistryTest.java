@@ -0,0 +1,119 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.junit.Test;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a listener or executor which throws does not keep the
+ * listeners registered after it from being notified.
+ */
+public class ListenerRegistryTest {
+
+    private static class CountingListener implements BidListener {
+        int certificates;
+        int reports;
+
+        @Override
+        public void certificateAvailable() {
+            certificates++;
+        }
+
+        @Override
+        public void reportInserted() {
+            reports++;
+        }
+    }
+
+    private static class FailingListener extends CountingListener {
+        @Override
+        public void certificateAvailable() {
+            super.certificateAvailable();
+            throw new IllegalStateException("certificate");
+        }
+
+        @Override
+        public void reportInserted() {
+            super.reportInserted();
+            throw new IllegalStateException("report");
+        }
+    }
+
+    /**
+     * An executor which rejects its first tasks and then runs them directly.
+     */
+    private static class RejectingExecutor implements Executor {
+        int rejections;
+
+        RejectingExecutor(int rejections) {
+            this.rejections = rejections;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (rejections > 0) {
+                rejections--;
+                throw new RejectedExecutionException();
+            }
+            command.run();
+        }
+    }
+
+    @Test
+    public void throwingListenerDoesNotStopLaterListeners() {
+        BidListenerRegistry registry = new BidListenerRegistry();
+        FailingListener failing = new FailingListener();
+        CountingListener counting = new CountingListener();
+        registry.add(failing, BidListenerRegistry.DIRECT_EXECUTOR);
+        registry.add(counting, BidListenerRegistry.DIRECT_EXECUTOR);
+
+        registry.fireReportInserted();
+        registry.fireReportInserted();
+        registry.fireCertificateAvailable();
+
+        assertEquals(2, failing.reports);
+        assertEquals(1, failing.certificates);
+        assertEquals(2, counting.reports);
+        assertEquals(1, counting.certificates);
+    }
+
+    @Test
+    public void rejectedNotificationIsRetriedOnNextInsertion() {
+        BidListenerRegistry registry = new BidListenerRegistry();
+        CountingListener rejected = new CountingListener();
+        CountingListener counting = new CountingListener();
+        registry.add(rejected, new RejectingExecutor(2));
+        registry.add(counting, BidListenerRegistry.DIRECT_EXECUTOR);
+
+        registry.fireReportInserted();
+        registry.fireCertificateAvailable();
+        assertEquals(0, rejected.reports);
+        assertEquals(0, rejected.certificates);
+        assertEquals(1, counting.reports);
+        assertEquals(1, counting.certificates);
+
+        registry.fireReportInserted();
+        registry.fireCertificateAvailable();
+        assertEquals(1, rejected.reports);
+        assertEquals(1, rejected.certificates);
+        assertEquals(2, counting.reports);
+        assertEquals(2, counting.certificates);
+    }
+}
@@ -0,0 +1,611 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the SAX and pull parser engines over a generated corpus of reports
+ * and checks that they agree on every verified field, and on the exception
+ * for reports which fail verification. The <code>CHEAPEST_FIRST</code>
+ * verification order is checked against <code>PARSE_FIRST</code> the same way.
+ */
+public class ParserEngineDifferentialTest {
+
+    private static TestPki pki;
+
+    @BeforeClass
+    public static void createPki() throws Exception {
+        pki = new TestPki(1);
+    }
+
+    private static List<BidReportRecord> failureCorpus() {
+        List<BidReportRecord> corpus = new ArrayList<BidReportRecord>();
+        int index = 0;
+        for (int failureCount : new int[]{0, 1, 5, 40, 2000}) {
+            for (int[] severities : new int[][]{{1, 3}, {2, 2}, {0, 5}}) {
+                for (int xmlSize : new int[]{0, 3000, 100000}) {
+                    corpus.add(new ReportGenerator(null)
+                            .setFailureCount(failureCount)
+                            .setSeverities(severities[0], severities[1])
+                            .setXmlSize(xmlSize)
+                            .failureRecord(index++));
+                }
+            }
+        }
+        return corpus;
+    }
+
+    private static List<BidReportRecord> statusCorpus() {
+        List<BidReportRecord> corpus = new ArrayList<BidReportRecord>();
+        String[][] failedReports = {{}, {"00000001"}, {"00000001", "0000002a", "000000ff"}};
+        String[][] tokens = {{}, {"t1"}, {"t1", "t2", "t3", "t4"}};
+        for (int f = 0; f < failedReports.length; f++) {
+            for (int t = 0; t < tokens.length; t++) {
+                ReportGenerator generator = new ReportGenerator(null)
+                        .setSeverities(1, 1 + f)
+                        .setSecurityTokens(BidStatusReport.Severity.HIGH, tokens[t])
+                        .setSecurityTokens(BidStatusReport.Severity.MEDIUM, tokens[(t + 1) % tokens.length])
+                        .setSecurityTokens(BidStatusReport.Severity.LOW, tokens[(t + 2) % tokens.length]);
+                BigInteger nonce = BigInteger.valueOf(31L * f + t + 1).shiftLeft(100);
+                corpus.add(generator.statusRecord(nonce, failedReports[f]));
+            }
+        }
+        return corpus;
+    }
+
+    /**
+     * Returns the failure report at index 7 with extra elements: an empty
+     * failure, a failure nested in an unknown element, and status elements
+     * the failure handler does not read.
+     */
+    private static BidReportRecord irregularFailureRecord() {
+        BidReportRecord record = new ReportGenerator(null).setFailureCount(3).failureRecord(7);
+        String jbide = record.getJbideReport().replace("</bidereport>",
+                "  <failure sensor=\"empty\" severity=\"2\"/>\n"
+                        + "  <extra><failure sensor=\"nested\" severity=\"1\">nested</failure></extra>\n"
+                        + "  <bidestatus><status>pass</status></bidestatus>\n"
+                        + "  <highsecuritytokens><token>t</token></highsecuritytokens>\n"
+                        + "</bidereport>");
+        return relink(record, jbide);
+    }
+
+    /**
+     * Returns the failure report at index 9, with its text broken into
+     * several chunks by entity and character references.
+     */
+    private static BidReportRecord chunkedFailureRecord() {
+        BidReportRecord record = new ReportGenerator(null).setFailureCount(2).failureRecord(9);
+        String jbide = record.getJbideReport().replace("</bidereport>",
+                "  <failure sensor=\"entities\" severity=\"3\">a &amp; b &lt;c&gt; &#100;</failure>\n"
+                        + "</bidereport>");
+        BidReportRecord relinked = relink(record, jbide);
+
+        // write the first character of each hash as a character reference
+        String kbide = referenceFirstCharacter(relinked.getKbideReport(), "<jbidehash>");
+        String tz = relinked.getTzReport().replaceFirst("<kbidehash>[^<]*</kbidehash>",
+                "<kbidehash>" + SyntheticReports.hash(kbide) + "</kbidehash>");
+        tz = referenceFirstCharacter(tz, "<kbidehash>");
+        return new BidReportRecord(relinked.getJbideReport(), kbide, tz, record.getTzSignature(),
+                record.getDateReceived());
+    }
+
+    private static String referenceFirstCharacter(String xml, String startTag) {
+        int i = xml.indexOf(startTag) + startTag.length();
+        return xml.substring(0, i) + "&#" + (int) xml.charAt(i) + ';' + xml.substring(i + 1);
+    }
+
+    /**
+     * Returns a record with the specified JBIDE report and the KBIDE and TZ
+     * reports of the specified record, with the hashes updated to match.
+     */
+    private static BidReportRecord relink(BidReportRecord record, String jbide) {
+        String kbide = record.getKbideReport().replaceFirst("<jbidehash>[^<]*</jbidehash>",
+                "<jbidehash>" + SyntheticReports.hash(jbide) + "</jbidehash>");
+        String tz = record.getTzReport().replaceFirst("<kbidehash>[^<]*</kbidehash>",
+                "<kbidehash>" + SyntheticReports.hash(kbide) + "</kbidehash>");
+        return new BidReportRecord(jbide, kbide, tz, record.getTzSignature(), record.getDateReceived());
+    }
+
+    private static BidFailureReport failureReport(BidReportRecord record) {
+        return new BidFailureReport(record.getJbideReportBody(), record.getKbideReportBody(),
+                record.getTzReportBody(), record.getTzSignature(), SyntheticReports.BASE64_DECODER);
+    }
+
+    private static BidStatusReport statusReport(BidReportRecord record) {
+        return new BidStatusReport(record.getJbideReportBody(), record.getKbideReportBody(),
+                record.getTzReportBody(), record.getTzSignature(), SyntheticReports.BASE64_DECODER);
+    }
+
+    /**
+     * Returns a copy of the specified record whose reports are read from
+     * streams of their UTF-8 bytes.
+     */
+    private static BidReportRecord streamed(BidReportRecord record) throws IOException {
+        return new BidReportRecord(stream(record.getJbideReport()), stream(record.getKbideReport()),
+                stream(record.getTzReport()), record.getTzSignature(), record.getDateReceived());
+    }
+
+    private static BidReportBody stream(String xml) throws IOException {
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        return BidReportBody.read(new ByteArrayInputStream(bytes), BidParserLimits.DEFAULT_MAX_REPORT_LENGTH);
+    }
+
+    /**
+     * Verifies the report with the specified engine and describes the
+     * verified fields, or the exception if the verification failed.
+     */
+    private static String verify(BidVerifiable report, BidParserEngine engine) {
+        return verify(report, engine, BidVerificationOrder.PARSE_FIRST);
+    }
+
+    /**
+     * Verifies the report with the specified engine and order, and describes
+     * the verified fields, or the exception if the verification failed.
+     */
+    private static String verify(BidVerifiable report, BidParserEngine engine, BidVerificationOrder order) {
+        return verify(report, engine, order, BidParserLimits.DEFAULT);
+    }
+
+    /**
+     * Verifies the report with the specified engine, order and limits, and
+     * describes the verified fields, or the exception if the verification failed.
+     */
+    private static String verify(BidVerifiable report, BidParserEngine engine, BidVerificationOrder order,
+                                 BidParserLimits limits) {
+        try {
+            report.verify(SyntheticReports.ACCEPT_ALL, engine, false, order, limits);
+        } catch (Exception e) {
+            return e.getClass().getName();
+        }
+        return describe(report);
+    }
+
+    private static String describe(BidVerifiable report) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(report.isVerified()).append('|').append(report.getDeviceModel())
+                .append('|').append(report.getOsVersion());
+        if (report instanceof BidFailureReport) {
+            BidFailureReport failureReport = (BidFailureReport) report;
+            sb.append('|').append(failureReport.getId()).append('|').append(failureReport.getTime());
+            for (BidFailure failure : failureReport.getFailures()) {
+                sb.append('\n').append(failure.getSensorName()).append('|').append(failure.getSeverity())
+                        .append('|').append(failure.getDetails());
+            }
+        } else {
+            BidStatusReport statusReport = (BidStatusReport) report;
+            sb.append('|').append(statusReport.getNonce()).append('|').append(statusReport.getTime())
+                    .append('|').append(statusReport.hasFailure()).append('|').append(statusReport.getMaxSeverity())
+                    .append('|').append(statusReport.getSoftwareSignatureType())
+                    .append('|').append(Arrays.toString(statusReport.getReportIds()));
+            for (BidStatusReport.Severity severity : BidStatusReport.Severity.values()) {
+                sb.append('|').append(Arrays.toString(statusReport.getSecurityTokens(severity)));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void assertAgree(BidVerifiable saxReport, BidVerifiable pullReport) {
+        String sax = verify(saxReport, BidParserEngine.SAX);
+        String pull = verify(pullReport, BidParserEngine.PULL);
+        assertEquals(sax, pull);
+    }
+
+    @Test
+    public void failureReportsAgree() {
+        for (BidReportRecord record : failureCorpus()) {
+            assertAgree(failureReport(record), failureReport(record));
+        }
+    }
+
+    @Test
+    public void statusReportsAgree() {
+        for (BidReportRecord record : statusCorpus()) {
+            assertAgree(statusReport(record), statusReport(record));
+        }
+    }
+
+    @Test
+    public void irregularFailureReportAgrees() {
+        BidReportRecord record = irregularFailureRecord();
+        BidFailureReport report = failureReport(record);
+        assertAgree(report, failureReport(record));
+        assertEquals(8, report.getFailures().length);
+    }
+
+    /**
+     * Returns the failure report at index 8 with a failure nested in another
+     * failure, each with its own attributes.
+     */
+    private static BidReportRecord nestedFailureRecord() {
+        BidReportRecord record = new ReportGenerator(null).setFailureCount(2).failureRecord(8);
+        String jbide = record.getJbideReport().replace("</bidereport>",
+                "  <failure sensor=\"outer\" severity=\"2\">outer"
+                        + "<failure sensor=\"inner\" severity=\"1\">inner</failure></failure>\n"
+                        + "</bidereport>");
+        return relink(record, jbide);
+    }
+
+    /**
+     * Returns the sensor names and severities of the failures of the
+     * specified verified report, in order.
+     */
+    private static List<String> sensors(BidFailureReport report) {
+        List<String> sensors = new ArrayList<String>();
+        for (BidFailure failure : report.getFailures()) {
+            sensors.add(failure.getSensorName() + '|' + failure.getSeverity());
+        }
+        return sensors;
+    }
+
+    @Test
+    public void nestedFailureKeepsItsAttributes() {
+        BidReportRecord record = nestedFailureRecord();
+        for (BidParserEngine engine : BidParserEngine.values()) {
+            BidFailureReport report = failureReport(record);
+            String fields = verify(report, engine);
+            assertTrue(fields, report.isVerified());
+            // after the two JBIDE failures generated, the inner failure ends first
+            assertEquals(Arrays.asList("inner|1", "outer|2"), sensors(report).subList(2, 4));
+        }
+        assertAgree(failureReport(record), failureReport(record));
+    }
+
+    @Test
+    public void failureDetailsIncludeChildElements() {
+        BidReportRecord record = new ReportGenerator(null).setFailureCount(2).failureRecord(10);
+        String jbide = record.getJbideReport().replace("</bidereport>",
+                "  <failure sensor=\"child\" severity=\"3\"><details>in a child</details></failure>\n"
+                        + "  <failure sensor=\"mixed\" severity=\"3\">a <b>b</b> <time>c</time></failure>\n"
+                        + "</bidereport>");
+        BidReportRecord relinked = relink(record, jbide);
+        for (BidParserEngine engine : BidParserEngine.values()) {
+            BidFailureReport report = failureReport(relinked);
+            String fields = verify(report, engine);
+            assertTrue(fields, fields.contains("\nchild|3|in a child\n"));
+            assertTrue(fields, fields.contains("\nmixed|3|a b c\n"));
+        }
+        assertAgree(failureReport(relinked), failureReport(relinked));
+
+        // the outer failure's details include those of the failure nested in it
+        String fields = verify(failureReport(nestedFailureRecord()), BidParserEngine.SAX);
+        assertTrue(fields, fields.contains("\ninner|1|inner\nouter|2|outerinner\n"));
+    }
+
+    @Test
+    public void chunkedTextIsAccumulated() {
+        BidReportRecord record = chunkedFailureRecord();
+        BidFailureReport report = failureReport(record);
+        assertAgree(report, failureReport(record));
+        assertTrue(report.isVerified());
+        String details = null;
+        for (BidFailure failure : report.getFailures()) {
+            if ("entities".equals(failure.getSensorName())) {
+                details = failure.getDetails();
+            }
+        }
+        assertEquals("a & b <c> d", details);
+    }
+
+    @Test
+    public void failuresAgree() {
+        BidReportRecord record = new ReportGenerator(null).setFailureCount(4).failureRecord(3);
+
+        // JBIDE no longer matches its hash
+        BidReportRecord tampered = new BidReportRecord(record.getJbideReport().replace("failure 3.1", "failure 3.9"),
+                record.getKbideReport(), record.getTzReport(), record.getTzSignature());
+        assertAgree(failureReport(tampered), failureReport(tampered));
+        assertTrue(verify(failureReport(tampered), BidParserEngine.PULL).endsWith("BidHashMismatchException"));
+
+        // not well-formed
+        BidReportRecord malformed = relink(record, record.getJbideReport().replace("</bidereport>", "</bidereport"));
+        assertAgree(failureReport(malformed), failureReport(malformed));
+        assertTrue(verify(failureReport(malformed), BidParserEngine.PULL).endsWith("IOException"));
+    }
+
+    /**
+     * Returns a record with the embedded hashes of the specified record moved
+     * into elements the report types do not otherwise read: the JBIDE hash
+     * into a <code>failedreports</code> element and the KBIDE hash, updated
+     * to match, into a <code>failure</code> element.
+     */
+    private static BidReportRecord nestHashes(BidReportRecord record) {
+        String kbide = record.getKbideReport().replaceFirst("(<jbidehash>[^<]*</jbidehash>)",
+                "<failedreports>$1</failedreports>");
+        String tz = record.getTzReport().replaceFirst("<kbidehash>[^<]*</kbidehash>",
+                "<failure sensor=\"tz\" severity=\"1\"><kbidehash>" + SyntheticReports.hash(kbide)
+                        + "</kbidehash></failure>");
+        return new BidReportRecord(record.getJbideReport(), kbide, tz, record.getTzSignature(),
+                record.getDateReceived());
+    }
+
+    /**
+     * Returns a copy of the specified record with its KBIDE report changed
+     * after its hash was embedded in the TZ report.
+     */
+    private static BidReportRecord tamperKbide(BidReportRecord record) {
+        String kbide = record.getKbideReport().replace("<time>", "<time>9");
+        return new BidReportRecord(record.getJbideReport(), kbide, record.getTzReport(), record.getTzSignature(),
+                record.getDateReceived());
+    }
+
+    @Test
+    public void nestedHashesAreCheckedByBothEngines() {
+        BidReportRecord status = new ReportGenerator(null).setSeverities(1, 3)
+                .statusRecord(BigInteger.TEN, "00000001");
+        BidReportRecord failure = new ReportGenerator(null).setFailureCount(3).failureRecord(4);
+
+        BidReportRecord nestedStatus = nestHashes(status);
+        BidReportRecord nestedFailure = nestHashes(failure);
+        assertAgree(statusReport(nestedStatus), statusReport(nestedStatus));
+        assertTrue(verify(statusReport(nestedStatus), BidParserEngine.PULL).startsWith("true|"));
+        assertAgree(failureReport(nestedFailure), failureReport(nestedFailure));
+        assertTrue(verify(failureReport(nestedFailure), BidParserEngine.PULL).startsWith("true|"));
+
+        // a KBIDE report which no longer matches the hash nested in the TZ report
+        BidReportRecord[] tampered = {tamperKbide(nestedStatus), tamperKbide(nestedFailure)};
+        for (BidParserEngine engine : BidParserEngine.values()) {
+            assertTrue(verify(statusReport(tampered[0]), engine).endsWith("BidHashMismatchException"));
+            assertTrue(verify(failureReport(tampered[1]), engine).endsWith("BidHashMismatchException"));
+        }
+
+        // a JBIDE report which no longer matches the hash nested in the KBIDE report
+        String jbide = nestedFailure.getJbideReport().replace("synthetic failure 4.1", "synthetic failure 4.9");
+        BidReportRecord tamperedJbide = new BidReportRecord(jbide, nestedFailure.getKbideReport(),
+                nestedFailure.getTzReport(), nestedFailure.getTzSignature());
+        for (BidParserEngine engine : BidParserEngine.values()) {
+            assertTrue(verify(failureReport(tamperedJbide), engine).endsWith("BidHashMismatchException"));
+        }
+    }
+
+    @Test
+    public void nestedDeviceFieldsAgree() {
+        BidReportRecord status = new ReportGenerator(null).setSeverities(1, 3)
+                .statusRecord(BigInteger.TEN, "00000001");
+        BidReportRecord nestedStatus = relink(status, status.getJbideReport().replace("<bidestatus>",
+                "<bidestatus>\n    <devicemodel>STV100-1</devicemodel>\n    <osversion>6.0.1</osversion>"));
+        String statusFields = verify(statusReport(nestedStatus), BidParserEngine.SAX);
+        assertTrue(statusFields, statusFields.startsWith("true|STV100-1|6.0.1|"));
+        assertAgree(statusReport(nestedStatus), statusReport(nestedStatus));
+
+        BidReportRecord failure = new ReportGenerator(null).setFailureCount(3).failureRecord(6);
+        String jbide = failure.getJbideReport()
+                .replace("<devicemodel>STV100-1</devicemodel>", "")
+                .replace("<osversion>6.0.1</osversion>", "")
+                .replace("</bidereport>", "  <bidestatus><devicemodel>STV100-1</devicemodel></bidestatus>\n"
+                        + "  <highsecuritytokens><osversion>6.0.1</osversion></highsecuritytokens>\n"
+                        + "</bidereport>");
+        BidReportRecord nestedFailure = relink(failure, jbide);
+        String failureFields = verify(failureReport(nestedFailure), BidParserEngine.SAX);
+        assertTrue(failureFields, failureFields.startsWith("true|STV100-1|6.0.1|"));
+        assertAgree(failureReport(nestedFailure), failureReport(nestedFailure));
+    }
+
+    @Test
+    public void helperVerifiesSignedReportsWithEitherEngine() throws Exception {
+        BidMemoryReportSource source = new BidMemoryReportSource();
+        source.setCertificate(pki.getBidCertificate().getEncoded());
+        ReportGenerator generator = new ReportGenerator(pki).setFailureCount(6);
+        BigInteger nonce = BigInteger.valueOf(0x5eed);
+        source.setStatusReport(generator.statusRecord(nonce, ReportGenerator.reportId(0)));
+        source.addFailureReport(ReportGenerator.reportId(0), generator.failureRecord(0));
+        BidHelperJvm helper = new BidHelperJvm(source, pki.trustAnchors());
+
+        String[] descriptions = new String[2];
+        for (BidParserEngine engine : BidParserEngine.values()) {
+            helper.setParserEngine(engine);
+            BidStatusReport status = helper.requestStatusReport(nonce);
+            helper.verifyStatusReport(status, nonce, true);
+            BidFailureReport failure = helper.requestFailureReport(ReportGenerator.reportId(0));
+            helper.verifyFailureReport(failure, true);
+            descriptions[engine.ordinal()] = describe(status) + '\n' + describe(failure);
+        }
+        assertEquals(descriptions[0], descriptions[1]);
+    }
+
+    @Test
+    public void verificationOrdersAgree() {
+        List<BidReportRecord> failureRecords = failureCorpus();
+        failureRecords.add(irregularFailureRecord());
+        failureRecords.add(chunkedFailureRecord());
+        BidReportRecord record = new ReportGenerator(null).setFailureCount(4).failureRecord(3);
+        failureRecords.add(new BidReportRecord(record.getJbideReport().replace("failure 3.1", "failure 3.9"),
+                record.getKbideReport(), record.getTzReport(), record.getTzSignature()));
+        failureRecords.add(relink(record, record.getJbideReport().replace("</bidereport>", "</bidereport")));
+        for (BidReportRecord failureRecord : failureRecords) {
+            assertEquals(verify(failureReport(failureRecord), BidParserEngine.SAX),
+                    verify(failureReport(failureRecord), BidParserEngine.SAX, BidVerificationOrder.CHEAPEST_FIRST));
+        }
+        for (BidReportRecord statusRecord : statusCorpus()) {
+            assertEquals(verify(statusReport(statusRecord), BidParserEngine.SAX),
+                    verify(statusReport(statusRecord), BidParserEngine.SAX, BidVerificationOrder.CHEAPEST_FIRST));
+        }
+    }
+
+    @Test
+    public void cheapestFirstRejectsBeforeParsing() {
+        BidReportRecord record = new ReportGenerator(null).setFailureCount(4).failureRecord(3);
+
+        // JBIDE no longer matches its hash
+        BidFailureReport tampered = failureReport(new BidReportRecord(
+                record.getJbideReport().replace("failure 3.1", "failure 3.9"),
+                record.getKbideReport(), record.getTzReport(), record.getTzSignature()));
+        verify(tampered, BidParserEngine.SAX, BidVerificationOrder.CHEAPEST_FIRST);
+        assertEquals(BidVerificationStage.HASH_LINKS, tampered.getRejectedStage());
+        assertEquals(-1, tampered.getStageNanos(BidVerificationStage.SIGNATURE));
+        assertEquals(-1, tampered.getStageNanos(BidVerificationStage.FIELDS));
+
+        // truncated TZ report
+        String tz = record.getTzReport();
+        BidFailureReport truncated = failureReport(new BidReportRecord(record.getJbideReport(),
+                record.getKbideReport(), tz.substring(0, tz.length() / 2), record.getTzSignature()));
+        assertTrue(verify(truncated, BidParserEngine.SAX, BidVerificationOrder.CHEAPEST_FIRST)
+                .endsWith("IOException"));
+        assertEquals(BidVerificationStage.STRUCTURE, truncated.getRejectedStage());
+        assertEquals(-1, truncated.getStageNanos(BidVerificationStage.HASH_LINKS));
+
+        // verified, with every stage timed
+        BidFailureReport report = failureReport(record);
+        verify(report, BidParserEngine.SAX, BidVerificationOrder.CHEAPEST_FIRST);
+        assertTrue(report.isVerified());
+        assertNull(report.getRejectedStage());
+        for (BidVerificationStage stage : BidVerificationStage.values()) {
+            assertTrue(report.getStageNanos(stage) >= 0);
+        }
+    }
+
+    @Test
+    public void helperRecordsRejectedStages() throws Exception {
+        BidMemoryReportSource source = new BidMemoryReportSource();
+        source.setCertificate(pki.getBidCertificate().getEncoded());
+        BidReportRecord record = new ReportGenerator(pki).setFailureCount(6).failureRecord(0);
+        byte[] signature = record.getTzSignature().clone();
+        signature[signature.length - 1] ^= 1;
+        source.addFailureReport(ReportGenerator.reportId(0), record);
+        source.addFailureReport(ReportGenerator.reportId(1), new BidReportRecord(record.getJbideReport(),
+                record.getKbideReport(), record.getTzReport(), signature));
+        source.addFailureReport(ReportGenerator.reportId(2), new BidReportRecord(record.getJbideReport(),
+                record.getKbideReport(), record.getTzReport(), Arrays.copyOf(signature, 16)));
+        BidHelperJvm helper = new BidHelperJvm(source, pki.trustAnchors());
+        helper.setVerificationOrder(BidVerificationOrder.CHEAPEST_FIRST);
+
+        BidVerificationStage[] expected = {null, BidVerificationStage.SIGNATURE, BidVerificationStage.SIGNATURE};
+        for (int i = 0; i < expected.length; i++) {
+            BidFailureReport report = helper.requestFailureReport(ReportGenerator.reportId(i));
+            try {
+                helper.verifyFailureReport(report, true);
+            } catch (Exception e) {
+                // the rejection is recorded on the report
+            }
+            assertEquals(expected[i], report.getRejectedStage());
+        }
+
+        BidVerificationStats stats = helper.getVerificationStats();
+        assertEquals(3, stats.getRunCount(BidVerificationStage.HASH_LINKS));
+        assertEquals(3, stats.getRunCount(BidVerificationStage.SIGNATURE));
+        assertEquals(1, stats.getRunCount(BidVerificationStage.FIELDS));
+        assertEquals(2, stats.getRejectionCount(BidVerificationStage.SIGNATURE));
+
+        stats.reset();
+        BidVerificationResult[] results = helper.verifyFailureReports(helper.requestAllFailureReports(), true);
+        assertEquals(3, results.length);
+        assertEquals(3, stats.getRunCount(BidVerificationStage.SIGNATURE));
+        assertEquals(1, stats.getRunCount(BidVerificationStage.FIELDS));
+        assertEquals(2, stats.getRejectionCount(BidVerificationStage.SIGNATURE));
+    }
+
+    @Test
+    public void hostileReportsAreRefused() {
+        BidReportRecord record = new ReportGenerator(null).setFailureCount(3).failureRecord(5);
+        String jbide = record.getJbideReport();
+        String body = jbide.substring(jbide.indexOf("<bidereport>"));
+
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            deep.append("<extra>");
+        }
+        for (int i = 0; i < 1000; i++) {
+            deep.append("</extra>");
+        }
+        StringBuilder failures = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            failures.append("<failure sensor=\"many\" severity=\"1\">d</failure>");
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            text.append('x');
+        }
+        BidParserLimits limits = new BidParserLimits().setMaxFailures(10).setMaxTextLength(1000);
+
+        String[] hostile = {
+                "<!DOCTYPE bidereport [<!ENTITY a \"aaaaaaaaaa\"><!ENTITY b \"&a;&a;&a;&a;&a;&a;&a;&a;\">]>\n"
+                        + body.replace("<osversion>6.0.1</osversion>", "<osversion>&b;</osversion>"),
+                "<!DOCTYPE bidereport SYSTEM \"file:///etc/passwd\">\n" + body,
+                jbide.replace("</bidereport>", deep + "</bidereport>"),
+                jbide.replace("</bidereport>", "<failure sensor=\"deep\" severity=\"1\">" + deep + "</failure>"
+                        + "</bidereport>"),
+                jbide.replace("</bidereport>", failures + "</bidereport>"),
+                jbide.replace("<osversion>6.0.1</osversion>", "<osversion>" + text + "</osversion>")
+        };
+        for (String xml : hostile) {
+            BidReportRecord relinked = relink(record, xml);
+            for (BidVerificationOrder order : BidVerificationOrder.values()) {
+                for (BidParserEngine engine : BidParserEngine.values()) {
+                    assertEquals(xml, "java.io.IOException", verify(failureReport(relinked), engine, order, limits));
+                }
+            }
+        }
+
+        BidParserLimits shortReports = new BidParserLimits().setMaxReportLength(jbide.length() - 1);
+        for (BidVerificationOrder order : BidVerificationOrder.values()) {
+            for (BidParserEngine engine : BidParserEngine.values()) {
+                assertEquals("java.io.IOException", verify(failureReport(record), engine, order, shortReports));
+                assertTrue(verify(failureReport(record), engine, order, limits).startsWith("true|"));
+            }
+        }
+    }
+
+    @Test
+    public void streamedReportsVerifyLikeStrings() throws Exception {
+        BidReportRecord record = new ReportGenerator(null).setFailureCount(4).setXmlSize(20000).failureRecord(11);
+        String jbide = record.getJbideReport()
+                .replace("<osversion>6.0.1</osversion>", "<osversion>6.0.1 \u00e9\u20ac\ud83d\ude00</osversion>")
+                .replace("</bidereport>",
+                        "  <failure sensor=\"\u00fc\" severity=\"2\">\u00e9 \u20ac \ud83d\ude00</failure>\n</bidereport>");
+        BidReportRecord strings = relink(record, jbide);
+        BidReportRecord streamed = streamed(strings);
+        assertEquals(jbide, streamed.getJbideReport());
+
+        for (BidVerificationOrder order : BidVerificationOrder.values()) {
+            for (BidParserEngine engine : BidParserEngine.values()) {
+                String expected = verify(failureReport(strings), engine, order);
+                assertTrue(expected, expected.contains("|6.0.1 \u00e9\u20ac\ud83d\ude00|"));
+                assertEquals(expected, verify(failureReport(streamed), engine, order));
+            }
+        }
+
+        try {
+            BidReportBody.read(new ByteArrayInputStream(new byte[100]), 99);
+            fail("a report longer than the limit was read");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // the signature is checked over the streamed bytes
+        BidMemoryReportSource source = new BidMemoryReportSource();
+        source.setCertificate(pki.getBidCertificate().getEncoded());
+        BidReportRecord signed = new ReportGenerator(pki).setFailureCount(3).failureRecord(1);
+        source.addFailureReport(ReportGenerator.reportId(1), streamed(signed));
+        BidHelperJvm helper = new BidHelperJvm(source, pki.trustAnchors());
+        BidFailureReport report = helper.requestFailureReport(ReportGenerator.reportId(1));
+        helper.verifyFailureReport(report, true);
+        assertTrue(report.isVerified());
+        assertEquals(signed.getTzReport(), report.getTzReport());
+    }
+}
@@ -0,0 +1,136 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that report bodies are read up to their limit, and that a TZ
+ * report is verified in place from the range of its array it fills, or
+ * passed as an array of its own to verifiers other than the Android one.
+ */
+public class ReportBodyTest {
+
+    private static TestPki pki;
+
+    @BeforeClass
+    public static void createPki() throws Exception {
+        pki = new TestPki(1);
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) ('a' + i % 26);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void readGrowsUpToLimit() throws IOException {
+        byte[] report = bytes(100000);
+        for (int maxLength : new int[]{report.length, report.length + 1, Integer.MAX_VALUE}) {
+            BidReportBody body = BidReportBody.read(new ByteArrayInputStream(report), maxLength);
+            assertEquals(report.length, body.length());
+            assertArrayEquals(report, body.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        try {
+            BidReportBody.read(new ByteArrayInputStream(report), report.length - 1);
+            fail("read past the limit");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void cursorTextVerifiesInPlace() throws Exception {
+        byte[] tz = new ReportGenerator(pki).failureRecord(0).getTzReport().getBytes(StandardCharsets.UTF_8);
+        byte[] signature = pki.sign(tz);
+        BidCertificateVerifierAndroid verifier = new BidCertificateVerifierAndroid(pki.trustAnchors());
+        verifier.setCertificate(pki.getBidCertificate());
+
+        // the field text ends with a NUL, which is not part of the signed report
+        byte[] field = Arrays.copyOf(tz, tz.length + 1);
+        BidReportBody body = BidReportBody.fromCursorText(field);
+        assertEquals(tz.length, body.length());
+        assertTrue(body.verifySignature(verifier, signature));
+        assertTrue(verifier.verifyReport(tz, signature));
+
+        // a range of the same bytes shifted by one is a different report
+        byte[] shifted = new byte[tz.length + 2];
+        System.arraycopy(tz, 0, shifted, 1, tz.length);
+        assertTrue(verifier.verifyReport(shifted, 1, tz.length, signature));
+        assertRejected(verifier, shifted, 0, tz.length, signature);
+        assertRejected(verifier, field, 0, field.length, signature);
+
+        try {
+            verifier.verifyReport(tz, 1, tz.length, signature);
+            fail("verified a range past the array");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    @Test
+    public void otherVerifiersGetTheReportBytes() throws Exception {
+        final byte[] tz = new ReportGenerator(null).failureRecord(0).getTzReport().getBytes(StandardCharsets.UTF_8);
+        final byte[] signature = {1, 2, 3};
+        final int[] calls = new int[1];
+        BidCertificateVerifier verifier = new BidCertificateVerifier() {
+            @Override
+            public void setCertificate(X509Certificate certificate) {
+            }
+
+            @Override
+            public void verifyCertificateChain() {
+            }
+
+            @Override
+            public boolean verifyReport(byte[] tzReport, byte[] sig) {
+                calls[0]++;
+                return Arrays.equals(tz, tzReport) && sig == signature;
+            }
+        };
+
+        // a cursor field, whose NUL terminator must not reach the verifier
+        assertTrue(BidReportBody.fromCursorText(Arrays.copyOf(tz, tz.length + 1)).verifySignature(verifier, signature));
+        assertTrue(BidReportBody.fromUtf8(tz).verifySignature(verifier, signature));
+        assertEquals(2, calls[0]);
+    }
+
+    /**
+     * Checks that the range is rejected, by an outcome of <code>false</code>
+     * or, for a digest mismatch, by an exception.
+     */
+    private static void assertRejected(BidCertificateVerifierAndroid verifier, byte[] bytes, int offset,
+                                       int length, byte[] signature) {
+        try {
+            assertFalse(verifier.verifyReport(bytes, offset, length, signature));
+        } catch (CertificateException expected) {
+        }
+    }
+}
@@ -0,0 +1,444 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks how many status reports the posture cache, the coalescer and the
+ * async helper request, and which report each caller receives, while the
+ * requests are held open by the test.
+ */
+public class StatusCoalescingTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private static TestPki pki;
+
+    private GatedSource source;
+    private BidHelperJvm helper;
+
+    @BeforeClass
+    public static void createPki() throws Exception {
+        pki = new TestPki(1);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        source = new GatedSource();
+        helper = new BidHelperJvm(source, pki.trustAnchors());
+    }
+
+    @After
+    public void tearDown() {
+        source.open();
+    }
+
+    @Test
+    public void cachedStatusNeverFetchesOnCallingThread() throws Exception {
+        source.open();
+        BidPostureCache cache = new BidPostureCache(helper, TimeUnit.MINUTES.toMillis(1), true);
+        BidStatusReport cached = cache.getStatus();
+        assertEquals(1, source.getFetchCount());
+
+        QueueExecutor executor = new QueueExecutor();
+        BidHelperAsync async = new BidHelperAsync(helper, executor);
+        BidFuture<BidStatusReport> future = async.getStatusAsync(cache);
+        assertTrue(future.isDone());
+        assertSame(cached, future.get());
+        assertEquals(0, executor.tasks.size());
+
+        helper.fireReportInserted();
+        future = async.getStatusAsync(cache);
+        assertFalse(future.isDone());
+        assertEquals(1, source.getFetchCount());
+        assertEquals(1, executor.tasks.size());
+
+        executor.runAll();
+        assertTrue(future.isDone());
+        assertNotSame(cached, future.get());
+        assertEquals(2, source.getFetchCount());
+        cache.destroy();
+    }
+
+    @Test
+    public void invalidationDuringFetchIsNotCached() throws Exception {
+        BidPostureCache cache = new BidPostureCache(helper, TimeUnit.MINUTES.toMillis(1), true);
+        Caller a = new Caller(statusOf(cache));
+        a.start();
+        source.awaitRequest();
+        helper.fireReportInserted();
+        source.release();
+        BidStatusReport fetched = a.getReport();
+        assertNull(cache.peek());
+
+        // the next call fetches again and caches that report
+        source.release();
+        BidStatusReport refetched = cache.getStatus();
+        assertNotSame(fetched, refetched);
+        assertSame(refetched, cache.peek());
+        assertSame(refetched, cache.getStatus());
+        assertEquals(2, source.getFetchCount());
+        cache.destroy();
+    }
+
+    @Test
+    public void missesDuringFetchShareNextFetchAndCacheIt() throws Exception {
+        BidPostureCache cache = new BidPostureCache(helper, TimeUnit.MINUTES.toMillis(1), true);
+        Caller a = new Caller(statusOf(cache));
+        a.start();
+        source.awaitRequest();
+        Caller b = new Caller(statusOf(cache));
+        Caller c = new Caller(statusOf(cache));
+        b.start();
+        c.start();
+        b.awaitCoalescing();
+        c.awaitCoalescing();
+        assertEquals(1, source.getFetchCount());
+
+        source.release();
+        BidStatusReport first = a.getReport();
+        source.awaitRequest();
+        source.release();
+        BidStatusReport second = b.getReport();
+        assertSame(second, c.getReport());
+        assertNotSame(first, second);
+        assertEquals(2, source.getFetchCount());
+
+        // the later report replaces the first one in the cache
+        assertSame(second, cache.peek());
+        assertSame(second, cache.getStatus());
+        assertEquals(2, source.getFetchCount());
+        cache.destroy();
+    }
+
+    @Test
+    public void invalidationWhileWaitingIsNotCached() throws Exception {
+        BidPostureCache cache = new BidPostureCache(helper, TimeUnit.MINUTES.toMillis(1), true);
+        Caller a = new Caller(statusOf(cache));
+        a.start();
+        source.awaitRequest();
+        Caller b = new Caller(statusOf(cache));
+        b.start();
+        b.awaitCoalescing();
+        helper.fireReportInserted();
+
+        // b's report is requested after the invalidation, but b looked up
+        // the cache before it, so neither report is cached
+        source.release();
+        BidStatusReport first = a.getReport();
+        source.awaitRequest();
+        source.release();
+        BidStatusReport second = b.getReport();
+        assertNotSame(first, second);
+        assertNull(cache.peek());
+
+        source.release();
+        BidStatusReport third = cache.getStatus();
+        assertNotSame(second, third);
+        assertSame(third, cache.peek());
+        assertEquals(3, source.getFetchCount());
+        cache.destroy();
+    }
+
+    @Test
+    public void callersDuringFlightWaitForNextFlight() throws Exception {
+        BidStatusCoalescer coalescer = new BidStatusCoalescer(helper, true);
+        Caller a = new Caller(statusOf(coalescer));
+        a.start();
+        source.awaitRequest();
+
+        // b leads the next flight but waits for a's to land; c joins it
+        Caller b = new Caller(statusOf(coalescer));
+        Caller c = new Caller(statusOf(coalescer));
+        b.start();
+        c.start();
+        b.awaitCoalescing();
+        c.awaitCoalescing();
+        assertEquals(1, source.getFetchCount());
+
+        source.release();
+        BidStatusReport first = a.getReport();
+        source.awaitRequest();
+        assertEquals(2, source.getFetchCount());
+
+        // d arrives during b's flight, so it waits for a flight of its own
+        Caller d = new Caller(statusOf(coalescer));
+        d.start();
+        d.awaitCoalescing();
+        source.release();
+        BidStatusReport second = b.getReport();
+        assertSame(second, c.getReport());
+        assertNotSame(first, second);
+
+        source.awaitRequest();
+        source.release();
+        BidStatusReport third = d.getReport();
+        assertNotSame(second, third);
+        assertEquals(3, source.getFetchCount());
+        assertFalse(first.getNonce().equals(second.getNonce()));
+        assertFalse(second.getNonce().equals(third.getNonce()));
+    }
+
+    @Test
+    public void failedFlightIsSharedAndNextFlightRetries() throws Exception {
+        BidStatusCoalescer coalescer = new BidStatusCoalescer(helper, true);
+        Caller a = new Caller(statusOf(coalescer));
+        a.start();
+        source.awaitRequest();
+        Caller b = new Caller(statusOf(coalescer));
+        Caller c = new Caller(statusOf(coalescer));
+        b.start();
+        c.start();
+        b.awaitCoalescing();
+        c.awaitCoalescing();
+
+        source.release();
+        BidStatusReport first = a.getReport();
+        source.awaitRequest();
+        source.failNext();
+        source.release();
+        Exception bFailure = b.getException();
+        assertTrue(bFailure instanceof BidRequestException);
+        assertSame(bFailure, c.getException());
+
+        source.release();
+        BidStatusReport retried = coalescer.getStatus();
+        assertNotSame(first, retried);
+        assertEquals(3, source.getFetchCount());
+    }
+
+    private static Callable<BidStatusReport> statusOf(final BidStatusCoalescer coalescer) {
+        return new Callable<BidStatusReport>() {
+            @Override
+            public BidStatusReport call() throws Exception {
+                return coalescer.getStatus();
+            }
+        };
+    }
+
+    private static Callable<BidStatusReport> statusOf(final BidPostureCache cache) {
+        return new Callable<BidStatusReport>() {
+            @Override
+            public BidStatusReport call() throws Exception {
+                return cache.getStatus();
+            }
+        };
+    }
+
+    /**
+     * A thread which asks for a status report and keeps the outcome.
+     */
+    private static final class Caller extends Thread {
+        private final Callable<BidStatusReport> call;
+        private volatile BidStatusReport report;
+        private volatile Exception exception;
+
+        Caller(Callable<BidStatusReport> call) {
+            this.call = call;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                report = call.call();
+            } catch (Exception e) {
+                exception = e;
+            }
+        }
+
+        /**
+         * Waits until this caller waits in the coalescer for a flight.
+         */
+        void awaitCoalescing() throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            while (!isCoalescing()) {
+                if (System.nanoTime() - deadline > 0) {
+                    fail("caller not waiting for a flight: " + getState());
+                }
+                Thread.sleep(1);
+            }
+        }
+
+        private boolean isCoalescing() {
+            if (getState() != State.WAITING) {
+                return false;
+            }
+            boolean inCoalescer = false;
+            for (StackTraceElement frame : getStackTrace()) {
+                if (frame.getClassName().equals(GatedSource.class.getName())) {
+                    return false;
+                }
+                inCoalescer |= frame.getClassName().equals(BidStatusCoalescer.class.getName());
+            }
+            return inCoalescer;
+        }
+
+        /**
+         * Waits for the call to return and returns its report, or throws its exception.
+         */
+        BidStatusReport getReport() throws Exception {
+            join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            if (isAlive()) {
+                fail("caller did not return");
+            }
+            if (exception != null) {
+                throw exception;
+            }
+            return report;
+        }
+
+        /**
+         * Waits for the call to return and returns the exception it threw.
+         */
+        Exception getException() throws InterruptedException {
+            join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            if (isAlive()) {
+                fail("caller did not return");
+            }
+            if (exception == null) {
+                fail("caller did not fail");
+            }
+            return exception;
+        }
+    }
+
+    /**
+     * An executor which queues its tasks until the test runs them.
+     */
+    private static final class QueueExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    /**
+     * A source of signed status reports which holds each status request
+     * until the test lets it through.
+     */
+    private static final class GatedSource implements BidReportSource {
+        private final ReportGenerator generator = new ReportGenerator(pki);
+        private final Semaphore entered = new Semaphore(0);
+        private final Semaphore gate = new Semaphore(0);
+        private int fetchCount;
+        private boolean failNext;
+
+        /**
+         * Lets every current and future request through.
+         */
+        void open() {
+            gate.release(Integer.MAX_VALUE / 2);
+        }
+
+        /**
+         * Lets one request through, once it arrives.
+         */
+        void release() {
+            gate.release();
+        }
+
+        /**
+         * Waits until a request has arrived, without letting it through.
+         */
+        void awaitRequest() throws InterruptedException {
+            if (!entered.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                fail("no status request");
+            }
+        }
+
+        /**
+         * Makes the next request to be let through fail.
+         */
+        synchronized void failNext() {
+            failNext = true;
+        }
+
+        synchronized int getFetchCount() {
+            return fetchCount;
+        }
+
+        @Override
+        public BidReportRecord queryStatusReport(BigInteger nonce) throws BidRequestException {
+            BidReportRecord record;
+            synchronized (this) {
+                fetchCount++;
+                record = generator.statusRecord(nonce);
+            }
+            entered.release();
+            try {
+                if (!gate.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    throw new BidRequestException("gate not opened");
+                }
+            } catch (InterruptedException e) {
+                throw new BidRequestException(e);
+            }
+            synchronized (this) {
+                if (failNext) {
+                    failNext = false;
+                    throw new BidRequestException("failed as told");
+                }
+            }
+            return record;
+        }
+
+        @Override
+        public BidReportRecord queryFailureReport(String reportId) throws BidRequestException {
+            throw new BidRequestException("no failure reports");
+        }
+
+        @Override
+        public List<BidReportRecord> queryFailureReports(long dateReceived, int offset, int limit) {
+            return new ArrayList<BidReportRecord>();
+        }
+
+        @Override
+        public byte[] queryCertificate() throws BidRequestException {
+            try {
+                return pki.getBidCertificate().getEncoded();
+            } catch (java.security.cert.CertificateEncodingException e) {
+                throw new BidRequestException(e);
+            }
+        }
+    }
+}
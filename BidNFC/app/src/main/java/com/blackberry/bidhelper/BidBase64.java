@@ -0,0 +1,92 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+/**
+ * A pure Java Base64 decoder for platforms which lack one, such as
+ * desktop Java before version 8.
+ * <p/>
+ * Like <code>android.util.Base64</code> with its default flags, the decoder
+ * accepts the standard alphabet, skips whitespace and does not require
+ * padding.
+ */
+final class BidBase64 implements Base64Decoder {
+
+    /**
+     * A shared instance; the decoder has no state.
+     */
+    static final BidBase64 DECODER = new BidBase64();
+
+    private static final int[] VALUES = new int[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = -1;
+        }
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            VALUES[alphabet.charAt(i)] = i;
+        }
+    }
+
+    private BidBase64() {
+    }
+
+    @Override
+    public byte[] decode(String s) {
+        byte[] out = new byte[s.length() * 3 / 4];
+        int length = 0;
+        int bits = 0;
+        int count = 0;
+        boolean padded = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                continue;
+            }
+            if (c == '=') {
+                padded = true;
+                continue;
+            }
+            int value = c < VALUES.length ? VALUES[c] : -1;
+            if (value < 0 || padded) {
+                return null;
+            }
+            bits = (bits << 6) | value;
+            if (++count == 4) {
+                out[length++] = (byte) (bits >> 16);
+                out[length++] = (byte) (bits >> 8);
+                out[length++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count == 1) {
+            return null;
+        } else if (count == 2) {
+            out[length++] = (byte) (bits >> 4);
+        } else if (count == 3) {
+            out[length++] = (byte) (bits >> 10);
+            out[length++] = (byte) (bits >> 2);
+        }
+
+        if (length == out.length) {
+            return out;
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(out, 0, result, 0, length);
+        return result;
+    }
+}
@@ -0,0 +1,37 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+/**
+ * A callback for the completion of a <code>BidFuture</code>.
+ *
+ * @param <V> the type of the result.
+ */
+public interface BidCallback<V> {
+    /**
+     * Handles the successful completion of the operation.
+     *
+     * @param result the result of the operation.
+     */
+    public void onSuccess(V result);
+
+    /**
+     * Handles the failure of the operation. If the operation was cancelled,
+     * the exception is a <code>java.util.concurrent.CancellationException</code>.
+     *
+     * @param e the exception which caused the operation to fail.
+     */
+    public void onFailure(Exception e);
+}
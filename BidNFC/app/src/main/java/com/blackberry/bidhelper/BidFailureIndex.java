@@ -0,0 +1,457 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * An in-memory inverted index of the failures in verified failure reports,
+ * by sensor name and by severity, for queries such as "which reports saw a
+ * failure from sensor X at severity 3 or above" without scanning every
+ * report.
+ * <p/>
+ * Each failure is identified by a posting, the position of its report in
+ * the order reports were added and its index in <code>getFailures()</code>.
+ * The index keeps a posting list for each sensor name and for each
+ * severity level; as reports are only ever added at the end, every list is
+ * kept sorted for free, and queries intersect and merge the lists without
+ * sorting. Sensor names are interned, so the index holds each name once
+ * however many failures it has, and the reports themselves are not kept.
+ * <p/>
+ * Reports are added one at a time with <code>add()</code>, for example as
+ * <code>BidFailureReportSync</code> verifies them. All methods are
+ * thread-safe.
+ */
+public final class BidFailureIndex {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Map<String, Integer> reportOrdinals = new HashMap<String, Integer>();
+    private final List<String> reportIds = new ArrayList<String>();
+    private final Map<String, Integer> sensorIds = new HashMap<String, Integer>();
+    private final List<String> sensorNames = new ArrayList<String>();
+    private final List<Postings> bySensor = new ArrayList<Postings>();
+    private final NavigableMap<Integer, Postings> bySeverity = new TreeMap<Integer, Postings>();
+    // the failures of report i are at firstFailure[i] onwards in failureSensors and severities
+    private int[] firstFailure = new int[INITIAL_CAPACITY];
+    private int[] failureSensors = new int[INITIAL_CAPACITY];
+    private int[] severities = new int[INITIAL_CAPACITY];
+    private int failureCount;
+
+    /**
+     * A failure found by a query.
+     */
+    public static final class Match {
+        private final String reportId;
+        private final int failureIndex;
+        private final String sensorName;
+        private final int severity;
+
+        Match(String reportId, int failureIndex, String sensorName, int severity) {
+            this.reportId = reportId;
+            this.failureIndex = failureIndex;
+            this.sensorName = sensorName;
+            this.severity = severity;
+        }
+
+        /**
+         * Returns the ID of the report of the failure.
+         *
+         * @return the ID of the report of the failure.
+         */
+        public String getReportId() {
+            return reportId;
+        }
+
+        /**
+         * Returns the index of the failure in the failures of its report.
+         *
+         * @return the index of the failure in <code>BidFailureReport.getFailures()</code>.
+         */
+        public int getFailureIndex() {
+            return failureIndex;
+        }
+
+        /**
+         * Returns the sensor name of the failure.
+         *
+         * @return the sensor name of the failure.
+         */
+        public String getSensorName() {
+            return sensorName;
+        }
+
+        /**
+         * Returns the severity of the failure.
+         *
+         * @return the severity of the failure.
+         */
+        public int getSeverity() {
+            return severity;
+        }
+    }
+
+    /**
+     * A growable, sorted list of postings, each the report ordinal in the
+     * high 32 bits and the failure index in the low 32 bits.
+     */
+    private static final class Postings {
+        long[] items = new long[INITIAL_CAPACITY];
+        int size;
+
+        void add(long posting) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = posting;
+        }
+    }
+
+    private static long posting(int reportOrdinal, int failureIndex) {
+        return (long) reportOrdinal << 32 | failureIndex;
+    }
+
+    private static int reportOrdinal(long posting) {
+        return (int) (posting >>> 32);
+    }
+
+    private static int failureIndex(long posting) {
+        return (int) posting;
+    }
+
+    /**
+     * Adds the failures of the specified verified report to the index,
+     * unless a report with the same ID has already been added.
+     *
+     * @param report the verified report.
+     * @return <code>true</code> if the report was added, <code>false</code> if already indexed.
+     * @throws java.lang.IllegalStateException if the report has not been verified.
+     */
+    public synchronized boolean add(BidFailureReport report) {
+        String id = report.getId();
+        if (reportOrdinals.containsKey(id)) {
+            return false;
+        }
+        BidFailure[] failures = report.getFailures();
+        int ordinal = reportIds.size();
+        reportOrdinals.put(id, ordinal);
+        reportIds.add(id);
+
+        if (ordinal + 1 >= firstFailure.length) {
+            firstFailure = Arrays.copyOf(firstFailure, firstFailure.length * 2);
+        }
+        if (failureCount + failures.length > severities.length) {
+            int capacity = Math.max(severities.length * 2, failureCount + failures.length);
+            failureSensors = Arrays.copyOf(failureSensors, capacity);
+            severities = Arrays.copyOf(severities, capacity);
+        }
+        firstFailure[ordinal] = failureCount;
+        for (int i = 0; i < failures.length; i++) {
+            long posting = posting(ordinal, i);
+            int severity = failures[i].getSeverity();
+            int sensorId = internSensor(failures[i].getSensorName());
+            bySensor.get(sensorId).add(posting);
+            Postings postings = bySeverity.get(severity);
+            if (postings == null) {
+                postings = new Postings();
+                bySeverity.put(severity, postings);
+            }
+            postings.add(posting);
+            failureSensors[failureCount] = sensorId;
+            severities[failureCount++] = severity;
+        }
+        firstFailure[ordinal + 1] = failureCount;
+        return true;
+    }
+
+    /**
+     * Returns the ID of the specified sensor name, assigning one if new.
+     */
+    private int internSensor(String sensorName) {
+        Integer sensorId = sensorIds.get(sensorName);
+        if (sensorId == null) {
+            sensorId = sensorNames.size();
+            sensorIds.put(sensorName, sensorId);
+            sensorNames.add(sensorName);
+            bySensor.add(new Postings());
+        }
+        return sensorId;
+    }
+
+    /**
+     * Returns the number of reports indexed.
+     *
+     * @return the number of reports indexed.
+     */
+    public synchronized int getReportCount() {
+        return reportIds.size();
+    }
+
+    /**
+     * Returns the number of failures indexed.
+     *
+     * @return the number of failures indexed.
+     */
+    public synchronized int getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Returns <code>true</code> if a report with the specified ID has been added.
+     *
+     * @param reportId the report ID.
+     * @return <code>true</code> if the report has been added.
+     */
+    public synchronized boolean contains(String reportId) {
+        return reportOrdinals.containsKey(reportId);
+    }
+
+    /**
+     * Returns the sensor names seen so far, in the order they were first seen.
+     *
+     * @return the sensor names seen so far.
+     */
+    public synchronized List<String> getSensorNames() {
+        return new ArrayList<String>(sensorNames);
+    }
+
+    /**
+     * Returns the number of failures from the specified sensor.
+     *
+     * @param sensorName the sensor name.
+     * @return the number of failures from the sensor.
+     */
+    public synchronized int getFailureCount(String sensorName) {
+        Integer sensorId = sensorIds.get(sensorName);
+        return sensorId != null ? bySensor.get(sensorId).size : 0;
+    }
+
+    /**
+     * Returns the failures from the specified sensor, or from any sensor,
+     * with a severity in the specified range, in the order the reports were
+     * added.
+     *
+     * @param sensorName  the sensor name, or null for any sensor.
+     * @param minSeverity the lowest severity, inclusive.
+     * @param maxSeverity the highest severity, inclusive.
+     * @return the matching failures.
+     */
+    public synchronized List<Match> findFailures(String sensorName, int minSeverity, int maxSeverity) {
+        Postings postings = query(sensorName, minSeverity, maxSeverity);
+        List<Match> matches = new ArrayList<Match>(postings.size);
+        for (int i = 0; i < postings.size; i++) {
+            long posting = postings.items[i];
+            int ordinal = reportOrdinal(posting);
+            int failure = firstFailure[ordinal] + failureIndex(posting);
+            matches.add(new Match(reportIds.get(ordinal), failureIndex(posting),
+                    sensorNames.get(failureSensors[failure]), severities[failure]));
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the IDs of the reports with a failure from the specified
+     * sensor, or from any sensor, with a severity in the specified range,
+     * in the order the reports were added.
+     *
+     * @param sensorName  the sensor name, or null for any sensor.
+     * @param minSeverity the lowest severity, inclusive.
+     * @param maxSeverity the highest severity, inclusive.
+     * @return the IDs of the matching reports.
+     */
+    public synchronized List<String> findReports(String sensorName, int minSeverity, int maxSeverity) {
+        int[] ordinals = toReportOrdinals(query(sensorName, minSeverity, maxSeverity));
+        return toReportIds(ordinals, ordinals.length);
+    }
+
+    /**
+     * Returns the IDs of the reports with, for every one of the specified
+     * sensors, a failure from that sensor with a severity in the specified
+     * range, in the order the reports were added.
+     *
+     * @param sensorNames the sensor names.
+     * @param minSeverity the lowest severity, inclusive.
+     * @param maxSeverity the highest severity, inclusive.
+     * @return the IDs of the matching reports.
+     */
+    public synchronized List<String> findReportsWithAll(Collection<String> sensorNames,
+                                                        int minSeverity, int maxSeverity) {
+        int[] result = null;
+        int resultSize = 0;
+        for (String sensorName : sensorNames) {
+            int[] ordinals = toReportOrdinals(query(sensorName, minSeverity, maxSeverity));
+            if (result == null) {
+                result = ordinals;
+                resultSize = ordinals.length;
+            } else {
+                resultSize = intersect(result, resultSize, ordinals, ordinals.length);
+            }
+            if (resultSize == 0) {
+                break;
+            }
+        }
+        return result != null ? toReportIds(result, resultSize) : new ArrayList<String>();
+    }
+
+    /**
+     * Forgets all reports.
+     */
+    public synchronized void clear() {
+        reportOrdinals.clear();
+        reportIds.clear();
+        sensorIds.clear();
+        sensorNames.clear();
+        bySensor.clear();
+        bySeverity.clear();
+        firstFailure = new int[INITIAL_CAPACITY];
+        failureSensors = new int[INITIAL_CAPACITY];
+        severities = new int[INITIAL_CAPACITY];
+        failureCount = 0;
+    }
+
+    /**
+     * Returns the postings of the failures from the specified sensor, or
+     * from any sensor, with a severity in the specified range.
+     */
+    private Postings query(String sensorName, int minSeverity, int maxSeverity) {
+        Postings result = new Postings();
+        if (minSeverity > maxSeverity) {
+            return result;
+        }
+        Collection<Postings> range = bySeverity.subMap(minSeverity, true, maxSeverity, true).values();
+        if (sensorName == null) {
+            mergeInto(range, result);
+            return result;
+        }
+
+        Integer sensorId = sensorIds.get(sensorName);
+        if (sensorId == null) {
+            return result;
+        }
+        Postings sensor = bySensor.get(sensorId);
+        int rangeSize = 0;
+        for (Postings postings : range) {
+            rangeSize += postings.size;
+        }
+        if (sensor.size <= rangeSize) {
+            // cheaper to look up the severity of each failure of the sensor
+            for (int i = 0; i < sensor.size; i++) {
+                long posting = sensor.items[i];
+                int severity = severities[firstFailure[reportOrdinal(posting)] + failureIndex(posting)];
+                if (severity >= minSeverity && severity <= maxSeverity) {
+                    result.add(posting);
+                }
+            }
+        } else {
+            Postings severity = new Postings();
+            mergeInto(range, severity);
+            int i = 0;
+            int j = 0;
+            while (i < sensor.size && j < severity.size) {
+                long a = sensor.items[i];
+                long b = severity.items[j];
+                if (a == b) {
+                    result.add(a);
+                    i++;
+                    j++;
+                } else if (a < b) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merges the specified sorted, disjoint posting lists into one sorted list.
+     */
+    private static void mergeInto(Collection<Postings> lists, Postings result) {
+        for (Postings postings : lists) {
+            if (result.size == 0) {
+                result.items = Arrays.copyOf(postings.items, Math.max(postings.size, INITIAL_CAPACITY));
+                result.size = postings.size;
+                continue;
+            }
+            long[] merged = new long[result.size + postings.size];
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while (i < result.size && j < postings.size) {
+                merged[k++] = result.items[i] < postings.items[j] ? result.items[i++] : postings.items[j++];
+            }
+            while (i < result.size) {
+                merged[k++] = result.items[i++];
+            }
+            while (j < postings.size) {
+                merged[k++] = postings.items[j++];
+            }
+            result.items = merged;
+            result.size = k;
+        }
+    }
+
+    /**
+     * Returns the distinct report ordinals of the specified sorted postings.
+     */
+    private static int[] toReportOrdinals(Postings postings) {
+        int[] ordinals = new int[postings.size];
+        int size = 0;
+        for (int i = 0; i < postings.size; i++) {
+            int ordinal = reportOrdinal(postings.items[i]);
+            if (size == 0 || ordinals[size - 1] != ordinal) {
+                ordinals[size++] = ordinal;
+            }
+        }
+        return Arrays.copyOf(ordinals, size);
+    }
+
+    /**
+     * Intersects the sorted ordinals in <code>a</code> with those in
+     * <code>b</code>, in place, and returns the size of the intersection.
+     */
+    private static int intersect(int[] a, int aSize, int[] b, int bSize) {
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < aSize && j < bSize) {
+            if (a[i] == b[j]) {
+                a[k++] = a[i++];
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return k;
+    }
+
+    private List<String> toReportIds(int[] ordinals, int size) {
+        List<String> ids = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            ids.add(reportIds.get(ordinals[i]));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,56 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A single-pass sequence of un-verified BID failure reports which are
+ * fetched from the BID content provider as they are iterated.
+ * <p/>
+ * Unlike <code>BidHelper.requestAllFailureReports()</code>, only the reports
+ * in the current window are held in memory, so iterating all of them takes
+ * the same amount of memory however many reports BID has accumulated, as long
+ * as the caller does not keep the reports it has seen.
+ * <p/>
+ * The caller is responsible for verifying each report before attempting to
+ * access its contents, and for closing the stream when done, even if it was
+ * not iterated to the end:
+ * <pre>
+ *     BidFailureReportStream reports = helper.requestFailureReportStream(50);
+ *     try {
+ *         for (BidFailureReport report : reports) {
+ *             helper.verifyFailureReport(report, true);
+ *             //...use the report
+ *         }
+ *     } finally {
+ *         reports.close();
+ *     }
+ * </pre>
+ * If fetching a later window of reports fails, the iterator throws an
+ * <code>IllegalStateException</code> whose cause is a <code>BidRequestException</code>.
+ */
+public interface BidFailureReportStream extends Iterable<BidFailureReport>, Closeable {
+
+    /**
+     * Releases the resources held by this stream. Iterating a closed stream
+     * yields no further reports.
+     *
+     * @throws java.io.IOException if an i/o error occurs.
+     */
+    @Override
+    public void close() throws IOException;
+}
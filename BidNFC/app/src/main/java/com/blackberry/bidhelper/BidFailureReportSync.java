@@ -0,0 +1,408 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.io.IOException;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a set of verified failure reports up to date by fetching and
+ * verifying only the reports BID has received since the last refresh.
+ * <p/>
+ * The sync remembers the latest <code>DATE_RECEIVED</code> value it has seen,
+ * the watermark, and each refresh requests only the reports received since
+ * then. Reports received on the watermark date itself are requested again,
+ * since BID may add more with the same date, and those already handled are
+ * skipped. The cost of a refresh is therefore proportional to the number of
+ * new reports, which makes it cheap enough to call on every report insertion:
+ * <pre>
+ *     final BidFailureReportSync sync = new BidFailureReportSync(helper,
+ *             helper.getWatermarkStore("failures"), reportStore, true);
+ *     helper.addBidListener(new BidListener() {
+ *         public void reportInserted() {
+ *             List&lt;BidFailureReport&gt; added = sync.refresh();
+ *             //...
+ *         }
+ *         //...
+ *     });
+ * </pre>
+ * Given a <code>BidFailureReportStore</code>, the sync appends the verified
+ * reports to it and persists the watermark through a <code>WatermarkStore</code>
+ * once they are durable, so that a new session restores the verified reports
+ * of the previous ones and only fetches the reports received since. Reports
+ * the store drops after its retention period are not restored. Without a
+ * report store, the verified reports are held in memory only, so the saved
+ * watermark is not reloaded and the first refresh fetches every report. To
+ * fetch every report again, call <code>reset()</code>.
+ * <p/>
+ * Reports that fail to verify are not retried. They are kept with the
+ * reason for the failure and can be obtained with <code>getRejected()</code>.
+ */
+public final class BidFailureReportSync {
+
+    /**
+     * Persistent storage for the watermark of a <code>BidFailureReportSync</code>.
+     */
+    public interface WatermarkStore {
+        /**
+         * Returns the watermark last saved, or -1 if none.
+         *
+         * @return the watermark last saved, or -1 if none.
+         */
+        public long loadWatermark();
+
+        /**
+         * Saves the specified watermark.
+         *
+         * @param watermark the watermark to be saved.
+         */
+        public void saveWatermark(long watermark);
+    }
+
+    /**
+     * The default number of reports fetched and verified at a time.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 50;
+
+    private final BidHelper helper;
+    private final WatermarkStore store;
+    private final BidFailureReportStore reports;
+    private final boolean certReqd;
+    private final int windowSize;
+    private final Map<String, BidFailureReport> verified;
+    private final List<BidVerificationResult> rejected;
+    private long watermark;
+    // the TZ signature digests of the reports handled on the watermark date
+    private final List<byte[]> watermarkDigests;
+    private BidFailureIndex index;
+
+    /**
+     * Creates a new sync which holds the verified reports in memory only and
+     * fetches reports in windows of the default size.
+     *
+     * @param helper   the helper used to request and verify the reports.
+     * @param store    the storage for the watermark.
+     * @param certReqd indicates whether a certificate is required for verification.
+     *                 See <code>BidHelper.verifyFailureReport</code>.
+     */
+    public BidFailureReportSync(BidHelper helper, WatermarkStore store, boolean certReqd) {
+        this(helper, store, certReqd, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Creates a new sync which holds the verified reports in memory only.
+     *
+     * @param helper     the helper used to request and verify the reports.
+     * @param store      the storage for the watermark.
+     * @param certReqd   indicates whether a certificate is required for verification.
+     *                   See <code>BidHelper.verifyFailureReport</code>.
+     * @param windowSize the number of reports to fetch and verify at a time, or 0
+     *                   to fetch all new reports at once.
+     */
+    public BidFailureReportSync(BidHelper helper, WatermarkStore store, boolean certReqd, int windowSize) {
+        this(helper, store, certReqd, windowSize, null);
+    }
+
+    /**
+     * Creates a new sync which keeps the verified reports in the specified
+     * store, restores those already stored, and fetches reports in windows
+     * of the default size.
+     *
+     * @param helper   the helper used to request and verify the reports.
+     * @param store    the storage for the watermark.
+     * @param reports  the storage for the verified reports.
+     * @param certReqd indicates whether a certificate is required for verification.
+     *                 See <code>BidHelper.verifyFailureReport</code>.
+     * @throws java.io.IOException if the stored reports cannot be read.
+     */
+    public BidFailureReportSync(BidHelper helper, WatermarkStore store, BidFailureReportStore reports,
+                                boolean certReqd)
+            throws IOException {
+        this(helper, store, reports, certReqd, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Creates a new sync which keeps the verified reports in the specified
+     * store and restores those already stored.
+     *
+     * @param helper     the helper used to request and verify the reports.
+     * @param store      the storage for the watermark.
+     * @param reports    the storage for the verified reports.
+     * @param certReqd   indicates whether a certificate is required for verification.
+     *                   See <code>BidHelper.verifyFailureReport</code>.
+     * @param windowSize the number of reports to fetch and verify at a time, or 0
+     *                   to fetch all new reports at once.
+     * @throws java.io.IOException if the stored reports cannot be read.
+     */
+    public BidFailureReportSync(BidHelper helper, WatermarkStore store, BidFailureReportStore reports,
+                                boolean certReqd, int windowSize)
+            throws IOException {
+        this(helper, store, certReqd, windowSize, reports);
+        restore();
+    }
+
+    private BidFailureReportSync(BidHelper helper, WatermarkStore store, boolean certReqd, int windowSize,
+                                 BidFailureReportStore reports) {
+        if (windowSize < 0) {
+            throw new IllegalArgumentException("negative window size");
+        }
+        this.helper = helper;
+        this.store = store;
+        this.reports = reports;
+        this.certReqd = certReqd;
+        this.windowSize = windowSize;
+        this.verified = new LinkedHashMap<String, BidFailureReport>();
+        this.rejected = new ArrayList<BidVerificationResult>();
+        this.watermarkDigests = new ArrayList<byte[]>();
+        this.watermark = -1;
+    }
+
+    /**
+     * Restores the verified reports from the report store and, if all of
+     * them could be restored, the watermark which they cover.
+     */
+    private void restore() throws IOException {
+        boolean complete = true;
+        for (String id : reports.getReportIds()) {
+            BidFailureReport report;
+            try {
+                report = reports.get(id);
+            } catch (BidSignatureVerificationException e) {
+                report = null;
+            }
+            if (report != null) {
+                verified.put(id, report);
+            } else {
+                complete = false;
+            }
+        }
+        if (complete) {
+            watermark = store.loadWatermark();
+            for (BidFailureReport report : verified.values()) {
+                if (report.getDateReceived() == watermark) {
+                    watermarkDigests.add(report.getTzSignatureDigest());
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetches and verifies the reports received since the last refresh, and
+     * merges those which verify into the set of verified reports.
+     * <p/>
+     * If an exception is thrown, the reports merged before the failure are
+     * kept and the next refresh resumes after them.
+     *
+     * @return the newly verified reports, in the order BID received them.
+     * @throws java.io.IOException                     if the verified reports cannot be stored.
+     * @throws BidRequestException                     if an error occurred while attempting to fetch the reports.
+     * @throws BidCertificateUnavailableException      if the certificate is not available and a certificate
+     *                                                 is required.
+     * @throws java.security.cert.CertificateException if the certificate chain is invalid.
+     */
+    public synchronized List<BidFailureReport> refresh()
+            throws IOException,
+            BidRequestException,
+            BidCertificateUnavailableException,
+            CertificateException {
+        List<BidFailureReport> added = new ArrayList<BidFailureReport>();
+        long initialWatermark = watermark;
+        // request the reports received on the watermark date again
+        BidFailureReportStream stream = helper.requestFailureReportsReceivedAfter(
+                watermark >= 0 ? watermark - 1 : -1, windowSize);
+        boolean merged = false;
+        try {
+            List<BidFailureReport> window = new ArrayList<BidFailureReport>();
+            for (BidFailureReport report : stream) {
+                if (isHandled(report)) {
+                    continue;
+                }
+                window.add(report);
+                if (window.size() == windowSize) {
+                    merge(window, added);
+                    window.clear();
+                }
+            }
+            merge(window, added);
+            merged = true;
+        } catch (IllegalStateException ise) {
+            if (ise.getCause() instanceof BidRequestException) {
+                throw (BidRequestException) ise.getCause();
+            }
+            throw ise;
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException ioe) {
+                // nothing more to fetch from it anyway
+            }
+            if (watermark != initialWatermark) {
+                saveWatermark(merged);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Saves the watermark once the reports it covers are durable in the
+     * report store, if any.
+     *
+     * @param merged <code>false</code> if the refresh failed, in which case
+     *               a failure to store the reports is not thrown in place
+     *               of the reason for the failure.
+     */
+    private void saveWatermark(boolean merged) throws IOException {
+        if (reports != null) {
+            try {
+                reports.sync();
+            } catch (IOException ioe) {
+                if (merged) {
+                    throw ioe;
+                }
+                return;
+            }
+        }
+        store.saveWatermark(watermark);
+    }
+
+    /**
+     * Returns <code>true</code> if the specified report, received on the
+     * watermark date, has already been merged or rejected.
+     */
+    private boolean isHandled(BidFailureReport report) {
+        if (report.getDateReceived() != watermark) {
+            return false;
+        }
+        byte[] digest = report.getTzSignatureDigest();
+        for (byte[] handled : watermarkDigests) {
+            if (Arrays.equals(handled, digest)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Verifies a window of reports, merges those which verify and advances
+     * the watermark over each report as it is handled.
+     *
+     * @param window the reports to be verified.
+     * @param added  the list of newly verified reports to append to.
+     * @throws java.io.IOException                     if a verified report cannot be stored.
+     * @throws BidCertificateUnavailableException      if the certificate is not available and a certificate
+     *                                                 is required.
+     * @throws java.security.cert.CertificateException if the certificate chain is invalid.
+     */
+    private void merge(List<BidFailureReport> window, List<BidFailureReport> added)
+            throws IOException,
+            BidCertificateUnavailableException,
+            CertificateException {
+        if (window.isEmpty()) {
+            return;
+        }
+
+        BidFailureReport[] windowReports = window.toArray(new BidFailureReport[window.size()]);
+        for (BidVerificationResult result : helper.verifyFailureReports(windowReports, certReqd)) {
+            BidFailureReport report = result.getReport();
+            if (result.isVerified()) {
+                if (reports != null) {
+                    // a no-op if a failed refresh already stored it
+                    reports.append(report);
+                }
+                if (verified.put(report.getId(), report) == null) {
+                    added.add(report);
+                    if (index != null) {
+                        index.add(report);
+                    }
+                }
+            } else {
+                rejected.add(result);
+            }
+            long date = report.getDateReceived();
+            if (date > watermark) {
+                watermark = date;
+                watermarkDigests.clear();
+            }
+            if (date == watermark) {
+                watermarkDigests.add(report.getTzSignatureDigest());
+            }
+        }
+    }
+
+    /**
+     * Sets the index to which reports are added as they are verified, and
+     * adds to it the verified reports merged so far.
+     *
+     * @param index the index, or null to stop updating one.
+     */
+    public synchronized void setFailureIndex(BidFailureIndex index) {
+        this.index = index;
+        if (index != null) {
+            for (BidFailureReport report : verified.values()) {
+                index.add(report);
+            }
+        }
+    }
+
+    /**
+     * Returns the verified reports merged so far, in the order BID received them.
+     *
+     * @return the verified reports merged so far.
+     */
+    public synchronized List<BidFailureReport> getVerifiedReports() {
+        return new ArrayList<BidFailureReport>(verified.values());
+    }
+
+    /**
+     * Returns the results of the reports which failed to verify.
+     *
+     * @return the results of the reports which failed to verify.
+     */
+    public synchronized List<BidVerificationResult> getRejected() {
+        return new ArrayList<BidVerificationResult>(rejected);
+    }
+
+    /**
+     * Returns the <code>DATE_RECEIVED</code> value of the latest report fetched,
+     * or -1 if none.
+     *
+     * @return the current watermark, or -1 if none.
+     */
+    public synchronized long getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * Forgets all reports, including those in the failure index if one is
+     * set, and clears the watermark, so that the next refresh fetches every
+     * report again. Reports already in the report store stay there, and are
+     * not appended again as they are verified again.
+     */
+    public synchronized void reset() {
+        verified.clear();
+        if (index != null) {
+            index.clear();
+        }
+        rejected.clear();
+        watermark = -1;
+        watermarkDigests.clear();
+        store.saveWatermark(watermark);
+    }
+}
@@ -0,0 +1,191 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of an asynchronous BID operation, as returned by
+ * <code>BidHelperAsync</code>.
+ * <p/>
+ * In addition to the blocking methods of <code>Future</code>, callbacks can
+ * be added which are run once the operation completes, on an executor chosen
+ * by the caller. On Android, pass <code>BidHelperAndroid.getMainThreadExecutor()</code>
+ * to have the callbacks run on the main thread.
+ *
+ * @param <V> the type of the result.
+ */
+public final class BidFuture<V> implements Future<V> {
+
+    private final Task task;
+    private List<Runnable> callbacks;
+
+    /**
+     * Creates a new future which will complete with the result of the
+     * specified callable.
+     *
+     * @param callable the operation to be run.
+     */
+    BidFuture(Callable<V> callable) {
+        task = new Task(callable);
+        callbacks = new ArrayList<Runnable>(1);
+    }
+
+    /**
+     * Returns a future which has already completed with the specified value.
+     *
+     * @param value the result.
+     * @param <V>   the type of the result.
+     * @return the completed future.
+     */
+    static <V> BidFuture<V> completed(final V value) {
+        BidFuture<V> future = new BidFuture<V>(new Callable<V>() {
+            @Override
+            public V call() {
+                return value;
+            }
+        });
+        future.task.run();
+        return future;
+    }
+
+    /**
+     * Returns the task to be handed to an executor to run the operation.
+     *
+     * @return the task which runs the operation.
+     */
+    Runnable getTask() {
+        return task;
+    }
+
+    /**
+     * Adds a callback to be run on the specified executor once the operation
+     * completes. If the operation has already completed, the callback is
+     * handed to the executor immediately.
+     *
+     * @param callback the callback.
+     * @param executor the executor to run the callback on.
+     */
+    public void addCallback(final BidCallback<? super V> callback, final Executor executor) {
+        Runnable dispatch = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(callback);
+                    }
+                });
+            }
+        };
+
+        synchronized (this) {
+            if (callbacks != null) {
+                callbacks.add(dispatch);
+                return;
+            }
+        }
+        dispatch.run();
+    }
+
+    /**
+     * Calls the appropriate method of the specified callback for the outcome
+     * of the completed operation.
+     *
+     * @param callback the callback.
+     */
+    private void deliver(BidCallback<? super V> callback) {
+        V result;
+        try {
+            result = task.get();
+        } catch (CancellationException ce) {
+            callback.onFailure(ce);
+            return;
+        } catch (InterruptedException ie) {
+            // the task is done, so get() does not block
+            Thread.currentThread().interrupt();
+            callback.onFailure(ie);
+            return;
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            callback.onFailure(cause instanceof Exception ? (Exception) cause : ee);
+            return;
+        }
+        callback.onSuccess(result);
+    }
+
+    /**
+     * Runs the callbacks added so far; later callbacks are run as they are added.
+     */
+    private void done() {
+        List<Runnable> pending;
+        synchronized (this) {
+            pending = callbacks;
+            callbacks = null;
+        }
+        for (Runnable dispatch : pending) {
+            dispatch.run();
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return task.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return task.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+        return task.isDone();
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        return task.get();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        return task.get(timeout, unit);
+    }
+
+    /**
+     * The task which runs the operation and then the callbacks.
+     */
+    private final class Task extends FutureTask<V> {
+        Task(Callable<V> callable) {
+            super(callable);
+        }
+
+        @Override
+        protected void done() {
+            BidFuture.this.done();
+        }
+    }
+}
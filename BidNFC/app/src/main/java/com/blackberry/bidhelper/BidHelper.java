@@ -17,6 +17,7 @@ package com.blackberry.bidhelper;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.cert.CertificateException;
+import java.util.concurrent.Executor;
 
 /**
  * Common interface of convenience methods for obtaining status reports
@@ -42,12 +43,25 @@ public interface BidHelper {
 
     /**
      * Adds a listener for events such as the insertion of a report
-     * and the availability of a certificate.
+     * and the availability of a certificate. The listener is notified
+     * on the thread which receives the events.
      *
      * @param listener a listener for BID-related events.
      */
     public void addBidListener(BidListener listener);
 
+    /**
+     * Adds a listener for events such as the insertion of a report
+     * and the availability of a certificate, to be notified on the
+     * specified executor. Report insertions which arrive while a
+     * notification is pending on the executor are coalesced into it;
+     * see <code>BidReportCountListener</code>.
+     *
+     * @param listener a listener for BID-related events.
+     * @param executor the executor to notify the listener on.
+     */
+    public void addBidListener(BidListener listener, Executor executor);
+
     /**
      * Removes a listener that was previously added.
      *
@@ -134,6 +148,40 @@ public interface BidHelper {
     public BidFailureReport[] requestAllFailureReports()
             throws BidRequestException;
 
+    /**
+     * Requests all BID failure reports as a stream which fetches them from the
+     * content provider in windows of the specified size as they are iterated.
+     *
+     * @param windowSize the number of reports to fetch at a time, or 0 to fetch
+     *                   them through a single query.
+     * @return a stream of the BID failure reports in an un-verified state,
+     * which the caller must close.
+     * The caller is responsible for verifying the report using the methods
+     * provided before attempting to access the contents of the report.
+     * An attempt to access the contents of an un-verified report will cause
+     * an exception to be thrown.
+     * @throws BidRequestException if an error occurred while attempting to fetch the first window.
+     */
+    public BidFailureReportStream requestFailureReportStream(int windowSize)
+            throws BidRequestException;
+
+    /**
+     * Requests the BID failure reports received after the specified date, as a
+     * stream which fetches them from the content provider in windows of the
+     * specified size as they are iterated. Use this to fetch only the reports
+     * that are new since a previous request; see <code>BidFailureReportSync</code>.
+     *
+     * @param dateReceived only reports whose <code>getDateReceived()</code> value
+     *                     is greater than this are requested.
+     * @param windowSize   the number of reports to fetch at a time, or 0 to fetch
+     *                     them through a single query.
+     * @return a stream of the BID failure reports in an un-verified state,
+     * which the caller must close.
+     * @throws BidRequestException if an error occurred while attempting to fetch the first window.
+     */
+    public BidFailureReportStream requestFailureReportsReceivedAfter(long dateReceived, int windowSize)
+            throws BidRequestException;
+
     /**
      * Verifies the specified BID failure report. Any failure to verify will
      * result in an exception.
@@ -159,6 +207,25 @@ public interface BidHelper {
             BidSignatureVerificationException,
             CertificateException;
 
+    /**
+     * Verifies the specified BID failure reports, typically those returned by
+     * <code>requestAllFailureReports()</code>. The certificate chain is verified
+     * once for the whole batch; the reports themselves are then verified in
+     * parallel. A report which fails to verify does not stop the others from
+     * being verified: its result carries the exception instead.
+     *
+     * @param reports  the reports to be verified.
+     * @param certReqd indicates whether a certificate is required for verification.
+     *                 See <code>verifyFailureReport</code>.
+     * @return a result for each report, in the same order as the reports.
+     * @throws BidCertificateUnavailableException      if the certificate is not available and <code>certReqd</code>
+     *                                                 is <code>true</code>.
+     * @throws java.security.cert.CertificateException if the certificate chain is invalid.
+     */
+    public BidVerificationResult[] verifyFailureReports(BidFailureReport[] reports, boolean certReqd)
+            throws BidCertificateUnavailableException,
+            CertificateException;
+
     /**
      * Request the BID certificate.
      *
@@ -18,24 +18,23 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Base64;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
 import java.math.BigInteger;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateExpiredException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.CertificateNotYetValidException;
-import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import static com.blackberry.bidhelper.BidConstants.BIDE_CERTIFICATE_STRING;
 import static com.blackberry.bidhelper.BidConstants.CERTIFICATE;
 import static com.blackberry.bidhelper.BidConstants.CERTIFICATE_AVAILABLE;
+import static com.blackberry.bidhelper.BidConstants.DATE_RECEIVED;
 import static com.blackberry.bidhelper.BidConstants.FAILURE_REPORT_STRING;
 import static com.blackberry.bidhelper.BidConstants.ID_KEY;
 import static com.blackberry.bidhelper.BidConstants.JBIDE_REPORT;
@@ -60,6 +59,10 @@ import static com.blackberry.bidhelper.BidConstants.TZ_SIGNATURE;
  * This class can also register listeners for BID-related events such
  * as the insertion of a report and the availability of a certificate.
  * <p/>
+ * The requests and verification are implemented by <code>BidHelperJvm</code>;
+ * this class supplies the BID content provider as its report source and
+ * forwards BID broadcasts to the listeners.
+ * <p/>
  * To facilitate porting to non-Android platforms, this class should be
  * the only class in this package that depends on Android APIs.
  * <p/>
@@ -113,7 +116,7 @@ import static com.blackberry.bidhelper.BidConstants.TZ_SIGNATURE;
  *     &lt;/receiver&gt;
  * </pre>
  */
-public final class BidHelperAndroid implements BidHelper {
+public final class BidHelperAndroid extends BidHelperJvm {
     /**
      * Content URI for status reports.
      */
@@ -135,45 +138,34 @@ public final class BidHelperAndroid implements BidHelper {
     private static final String[] PROJECTION = {JBIDE_REPORT, KBIDE_REPORT, TZ_REPORT, TZ_SIGNATURE};
 
     /**
-     * Bid Certificate
+     * Name of the shared preferences holding failure report sync watermarks.
      */
-    private X509Certificate bidCert = null;
+    private static final String WATERMARK_PREFERENCES = "com.blackberry.bidhelper.watermarks";
 
     /**
-     * A BID broadcast receiver for firing <code>BidListener</code> events.
+     * Projection used for failure report queries.
      */
-    private final class BidReceiver extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if (intent.getAction().equals(CERTIFICATE_AVAILABLE)) {
-                for (BidListener listener : listeners) {
-                    listener.certificateAvailable();
-                }
-            } else if (intent.getAction().equals(REPORT_INSERTED)) {
-                for (BidListener listener : listeners) {
-                    listener.reportInserted();
+    private static final String[] FAILURE_PROJECTION = {JBIDE_REPORT, KBIDE_REPORT, TZ_REPORT, TZ_SIGNATURE,
+            DATE_RECEIVED};
+
+    /**
+     * Executor which runs tasks on the main thread.
+     */
+    private static final class MainThreadExecutorHolder {
+        static final Executor EXECUTOR = new Executor() {
+            private final Handler handler = new Handler(Looper.getMainLooper());
+
+            @Override
+            public void execute(Runnable command) {
+                if (!handler.post(command)) {
+                    throw new RejectedExecutionException("main looper is exiting");
                 }
             }
-        }
-
-        /**
-         * Returns an intent filter corresponding to BID broadcast events,
-         * used at registration to limit the scope of the receiver.
-         *
-         * @return an intent filter corresponding to BID broadcast events.
-         */
-        public IntentFilter getIntentFilter() {
-            IntentFilter result = new IntentFilter();
-            result.addAction(CERTIFICATE_AVAILABLE);
-            result.addAction(REPORT_INSERTED);
-            return result;
-        }
+        };
     }
 
     private Context context;
-    private List<BidListener> listeners;
     private BidReceiver receiver;
-
     /**
      * Create a new BID helper for Android based on the specified application
      * context.
@@ -181,263 +173,65 @@ public final class BidHelperAndroid implements BidHelper {
      * @param context the application context.
      */
     public BidHelperAndroid(Context context) {
+        super(new ContentProviderReportSource(context), BidTrustAnchors.getDefault(), getBase64Decoder());
         this.context = context;
-        listeners = new ArrayList<BidListener>();
         receiver = new BidReceiver();
         context.registerReceiver(receiver, receiver.getIntentFilter());
     }
 
-    @Override
-    public void destroy() {
-        context.unregisterReceiver(receiver);
-    }
-
-    @Override
-    public void addBidListener(BidListener listener) {
-        if (listener != null) {
-            listeners.add(listener);
-        }
-    }
-
-    @Override
-    public void removeBidListener(BidListener listener) {
-        listeners.remove(listener);
-    }
-
-    @Override
-    public boolean isCertificateAvailable() {
-        if (bidCert == null) {
-            // We have not retrieved the certificate yet. Let's do that now
-            byte[] certificateBytes = null;
-            try {
-                certificateBytes = requestBidCertificate();
-            } catch (BidCertificateUnavailableException ex) {
-                // Certificate is not available
-                return false;
-            } catch (BidRequestException bre) {
-                return false;
-            }
-
-            // create an X509Certificate from the byte array
-            ByteArrayInputStream bis = new ByteArrayInputStream(certificateBytes);
-            try {
-                CertificateFactory cf = CertificateFactory.getInstance("X.509");
-                bidCert = (X509Certificate) cf.generateCertificate(bis);
-            } catch (CertificateException ce) {
-                return false;
-            }
-
-        }
-
-        if (bidCert != null) {
-            try {
-                bidCert.checkValidity();
-            } catch (CertificateExpiredException cee) {
-                bidCert = null;
-                return false;
-
-            } catch (CertificateNotYetValidException cnyve) {
-                return false;
-            }
-
-            return true;
-        } else {
-            return false;
-        }
-    }
-
-    @Override
-    public BidStatusReport requestStatusReport(BigInteger nonce)
-            throws BidRequestException {
-        try {
-            //
-            // Form the URI and query the content provider.
-            //
-            Uri.Builder builder = STATUS_REPORT_URI.buildUpon();
-            builder.appendQueryParameter(NONCE_KEY, nonce.toString(NONCE_RADIX));
-            Cursor cursor = context.getContentResolver().query(builder.build(), PROJECTION, null, null, null);
-
-            //
-            // Check for the unexpected.
-            //
-            if (cursor == null) {
-                throw new BidRequestException("null cursor for query " + STATUS_REPORT_STRING);
-            }
-            if (cursor.getCount() != 1) {
-                throw new BidRequestException("unexpected row count for query " + STATUS_REPORT_STRING);
-            }
-            if (!cursor.moveToFirst()) {
-                throw new BidRequestException("cursor failed for query " + STATUS_REPORT_STRING);
-            }
-
-            //
-            // Populate and return the report.
-            //
-            return createStatusReport(cursor);
-        } catch (Exception e) {
-            throw new BidRequestException(e);
-        }
+    /**
+     * Returns an executor which runs tasks on the application's main thread,
+     * for delivering the results of a <code>BidHelperAsync</code> to the UI.
+     *
+     * @return an executor which runs tasks on the main thread.
+     */
+    public static Executor getMainThreadExecutor() {
+        return MainThreadExecutorHolder.EXECUTOR;
     }
 
     /**
-     * Creates an un-verified status report object populated with the specified
-     * values.
+     * Creates a record populated with the raw, un-verified values of a report.
      *
      * @param cursor a pre-positioned cursor containing raw, un-verified values
-     *               for creating the report.
-     * @return an un-verified status report object populated with the specified
-     * values.
+     *               for creating the record.
+     * @return a record populated with the specified values.
      */
-    private static BidStatusReport createStatusReport(Cursor cursor) {
+    private static BidReportRecord createRecord(Cursor cursor) {
         int jbideReportIndex = cursor.getColumnIndexOrThrow(JBIDE_REPORT);
         int kbideReportIndex = cursor.getColumnIndexOrThrow(KBIDE_REPORT);
         int tzReportIndex = cursor.getColumnIndexOrThrow(TZ_REPORT);
         int tzSignatureIndex = cursor.getColumnIndexOrThrow(TZ_SIGNATURE);
-        return new BidStatusReport(cursor.getString(jbideReportIndex),
-                cursor.getString(kbideReportIndex),
-                cursor.getString(tzReportIndex),
-                cursor.getBlob(tzSignatureIndex),
-                getBase64Decoder());
-    }
-
-    @Override
-    public void verifyStatusReport(BidStatusReport report, BigInteger nonce, boolean certReqd)
-            throws BidCertificateUnavailableException,
-            IOException,
-            BidHashMismatchException,
-            BidSignatureVerificationException,
-            BidNonceMismatchException,
-            CertificateException {
-        if (certReqd && !isCertificateAvailable()) {
-            throw new BidCertificateUnavailableException("certificate not available");
-        }
-        // get certificate verifier - platform specific, pass in certificate
-        BidCertificateVerifier bcv = new BidCertificateVerifierAndroid();
-        bcv.setCertificate(bidCert);
-        bcv.verifyCertificateChain();
-
-        report.verify(bcv);
-        if (!nonce.equals(report.getNonce())) {
-            report.revokeVerification();
-            throw new BidNonceMismatchException("reported nonce does not match expected value");
-        }
-    }
-
-    @Override
-    public byte[] requestBidCertificate()
-            throws BidCertificateUnavailableException,
-            BidRequestException {
-        try {
-            //
-            // Form the URI and query the content provider.
-            //
-            Cursor cursor = context.getContentResolver().query(BIDE_CERTIFICATE_URI, PROJECTION, null, null, null);
-
-            //
-            // Check for the unexpected.
-            //
-            if (cursor == null) {
-                throw new BidCertificateUnavailableException("null cursor for query " + BIDE_CERTIFICATE_URI);
-            }
-            if (cursor.getCount() != 1) {
-                throw new BidRequestException("unexpected row count for query " + BIDE_CERTIFICATE_URI);
-            }
-            if (!cursor.moveToFirst()) {
-                throw new BidRequestException("cursor failed for query " + BIDE_CERTIFICATE_URI);
-            }
-
-            //
-            // Get the byte array representing the Bid certificate.
-            //
-            return getCertificate(cursor);
-        } catch (Exception e) {
-            throw new BidRequestException(e);
-        }
-    }
-
-    @Override
-    public BidFailureReport requestFailureReport(String reportId)
-            throws BidRequestException {
-        try {
-            //
-            // Form the URI and query the content provider.
-            //
-            Uri.Builder builder = FAILURE_REPORT_URI.buildUpon();
-            builder.appendQueryParameter(ID_KEY, reportId);
-            Cursor cursor = context.getContentResolver().query(builder.build(), PROJECTION, null, null, null);
-
-            //
-            // Check for the unexpected.
-            //
-            if (cursor == null) {
-                throw new BidRequestException("null cursor for query " + FAILURE_REPORT_STRING);
-            }
-            if (cursor.getCount() != 1) {
-                throw new BidRequestException("unexpected row count for query " + FAILURE_REPORT_STRING);
-            }
-            if (!cursor.moveToFirst()) {
-                throw new BidRequestException("cursor failed for query " + FAILURE_REPORT_STRING);
-            }
-
-            //
-            // Populate and return the report.
-            //
-            return createFailureReport(cursor);
-        } catch (Exception e) {
-            throw new BidRequestException(e);
-        }
-    }
-
-    @Override
-    public BidFailureReport[] requestAllFailureReports()
-            throws BidRequestException {
-        try {
-            //
-            // Query the content provider.
-            //
-            Cursor cursor = context.getContentResolver().query(FAILURE_REPORT_URI, PROJECTION, null, null, null);
-
-            //
-            // Check for the unexpected.
-            //
-            if (cursor == null) {
-                throw new BidRequestException("null cursor for query " + FAILURE_REPORT_STRING);
-            }
-
-            //
-            // Populate and return the reports.
-            //
-            int count = cursor.getCount();
-            BidFailureReport[] result = new BidFailureReport[count];
-            for (int i = 0; i < count; i++) {
-                cursor.moveToPosition(i);
-                result[i] = createFailureReport(cursor);
-            }
-            return result;
-        } catch (Exception e) {
-            throw new BidRequestException(e);
+        long dateReceived = -1;
+        int dateReceivedIndex = cursor.getColumnIndex(DATE_RECEIVED);
+        if (dateReceivedIndex >= 0 && !cursor.isNull(dateReceivedIndex)) {
+            dateReceived = cursor.getLong(dateReceivedIndex);
         }
+        return new BidReportRecord(getReportBody(cursor, jbideReportIndex),
+                getReportBody(cursor, kbideReportIndex),
+                getReportBody(cursor, tzReportIndex),
+                cursor.getBlob(tzSignatureIndex),
+                dateReceived);
     }
 
     /**
-     * Creates an un-verified failure report object populated with the specified
-     * values.
+     * Returns the body of the report in the specified column, read as UTF-8
+     * bytes rather than as a string.
      *
-     * @param cursor a pre-positioned cursor containing raw, un-verified values
-     *               for creating the report.
-     * @return an un-verified failure report object populated with the specified
-     * values.
+     * @param cursor      a pre-positioned cursor containing the report.
+     * @param columnIndex the index of the column holding the report.
+     * @return the body of the report, or null if the column is null.
      */
-    private static BidFailureReport createFailureReport(Cursor cursor) {
-        int jbideReportIndex = cursor.getColumnIndexOrThrow(JBIDE_REPORT);
-        int kbideReportIndex = cursor.getColumnIndexOrThrow(KBIDE_REPORT);
-        int tzReportIndex = cursor.getColumnIndexOrThrow(TZ_REPORT);
-        int tzSignatureIndex = cursor.getColumnIndexOrThrow(TZ_SIGNATURE);
-        return new BidFailureReport(cursor.getString(jbideReportIndex),
-                cursor.getString(kbideReportIndex),
-                cursor.getString(tzReportIndex),
-                cursor.getBlob(tzSignatureIndex),
-                getBase64Decoder());
+    private static BidReportBody getReportBody(Cursor cursor, int columnIndex) {
+        switch (cursor.getType(columnIndex)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_STRING:
+                return BidReportBody.fromCursorText(cursor.getBlob(columnIndex));
+            case Cursor.FIELD_TYPE_BLOB:
+                return BidReportBody.fromUtf8(cursor.getBlob(columnIndex));
+            default:
+                return BidReportBody.fromString(cursor.getString(columnIndex));
+        }
     }
 
     /**
@@ -452,24 +246,6 @@ public final class BidHelperAndroid implements BidHelper {
         return cursor.getBlob(certificateIndex);
     }
 
-    @Override
-    public void verifyFailureReport(BidFailureReport report, boolean certReqd)
-            throws BidCertificateUnavailableException,
-            IOException,
-            BidHashMismatchException,
-            BidSignatureVerificationException,
-            CertificateException {
-        if (certReqd && !isCertificateAvailable()) {
-            throw new BidCertificateUnavailableException("certificate not available");
-        }
-        // get certificate verifier - platform specific, pass in certificate
-        BidCertificateVerifier bcv = new BidCertificateVerifierAndroid();
-        bcv.setCertificate(bidCert);
-        bcv.verifyCertificateChain();
-
-        report.verify(bcv);
-    }
-
     /**
      * Returns a <code>Base64Decoder</code> implementation ready to use.
      * (This is needed due to Java's lack of a cross-platform Base64 facility).
@@ -499,4 +275,235 @@ public final class BidHelperAndroid implements BidHelper {
             }
         };
     }
+
+    @Override
+    public void destroy() {
+        context.unregisterReceiver(receiver);
+    }
+
+    /**
+     * Returns a watermark store for a <code>BidFailureReportSync</code> which
+     * persists the watermark in the application's shared preferences.
+     *
+     * @param name a name identifying the sync, unique within the application.
+     * @return a watermark store backed by shared preferences.
+     */
+    public BidFailureReportSync.WatermarkStore getWatermarkStore(final String name) {
+        final SharedPreferences preferences =
+                context.getSharedPreferences(WATERMARK_PREFERENCES, Context.MODE_PRIVATE);
+        return new BidFailureReportSync.WatermarkStore() {
+            @Override
+            public long loadWatermark() {
+                return preferences.getLong(name, -1);
+            }
+
+            @Override
+            public void saveWatermark(long watermark) {
+                preferences.edit().putLong(name, watermark).apply();
+            }
+        };
+    }
+
+    /**
+     * A report source which queries the BID content provider.
+     * <p/>
+     * Windows of failure reports are paged by appending <code>LIMIT</code>
+     * and <code>OFFSET</code> clauses to the sort order, which only works if
+     * the provider passes its sort order to SQLite as is. A provider which
+     * validates or rejects the sort order makes such a query fail; the
+     * helper's failure report stream then falls back to a single query
+     * without paging.
+     */
+    private static final class ContentProviderReportSource implements BidReportSource {
+        private final Context context;
+
+        ContentProviderReportSource(Context context) {
+            this.context = context;
+        }
+
+        @Override
+        public BidReportRecord queryStatusReport(BigInteger nonce)
+                throws BidRequestException {
+            Cursor cursor = null;
+            try {
+                //
+                // Form the URI and query the content provider.
+                //
+                Uri.Builder builder = STATUS_REPORT_URI.buildUpon();
+                builder.appendQueryParameter(NONCE_KEY, nonce.toString(NONCE_RADIX));
+                cursor = context.getContentResolver().query(builder.build(), PROJECTION, null, null, null);
+
+                //
+                // Check for the unexpected.
+                //
+                if (cursor == null) {
+                    throw new BidRequestException("null cursor for query " + STATUS_REPORT_STRING);
+                }
+                if (cursor.getCount() != 1) {
+                    throw new BidRequestException("unexpected row count for query " + STATUS_REPORT_STRING);
+                }
+                if (!cursor.moveToFirst()) {
+                    throw new BidRequestException("cursor failed for query " + STATUS_REPORT_STRING);
+                }
+
+                //
+                // Populate and return the report.
+                //
+                return createRecord(cursor);
+            } catch (Exception e) {
+                throw new BidRequestException(e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        @Override
+        public BidReportRecord queryFailureReport(String reportId)
+                throws BidRequestException {
+            Cursor cursor = null;
+            try {
+                //
+                // Form the URI and query the content provider.
+                //
+                Uri.Builder builder = FAILURE_REPORT_URI.buildUpon();
+                builder.appendQueryParameter(ID_KEY, reportId);
+                cursor = context.getContentResolver().query(builder.build(), FAILURE_PROJECTION, null, null, null);
+
+                //
+                // Check for the unexpected.
+                //
+                if (cursor == null) {
+                    throw new BidRequestException("null cursor for query " + FAILURE_REPORT_STRING);
+                }
+                if (cursor.getCount() != 1) {
+                    throw new BidRequestException("unexpected row count for query " + FAILURE_REPORT_STRING);
+                }
+                if (!cursor.moveToFirst()) {
+                    throw new BidRequestException("cursor failed for query " + FAILURE_REPORT_STRING);
+                }
+
+                //
+                // Populate and return the report.
+                //
+                return createRecord(cursor);
+            } catch (Exception e) {
+                throw new BidRequestException(e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        @Override
+        public List<BidReportRecord> queryFailureReports(long dateReceived, int offset, int limit)
+                throws BidRequestException {
+            String selection = null;
+            String[] selectionArgs = null;
+            if (dateReceived >= 0) {
+                selection = DATE_RECEIVED + " > ?";
+                selectionArgs = new String[]{Long.toString(dateReceived)};
+            }
+            String sortOrder = null;
+            if (limit > 0) {
+                sortOrder = DATE_RECEIVED + " ASC LIMIT " + limit + " OFFSET " + offset;
+            }
+
+            Cursor cursor = null;
+            try {
+                cursor = context.getContentResolver().query(FAILURE_REPORT_URI, FAILURE_PROJECTION,
+                        selection, selectionArgs, sortOrder);
+
+                //
+                // Check for the unexpected.
+                //
+                if (cursor == null) {
+                    throw new BidRequestException("null cursor for query " + FAILURE_REPORT_STRING);
+                }
+
+                //
+                // Populate and return the records.
+                //
+                int count = cursor.getCount();
+                List<BidReportRecord> result = new ArrayList<BidReportRecord>(count);
+                for (int i = 0; i < count; i++) {
+                    cursor.moveToPosition(i);
+                    result.add(createRecord(cursor));
+                }
+                return result;
+            } catch (Exception e) {
+                throw new BidRequestException(e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        @Override
+        public byte[] queryCertificate()
+                throws BidCertificateUnavailableException,
+                BidRequestException {
+            Cursor cursor = null;
+            try {
+                //
+                // Form the URI and query the content provider.
+                //
+                cursor = context.getContentResolver().query(BIDE_CERTIFICATE_URI, PROJECTION, null, null, null);
+
+                //
+                // Check for the unexpected.
+                //
+                if (cursor == null) {
+                    throw new BidCertificateUnavailableException("null cursor for query " + BIDE_CERTIFICATE_URI);
+                }
+                if (cursor.getCount() != 1) {
+                    throw new BidRequestException("unexpected row count for query " + BIDE_CERTIFICATE_URI);
+                }
+                if (!cursor.moveToFirst()) {
+                    throw new BidRequestException("cursor failed for query " + BIDE_CERTIFICATE_URI);
+                }
+
+                //
+                // Get the byte array representing the Bid certificate.
+                //
+                return getCertificate(cursor);
+            } catch (Exception e) {
+                throw new BidRequestException(e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A BID broadcast receiver for firing <code>BidListener</code> events.
+     */
+    private final class BidReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getAction().equals(CERTIFICATE_AVAILABLE)) {
+                fireCertificateAvailable();
+            } else if (intent.getAction().equals(REPORT_INSERTED)) {
+                fireReportInserted();
+            }
+        }
+
+        /**
+         * Returns an intent filter corresponding to BID broadcast events,
+         * used at registration to limit the scope of the receiver.
+         *
+         * @return an intent filter corresponding to BID broadcast events.
+         */
+        public IntentFilter getIntentFilter() {
+            IntentFilter result = new IntentFilter();
+            result.addAction(CERTIFICATE_AVAILABLE);
+            result.addAction(REPORT_INSERTED);
+            return result;
+        }
+    }
 }
@@ -0,0 +1,261 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.math.BigInteger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the requests and verifications of a <code>BidHelper</code> in the
+ * background and returns their results as <code>BidFuture</code> objects.
+ * <p/>
+ * The operations of all instances share a small pool of threads, so an
+ * activity does not need a thread of its own to query BID, and several
+ * requests may be in progress at once. The results are delivered on the
+ * executor passed to <code>BidFuture.addCallback</code>:
+ * <pre>
+ *     BidHelperAsync async = new BidHelperAsync(helper);
+ *     async.requestAndVerifyStatusAsync(nonce).addCallback(new BidCallback&lt;BidStatusReport&gt;() {
+ *         public void onSuccess(BidStatusReport report) {
+ *             //...use the verified report
+ *         }
+ *
+ *         public void onFailure(Exception e) {
+ *             //...
+ *         }
+ *     }, BidHelperAndroid.getMainThreadExecutor());
+ * </pre>
+ */
+public final class BidHelperAsync {
+
+    private static final int POOL_SIZE = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Lazily initialized holder for the shared pool.
+     */
+    private static final class PoolHolder {
+        static final Executor POOL = createPool();
+    }
+
+    private final BidHelper helper;
+    private final Executor executor;
+
+    /**
+     * Creates a new instance which runs the operations on the shared pool.
+     *
+     * @param helper the helper which performs the operations.
+     */
+    public BidHelperAsync(BidHelper helper) {
+        this(helper, PoolHolder.POOL);
+    }
+
+    /**
+     * Creates a new instance which runs the operations on the specified executor.
+     *
+     * @param helper   the helper which performs the operations.
+     * @param executor the executor to run the operations on.
+     */
+    public BidHelperAsync(BidHelper helper, Executor executor) {
+        this.helper = helper;
+        this.executor = executor;
+    }
+
+    private static Executor createPool() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "BidHelperAsync-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Returns the helper which performs the operations.
+     *
+     * @return the helper which performs the operations.
+     */
+    public BidHelper getHelper() {
+        return helper;
+    }
+
+    /**
+     * Submits the specified operation to the executor.
+     *
+     * @param callable the operation.
+     * @param <V>      the type of the result.
+     * @return the pending result of the operation.
+     */
+    private <V> BidFuture<V> submit(Callable<V> callable) {
+        BidFuture<V> future = new BidFuture<V>(callable);
+        executor.execute(future.getTask());
+        return future;
+    }
+
+    /**
+     * Requests a status report in the background.
+     * See <code>BidHelper.requestStatusReport</code>.
+     *
+     * @param nonce the nonce to be included in the report.
+     * @return the pending un-verified report.
+     */
+    public BidFuture<BidStatusReport> requestStatusReportAsync(final BigInteger nonce) {
+        return submit(new Callable<BidStatusReport>() {
+            @Override
+            public BidStatusReport call() throws Exception {
+                return helper.requestStatusReport(nonce);
+            }
+        });
+    }
+
+    /**
+     * Verifies a status report in the background.
+     * See <code>BidHelper.verifyStatusReport</code>.
+     *
+     * @param report   the report to be verified.
+     * @param nonce    the nonce passed when the report was requested.
+     * @param certReqd indicates whether a certificate is required for verification.
+     * @return the pending verified report, which is the report passed in.
+     */
+    public BidFuture<BidStatusReport> verifyStatusReportAsync(final BidStatusReport report,
+                                                              final BigInteger nonce,
+                                                              final boolean certReqd) {
+        return submit(new Callable<BidStatusReport>() {
+            @Override
+            public BidStatusReport call() throws Exception {
+                helper.verifyStatusReport(report, nonce, certReqd);
+                return report;
+            }
+        });
+    }
+
+    /**
+     * Requests a status report and verifies it in the background, requiring
+     * a certificate for the verification.
+     *
+     * @param nonce the nonce to be included in the report.
+     * @return the pending verified report.
+     */
+    public BidFuture<BidStatusReport> requestAndVerifyStatusAsync(BigInteger nonce) {
+        return requestAndVerifyStatusAsync(nonce, true);
+    }
+
+    /**
+     * Requests a status report and verifies it in the background.
+     * See <code>BidHelper.requestStatusReport</code> and
+     * <code>BidHelper.verifyStatusReport</code>.
+     *
+     * @param nonce    the nonce to be included in the report.
+     * @param certReqd indicates whether a certificate is required for verification.
+     * @return the pending verified report.
+     */
+    public BidFuture<BidStatusReport> requestAndVerifyStatusAsync(final BigInteger nonce, final boolean certReqd) {
+        return submit(new Callable<BidStatusReport>() {
+            @Override
+            public BidStatusReport call() throws Exception {
+                BidStatusReport report = helper.requestStatusReport(nonce);
+                helper.verifyStatusReport(report, nonce, certReqd);
+                return report;
+            }
+        });
+    }
+
+    /**
+     * Returns the status from the specified cache. If the cache holds a report
+     * which has not expired, the returned future is already complete with it;
+     * otherwise the cache is asked for the status in the background, so the
+     * calling thread never requests or verifies a report.
+     * See <code>BidPostureCache.getStatus</code>.
+     *
+     * @param cache the cache to get the status from.
+     * @return the pending verified report.
+     */
+    public BidFuture<BidStatusReport> getStatusAsync(final BidPostureCache cache) {
+        BidStatusReport report = cache.peek();
+        if (report != null) {
+            return BidFuture.completed(report);
+        }
+        return submit(new Callable<BidStatusReport>() {
+            @Override
+            public BidStatusReport call() throws Exception {
+                return cache.getStatus();
+            }
+        });
+    }
+
+    /**
+     * Returns a verified status report from the specified coalescer, sharing
+     * the request with concurrent callers. See <code>BidStatusCoalescer.getStatus</code>.
+     *
+     * @param coalescer the coalescer to get the status from.
+     * @return the pending verified report.
+     */
+    public BidFuture<BidStatusReport> getStatusAsync(final BidStatusCoalescer coalescer) {
+        return submit(new Callable<BidStatusReport>() {
+            @Override
+            public BidStatusReport call() throws Exception {
+                return coalescer.getStatus();
+            }
+        });
+    }
+
+    /**
+     * Requests all failure reports in the background.
+     * See <code>BidHelper.requestAllFailureReports</code>.
+     *
+     * @return the pending un-verified reports.
+     */
+    public BidFuture<BidFailureReport[]> requestAllFailureReportsAsync() {
+        return submit(new Callable<BidFailureReport[]>() {
+            @Override
+            public BidFailureReport[] call() throws Exception {
+                return helper.requestAllFailureReports();
+            }
+        });
+    }
+
+    /**
+     * Verifies a batch of failure reports in the background.
+     * See <code>BidHelper.verifyFailureReports</code>.
+     *
+     * @param reports  the reports to be verified.
+     * @param certReqd indicates whether a certificate is required for verification.
+     * @return the pending results, in the same order as the reports.
+     */
+    public BidFuture<BidVerificationResult[]> verifyFailureReportsAsync(final BidFailureReport[] reports,
+                                                                        final boolean certReqd) {
+        return submit(new Callable<BidVerificationResult[]>() {
+            @Override
+            public BidVerificationResult[] call() throws Exception {
+                return helper.verifyFailureReports(reports, certReqd);
+            }
+        });
+    }
+}
@@ -0,0 +1,616 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateNotYetValidException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+
+/**
+ * Pure Java implementation of the <code>BidHelper</code> interface over a
+ * <code>BidReportSource</code>.
+ * <p/>
+ * This class requests the raw reports and the certificate from the source,
+ * and verifies the reports exactly as on a device. It has no platform
+ * dependencies, so the requests and the verification pipeline can be run,
+ * tested and profiled on a plain JVM:
+ * <pre>
+ *     BidMemoryReportSource source = new BidMemoryReportSource();
+ *     source.setCertificate(certificateBytes);
+ *     source.addFailureReport(reportId, record);
+ *     BidHelper helper = new BidHelperJvm(source, trustAnchors);
+ *     BidFailureReport[] reports = helper.requestAllFailureReports();
+ *     BidVerificationResult[] results = helper.verifyFailureReports(reports, true);
+ * </pre>
+ * A source has no way to announce events, so listeners are only notified
+ * when <code>fireCertificateAvailable()</code> or <code>fireReportInserted()</code>
+ * is called. <code>BidHelperAndroid</code> extends this class with the BID
+ * content provider as its source and calls them on BID broadcasts.
+ */
+public class BidHelperJvm implements BidHelper {
+
+    private final BidReportSource source;
+    private final BidTrustAnchors trustAnchors;
+    private final Base64Decoder base64Decoder;
+    private final BidListenerRegistry listeners;
+
+    /**
+     * Bid Certificate
+     */
+    private volatile X509Certificate bidCert = null;
+
+    private volatile BidParserEngine parserEngine = BidParserEngine.SAX;
+
+    private volatile boolean pipelinedVerification = false;
+
+    private volatile BidVerificationOrder verificationOrder = BidVerificationOrder.PARSE_FIRST;
+
+    private final BidVerificationStats verificationStats = new BidVerificationStats();
+
+    private volatile BidParserLimits parserLimits = BidParserLimits.DEFAULT;
+
+    /**
+     * Creates a new helper over the specified source which validates the
+     * certificate against the BID production trust anchors.
+     *
+     * @param source the source of the reports and the certificate.
+     */
+    public BidHelperJvm(BidReportSource source) {
+        this(source, BidTrustAnchors.getDefault());
+    }
+
+    /**
+     * Creates a new helper over the specified source which validates the
+     * certificate against the specified trust anchors.
+     *
+     * @param source       the source of the reports and the certificate.
+     * @param trustAnchors the trust anchors to validate the certificate against.
+     */
+    public BidHelperJvm(BidReportSource source, BidTrustAnchors trustAnchors) {
+        this(source, trustAnchors, BidBase64.DECODER);
+    }
+
+    /**
+     * Creates a new helper.
+     *
+     * @param source        the source of the reports and the certificate.
+     * @param trustAnchors  the trust anchors to validate the certificate against.
+     * @param base64Decoder the decoder for the hashes within the reports.
+     */
+    BidHelperJvm(BidReportSource source, BidTrustAnchors trustAnchors, Base64Decoder base64Decoder) {
+        this.source = source;
+        this.trustAnchors = trustAnchors;
+        this.base64Decoder = base64Decoder;
+        this.listeners = new BidListenerRegistry();
+    }
+
+    /**
+     * Selects the XML parser this helper verifies reports with. Both engines
+     * produce the same verified fields; see <code>BidParserEngine</code>.
+     *
+     * @param parserEngine the parser engine, <code>SAX</code> by default.
+     */
+    public final void setParserEngine(BidParserEngine parserEngine) {
+        if (parserEngine == null) {
+            throw new NullPointerException("parserEngine");
+        }
+        this.parserEngine = parserEngine;
+    }
+
+    /**
+     * Returns the XML parser this helper verifies reports with.
+     *
+     * @return the parser engine.
+     */
+    public final BidParserEngine getParserEngine() {
+        return parserEngine;
+    }
+
+    /**
+     * Selects whether <code>verifyStatusReport</code> and <code>verifyFailureReport</code>
+     * check the certificate chain and TZ signature on a worker thread while
+     * parsing the report on the calling thread. This shortens the latency of
+     * verifying a single report on a device with more than one core, at the
+     * cost of a thread hand-off; the outcome is the same either way.
+     * <code>verifyFailureReports</code> already runs reports in parallel and
+     * is not affected.
+     *
+     * @param pipelinedVerification <code>true</code> to pipeline verification,
+     *                              <code>false</code> by default.
+     */
+    public final void setPipelinedVerification(boolean pipelinedVerification) {
+        this.pipelinedVerification = pipelinedVerification;
+    }
+
+    /**
+     * Returns <code>true</code> if this helper pipelines the verification of
+     * single reports.
+     *
+     * @return <code>true</code> if verification is pipelined.
+     */
+    public final boolean isPipelinedVerification() {
+        return pipelinedVerification;
+    }
+
+    /**
+     * Selects the order this helper runs the stages of verifying a report in.
+     * <code>CHEAPEST_FIRST</code> rejects corrupted and forged reports before
+     * parsing them; see <code>BidVerificationOrder</code>.
+     *
+     * @param verificationOrder the verification order, <code>PARSE_FIRST</code> by default.
+     */
+    public final void setVerificationOrder(BidVerificationOrder verificationOrder) {
+        if (verificationOrder == null) {
+            throw new NullPointerException("verificationOrder");
+        }
+        this.verificationOrder = verificationOrder;
+    }
+
+    /**
+     * Returns the order this helper runs the stages of verifying a report in.
+     *
+     * @return the verification order.
+     */
+    public final BidVerificationOrder getVerificationOrder() {
+        return verificationOrder;
+    }
+
+    /**
+     * Sets the limits on the XML reports this helper parses; a report which
+     * exceeds any of them fails verification with an <code>IOException</code>.
+     * The limits are copied.
+     *
+     * @param parserLimits the parser limits, the defaults of <code>BidParserLimits</code> unless set.
+     */
+    public final void setParserLimits(BidParserLimits parserLimits) {
+        if (parserLimits == null) {
+            throw new NullPointerException("parserLimits");
+        }
+        this.parserLimits = new BidParserLimits(parserLimits);
+    }
+
+    /**
+     * Returns a copy of the limits on the XML reports this helper parses.
+     *
+     * @return the parser limits.
+     */
+    public final BidParserLimits getParserLimits() {
+        return new BidParserLimits(parserLimits);
+    }
+
+    /**
+     * Returns the counts and times of the verification stages of all reports
+     * this helper has verified, and the stages which rejected them. Each
+     * report also records its own; see <code>BidVerifiable.getRejectedStage()</code>.
+     *
+     * @return the verification statistics of this helper.
+     */
+    public final BidVerificationStats getVerificationStats() {
+        return verificationStats;
+    }
+
+    /**
+     * Returns the source of the reports and the certificate.
+     *
+     * @return the source of the reports and the certificate.
+     */
+    public final BidReportSource getSource() {
+        return source;
+    }
+
+    /**
+     * Creates an un-verified status report object populated with the values
+     * of the specified record.
+     *
+     * @param record the raw, un-verified values for creating the report.
+     * @return an un-verified status report object.
+     */
+    private BidStatusReport createStatusReport(BidReportRecord record) {
+        return new BidStatusReport(record.getJbideReportBody(),
+                record.getKbideReportBody(),
+                record.getTzReportBody(),
+                record.getTzSignature(),
+                base64Decoder);
+    }
+
+    /**
+     * Creates an un-verified failure report object populated with the values
+     * of the specified record.
+     *
+     * @param record the raw, un-verified values for creating the report.
+     * @return an un-verified failure report object.
+     */
+    private BidFailureReport createFailureReport(BidReportRecord record) {
+        BidFailureReport report = new BidFailureReport(record.getJbideReportBody(),
+                record.getKbideReportBody(),
+                record.getTzReportBody(),
+                record.getTzSignature(),
+                base64Decoder);
+        if (record.getDateReceived() >= 0) {
+            report.setDateReceived(record.getDateReceived());
+        }
+        return report;
+    }
+
+    /**
+     * Returns a certificate verifier for the current certificate whose chain
+     * has been verified.
+     *
+     * @param certReqd indicates whether a certificate is required for verification.
+     * @return a certificate verifier for the current certificate.
+     * @throws BidCertificateUnavailableException      if the certificate is not available and
+     *                                                 <code>certReqd</code> is <code>true</code>.
+     * @throws java.security.cert.CertificateException if the certificate chain is invalid.
+     */
+    private BidCertificateVerifier getCertificateVerifier(boolean certReqd)
+            throws BidCertificateUnavailableException,
+            CertificateException {
+        if (certReqd && !isCertificateAvailable()) {
+            throw new BidCertificateUnavailableException("certificate not available");
+        }
+        // get certificate verifier - platform specific, pass in certificate
+        BidCertificateVerifier bcv = new BidCertificateVerifierAndroid(trustAnchors);
+        bcv.setCertificate(bidCert);
+        bcv.verifyCertificateChain();
+        return bcv;
+    }
+
+    /**
+     * Releases the resources held by this helper. The source is not closed.
+     */
+    @Override
+    public void destroy() {
+    }
+
+    @Override
+    public void addBidListener(BidListener listener) {
+        if (listener != null) {
+            listeners.add(listener, BidListenerRegistry.DIRECT_EXECUTOR);
+        }
+    }
+
+    @Override
+    public void addBidListener(BidListener listener, Executor executor) {
+        if (listener != null) {
+            listeners.add(listener, executor);
+        }
+    }
+
+    @Override
+    public void removeBidListener(BidListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Notifies the listeners that a certificate is available.
+     */
+    public void fireCertificateAvailable() {
+        listeners.fireCertificateAvailable();
+    }
+
+    /**
+     * Notifies the listeners that a report was inserted.
+     */
+    public void fireReportInserted() {
+        listeners.fireReportInserted();
+    }
+
+    @Override
+    public synchronized boolean isCertificateAvailable() {
+        if (bidCert == null) {
+            // We have not retrieved the certificate yet. Let's do that now
+            byte[] certificateBytes = null;
+            try {
+                certificateBytes = requestBidCertificate();
+            } catch (BidCertificateUnavailableException ex) {
+                // Certificate is not available
+                return false;
+            } catch (BidRequestException bre) {
+                return false;
+            }
+
+            // create an X509Certificate from the byte array
+            ByteArrayInputStream bis = new ByteArrayInputStream(certificateBytes);
+            try {
+                CertificateFactory cf = CertificateFactory.getInstance("X.509");
+                bidCert = (X509Certificate) cf.generateCertificate(bis);
+            } catch (CertificateException ce) {
+                return false;
+            }
+
+        }
+
+        if (bidCert != null) {
+            try {
+                bidCert.checkValidity();
+            } catch (CertificateExpiredException cee) {
+                bidCert = null;
+                return false;
+
+            } catch (CertificateNotYetValidException cnyve) {
+                return false;
+            }
+
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public BidStatusReport requestStatusReport(BigInteger nonce)
+            throws BidRequestException {
+        return createStatusReport(source.queryStatusReport(nonce));
+    }
+
+    @Override
+    public void verifyStatusReport(BidStatusReport report, BigInteger nonce, boolean certReqd)
+            throws BidCertificateUnavailableException,
+            IOException,
+            BidHashMismatchException,
+            BidSignatureVerificationException,
+            BidNonceMismatchException,
+            CertificateException {
+        BidCertificateVerifier bcv = getCertificateVerifier(certReqd);
+
+        try {
+            report.verify(bcv, parserEngine, pipelinedVerification, verificationOrder, parserLimits);
+        } finally {
+            verificationStats.record(report);
+        }
+        if (!nonce.equals(report.getNonce())) {
+            report.revokeVerification();
+            throw new BidNonceMismatchException("reported nonce does not match expected value");
+        }
+    }
+
+    @Override
+    public byte[] requestBidCertificate()
+            throws BidCertificateUnavailableException,
+            BidRequestException {
+        return source.queryCertificate();
+    }
+
+    @Override
+    public BidFailureReport requestFailureReport(String reportId)
+            throws BidRequestException {
+        return createFailureReport(source.queryFailureReport(reportId));
+    }
+
+    @Override
+    public BidFailureReport[] requestAllFailureReports()
+            throws BidRequestException {
+        List<BidReportRecord> records = source.queryFailureReports(-1, 0, 0);
+        BidFailureReport[] result = new BidFailureReport[records.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = createFailureReport(records.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public BidFailureReportStream requestFailureReportStream(int windowSize)
+            throws BidRequestException {
+        return requestFailureReportsReceivedAfter(-1, windowSize);
+    }
+
+    @Override
+    public BidFailureReportStream requestFailureReportsReceivedAfter(long dateReceived, int windowSize)
+            throws BidRequestException {
+        if (windowSize < 0) {
+            throw new IllegalArgumentException("negative window size");
+        }
+        return new WindowedFailureReportStream(dateReceived, windowSize);
+    }
+
+    @Override
+    public void verifyFailureReport(BidFailureReport report, boolean certReqd)
+            throws BidCertificateUnavailableException,
+            IOException,
+            BidHashMismatchException,
+            BidSignatureVerificationException,
+            CertificateException {
+        BidCertificateVerifier bcv = getCertificateVerifier(certReqd);
+
+        try {
+            report.verify(bcv, parserEngine, pipelinedVerification, verificationOrder, parserLimits);
+        } finally {
+            verificationStats.record(report);
+        }
+    }
+
+    @Override
+    public BidVerificationResult[] verifyFailureReports(BidFailureReport[] reports, boolean certReqd)
+            throws BidCertificateUnavailableException,
+            CertificateException {
+        BidCertificateVerifier bcv = getCertificateVerifier(certReqd);
+
+        return BidBatchVerifier.verifyAll(reports, bcv, parserEngine, verificationOrder, parserLimits,
+                verificationStats);
+    }
+
+    /**
+     * A stream of failure reports which queries the source one window at a
+     * time and drops each window before querying the next.
+     * <p/>
+     * Each window is keyed on the received date of the last report returned,
+     * so reports BID adds or deletes while the stream is iterated do not shift
+     * the later windows. Only the reports received in that same millisecond
+     * are skipped by offset.
+     * <p/>
+     * A source which does not honour the limit returns more than a window,
+     * which is then taken as every report. One which does not honour the
+     * offset returns a report already returned first; the rest of the reports
+     * are then fetched in one query, less those already returned, rather
+     * than repeating reports. One which fails the first windowed query, such
+     * as a content provider which rejects the paging clauses of its sort
+     * order, is queried once more for every report at once.
+     */
+    private final class WindowedFailureReportStream implements BidFailureReportStream {
+        private final long dateReceived;
+        private final int windowSize;
+        private List<BidReportRecord> window;
+        private int position;
+        // the key of the next window: the date of the last report returned,
+        // and the signatures of the reports returned with that date
+        private long lastDate;
+        private final List<byte[]> lastDateSignatures = new ArrayList<byte[]>();
+        private boolean lastWindow;
+        private boolean iterated;
+
+        /**
+         * Creates a new stream and queries its first window.
+         *
+         * @param dateReceived only reports received after this date are streamed,
+         *                     or all of them if negative.
+         * @param windowSize   the number of reports to fetch at a time, or 0 for all.
+         * @throws BidRequestException if an error occurred while attempting to fetch the reports.
+         */
+        WindowedFailureReportStream(long dateReceived, int windowSize)
+                throws BidRequestException {
+            this.dateReceived = dateReceived;
+            this.windowSize = windowSize;
+            openWindow();
+        }
+
+        @Override
+        public Iterator<BidFailureReport> iterator() {
+            if (iterated) {
+                throw new IllegalStateException("stream can only be iterated once");
+            }
+            iterated = true;
+
+            return new Iterator<BidFailureReport>() {
+                @Override
+                public boolean hasNext() {
+                    return advance();
+                }
+
+                @Override
+                public BidFailureReport next() {
+                    if (!advance()) {
+                        throw new NoSuchElementException();
+                    }
+                    BidReportRecord record = window.get(position++);
+                    if (lastDateSignatures.isEmpty() || record.getDateReceived() != lastDate) {
+                        lastDate = record.getDateReceived();
+                        lastDateSignatures.clear();
+                    }
+                    lastDateSignatures.add(record.getTzSignature());
+                    return createFailureReport(record);
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            window = null;
+            lastDateSignatures.clear();
+            lastWindow = true;
+        }
+
+        /**
+         * Makes sure the current window has a next report, moving on to the
+         * next window as needed.
+         *
+         * @return <code>true</code> if there is a next report, <code>false</code>
+         * otherwise.
+         */
+        private boolean advance() {
+            while (window == null || position == window.size()) {
+                if (lastWindow) {
+                    window = null;
+                    return false;
+                }
+                try {
+                    openWindow();
+                } catch (BidRequestException bre) {
+                    close();
+                    throw new IllegalStateException(bre);
+                }
+            }
+            return true;
+        }
+
+        private void openWindow()
+                throws BidRequestException {
+            List<BidReportRecord> next;
+            if (lastDateSignatures.isEmpty()) {
+                try {
+                    next = source.queryFailureReports(dateReceived, 0, windowSize);
+                } catch (BidRequestException bre) {
+                    if (windowSize == 0) {
+                        throw bre;
+                    }
+                    // the source may not support paging; fetch every report at once
+                    window = source.queryFailureReports(dateReceived, 0, 0);
+                    position = 0;
+                    lastWindow = true;
+                    return;
+                }
+            } else {
+                // the reports received at or after the last date, less those already returned
+                next = source.queryFailureReports(lastDate - 1, lastDateSignatures.size(), windowSize);
+            }
+            position = 0;
+            if (!next.isEmpty() && isReturned(next.get(0))) {
+                // the source ignored the offset; fetch the rest at once
+                List<BidReportRecord> rest = source.queryFailureReports(lastDate - 1, 0, 0);
+                next = new ArrayList<BidReportRecord>(rest.size());
+                for (BidReportRecord record : rest) {
+                    if (!isReturned(record)) {
+                        next.add(record);
+                    }
+                }
+                lastWindow = true;
+            } else {
+                lastWindow = windowSize == 0 || next.size() != windowSize;
+            }
+            window = next;
+        }
+
+        /**
+         * Returns <code>true</code> if the specified report was returned
+         * among those received on the last date.
+         */
+        private boolean isReturned(BidReportRecord record) {
+            if (record.getDateReceived() != lastDate) {
+                return false;
+            }
+            for (byte[] signature : lastDateSignatures) {
+                if (Arrays.equals(signature, record.getTzSignature())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
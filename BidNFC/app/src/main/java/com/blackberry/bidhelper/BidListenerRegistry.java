@@ -0,0 +1,150 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A thread-safe set of BID listeners, each notified on its own executor.
+ * <p/>
+ * Listeners may be added and removed from any thread, including from within
+ * a notification. Report insertions are coalesced per listener: while a
+ * listener's notification is waiting on its executor, further insertions
+ * only increase the count it will be given.
+ * <p/>
+ * A listener or executor which throws while being notified is logged and
+ * skipped, so the listeners registered after it are still notified and the
+ * exception never reaches the code which fired the event.
+ */
+final class BidListenerRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger(BidListenerRegistry.class.getName());
+
+    /**
+     * An executor which runs tasks on the calling thread.
+     */
+    static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * A listener together with its executor and pending report insertions.
+     */
+    private static final class Registration {
+        final BidListener listener;
+        final Executor executor;
+        final AtomicInteger pendingReports = new AtomicInteger();
+        volatile boolean removed;
+
+        Registration(BidListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        final Runnable certificateAvailable = new Runnable() {
+            @Override
+            public void run() {
+                if (!removed) {
+                    listener.certificateAvailable();
+                }
+            }
+        };
+
+        final Runnable reportsInserted = new Runnable() {
+            @Override
+            public void run() {
+                int count = pendingReports.getAndSet(0);
+                if (removed || count == 0) {
+                    return;
+                }
+                if (listener instanceof BidReportCountListener) {
+                    ((BidReportCountListener) listener).reportsInserted(count);
+                } else {
+                    listener.reportInserted();
+                }
+            }
+        };
+    }
+
+    private final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+
+    /**
+     * Adds a listener to be notified on the specified executor.
+     *
+     * @param listener the listener.
+     * @param executor the executor to notify the listener on.
+     */
+    void add(BidListener listener, Executor executor) {
+        if (listener == null || executor == null) {
+            throw new NullPointerException();
+        }
+        registrations.add(new Registration(listener, executor));
+    }
+
+    /**
+     * Removes the first registration of the specified listener. Notifications
+     * already handed to its executor are dropped.
+     *
+     * @param listener the listener.
+     */
+    void remove(BidListener listener) {
+        for (Registration registration : registrations) {
+            if (registration.listener == listener) {
+                registration.removed = true;
+                registrations.remove(registration);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Notifies each listener that a certificate is available.
+     */
+    void fireCertificateAvailable() {
+        for (Registration registration : registrations) {
+            try {
+                registration.executor.execute(registration.certificateAvailable);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "certificate notification failed for " + registration.listener, e);
+            }
+        }
+    }
+
+    /**
+     * Notifies each listener that a report was inserted, unless a notification
+     * is already pending for it, in which case only its count is increased.
+     */
+    void fireReportInserted() {
+        for (Registration registration : registrations) {
+            if (registration.pendingReports.getAndIncrement() == 0) {
+                try {
+                    registration.executor.execute(registration.reportsInserted);
+                } catch (RuntimeException e) {
+                    // let the next insertion try again
+                    registration.pendingReports.set(0);
+                    LOGGER.log(Level.WARNING, "report notification failed for " + registration.listener, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded map which evicts its least recently used entry when full.
+ * All methods are thread-safe.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the values.
+ */
+final class BidLruCache<K, V> {
+
+    private final LinkedHashMap<K, V> map;
+
+    /**
+     * Creates a new, empty cache.
+     *
+     * @param capacity the maximum number of entries.
+     */
+    BidLruCache(final int capacity) {
+        map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the value of the specified key, and marks it as the most
+     * recently used, or returns null if there is none.
+     *
+     * @param key the key.
+     * @return the value of the key, or null.
+     */
+    synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    /**
+     * Sets the value of the specified key, evicting the least recently used
+     * entry if the cache is full.
+     *
+     * @param key   the key.
+     * @param value the value.
+     */
+    synchronized void put(K key, V value) {
+        map.put(key, value);
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return the number of entries.
+     */
+    synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * Removes all entries.
+     */
+    synchronized void clear() {
+        map.clear();
+    }
+}
@@ -0,0 +1,196 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Limits on the XML reports a <code>BidHelper</code> parses, which bound the
+ * time and memory a verification can take whatever the reports hold. A
+ * report which exceeds a limit fails verification as soon as the limit is
+ * reached, with an <code>IOException</code> as for any malformed report.
+ * <p/>
+ * The defaults are far above the size of real BID reports. Document type
+ * declarations, and with them entity declarations and external entities,
+ * are always refused.
+ * <p/>
+ * A helper copies the limits it is given, so changing them afterwards does
+ * not affect the helper.
+ */
+public final class BidParserLimits {
+
+    /**
+     * Default maximum length of each XML report, in bytes of UTF-8.
+     */
+    public static final int DEFAULT_MAX_REPORT_LENGTH = 4 * 1024 * 1024;
+
+    /**
+     * Default maximum depth of element nesting.
+     */
+    public static final int DEFAULT_MAX_DEPTH = 64;
+
+    /**
+     * Default maximum number of <code>failure</code> elements per report.
+     */
+    public static final int DEFAULT_MAX_FAILURES = 100000;
+
+    /**
+     * Default maximum length of the text of an element, in characters.
+     */
+    public static final int DEFAULT_MAX_TEXT_LENGTH = 64 * 1024;
+
+    /**
+     * The default limits, which must not be changed.
+     */
+    static final BidParserLimits DEFAULT = new BidParserLimits();
+
+    private int maxReportLength = DEFAULT_MAX_REPORT_LENGTH;
+    private int maxDepth = DEFAULT_MAX_DEPTH;
+    private int maxFailures = DEFAULT_MAX_FAILURES;
+    private int maxTextLength = DEFAULT_MAX_TEXT_LENGTH;
+
+    /**
+     * Creates a new instance with the default limits.
+     */
+    public BidParserLimits() {
+    }
+
+    /**
+     * Creates a copy of the specified limits.
+     *
+     * @param limits the limits to copy.
+     */
+    public BidParserLimits(BidParserLimits limits) {
+        this.maxReportLength = limits.maxReportLength;
+        this.maxDepth = limits.maxDepth;
+        this.maxFailures = limits.maxFailures;
+        this.maxTextLength = limits.maxTextLength;
+    }
+
+    /**
+     * Sets the maximum length of each of the JBIDE, KBIDE and TZ reports, in
+     * bytes of UTF-8, which is checked before the report is parsed.
+     *
+     * @param maxReportLength the maximum length of a report.
+     * @return this object.
+     */
+    public BidParserLimits setMaxReportLength(int maxReportLength) {
+        this.maxReportLength = checkPositive(maxReportLength, "maxReportLength");
+        return this;
+    }
+
+    /**
+     * Returns the maximum length of each XML report, in bytes of UTF-8.
+     *
+     * @return the maximum length of a report.
+     */
+    public int getMaxReportLength() {
+        return maxReportLength;
+    }
+
+    /**
+     * Sets the maximum depth of element nesting, counting the root element
+     * as depth 1.
+     *
+     * @param maxDepth the maximum depth.
+     * @return this object.
+     */
+    public BidParserLimits setMaxDepth(int maxDepth) {
+        this.maxDepth = checkPositive(maxDepth, "maxDepth");
+        return this;
+    }
+
+    /**
+     * Returns the maximum depth of element nesting.
+     *
+     * @return the maximum depth.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Sets the maximum number of <code>failure</code> elements in the XML
+     * reports of one report, taken together.
+     *
+     * @param maxFailures the maximum number of failure elements.
+     * @return this object.
+     */
+    public BidParserLimits setMaxFailures(int maxFailures) {
+        this.maxFailures = checkPositive(maxFailures, "maxFailures");
+        return this;
+    }
+
+    /**
+     * Returns the maximum number of <code>failure</code> elements per report.
+     *
+     * @return the maximum number of failure elements.
+     */
+    public int getMaxFailures() {
+        return maxFailures;
+    }
+
+    /**
+     * Sets the maximum length of the text of an element the reports read,
+     * in characters.
+     *
+     * @param maxTextLength the maximum length of the text of an element.
+     * @return this object.
+     */
+    public BidParserLimits setMaxTextLength(int maxTextLength) {
+        this.maxTextLength = checkPositive(maxTextLength, "maxTextLength");
+        return this;
+    }
+
+    /**
+     * Returns the maximum length of the text of an element, in characters.
+     *
+     * @return the maximum length of the text of an element.
+     */
+    public int getMaxTextLength() {
+        return maxTextLength;
+    }
+
+    void checkReportLength(int length) throws SAXException {
+        if (length > maxReportLength) {
+            throw new SAXException("XML report exceeds " + maxReportLength + " bytes");
+        }
+    }
+
+    void checkDepth(int depth) throws SAXException {
+        if (depth > maxDepth) {
+            throw new SAXException("XML elements nested more than " + maxDepth + " deep");
+        }
+    }
+
+    void checkFailures(int failures) throws SAXException {
+        if (failures > maxFailures) {
+            throw new SAXException("report has more than " + maxFailures + " failures");
+        }
+    }
+
+    void checkTextLength(int length) throws SAXException {
+        if (length > maxTextLength) {
+            throw new SAXException("XML element text exceeds " + maxTextLength + " characters");
+        }
+    }
+
+    private static int checkPositive(int value, String name) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(name + " must be positive");
+        }
+        return value;
+    }
+}
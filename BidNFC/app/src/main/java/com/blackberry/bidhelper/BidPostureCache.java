@@ -0,0 +1,160 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.io.IOException;
+import java.security.cert.CertificateException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the last verified status report of a <code>BidHelper</code> for a
+ * limited time, so that repeated posture checks do not each have to request
+ * and verify a new report.
+ * <p/>
+ * The cache registers itself as a listener of the helper and drops the
+ * cached report as soon as BID inserts a new report or its certificate
+ * becomes available, so a cached report is never older than the latest
+ * change BID has announced. A report being fetched when such an event
+ * arrives is returned to its caller but not cached.
+ * <p/>
+ * The cache is thread-safe. When done with it, call <code>destroy()</code>
+ * to unregister it from the helper.
+ */
+public final class BidPostureCache implements BidListener {
+
+    private final BidHelper helper;
+    private final long ttlNanos;
+    private final BidStatusCoalescer coalescer;
+    private BidStatusReport report;
+    private long expiry;
+    private int generation;
+
+    /**
+     * Creates a new cache and registers it as a listener of the specified helper.
+     *
+     * @param helper    the helper used to request and verify the reports.
+     * @param ttlMillis the time in milliseconds a verified report remains cached.
+     * @param certReqd  indicates whether a certificate is required for verification.
+     *                  See <code>BidHelper.verifyStatusReport</code>.
+     */
+    public BidPostureCache(BidHelper helper, long ttlMillis, boolean certReqd) {
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("negative ttl");
+        }
+        this.helper = helper;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.coalescer = new BidStatusCoalescer(helper, certReqd);
+        helper.addBidListener(this);
+    }
+
+    /**
+     * Returns the helper used to request and verify the reports.
+     *
+     * @return the helper used to request and verify the reports.
+     */
+    public BidHelper getHelper() {
+        return helper;
+    }
+
+    /**
+     * Returns the cached report if it has not expired, without requesting
+     * a new one.
+     *
+     * @return the cached verified report, or null if none.
+     */
+    public synchronized BidStatusReport peek() {
+        return isFresh() ? report : null;
+    }
+
+    /**
+     * Returns the cached report if it has not expired, or else requests and
+     * verifies a new report with a random nonce and caches it. Concurrent
+     * callers which find the cache empty share a single request; see
+     * <code>BidStatusCoalescer</code>.
+     *
+     * @return a verified status report.
+     * @throws BidRequestException                     if an error occurred while attempting to fetch the report.
+     * @throws BidCertificateUnavailableException      if the certificate is not available and a certificate
+     *                                                 is required.
+     * @throws java.io.IOException                     if an i/o error occurs.
+     * @throws BidHashMismatchException                if the hash values do not match.
+     * @throws BidSignatureVerificationException       if the signature verification fails.
+     * @throws BidNonceMismatchException               if the nonce values do not match.
+     * @throws java.security.cert.CertificateException if the certificate chain part of the report is invalid
+     */
+    public BidStatusReport getStatus()
+            throws BidRequestException,
+            BidCertificateUnavailableException,
+            IOException,
+            BidHashMismatchException,
+            BidSignatureVerificationException,
+            BidNonceMismatchException,
+            CertificateException {
+        int requestGeneration;
+        synchronized (this) {
+            if (isFresh()) {
+                return report;
+            }
+            requestGeneration = generation;
+        }
+
+        BidStatusReport fresh = coalescer.getStatus();
+
+        synchronized (this) {
+            if (requestGeneration == generation) {
+                report = fresh;
+                expiry = System.nanoTime() + ttlNanos;
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * Indicates whether the cached report exists and has not expired.
+     * The caller must hold the lock.
+     *
+     * @return <code>true</code> if the cached report may be returned.
+     */
+    private boolean isFresh() {
+        return report != null && System.nanoTime() - expiry < 0;
+    }
+
+    /**
+     * Drops the cached report, so that the next call to <code>getStatus()</code>
+     * requests a new one.
+     */
+    public synchronized void invalidate() {
+        report = null;
+        generation++;
+    }
+
+    /**
+     * Unregisters the cache from the helper and drops the cached report.
+     */
+    public void destroy() {
+        helper.removeBidListener(this);
+        invalidate();
+    }
+
+    @Override
+    public void certificateAvailable() {
+        invalidate();
+    }
+
+    @Override
+    public void reportInserted() {
+        invalidate();
+    }
+}
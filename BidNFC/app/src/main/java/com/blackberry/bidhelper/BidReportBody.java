@@ -0,0 +1,238 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.cert.CertificateException;
+import java.util.Arrays;
+
+/**
+ * The raw body of a JBIDE, KBIDE or TZ report, held as the UTF-8 bytes BID
+ * hashes and signs.
+ * <p/>
+ * A report is verified straight from its bytes: they are hashed, checked,
+ * parsed and passed to the signature check without being decoded into a
+ * <code>String</code> or encoded again, so a large report is held once, at
+ * about half the size of its UTF-16 form.
+ * <p/>
+ * A body is immutable. Its bytes are not copied; the caller must not modify
+ * them after creating the body.
+ */
+public final class BidReportBody {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The largest array some VMs can allocate.
+     */
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final byte[] bytes;
+    private final int length;
+
+    private BidReportBody(byte[] bytes, int length) {
+        this.bytes = bytes;
+        this.length = length;
+    }
+
+    /**
+     * Returns the body of the specified report, encoded in UTF-8.
+     *
+     * @param report the report, or null.
+     * @return the body of the report, or null if the report is null.
+     */
+    public static BidReportBody fromString(String report) {
+        if (report == null) {
+            return null;
+        }
+        byte[] bytes = report.getBytes(UTF_8);
+        return new BidReportBody(bytes, bytes.length);
+    }
+
+    /**
+     * Returns the body held by the specified UTF-8 bytes, which are not copied.
+     *
+     * @param bytes the UTF-8 bytes of the report, or null.
+     * @return the body of the report, or null if the bytes are null.
+     */
+    public static BidReportBody fromUtf8(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        return new BidReportBody(bytes, bytes.length);
+    }
+
+    /**
+     * Returns the body held by the UTF-8 text of a cursor field, read with
+     * <code>getBlob()</code>, which ends with the NUL terminator of the field.
+     *
+     * @param bytes the UTF-8 bytes of the field, or null.
+     * @return the body of the report, or null if the bytes are null.
+     */
+    static BidReportBody fromCursorText(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == 0) {
+            length--;
+        }
+        return new BidReportBody(bytes, length);
+    }
+
+    /**
+     * Reads the body of a report from the specified stream of UTF-8 bytes,
+     * up to the end of the stream. The stream is not closed.
+     *
+     * @param in        the stream to read.
+     * @param maxLength the maximum length of the report, in bytes, which is
+     *                  capped just below the largest array the VM can allocate.
+     * @return the body of the report.
+     * @throws java.io.IOException if an i/o error occurs, or the report is
+     *                             longer than <code>maxLength</code>.
+     */
+    public static BidReportBody read(InputStream in, int maxLength) throws IOException {
+        // one byte past the limit must fit in the buffer, to tell an overlong report
+        int limit = Math.min(maxLength, MAX_ARRAY_LENGTH - 1);
+        byte[] buffer = new byte[Math.min(BUFFER_SIZE, limit + 1)];
+        int count = 0;
+        int read;
+        while ((read = in.read(buffer, count, buffer.length - count)) >= 0) {
+            count += read;
+            if (count > limit) {
+                throw new IOException("report exceeds " + limit + " bytes");
+            }
+            if (count == buffer.length) {
+                buffer = Arrays.copyOf(buffer, (int) Math.min(2L * count, limit + 1));
+            }
+        }
+        return new BidReportBody(buffer, count);
+    }
+
+    /**
+     * Returns the length of this body, in bytes.
+     *
+     * @return the length of this body.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Returns <code>true</code> if this body is empty.
+     *
+     * @return <code>true</code> if this body is empty.
+     */
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    /**
+     * Returns a new stream over the bytes of this body.
+     *
+     * @return a stream over the bytes of this body.
+     */
+    public InputStream openStream() {
+        return new ByteArrayInputStream(bytes, 0, length);
+    }
+
+    /**
+     * Returns the report decoded from UTF-8. The report is decoded on each
+     * call and not kept.
+     *
+     * @return the report.
+     */
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, UTF_8);
+    }
+
+    /**
+     * Verifies that the bytes of this body were signed with the specified
+     * signature. The bytes are passed to the Android verifier in place, and
+     * to any other verifier as an array of their own, which is only copied
+     * if the body does not fill its array.
+     *
+     * @param certVerifier the verifier of the signature.
+     * @param signature    the signature.
+     * @return <code>true</code> if the signature verifies.
+     * @throws java.security.cert.CertificateException if the signature cannot be checked.
+     */
+    boolean verifySignature(BidCertificateVerifier certVerifier, byte[] signature)
+            throws CertificateException {
+        if (certVerifier instanceof BidCertificateVerifierAndroid) {
+            return ((BidCertificateVerifierAndroid) certVerifier).verifyReport(bytes, 0, length, signature);
+        }
+        byte[] report = length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
+        return certVerifier.verifyReport(report, signature);
+    }
+
+    /**
+     * Returns the SHA-256 hash of the bytes of this body.
+     *
+     * @return the SHA-256 hash of this body.
+     */
+    byte[] sha256() {
+        return BidDigester.sha256(bytes, 0, length);
+    }
+
+    /**
+     * Returns the byte at the specified index.
+     *
+     * @param index the index, less than <code>length()</code>.
+     * @return the byte at the index.
+     */
+    byte byteAt(int index) {
+        return bytes[index];
+    }
+
+    /**
+     * Returns the index of the first occurrence of the specified bytes at or
+     * after the specified index, or -1 if there is none.
+     *
+     * @param target the bytes to find.
+     * @param from   the index to start from.
+     * @return the index of the bytes, or -1.
+     */
+    int indexOf(byte[] target, int from) {
+        int last = length - target.length;
+        for (int i = Math.max(from, 0); i <= last; i++) {
+            int j = 0;
+            while (j < target.length && bytes[i + j] == target[j]) {
+                j++;
+            }
+            if (j == target.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the specified range of this body decoded from UTF-8.
+     *
+     * @param start the index of the first byte.
+     * @param end   the index after the last byte.
+     * @return the decoded range.
+     */
+    String decode(int start, int end) {
+        return new String(bytes, start, end - start, UTF_8);
+    }
+}
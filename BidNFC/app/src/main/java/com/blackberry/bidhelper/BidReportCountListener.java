@@ -0,0 +1,33 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+/**
+ * A listener interface for BID events which is told how many reports were
+ * inserted since it was last notified.
+ * <p/>
+ * Report insertions which arrive while a listener's previous notification
+ * is still waiting on its executor are folded into that notification. A
+ * listener implementing this interface receives <code>reportsInserted</code>
+ * in place of <code>reportInserted</code>.
+ */
+public interface BidReportCountListener extends BidListener {
+    /**
+     * Handles notification that one or more reports were inserted.
+     *
+     * @param count the number of reports inserted since the last notification.
+     */
+    public void reportsInserted(int count);
+}
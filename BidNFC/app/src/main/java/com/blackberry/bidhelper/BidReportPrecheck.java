@@ -0,0 +1,115 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.nio.charset.Charset;
+
+/**
+ * Checks of raw reports that are cheap enough to run before parsing them.
+ * <p/>
+ * The checks are conservative: they only reject what the parser or the
+ * signature check would reject as well, and leave anything they do not
+ * fully understand to them.
+ * <p/>
+ * The checks read the UTF-8 bytes of the reports. All the markup they look
+ * for is ASCII, and no byte of a multi-byte UTF-8 sequence is, so a match
+ * is never found inside another character.
+ */
+final class BidReportPrecheck {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private BidReportPrecheck() {
+    }
+
+    /**
+     * Returns <code>true</code> if the specified XML report is empty, or
+     * begins and ends with markup as every well-formed document does.
+     *
+     * @param xml the XML report.
+     * @return <code>true</code> if the report may be a well-formed document.
+     */
+    static boolean isFramed(BidReportBody xml) {
+        int start = 0;
+        int end = xml.length();
+        while (start < end) {
+            if (isWhitespace(xml.byteAt(start))) {
+                start++;
+            } else if (isByteOrderMark(xml, start, end)) {
+                start += 3;
+            } else {
+                break;
+            }
+        }
+        while (end > start && isWhitespace(xml.byteAt(end - 1))) {
+            end--;
+        }
+        return start == end || (xml.byteAt(start) == '<' && xml.byteAt(end - 1) == '>');
+    }
+
+    /**
+     * Returns the text of the first element with the specified name, if it
+     * can be found without parsing the report: the element must be written
+     * <code>&lt;name&gt;text&lt;/name&gt;</code>, and neither the text nor
+     * the markup before it may hold anything but elements, attributes and an
+     * XML declaration. Otherwise returns null, leaving it to the parser.
+     *
+     * @param xml  the XML report.
+     * @param name the name of the element.
+     * @return the text of the element, or null if it cannot be found.
+     */
+    static String findElementText(BidReportBody xml, String name) {
+        byte[] startTag = ("<" + name + ">").getBytes(UTF_8);
+        int open = xml.indexOf(startTag, 0);
+        if (open < 0) {
+            return null;
+        }
+        // A comment, CDATA section, DOCTYPE or processing instruction could
+        // hide or fake the element
+        int first = -1;
+        for (int i = 0; i < open; i++) {
+            if (xml.byteAt(i) == '<') {
+                byte next = xml.byteAt(i + 1);
+                if (next == '!' || (next == '?' && first >= 0)) {
+                    return null;
+                }
+                if (first < 0) {
+                    first = i;
+                }
+            }
+        }
+        int start = open + startTag.length;
+        int end = xml.indexOf(("</" + name + ">").getBytes(UTF_8), start);
+        if (end < 0) {
+            return null;
+        }
+        for (int i = start; i < end; i++) {
+            byte b = xml.byteAt(i);
+            if (b == '<' || b == '&') {
+                return null;
+            }
+        }
+        return xml.decode(start, end);
+    }
+
+    private static boolean isByteOrderMark(BidReportBody xml, int start, int end) {
+        return end - start >= 3 && xml.byteAt(start) == (byte) 0xEF
+                && xml.byteAt(start + 1) == (byte) 0xBB && xml.byteAt(start + 2) == (byte) 0xBF;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+}
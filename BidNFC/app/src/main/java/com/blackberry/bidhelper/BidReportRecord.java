@@ -0,0 +1,151 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+/**
+ * The raw, un-verified values of a single BID report as returned by a
+ * <code>BidReportSource</code>, from which the helper creates report objects.
+ * <p/>
+ * The reports are held as <code>BidReportBody</code> UTF-8 bytes. A source
+ * which reads bytes should create the record from them directly, since
+ * reports given as strings are encoded once here.
+ */
+public final class BidReportRecord {
+
+    private final BidReportBody jbideReport;
+    private final BidReportBody kbideReport;
+    private final BidReportBody tzReport;
+    private final byte[] tzSignature;
+    private final long dateReceived;
+
+    /**
+     * Creates a new record with no received date, as for a status report.
+     *
+     * @param jbideReport the JBIDE report.
+     * @param kbideReport the KBIDE report.
+     * @param tzReport    the TZ report.
+     * @param tzSignature the signature of the TZ report.
+     */
+    public BidReportRecord(String jbideReport, String kbideReport, String tzReport, byte[] tzSignature) {
+        this(jbideReport, kbideReport, tzReport, tzSignature, -1);
+    }
+
+    /**
+     * Creates a new record. The signature is not copied; the caller must not
+     * modify it afterwards.
+     *
+     * @param jbideReport  the JBIDE report.
+     * @param kbideReport  the KBIDE report.
+     * @param tzReport     the TZ report.
+     * @param tzSignature  the signature of the TZ report.
+     * @param dateReceived the date BID received the report, or -1 if unknown.
+     */
+    public BidReportRecord(String jbideReport, String kbideReport, String tzReport, byte[] tzSignature,
+                           long dateReceived) {
+        this(BidReportBody.fromString(jbideReport), BidReportBody.fromString(kbideReport),
+                BidReportBody.fromString(tzReport), tzSignature, dateReceived);
+    }
+
+    /**
+     * Creates a new record from the bodies of the reports. The signature is
+     * not copied; the caller must not modify it afterwards.
+     *
+     * @param jbideReport  the JBIDE report.
+     * @param kbideReport  the KBIDE report.
+     * @param tzReport     the TZ report.
+     * @param tzSignature  the signature of the TZ report.
+     * @param dateReceived the date BID received the report, or -1 if unknown.
+     */
+    public BidReportRecord(BidReportBody jbideReport, BidReportBody kbideReport, BidReportBody tzReport,
+                           byte[] tzSignature, long dateReceived) {
+        this.jbideReport = jbideReport;
+        this.kbideReport = kbideReport;
+        this.tzReport = tzReport;
+        this.tzSignature = tzSignature;
+        this.dateReceived = dateReceived;
+    }
+
+    /**
+     * Returns the JBIDE report, decoded on each call.
+     *
+     * @return the JBIDE report.
+     */
+    public String getJbideReport() {
+        return jbideReport != null ? jbideReport.toString() : null;
+    }
+
+    /**
+     * Returns the KBIDE report, decoded on each call.
+     *
+     * @return the KBIDE report.
+     */
+    public String getKbideReport() {
+        return kbideReport != null ? kbideReport.toString() : null;
+    }
+
+    /**
+     * Returns the TZ report, decoded on each call.
+     *
+     * @return the TZ report.
+     */
+    public String getTzReport() {
+        return tzReport != null ? tzReport.toString() : null;
+    }
+
+    /**
+     * Returns the body of the JBIDE report.
+     *
+     * @return the body of the JBIDE report.
+     */
+    public BidReportBody getJbideReportBody() {
+        return jbideReport;
+    }
+
+    /**
+     * Returns the body of the KBIDE report.
+     *
+     * @return the body of the KBIDE report.
+     */
+    public BidReportBody getKbideReportBody() {
+        return kbideReport;
+    }
+
+    /**
+     * Returns the body of the TZ report.
+     *
+     * @return the body of the TZ report.
+     */
+    public BidReportBody getTzReportBody() {
+        return tzReport;
+    }
+
+    /**
+     * Returns the signature of the TZ report. The caller must not modify it.
+     *
+     * @return the signature of the TZ report.
+     */
+    public byte[] getTzSignature() {
+        return tzSignature;
+    }
+
+    /**
+     * Returns the date BID received the report, or -1 if unknown.
+     *
+     * @return the date BID received the report, or -1 if unknown.
+     */
+    public long getDateReceived() {
+        return dateReceived;
+    }
+}
@@ -0,0 +1,87 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * A source of raw BID reports and of the BID certificate, over which
+ * <code>BidHelperJvm</code> implements the <code>BidHelper</code> interface.
+ * <p/>
+ * On a device the source is the BID content provider, and each method
+ * corresponds to one of its queries. Off the device, a source lets the
+ * helper and the verification pipeline run on a plain JVM, for example
+ * over reports held in memory (<code>BidMemoryReportSource</code>) or
+ * saved in a directory (<code>BidDirectoryReportSource</code>).
+ * <p/>
+ * Implementations must be thread-safe.
+ */
+public interface BidReportSource {
+
+    /**
+     * Queries a status report for the specified nonce.
+     *
+     * @param nonce the nonce to be included in the report.
+     * @return the raw status report.
+     * @throws BidRequestException if an error occurred while attempting to fetch the report.
+     */
+    public BidReportRecord queryStatusReport(BigInteger nonce)
+            throws BidRequestException;
+
+    /**
+     * Queries the failure report with the specified id.
+     *
+     * @param reportId the id of the report.
+     * @return the raw failure report.
+     * @throws BidRequestException if an error occurred while attempting to fetch the report,
+     *                             including if there is no report with that id.
+     */
+    public BidReportRecord queryFailureReport(String reportId)
+            throws BidRequestException;
+
+    /**
+     * Queries a window of failure reports. When <code>limit</code> is positive,
+     * the reports are ordered by the date they were received, so that reports
+     * added while the windows are being fetched land in a later window rather
+     * than shifting earlier ones. Reports received on the same date must be
+     * returned in the same order by every query.
+     * <p/>
+     * The helper keys each window after the first on the date of the last
+     * report it returned, so the offset only skips the reports received on
+     * that date.
+     *
+     * @param dateReceived only reports received after this date are queried,
+     *                     or all of them if negative.
+     * @param offset       the position of the first report in the window.
+     * @param limit        the maximum number of reports in the window, or 0 for
+     *                     all of the reports.
+     * @return the raw failure reports in the window.
+     * @throws BidRequestException if an error occurred while attempting to fetch the reports.
+     */
+    public List<BidReportRecord> queryFailureReports(long dateReceived, int offset, int limit)
+            throws BidRequestException;
+
+    /**
+     * Queries the BID certificate.
+     *
+     * @return the certificate in its encoded form.
+     * @throws BidCertificateUnavailableException if the certificate is not available.
+     * @throws BidRequestException                if an error occurred while attempting to fetch the certificate.
+     */
+    public byte[] queryCertificate()
+            throws BidCertificateUnavailableException,
+            BidRequestException;
+}
@@ -0,0 +1,183 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.io.InterruptedIOException;
+import java.security.cert.CertificateException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The certificate chain and TZ signature checks of a report, run on a
+ * shared pool while the calling thread parses the report.
+ * <p/>
+ * Neither side depends on the other, so the verification takes about as
+ * long as the longer of the two rather than their sum, given a second
+ * core. Cancellation is cooperative: the check stops before its next
+ * step once cancelled, and the parser polls <code>hasFailed()</code> so
+ * that it stops at the next element once the check has failed.
+ */
+final class BidSignatureCheck implements Callable<Void> {
+
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Lazily initialized holder for the shared pool.
+     */
+    private static final class PoolHolder {
+        static final ExecutorService POOL = createPool();
+    }
+
+    private final BidCertificateVerifier certVerifier;
+    private final BidReportBody tzReport;
+    private final byte[] tzSignature;
+    private volatile boolean cancelled;
+    private volatile boolean failed;
+    private volatile long nanos = -1;
+    private Future<Void> future;
+
+    private BidSignatureCheck(BidCertificateVerifier certVerifier, BidReportBody tzReport, byte[] tzSignature) {
+        this.certVerifier = certVerifier;
+        this.tzReport = tzReport;
+        this.tzSignature = tzSignature;
+    }
+
+    private static ExecutorService createPool() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "BidSignatureCheck-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Starts checking the certificate chain of the specified verifier and
+     * the signature of the specified TZ report.
+     *
+     * @param certVerifier the verifier for the certificate chain and the TZ signature.
+     * @param tzReport     the TZ report.
+     * @param tzSignature  the signature of the TZ report.
+     * @return the running check.
+     */
+    static BidSignatureCheck start(BidCertificateVerifier certVerifier, BidReportBody tzReport,
+                                   byte[] tzSignature) {
+        BidSignatureCheck check = new BidSignatureCheck(certVerifier, tzReport, tzSignature);
+        check.future = PoolHolder.POOL.submit(check);
+        return check;
+    }
+
+    @Override
+    public Void call() throws Exception {
+        long start = System.nanoTime();
+        try {
+            if (cancelled) {
+                return null;
+            }
+            certVerifier.verifyCertificateChain();
+            if (cancelled) {
+                return null;
+            }
+            if (!tzReport.verifySignature(certVerifier, tzSignature)) {
+                throw new BidSignatureVerificationException("Report Verification Failed.");
+            }
+            return null;
+        } catch (Exception e) {
+            failed = true;
+            throw e;
+        } finally {
+            nanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the check has failed, in which case
+     * <code>await()</code> throws the reason without waiting.
+     *
+     * @return <code>true</code> if the check has failed.
+     */
+    boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Returns how long the check took, in nanoseconds, or -1 if it has not
+     * completed.
+     *
+     * @return the duration of the check in nanoseconds, or -1.
+     */
+    long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * Cancels the check if it has not completed yet. The step in progress,
+     * if any, is not interrupted; the outcome is abandoned.
+     */
+    void cancel() {
+        cancelled = true;
+        future.cancel(false);
+    }
+
+    /**
+     * Waits for the check to complete.
+     *
+     * @throws BidSignatureVerificationException       if the signature verification fails.
+     * @throws java.security.cert.CertificateException if the certificate chain is invalid.
+     * @throws java.io.InterruptedIOException          if the calling thread is interrupted while waiting,
+     *                                                 in which case the check is cancelled.
+     */
+    void await()
+            throws BidSignatureVerificationException,
+            CertificateException,
+            InterruptedIOException {
+        try {
+            future.get();
+        } catch (InterruptedException ie) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while verifying the signature");
+        } catch (ExecutionException ee) {
+            Throwable t = ee.getCause();
+            if (t instanceof BidSignatureVerificationException) {
+                throw (BidSignatureVerificationException) t;
+            } else if (t instanceof CertificateException) {
+                throw (CertificateException) t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new IllegalStateException(t);
+        }
+    }
+}
@@ -16,23 +16,15 @@ package com.blackberry.bidhelper;
 
 import org.xml.sax.SAXException;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import static com.blackberry.bidhelper.BidConstants.NONCE_RADIX;
-import static com.blackberry.bidhelper.BidConstants.TAG_FAILED_REPORTS;
-import static com.blackberry.bidhelper.BidConstants.TAG_HIGH_TOKENS;
-import static com.blackberry.bidhelper.BidConstants.TAG_LOW_TOKENS;
-import static com.blackberry.bidhelper.BidConstants.TAG_MEDIUM_TOKENS;
-import static com.blackberry.bidhelper.BidConstants.TAG_NONCE;
-import static com.blackberry.bidhelper.BidConstants.TAG_REPORTID;
-import static com.blackberry.bidhelper.BidConstants.TAG_SEVERITY;
-import static com.blackberry.bidhelper.BidConstants.TAG_SIGNATURE_TOKEN_VALUE;
-import static com.blackberry.bidhelper.BidConstants.TAG_STATUS;
-import static com.blackberry.bidhelper.BidConstants.TAG_TIME;
-import static com.blackberry.bidhelper.BidConstants.TAG_TOKEN;
 
 /**
  * This class contains methods for accessing the contents of a BID
@@ -47,93 +39,19 @@ import static com.blackberry.bidhelper.BidConstants.TAG_TOKEN;
  */
 public final class BidStatusReport extends BidVerifiable {
 
-    public enum Severity {
-        HIGH, MEDIUM, LOW
-    };
-
     /**
-     * A handler specific to BID status reports. The handler uses parser events
-     * to verify hash values and to populate the report object.
+     * Each thread reuses one handler across the status reports it verifies.
      */
-    private class StatusXmlHandler extends BidXmlHandler {
-        private List<String> idList;
-        private List<String> highSecurityTokenList;
-        private List<String> mediumSecurityTokenList;
-        private List<String> lowSecurityTokenList;
-
-        @Override
-        public void startDocumentSet()
-                throws SAXException {
-            idList = new ArrayList<String>();
-            highSecurityTokenList = new ArrayList<String>();
-            mediumSecurityTokenList = new ArrayList<String>();
-            lowSecurityTokenList = new ArrayList<String>();
-        }
-
+    private static final ThreadLocal<StatusXmlHandler> xmlHandlers = new ThreadLocal<StatusXmlHandler>() {
         @Override
-        public void characters(char[] ch, int start, int length)
-                throws SAXException {
-            if (isTypeAndTag(KBIDE_XML_TYPE, TAG_TIME)) {
-                time = new String(ch, start, length);
-            } else if (isTypeAndTag(JBIDE_XML_TYPE, TAG_NONCE)) {
-                try {
-                    String s = new String(ch, start, length);
-                    nonce = new BigInteger(s, NONCE_RADIX);
-                } catch (NumberFormatException nfe) {
-                    throw new SAXException(nfe);
-                }
-            } else if (isTypeAndTag(TZ_XML_TYPE, TAG_STATUS)) {
-                String s = new String(ch, start, length);
-                // Specify an exact match for "pass" so that
-                // we error on the side of safety (i.e., in
-                // reporting a "fail" status if the exact match
-                // fails).
-                hasTZFailure = !s.equals("0x0000");
-            } else if (isTypeAndTag(JBIDE_XML_TYPE, TAG_STATUS)) {
-                String s = new String(ch, start, length);
-                // Specify an exact match for "pass" so that
-                // we error on the side of safety (i.e., in
-                // reporting a "fail" status if the exact match
-                // fails).
-                hasJBIDEFailure = !s.equals("pass");
-            } else if (isTypeAndTag(JBIDE_XML_TYPE, TAG_SEVERITY)) {
-                try {
-                    String s = new String(ch, start, length);
-                    maxSeverity = Integer.parseInt(s);
-                } catch (NumberFormatException nfe) {
-                    throw new SAXException(nfe);
-                }
-            } else if (isTypeAndTag(JBIDE_XML_TYPE, TAG_SIGNATURE_TOKEN_VALUE)) {
-                softwareSignatureType = new String(ch, start, length);
-            } else if (isTypeTagAndParent(JBIDE_XML_TYPE, TAG_TOKEN, TAG_HIGH_TOKENS)) {
-                highSecurityTokenList.add(new String(ch, start, length));
-            } else if (isTypeTagAndParent(JBIDE_XML_TYPE, TAG_TOKEN, TAG_MEDIUM_TOKENS)) {
-                mediumSecurityTokenList.add(new String(ch, start, length));
-            } else if (isTypeTagAndParent(JBIDE_XML_TYPE, TAG_TOKEN, TAG_LOW_TOKENS)) {
-                lowSecurityTokenList.add(new String(ch, start, length));
-            } else if (isTypeTagAndParent(JBIDE_XML_TYPE, TAG_REPORTID, TAG_FAILED_REPORTS)) {
-                idList.add(new String(ch, start, length));
-            }
-        }
-
-        @Override
-        public void endDocumentSet()
-                throws SAXException {
-            int size = idList.size();
-            reportIds = idList.toArray(new String[size]);
-
-            size = highSecurityTokenList.size();
-            highSecurityTokens = highSecurityTokenList.toArray(new String[size]);
-
-            size = mediumSecurityTokenList.size();
-            mediumSecurityTokens = mediumSecurityTokenList.toArray(new String[size]);
-
-            size = lowSecurityTokenList.size();
-            lowSecurityTokens = lowSecurityTokenList.toArray(new String[size]);
+        protected StatusXmlHandler initialValue() {
+            return new StatusXmlHandler();
         }
-    }
+    };
 
     private String time;
+
+    ;
     private BigInteger nonce;
     private boolean hasTZFailure;
     private boolean hasJBIDEFailure;
@@ -143,7 +61,6 @@ public final class BidStatusReport extends BidVerifiable {
     private String[] mediumSecurityTokens;
     private String[] lowSecurityTokens;
     private String softwareSignatureType;
-
     /**
      * Creates a new instance based on the specified raw, un-verified data.
      *
@@ -159,9 +76,83 @@ public final class BidStatusReport extends BidVerifiable {
         super(jbideReport, kbideReport, tzReport, tzSignature, base64Decoder);
     }
 
+    /**
+     * Creates a new instance based on the specified raw, un-verified bodies.
+     *
+     * @param jbideReport   the un-verified JBIDE report.
+     * @param kbideReport   the un-verified KBIDE report.
+     * @param tzReport      the un-verified TZ report.
+     * @param tzSignature   the un-verified TZ signature.
+     * @param base64Decoder a Base64 decoder to use as needed.
+     */
+    BidStatusReport(BidReportBody jbideReport, BidReportBody kbideReport,
+                    BidReportBody tzReport, byte[] tzSignature,
+                    Base64Decoder base64Decoder) {
+        super(jbideReport, kbideReport, tzReport, tzSignature, base64Decoder);
+    }
+
+    /**
+     * Creates a verified instance restored from a snapshot.
+     *
+     * @param devicemodel       the device model from the snapshot.
+     * @param osversion         the OS version from the snapshot.
+     * @param tzSignatureDigest the SHA-256 hash of the TZ signature of the original report.
+     */
+    private BidStatusReport(String devicemodel, String osversion, byte[] tzSignatureDigest) {
+        super(devicemodel, osversion, tzSignatureDigest);
+    }
+
+    /**
+     * Reads the fields written by <code>writeSnapshotFields</code> and
+     * returns the restored report.
+     *
+     * @param in                the snapshot, positioned on the status report fields.
+     * @param devicemodel       the device model from the snapshot.
+     * @param osversion         the OS version from the snapshot.
+     * @param tzSignatureDigest the SHA-256 hash of the TZ signature of the original report.
+     * @return the restored report.
+     * @throws java.io.IOException if the snapshot is truncated or malformed.
+     */
+    static BidStatusReport readSnapshotFields(DataInputStream in, String devicemodel, String osversion,
+                                              byte[] tzSignatureDigest) throws IOException {
+        BidStatusReport report = new BidStatusReport(devicemodel, osversion, tzSignatureDigest);
+        report.time = BidReportSnapshot.readString(in);
+        byte[] nonce = BidReportSnapshot.readBytes(in);
+        report.nonce = nonce != null ? new BigInteger(nonce) : null;
+        report.hasTZFailure = in.readBoolean();
+        report.hasJBIDEFailure = in.readBoolean();
+        report.maxSeverity = in.readInt();
+        report.softwareSignatureType = BidReportSnapshot.readString(in);
+        report.reportIds = BidReportSnapshot.readStrings(in);
+        report.highSecurityTokens = BidReportSnapshot.readStrings(in);
+        report.mediumSecurityTokens = BidReportSnapshot.readStrings(in);
+        report.lowSecurityTokens = BidReportSnapshot.readStrings(in);
+        return report;
+    }
+
+    @Override
+    void writeSnapshotFields(DataOutputStream out) throws IOException {
+        BidReportSnapshot.writeString(out, time);
+        BidReportSnapshot.writeBytes(out, nonce != null ? nonce.toByteArray() : null);
+        out.writeBoolean(hasTZFailure);
+        out.writeBoolean(hasJBIDEFailure);
+        out.writeInt(maxSeverity);
+        BidReportSnapshot.writeString(out, softwareSignatureType);
+        BidReportSnapshot.writeStrings(out, reportIds);
+        BidReportSnapshot.writeStrings(out, highSecurityTokens);
+        BidReportSnapshot.writeStrings(out, mediumSecurityTokens);
+        BidReportSnapshot.writeStrings(out, lowSecurityTokens);
+    }
+
     @Override
     BidXmlHandler getBideXmlHandler() {
-        return new StatusXmlHandler();
+        StatusXmlHandler handler = xmlHandlers.get();
+        if (handler.report != null) {
+            // already in use further up this thread's stack
+            handler = new StatusXmlHandler();
+        }
+        handler.report = this;
+        return handler;
     }
 
     /**
@@ -267,4 +258,129 @@ public final class BidStatusReport extends BidVerifiable {
         checkVerified();
         return softwareSignatureType;
     }
+
+    public enum Severity {
+        HIGH, MEDIUM, LOW
+    }
+
+    /**
+     * A handler specific to BID status reports. The handler uses parser events
+     * to verify hash values and to populate the report object.
+     */
+    private static final class StatusXmlHandler extends BidXmlHandler {
+        private final List<String> idList = new ArrayList<String>();
+        private final List<String> highSecurityTokenList = new ArrayList<String>();
+        private final List<String> mediumSecurityTokenList = new ArrayList<String>();
+        private final List<String> lowSecurityTokenList = new ArrayList<String>();
+        private BidStatusReport report;
+
+        @Override
+        void reset() {
+            super.reset();
+            report = null;
+            idList.clear();
+            highSecurityTokenList.clear();
+            mediumSecurityTokenList.clear();
+            lowSecurityTokenList.clear();
+        }
+
+        @Override
+        public void startDocumentSet()
+                throws SAXException {
+            idList.clear();
+            highSecurityTokenList.clear();
+            mediumSecurityTokenList.clear();
+            lowSecurityTokenList.clear();
+        }
+
+        @Override
+        void elementText()
+                throws SAXException {
+            switch (getTag()) {
+                case TAG_ID_TIME:
+                    if (isType(KBIDE_XML_TYPE)) {
+                        report.time = getText();
+                    }
+                    break;
+                case TAG_ID_NONCE:
+                    if (isType(JBIDE_XML_TYPE)) {
+                        try {
+                            report.nonce = getTextAsBigInteger(NONCE_RADIX);
+                        } catch (NumberFormatException nfe) {
+                            throw new SAXException(nfe);
+                        }
+                    }
+                    break;
+                case TAG_ID_STATUS:
+                    if (isType(TZ_XML_TYPE)) {
+                        // Specify an exact match for "pass" so that
+                        // we error on the side of safety (i.e., in
+                        // reporting a "fail" status if the exact match
+                        // fails).
+                        report.hasTZFailure = !textEquals("0x0000");
+                    } else if (isType(JBIDE_XML_TYPE)) {
+                        // Specify an exact match for "pass" so that
+                        // we error on the side of safety (i.e., in
+                        // reporting a "fail" status if the exact match
+                        // fails).
+                        report.hasJBIDEFailure = !textEquals("pass");
+                    }
+                    break;
+                case TAG_ID_SEVERITY:
+                    if (isType(JBIDE_XML_TYPE)) {
+                        try {
+                            report.maxSeverity = getTextAsInt();
+                        } catch (NumberFormatException nfe) {
+                            throw new SAXException(nfe);
+                        }
+                    }
+                    break;
+                case TAG_ID_SIGNATURE_TOKEN_VALUE:
+                    if (isType(JBIDE_XML_TYPE)) {
+                        report.softwareSignatureType = getText();
+                    }
+                    break;
+                case TAG_ID_TOKEN:
+                    if (isType(JBIDE_XML_TYPE)) {
+                        switch (getParentTag()) {
+                            case TAG_ID_HIGH_TOKENS:
+                                highSecurityTokenList.add(getText());
+                                break;
+                            case TAG_ID_MEDIUM_TOKENS:
+                                mediumSecurityTokenList.add(getText());
+                                break;
+                            case TAG_ID_LOW_TOKENS:
+                                lowSecurityTokenList.add(getText());
+                                break;
+                            default:
+                                break;
+                        }
+                    }
+                    break;
+                case TAG_ID_REPORTID:
+                    if (isType(JBIDE_XML_TYPE) && getParentTag() == TAG_ID_FAILED_REPORTS) {
+                        idList.add(getText());
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void endDocumentSet()
+                throws SAXException {
+            int size = idList.size();
+            report.reportIds = idList.toArray(new String[size]);
+
+            size = highSecurityTokenList.size();
+            report.highSecurityTokens = highSecurityTokenList.toArray(new String[size]);
+
+            size = mediumSecurityTokenList.size();
+            report.mediumSecurityTokens = mediumSecurityTokenList.toArray(new String[size]);
+
+            size = lowSecurityTokenList.size();
+            report.lowSecurityTokens = lowSecurityTokenList.toArray(new String[size]);
+        }
+    }
 }
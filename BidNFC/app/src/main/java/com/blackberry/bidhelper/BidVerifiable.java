@@ -19,66 +19,866 @@ import org.xml.sax.InputSource;
 import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
-import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
 import org.xml.sax.helpers.DefaultHandler;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.StringReader;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.util.Arrays;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParserFactory;
 
-import static com.blackberry.bidhelper.BidConstants.TAG_DEVICEMODEL;
-import static com.blackberry.bidhelper.BidConstants.TAG_JBIDEHASH;
-import static com.blackberry.bidhelper.BidConstants.TAG_KBIDEHASH;
-import static com.blackberry.bidhelper.BidConstants.TAG_OSVERSION;
+/**
+ * Base class for BID reports that need to be verified prior to use.
+ * <p/>
+ * Initially the report is un-verified. To verify a report, call the
+ * appropriate method in the <code>BidHelper</code> class for your
+ * platform.
+ * <p/>
+ * An attempt to access the contents of an un-verified report will cause
+ * an exception to be thrown.
+ * <p/>
+ * The raw reports are held as <code>BidReportBody</code> UTF-8 bytes, which
+ * are hashed, parsed and signature-checked without being decoded.
+ */
+public abstract class BidVerifiable {
+
+    private final BidReportBody jbideReport;
+    private final BidReportBody kbideReport;
+    private final BidReportBody tzReport;
+    private final byte[] tzSignature;
+    private final Base64Decoder base64Decoder;
+    // for safety do NOT expose a method that blindly sets isVerified to true
+    private boolean isVerified;
+    private boolean allowReadUnverified;
+    private String devicemodel;
+    private String osversion;
+    // computed on first use, during verification
+    private byte[] jbideReportHash;
+    private byte[] kbideReportHash;
+    // computed on first use, or restored from a snapshot
+    private byte[] tzSignatureDigest;
+    // the signature check running alongside a pipelined verification, if any
+    private BidSignatureCheck signatureCheck;
+    // the record of the most recent verification
+    private BidVerificationStage rejectedStage;
+    private long[] stageNanos;
+
+    /**
+     * Creates a new instance based on the specified raw, un-verified data.
+     *
+     * @param jbideReport   the un-verified JBIDE report.
+     * @param kbideReport   the un-verified KBIDE report.
+     * @param tzReport      the un-verified TZ report.
+     * @param tzSignature   the un-verified TZ signature, which is not copied;
+     *                      the caller must not modify it afterwards.
+     * @param base64Decoder a Base64 decoder to use as needed.
+     */
+    BidVerifiable(String jbideReport, String kbideReport,
+                  String tzReport, byte[] tzSignature,
+                  Base64Decoder base64Decoder) {
+        this(BidReportBody.fromString(jbideReport), BidReportBody.fromString(kbideReport),
+                BidReportBody.fromString(tzReport), tzSignature, base64Decoder);
+    }
+
+    /**
+     * Creates a new instance based on the specified raw, un-verified bodies,
+     * which are verified without being decoded.
+     *
+     * @param jbideReport   the un-verified JBIDE report.
+     * @param kbideReport   the un-verified KBIDE report.
+     * @param tzReport      the un-verified TZ report.
+     * @param tzSignature   the un-verified TZ signature, which is not copied;
+     *                      the caller must not modify it afterwards.
+     * @param base64Decoder a Base64 decoder to use as needed.
+     */
+    BidVerifiable(BidReportBody jbideReport, BidReportBody kbideReport,
+                  BidReportBody tzReport, byte[] tzSignature,
+                  Base64Decoder base64Decoder) {
+        this.jbideReport = jbideReport;
+        this.kbideReport = kbideReport;
+        this.tzReport = tzReport;
+        this.tzSignature = tzSignature;
+        this.base64Decoder = base64Decoder;
+        this.allowReadUnverified = false;
+    }
+
+    /**
+     * Creates a verified instance restored from a snapshot whose MAC has been
+     * checked by <code>BidReportSnapshot</code>. Snapshots do not keep the
+     * raw reports, so they are null and the report cannot be verified again.
+     *
+     * @param devicemodel       the device model from the snapshot.
+     * @param osversion         the OS version from the snapshot.
+     * @param tzSignatureDigest the SHA-256 hash of the TZ signature of the original report.
+     */
+    BidVerifiable(String devicemodel, String osversion, byte[] tzSignatureDigest) {
+        this((BidReportBody) null, null, null, null, null);
+        this.devicemodel = devicemodel;
+        this.osversion = osversion;
+        this.tzSignatureDigest = tzSignatureDigest;
+        // the snapshot MAC vouches for the verification of the original report
+        this.isVerified = true;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the JBIDE report, computing it on first use,
+     * or null if there is no JBIDE report.
+     *
+     * @return the SHA-256 hash of the JBIDE report or null if none.
+     */
+    private byte[] getJbideReportHash() {
+        if (jbideReportHash == null && jbideReport != null) {
+            jbideReportHash = jbideReport.sha256();
+        }
+        return jbideReportHash;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the KBIDE report, computing it on first use.
+     *
+     * @return the SHA-256 hash of the KBIDE report.
+     */
+    private byte[] getKbideReportHash() {
+        if (kbideReportHash == null) {
+            kbideReportHash = kbideReport.sha256();
+        }
+        return kbideReportHash;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the TZ signature, computing it on first use.
+     * This identifies the signed report a snapshot was taken from.
+     *
+     * @return the SHA-256 hash of the TZ signature.
+     */
+    final byte[] getTzSignatureDigest() {
+        if (tzSignatureDigest == null) {
+            tzSignatureDigest = BidDigester.sha256(tzSignature);
+        }
+        return tzSignatureDigest;
+    }
+
+    /**
+     * Returns the device model information or null if none.
+     * Throws an exception if this report is currently un-verified.
+     *
+     * @return the device model information or null if none.
+     * @throws java.lang.IllegalStateException if the status of this report is set to un-verified.
+     */
+    public final String getDeviceModel() {
+        checkVerified();
+        return devicemodel;
+    }
+
+    /**
+     * Returns the OS version information or null if none.
+     * Throws an exception if this report is currently un-verified.
+     *
+     * @return the OS version information or null if none.
+     * @throws java.lang.IllegalStateException if the status of this report is set to un-verified.
+     */
+    public final String getOsVersion() {
+        checkVerified();
+        return osversion;
+    }
+
+    /**
+     * Returns the raw JBIDE report or null if none, decoded on each call.
+     * Throws an exception if this report is currently un-verified.
+     *
+     * @return the raw JBIDE report or null if none, or if this report was
+     * restored from a snapshot.
+     * @throws java.lang.IllegalStateException if the status of this report is set to un-verified.
+     */
+    public final String getJbideReport() {
+        checkVerified();
+        return jbideReport != null ? jbideReport.toString() : null;
+    }
+
+    /**
+     * Returns the raw KBIDE report, decoded on each call.
+     * Throws an exception if this report is currently un-verified.
+     *
+     * @return the raw KBIDE report, or null if this report was restored
+     * from a snapshot.
+     * @throws java.lang.IllegalStateException if the status of this report is set to un-verified.
+     */
+    public final String getKbideReport() {
+        checkVerified();
+        return kbideReport != null ? kbideReport.toString() : null;
+    }
+
+    /**
+     * Returns the raw TZ report, decoded on each call.
+     * Throws an exception if this report is currently un-verified.
+     *
+     * @return the raw TZ report, or null if this report was restored
+     * from a snapshot.
+     * @throws java.lang.IllegalStateException if the status of this report is set to un-verified.
+     */
+    public final String getTzReport() {
+        checkVerified();
+        return tzReport != null ? tzReport.toString() : null;
+    }
+
+    /**
+     * Returns the body of the raw JBIDE report or null if none.
+     * Throws an exception if this report is currently un-verified.
+     *
+     * @return the body of the raw JBIDE report or null if none, or if this
+     * report was restored from a snapshot.
+     * @throws java.lang.IllegalStateException if the status of this report is set to un-verified.
+     */
+    public final BidReportBody getJbideReportBody() {
+        checkVerified();
+        return jbideReport;
+    }
+
+    /**
+     * Returns the body of the raw KBIDE report.
+     * Throws an exception if this report is currently un-verified.
+     *
+     * @return the body of the raw KBIDE report, or null if this report was
+     * restored from a snapshot.
+     * @throws java.lang.IllegalStateException if the status of this report is set to un-verified.
+     */
+    public final BidReportBody getKbideReportBody() {
+        checkVerified();
+        return kbideReport;
+    }
+
+    /**
+     * Returns the body of the raw TZ report.
+     * Throws an exception if this report is currently un-verified.
+     *
+     * @return the body of the raw TZ report, or null if this report was
+     * restored from a snapshot.
+     * @throws java.lang.IllegalStateException if the status of this report is set to un-verified.
+     */
+    public final BidReportBody getTzReportBody() {
+        checkVerified();
+        return tzReport;
+    }
+
+    /**
+     * Acquires this thread's SAX parser pipeline, begins the BIDE document set,
+     * and parses the JBIDE, KBIDE, and TZ XML firing SAX events to
+     * the handler provided by <code>getBideXmlHandler()</code>.
+     * The <code>isVerified</code> flag is set true only on success.
+     *
+     * @throws java.io.IOException                     if an i/o error occurs.
+     * @throws BidHashMismatchException                if the hash values do not match.
+     * @throws BidSignatureVerificationException       if the signature verification fails.
+     * @throws java.security.cert.CertificateException if the certificate chain part of the report is invalid
+     */
+    final void verify(BidCertificateVerifier certVerifier)
+            throws IOException,
+            BidHashMismatchException,
+            BidSignatureVerificationException,
+            CertificateException {
+        verify(certVerifier, BidParserEngine.SAX);
+    }
+
+    /**
+     * Verifies this report with this thread's pipeline for the specified
+     * parser engine.
+     *
+     * @param certVerifier the verifier for the certificate chain and the TZ signature.
+     * @param engine       the parser engine to run the XML reports through.
+     * @throws java.io.IOException                     if an i/o error occurs.
+     * @throws BidHashMismatchException                if the hash values do not match.
+     * @throws BidSignatureVerificationException       if the signature verification fails.
+     * @throws java.security.cert.CertificateException if the certificate chain part of the report is invalid
+     */
+    final void verify(BidCertificateVerifier certVerifier, BidParserEngine engine)
+            throws IOException,
+            BidHashMismatchException,
+            BidSignatureVerificationException,
+            CertificateException {
+        verify(certVerifier, engine, false);
+    }
+
+    /**
+     * Verifies this report with this thread's pipeline for the specified
+     * parser engine, optionally pipelined; see
+     * <code>verify(BidCertificateVerifier, BidXmlPipeline, boolean)</code>.
+     *
+     * @param certVerifier the verifier for the certificate chain and the TZ signature.
+     * @param engine       the parser engine to run the XML reports through.
+     * @param pipelined    <code>true</code> to check the signature while parsing.
+     * @throws java.io.IOException                     if an i/o error occurs.
+     * @throws BidHashMismatchException                if the hash values do not match.
+     * @throws BidSignatureVerificationException       if the signature verification fails.
+     * @throws java.security.cert.CertificateException if the certificate chain part of the report is invalid
+     */
+    final void verify(BidCertificateVerifier certVerifier, BidParserEngine engine, boolean pipelined)
+            throws IOException,
+            BidHashMismatchException,
+            BidSignatureVerificationException,
+            CertificateException {
+        verify(certVerifier, engine, pipelined, BidVerificationOrder.PARSE_FIRST, BidParserLimits.DEFAULT);
+    }
+
+    /**
+     * Verifies this report with this thread's pipeline for the specified
+     * parser engine, running the stages in the specified order and parsing
+     * the reports within the specified limits.
+     *
+     * @param certVerifier the verifier for the certificate chain and the TZ signature.
+     * @param engine       the parser engine to run the XML reports through.
+     * @param pipelined    <code>true</code> to check the signature on a worker thread.
+     * @param order        the order to run the stages of the verification in.
+     * @param limits       the limits to parse the XML reports within.
+     * @throws java.io.IOException                     if an i/o error occurs.
+     * @throws BidHashMismatchException                if the hash values do not match.
+     * @throws BidSignatureVerificationException       if the signature verification fails.
+     * @throws java.security.cert.CertificateException if the certificate chain part of the report is invalid
+     */
+    final void verify(BidCertificateVerifier certVerifier, BidParserEngine engine, boolean pipelined,
+                      BidVerificationOrder order, BidParserLimits limits)
+            throws IOException,
+            BidHashMismatchException,
+            BidSignatureVerificationException,
+            CertificateException {
+        BidXmlPipeline pipeline;
+        try {
+            if (engine == BidParserEngine.PULL) {
+                pipeline = BidPullPipeline.acquire();
+            } else {
+                pipeline = BidSaxPipeline.acquire();
+            }
+        } catch (SAXException se) {
+            throw new IOException(se);
+        } catch (ParserConfigurationException pce) {
+            throw new IOException(pce);
+        }
+
+        try {
+            pipeline.setLimits(limits);
+            if (order == BidVerificationOrder.CHEAPEST_FIRST) {
+                verifyCheapestFirst(certVerifier, pipeline, pipelined);
+            } else {
+                verify(certVerifier, pipeline, pipelined);
+            }
+        } finally {
+            pipeline.release();
+        }
+    }
+
+    /**
+     * Verifies this report using the specified parser pipeline, which must
+     * not be in use by another report.
+     *
+     * @param certVerifier the verifier for the certificate chain and the TZ signature.
+     * @param pipeline     the parser pipeline to run the XML reports through.
+     * @throws java.io.IOException                     if an i/o error occurs.
+     * @throws BidHashMismatchException                if the hash values do not match.
+     * @throws BidSignatureVerificationException       if the signature verification fails.
+     * @throws java.security.cert.CertificateException if the certificate chain part of the report is invalid
+     */
+    final void verify(BidCertificateVerifier certVerifier, BidXmlPipeline pipeline)
+            throws IOException,
+            BidHashMismatchException,
+            BidSignatureVerificationException,
+            CertificateException {
+        verify(certVerifier, pipeline, false);
+    }
+
+    /**
+     * Verifies this report using the specified parser pipeline, which must
+     * not be in use by another report, parsing the reports first.
+     * <p/>
+     * When pipelined, the certificate chain and TZ signature are checked on a
+     * worker thread while this thread parses the reports and compares the
+     * hashes, since neither depends on the other. Whichever fails first stops
+     * the other: a failed parse abandons the signature check, and a failed
+     * signature check stops the parse at the next element and is thrown in
+     * place of the parse error. The outcome is the same as when not pipelined.
+     *
+     * @param certVerifier the verifier for the certificate chain and the TZ signature.
+     * @param pipeline     the parser pipeline to run the XML reports through.
+     * @param pipelined    <code>true</code> to check the signature while parsing.
+     * @throws java.io.IOException                     if an i/o error occurs.
+     * @throws BidHashMismatchException                if the hash values do not match.
+     * @throws BidSignatureVerificationException       if the signature verification fails.
+     * @throws java.security.cert.CertificateException if the certificate chain part of the report is invalid
+     */
+    final void verify(BidCertificateVerifier certVerifier, BidXmlPipeline pipeline, boolean pipelined)
+            throws IOException,
+            BidHashMismatchException,
+            BidSignatureVerificationException,
+            CertificateException {
+        beginVerification();
+        BidSignatureCheck check = null;
+        BidVerificationStage stage = BidVerificationStage.FIELDS;
+        long start = System.nanoTime();
+
+        try {
+            if (pipelined) {
+                check = BidSignatureCheck.start(certVerifier, tzReport, tzSignature);
+                signatureCheck = check;
+            }
+
+            // Parse the reports, checking the hash links along the way
+            parseReports(pipeline);
+            start = endStage(stage, start);
+
+            stage = BidVerificationStage.SIGNATURE;
+            if (check != null) {
+                // Wait for the signature and report checks running alongside
+                check.await();
+            } else {
+                checkSignature(certVerifier);
+                endStage(stage, start);
+            }
+            isVerified = true;
+        } finally {
+            if (check != null) {
+                check.cancel();
+                signatureCheck = null;
+            }
+            endVerification(stage, start, check);
+        }
+    }
+
+    /**
+     * Verifies this report using the specified parser pipeline, which must
+     * not be in use by another report, running the cheapest checks which can
+     * reject it first: the structure, the hash links, then the signature. The
+     * reports are only parsed once all of them have passed, so that a
+     * corrupted or forged report costs little more than the checks which
+     * reject it. The reports accepted are the same as with
+     * <code>verify</code>, though a report with more than one fault may be
+     * rejected for another of them.
+     * <p/>
+     * When pipelined, the signature is checked on a worker thread while this
+     * thread checks the structure and the hash links, and the reports are
+     * still only parsed once the signature has been verified.
+     *
+     * @param certVerifier the verifier for the certificate chain and the TZ signature.
+     * @param pipeline     the parser pipeline to run the XML reports through.
+     * @param pipelined    <code>true</code> to check the signature on a worker thread.
+     * @throws java.io.IOException                     if an i/o error occurs, or a report is malformed.
+     * @throws BidHashMismatchException                if the hash values do not match.
+     * @throws BidSignatureVerificationException       if the signature verification fails.
+     * @throws java.security.cert.CertificateException if the certificate chain part of the report is invalid
+     */
+    final void verifyCheapestFirst(BidCertificateVerifier certVerifier, BidXmlPipeline pipeline,
+                                   boolean pipelined)
+            throws IOException,
+            BidHashMismatchException,
+            BidSignatureVerificationException,
+            CertificateException {
+        beginVerification();
+        BidSignatureCheck check = null;
+        BidVerificationStage stage = BidVerificationStage.STRUCTURE;
+        long start = System.nanoTime();
+
+        try {
+            if (pipelined) {
+                check = BidSignatureCheck.start(certVerifier, tzReport, tzSignature);
+            }
+
+            checkStructure(pipeline.getLimits());
+            start = endStage(stage, start);
+
+            stage = BidVerificationStage.HASH_LINKS;
+            checkHashLinks();
+            start = endStage(stage, start);
+
+            stage = BidVerificationStage.SIGNATURE;
+            if (check != null) {
+                check.await();
+            } else {
+                checkSignature(certVerifier);
+            }
+            start = endStage(stage, start);
+
+            stage = BidVerificationStage.FIELDS;
+            parseReports(pipeline);
+            endStage(stage, start);
+            isVerified = true;
+        } finally {
+            if (check != null) {
+                check.cancel();
+            }
+            endVerification(stage, start, check);
+        }
+    }
+
+    /**
+     * Parses the JBIDE, KBIDE, and TZ XML, firing SAX events to the handler
+     * provided by <code>getBideXmlHandler()</code>, which checks the hash
+     * links and extracts the fields.
+     */
+    private void parseReports(BidXmlPipeline pipeline)
+            throws IOException,
+            BidHashMismatchException,
+            BidSignatureVerificationException,
+            CertificateException {
+        BidXmlHandler handler = getBideXmlHandler();
+
+        try {
+            handler.startDocumentSet();
+
+            if (jbideReport != null) {
+                // Parse JBIDE report
+                pipeline.parse(this, handler, jbideReport, BidXmlHandler.JBIDE_XML_TYPE);
+            }
+
+            // Parse KBIDE report
+            if (!kbideReport.isEmpty()) {
+                pipeline.parse(this, handler, kbideReport, BidXmlHandler.KBIDE_XML_TYPE);
+            }
+
+            // Parse TZ report
+            if (!tzReport.isEmpty()) {
+                pipeline.parse(this, handler, tzReport, BidXmlHandler.TZ_XML_TYPE);
+            }
+
+            handler.endDocumentSet();
+
+        } catch (SAXException se) {
+            if (signatureCheck != null && signatureCheck.hasFailed()) {
+                // The failed signature check stopped the parse; throw its reason
+                rejectedStage = BidVerificationStage.SIGNATURE;
+                signatureCheck.await();
+            }
+
+            // Un-box and throw any nested BidHashMismatchException
+            // otherwise wrap in an IOException.
+            Throwable t = se.getCause();
+            if (t instanceof BidHashMismatchException) {
+                rejectedStage = BidVerificationStage.HASH_LINKS;
+                throw (BidHashMismatchException) t;
+            } else {
+                throw new IOException(se);
+            }
+        } finally {
+            pipeline.unbind();
+            handler.reset();
+        }
+    }
+
+    /**
+     * Checks the certificate chain and the signature of the TZ report.
+     */
+    private void checkSignature(BidCertificateVerifier certVerifier)
+            throws BidSignatureVerificationException,
+            CertificateException {
+        // Verify signature
+        certVerifier.verifyCertificateChain();
+
+        // Verify report
+        if (!tzReport.verifySignature(certVerifier, tzSignature)) {
+            throw new BidSignatureVerificationException("Report Verification Failed.");
+        }
+    }
+
+    /**
+     * Checks, without parsing them, that the XML reports are within the
+     * length limit and framed as documents.
+     */
+    private void checkStructure(BidParserLimits limits) throws IOException {
+        try {
+            if (jbideReport != null) {
+                limits.checkReportLength(jbideReport.length());
+            }
+            limits.checkReportLength(kbideReport.length());
+            limits.checkReportLength(tzReport.length());
+        } catch (SAXException se) {
+            throw new IOException(se);
+        }
+        if (jbideReport != null && !BidReportPrecheck.isFramed(jbideReport)) {
+            throw new IOException("malformed JBIDE report");
+        }
+        if (!BidReportPrecheck.isFramed(kbideReport)) {
+            throw new IOException("malformed KBIDE report");
+        }
+        if (!BidReportPrecheck.isFramed(tzReport)) {
+            throw new IOException("malformed TZ report");
+        }
+    }
+
+    /**
+     * Checks, without parsing the reports, the JBIDE hash in the KBIDE report
+     * and the KBIDE hash in the TZ report, where they can be found. The parser
+     * checks them again, along with any the scan cannot find.
+     */
+    private void checkHashLinks() throws BidHashMismatchException {
+        if (!kbideReport.isEmpty()) {
+            String text = BidReportPrecheck.findElementText(kbideReport, BidConstants.TAG_JBIDEHASH);
+            if (text != null && !hashMatches(getJbideReportHash(), text)) {
+                throw new BidHashMismatchException("JBIDE report hash mismatch");
+            }
+        }
+        if (!tzReport.isEmpty()) {
+            String text = BidReportPrecheck.findElementText(tzReport, BidConstants.TAG_KBIDEHASH);
+            if (text != null && !hashMatches(getKbideReportHash(), text)) {
+                throw new BidHashMismatchException("KBIDE report hash mismatch");
+            }
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the specified Base64 text decodes to the
+     * specified hash.
+     */
+    private boolean hashMatches(byte[] hash, String text) {
+        byte[] candidate = base64Decoder.decode(text);
+        return candidate != null && Arrays.equals(hash, candidate);
+    }
+
+    /**
+     * Clears the verified status and the record of the previous verification.
+     */
+    private void beginVerification() {
+        if (kbideReport == null) {
+            throw new IllegalStateException("a report restored from a snapshot cannot be verified again");
+        }
+        isVerified = false;
+        rejectedStage = null;
+        if (stageNanos == null) {
+            stageNanos = new long[BidVerificationStage.values().length];
+        }
+        Arrays.fill(stageNanos, -1);
+    }
+
+    /**
+     * Records the time the specified stage took, and returns the current
+     * time as the start of the next stage.
+     */
+    private long endStage(BidVerificationStage stage, long start) {
+        long now = System.nanoTime();
+        stageNanos[stage.ordinal()] = now - start;
+        return now;
+    }
+
+    /**
+     * Records the time of a signature check run on a worker thread and, if
+     * the verification failed, the stage which rejected the report.
+     */
+    private void endVerification(BidVerificationStage stage, long start, BidSignatureCheck check) {
+        if (check != null && check.getNanos() >= 0) {
+            stageNanos[BidVerificationStage.SIGNATURE.ordinal()] = check.getNanos();
+        }
+        if (!isVerified) {
+            if (rejectedStage == null) {
+                rejectedStage = stage;
+            }
+            if (stageNanos[stage.ordinal()] < 0) {
+                endStage(stage, start);
+            }
+        }
+    }
+
+    /**
+     * Returns the stage which rejected this report in its most recent
+     * verification, or null if it was verified or has not been verified.
+     * A <code>PARSE_FIRST</code> verification checks the hash links while
+     * parsing, so it reports <code>HASH_LINKS</code> for a hash mismatch
+     * found by the <code>FIELDS</code> stage.
+     *
+     * @return the stage which rejected this report, or null if none.
+     */
+    public final BidVerificationStage getRejectedStage() {
+        return rejectedStage;
+    }
+
+    /**
+     * Returns how long the specified stage took in the most recent
+     * verification of this report, in nanoseconds, or -1 if it did not run
+     * on its own. A <code>PARSE_FIRST</code> verification only runs the
+     * <code>FIELDS</code> and <code>SIGNATURE</code> stages. A rejected
+     * report records the time up to the rejection.
+     *
+     * @param stage the stage.
+     * @return the duration of the stage in nanoseconds, or -1.
+     */
+    public final long getStageNanos(BidVerificationStage stage) {
+        return stageNanos == null ? -1 : stageNanos[stage.ordinal()];
+    }
+
+    /**
+     * Handles the text of the element ending for the fields common to all
+     * report types: checks the embedded JBIDE and KBIDE hashes, and records
+     * the device model and OS version. Called by both parser engines at the
+     * end of each element, before the handler's <code>elementText()</code>,
+     * which also makes it the point where a pipelined parse stops once the
+     * signature check running alongside has failed.
+     *
+     * @param handler the handler holding the text of the current element.
+     * @throws org.xml.sax.SAXException wrapping a <code>BidHashMismatchException</code>
+     *                                  if a hash does not match, or if the pipelined
+     *                                  signature check has failed.
+     */
+    final void handleCommonText(BidXmlHandler handler)
+            throws SAXException {
+        if (signatureCheck != null && signatureCheck.hasFailed()) {
+            throw new SAXException("signature check failed");
+        }
+        switch (handler.getTag()) {
+            case BidXmlHandler.TAG_ID_JBIDEHASH:
+                if (handler.isType(BidXmlHandler.KBIDE_XML_TYPE)) {
+                    byte[] candidate = base64Decoder.decode(handler.getText());
+                    if (candidate == null || !Arrays.equals(getJbideReportHash(), candidate)) {
+                        Exception e = new BidHashMismatchException("JBIDE report hash mismatch");
+                        throw new SAXException(e);
+                    }
+                }
+                break;
+            case BidXmlHandler.TAG_ID_KBIDEHASH:
+                if (handler.isType(BidXmlHandler.TZ_XML_TYPE)) {
+                    byte[] candidate = base64Decoder.decode(handler.getText());
+                    if (candidate == null || !Arrays.equals(getKbideReportHash(), candidate)) {
+                        Exception e = new BidHashMismatchException("KBIDE report hash mismatch");
+                        throw new SAXException(e);
+                    }
+                }
+                break;
+            case BidXmlHandler.TAG_ID_DEVICEMODEL:
+                if (handler.isType(BidXmlHandler.JBIDE_XML_TYPE)) {
+                    devicemodel = handler.getText();
+                }
+                break;
+            case BidXmlHandler.TAG_ID_OSVERSION:
+                if (handler.isType(BidXmlHandler.JBIDE_XML_TYPE)) {
+                    osversion = handler.getText();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Revokes (clears) the verified status of this report.
+     */
+    final void revokeVerification() {
+        isVerified = false;
+    }
+
+    /**
+     * Returns <code>true</code> if this report has been verified,
+     * <code>false</code> otherwise.
+     *
+     * @return <code>true</code> if this report has been verified,
+     * <code>false</code> otherwise.
+     */
+    public final boolean isVerified() {
+        return isVerified;
+    }
+
+    /**
+     * Checks the verified status of this report and throws an exception if
+     * un-verified, unless it is specifically bypassed.
+     *
+     * @throws java.lang.IllegalStateException if the status of this report is set to un-verified.
+     */
+    final void checkVerified() {
+        if (!isVerified && !allowReadUnverified) {
+            throw new IllegalStateException("attempt to access an unverified report");
+        }
+    }
 
-/**
- * Base class for BID reports that need to be verified prior to use.
- * <p/>
- * Initially the report is un-verified. To verify a report, call the
- * appropriate method in the <code>BidHelper</code> class for your
- * platform.
- * <p/>
- * An attempt to access the contents of an un-verified report will cause
- * an exception to be thrown.
- */
-public abstract class BidVerifiable {
+    /**
+     * Allow reading of report without verification.
+     * <p/>
+     * Call this function if you want to read this particular report
+     * without verification.
+     */
+    public final void bypassVerification() {
+        allowReadUnverified = true;
+    }
+
+    /**
+     * Writes the fields specific to this type of report to a snapshot.
+     *
+     * @param out the snapshot being written.
+     * @throws java.io.IOException if an i/o error occurs.
+     */
+    abstract void writeSnapshotFields(DataOutputStream out) throws IOException;
+
+    /**
+     * Returns a handler for this type of report. The handler uses parser events
+     * to verify hash values and to populate the report object.
+     *
+     * @return a handler for this type of report.
+     */
+    abstract BidXmlHandler getBideXmlHandler();
 
     /**
      * Instances of this class handle SAX parsing events for the purpose of
      * validating and extracting the contents of the various BIDE XML reports.
-     * The <code>BidXmlHandler</code> specified in the constructor is used
+     * The <code>BidXmlHandler</code> specified in <code>bind()</code> is used
      * to determine the type of XML being parsed (JBIDE, KBIDE, TZ). Also, the
      * implementations of the various <code>DefaultHandler</code> methods call
      * the corresponding method in <code>BidXmlHandler</code> after performing
      * any processing of their own. Any BIDE-specific exceptions that occur are
      * wrapped in a <code>SAXException</code> and then un-boxed below in the
      * <code>verify()</code> method of the outer class.
+     * <p/>
+     * A verifier is owned by a <code>BidSaxPipeline</code> and is bound to one
+     * report at a time, so that it can be reused across reports.
+     * <p/>
+     * As the lexical handler of the parser, the verifier refuses a document
+     * type declaration as soon as it starts, before any entity is declared,
+     * and it refuses to resolve external entities rather than letting the
+     * parser fetch them.
      */
-    private final class Verifier extends DefaultHandler {
-        private final BidXmlHandler handler;
+    static final class Verifier extends DefaultHandler implements LexicalHandler {
+        private BidVerifiable report;
+        private BidXmlHandler handler;
 
         /**
-         * Creates a new Verifier with the specified handler.
+         * Binds this verifier to the specified report and handler.
          *
+         * @param report  the report being verified, or null to unbind.
          * @param handler the <code>BidXmlHandler</code> used to determine
          *                the type of XML being parsed (JBIDE, KBIDE, TZ). Also the
          *                target of all calls to <code>DefaultHandler</code> methods.
          */
-        public Verifier(BidXmlHandler handler) {
+        void bind(BidVerifiable report, BidXmlHandler handler) {
+            this.report = report;
             this.handler = handler;
         }
 
         @Override
         public InputSource resolveEntity(String publicId, String systemId)
                 throws IOException, SAXException {
-            handler.resolveEntity(publicId, systemId);
-            return null;
+            throw new SAXException("external entities are not allowed: " + systemId);
+        }
+
+        @Override
+        public void startDTD(String name, String publicId, String systemId)
+                throws SAXException {
+            throw new SAXException("document type declarations are not allowed");
+        }
+
+        @Override
+        public void endDTD() {
+        }
+
+        @Override
+        public void startEntity(String name) {
+        }
+
+        @Override
+        public void endEntity(String name) {
+        }
+
+        @Override
+        public void startCDATA() {
+        }
+
+        @Override
+        public void endCDATA() {
+        }
+
+        @Override
+        public void comment(char[] ch, int start, int length) {
         }
 
         @Override
@@ -125,13 +925,15 @@ public abstract class BidVerifiable {
         @Override
         public void startElement(String uri, String localName, String qName, Attributes atts)
                 throws SAXException {
-            handler.push(localName, atts);
+            handler.push(BidXmlHandler.getTagId(localName), atts);
             handler.startElement(uri, localName, qName, atts);
         }
 
         @Override
         public void endElement(String uri, String localName, String qName)
                 throws SAXException {
+            report.handleCommonText(handler);
+            handler.elementText();
             handler.endElement(uri, localName, qName);
             handler.pop();
         }
@@ -139,27 +941,7 @@ public abstract class BidVerifiable {
         @Override
         public void characters(char[] ch, int start, int length)
                 throws SAXException {
-            if (handler.isTypeAndTag(BidXmlHandler.KBIDE_XML_TYPE, TAG_JBIDEHASH)) {
-                String s = new String(ch, start, length);
-                byte[] candidate = base64Decoder.decode(s);
-                if (candidate == null || !Arrays.equals(jbideReportHash, candidate)) {
-                    Exception e = new BidHashMismatchException("JBIDE report hash mismatch");
-                    throw new SAXException(e);
-                }
-            } else if (handler.isTypeAndTag(BidXmlHandler.TZ_XML_TYPE, TAG_KBIDEHASH)) {
-                String s = new String(ch, start, length);
-                byte[] candidate = base64Decoder.decode(s);
-                if (candidate == null || !Arrays.equals(kbideReportHash, candidate)) {
-                    Exception e = new BidHashMismatchException("KBIDE report hash mismatch");
-                    throw new SAXException(e);
-                }
-            } else if (handler.isTypeAndTag(BidXmlHandler.JBIDE_XML_TYPE, TAG_DEVICEMODEL)) {
-                devicemodel = new String(ch, start, length);
-            } else if (handler.isTypeAndTag(BidXmlHandler.JBIDE_XML_TYPE, TAG_OSVERSION)) {
-                osversion = new String(ch, start, length);
-            }
-
-            handler.characters(ch, start, length);
+            handler.appendText(ch, start, length);
         }
 
         @Override
@@ -199,267 +981,4 @@ public abstract class BidVerifiable {
             throw e;
         }
     }
-
-    // for safety do NOT expose a method that blindly sets isVerified to true
-    private boolean isVerified;
-    private boolean allowReadUnverified;
-    private final String jbideReport;
-    private final byte[] jbideReportHash;
-    private final String kbideReport;
-    private final byte[] kbideReportHash;
-    private final String tzReport;
-    private final byte[] tzReportHash;
-    private final byte[] tzSignature;
-    private final Base64Decoder base64Decoder;
-    private String devicemodel;
-    private String osversion;
-
-    /**
-     * Creates a new instance based on the specified raw, un-verified data.
-     *
-     * @param jbideReport   the un-verified JBIDE report.
-     * @param kbideReport   the un-verified KBIDE report.
-     * @param tzReport      the un-verified TZ report.
-     * @param tzSignature   the un-verified TZ signature.
-     * @param base64Decoder a Base64 decoder to use as needed.
-     */
-    BidVerifiable(String jbideReport, String kbideReport,
-                  String tzReport, byte[] tzSignature,
-                  Base64Decoder base64Decoder) {
-        this.jbideReport = jbideReport;
-        this.jbideReportHash = (jbideReport == null) ? null : getSha256(jbideReport);
-        this.kbideReport = kbideReport;
-        this.kbideReportHash = getSha256(kbideReport);
-        this.tzReport = tzReport;
-        this.tzReportHash = getSha256(tzReport);
-        this.tzSignature = Arrays.copyOf(tzSignature, tzSignature.length);
-        this.base64Decoder = base64Decoder;
-        this.allowReadUnverified = false;
-    }
-
-    /**
-     * Returns the device model information or null if none.
-     * Throws an exception if this report is currently un-verified.
-     *
-     * @return the device model information or null if none.
-     * @throws java.lang.IllegalStateException if the status of this report is set to un-verified.
-     */
-    public final String getDeviceModel() {
-        checkVerified();
-        return devicemodel;
-    }
-
-    /**
-     * Returns the OS version information or null if none.
-     * Throws an exception if this report is currently un-verified.
-     *
-     * @return the OS version information or null if none.
-     * @throws java.lang.IllegalStateException if the status of this report is set to un-verified.
-     */
-    public final String getOsVersion() {
-        checkVerified();
-        return osversion;
-    }
-
-    /**
-     * Returns the raw JBIDE report or null if none.
-     * Throws an exception if this report is currently un-verified.
-     *
-     * @return the raw JBIDE report or null if none.
-     * @throws java.lang.IllegalStateException if the status of this report is set to un-verified.
-     */
-    public final String getJbideReport() {
-        checkVerified();
-        return jbideReport;
-    }
-
-    /**
-     * Returns the raw KBIDE report.
-     * Throws an exception if this report is currently un-verified.
-     *
-     * @return the raw KBIDE report.
-     * @throws java.lang.IllegalStateException if the status of this report is set to un-verified.
-     */
-    public final String getKbideReport() {
-        checkVerified();
-        return kbideReport;
-    }
-
-    /**
-     * Returns the raw TZ report.
-     * Throws an exception if this report is currently un-verified.
-     *
-     * @return the raw TZ report.
-     * @throws java.lang.IllegalStateException if the status of this report is set to un-verified.
-     */
-    public final String getTzReport() {
-        checkVerified();
-        return tzReport;
-    }
-
-    /**
-     * Returns the SHA-256 hash of the specified string.
-     *
-     * @param s the string whose hash value is desired.
-     * @return the SHA-256 hash of the specified string.
-     */
-    private static byte[] getSha256(String s) {
-        byte[] result;
-        try {
-            MessageDigest digester = MessageDigest.getInstance("SHA-256");
-            result = digester.digest(s.getBytes());
-        } catch (NoSuchAlgorithmException e) {
-            // SHA-256 is ubiquitous and required in all Java implementations.
-            // Nonetheless, force a mismatch.
-            result = new byte[0];
-        }
-        return result;
-    }
-
-    /**
-     * Creates and configures a parser, begins the BIDE document set,
-     * and parses the JBIDE, KBIDE, and TZ XML firing SAX events to
-     * the handler provided by <code>getBideXmlHandler()</code>.
-     * The <code>isVerified</code> flag is set true only on success.
-     *
-     * @throws java.io.IOException                     if an i/o error occurs.
-     * @throws BidHashMismatchException                if the hash values do not match.
-     * @throws BidSignatureVerificationException       if the signature verification fails.
-     * @throws java.security.cert.CertificateException if the certificate chain part of the report is invalid
-     */
-    final void verify(BidCertificateVerifier certVerifier)
-            throws IOException,
-            BidHashMismatchException,
-            BidSignatureVerificationException,
-            CertificateException {
-        isVerified = false;
-        BidXmlHandler handler = getBideXmlHandler();
-        Verifier verifier = new Verifier(handler);
-
-        try {
-            // Create and configure the parser
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            XMLReader parser = factory.newSAXParser().getXMLReader();
-            parser.setEntityResolver(verifier);
-            parser.setDTDHandler(verifier);
-            parser.setContentHandler(verifier);
-            parser.setErrorHandler(verifier);
-            parser.setFeature("http://xml.org/sax/features/namespaces", true);
-            parser.setFeature("http://xml.org/sax/features/namespace-prefixes", false);
-
-            handler.startDocumentSet();
-
-            if (jbideReport != null) {
-                // Parse JBIDE report
-                parse(jbideReport, BidXmlHandler.JBIDE_XML_TYPE, handler, parser);
-            }
-
-            // Parse KBIDE report
-            if (kbideReport.length() > 0) {
-                parse(kbideReport, BidXmlHandler.KBIDE_XML_TYPE, handler, parser);
-            }
-
-            // Parse TZ report
-            if (tzReport.length() > 0) {
-                parse(tzReport, BidXmlHandler.TZ_XML_TYPE, handler, parser);
-            }
-
-            handler.endDocumentSet();
-
-            // Verify signature
-            certVerifier.verifyCertificateChain();
-
-            // Verify report
-            if (certVerifier.verifyReport(tzReport.getBytes(), tzSignature)) {
-                isVerified = true;
-            } else {
-                throw new BidSignatureVerificationException("Report Verification Failed.");
-            }
-
-
-        } catch (SAXException se) {
-
-            // Un-box and throw any nested BidHashMismatchException
-            // otherwise wrap in an IOException.
-            Throwable t = se.getCause();
-            if (t instanceof BidHashMismatchException) {
-                throw (BidHashMismatchException) t;
-            } else {
-                throw new IOException(se);
-            }
-        } catch (ParserConfigurationException pce) {
-            throw new IOException(pce);
-        }
-    }
-
-    /**
-     * Sets the input source of the given parser based on the specified XML report,
-     * sets the XML type of the given handler based on the specified integer value,
-     * and runs the SAX parser. The parser is assumed to already have had the
-     * various SAX event handlers configured (see <code>Verifier</code>).
-     *
-     * @param xmlReport the XML report to be parsed.
-     * @param xmlType   the integer value representing the type of the XML report.
-     * @param handler   the handler to set the XML type for.
-     * @param parser    the pre-configured parser to be run on the XML input.
-     * @throws java.io.IOException      if an i/o error occurs.
-     * @throws BidHashMismatchException if the hash values do not match.
-     * @throws org.xml.sax.SAXException if a parsing error occurs.
-     */
-    private void parse(String xmlReport, int xmlType, BidXmlHandler handler, XMLReader parser)
-            throws IOException,
-            BidHashMismatchException,
-            SAXException {
-        InputSource in = new InputSource(new StringReader(xmlReport));
-        handler.setXmlType(xmlType);
-        parser.parse(in);
-    }
-
-    /**
-     * Revokes (clears) the verified status of this report.
-     */
-    final void revokeVerification() {
-        isVerified = false;
-    }
-
-    /**
-     * Returns <code>true</code> if this report has been verified,
-     * <code>false</code> otherwise.
-     *
-     * @return <code>true</code> if this report has been verified,
-     * <code>false</code> otherwise.
-     */
-    public final boolean isVerified() {
-        return isVerified;
-    }
-
-    /**
-     * Checks the verified status of this report and throws an exception if
-     * un-verified, unless it is specifically bypassed.
-     *
-     * @throws java.lang.IllegalStateException if the status of this report is set to un-verified.
-     */
-    final void checkVerified() {
-        if (!isVerified && !allowReadUnverified) {
-            throw new IllegalStateException("attempt to access an unverified report");
-        }
-    }
-
-    /**
-     * Allow reading of report without verification.
-     * <p/>
-     * Call this function if you want to read this particular report
-     * without verification.
-     */
-    public final void bypassVerification() {
-        allowReadUnverified = true;
-    }
-
-    /**
-     * Returns a handler for this type of report. The handler uses parser events
-     * to verify hash values and to populate the report object.
-     *
-     * @return a handler for this type of report.
-     */
-    abstract BidXmlHandler getBideXmlHandler();
 }
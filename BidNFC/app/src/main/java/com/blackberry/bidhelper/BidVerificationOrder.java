@@ -0,0 +1,36 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+/**
+ * The orders a <code>BidHelper</code> can run the stages of verifying a
+ * report in. Both accept the same reports; they differ in how much work a
+ * report costs before it is rejected.
+ */
+public enum BidVerificationOrder {
+    /**
+     * Parses the XML reports, checking the hash links along the way, then
+     * checks the signature. This is the default.
+     */
+    PARSE_FIRST,
+
+    /**
+     * Runs the cheapest checks that can reject a report first: the
+     * structure, then the hash links, then the signature, and parses the
+     * XML reports last, so that a corrupted or forged report is rejected
+     * before it is parsed. See <code>BidVerificationStage</code>.
+     */
+    CHEAPEST_FIRST
+}
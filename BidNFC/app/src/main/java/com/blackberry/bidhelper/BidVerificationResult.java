@@ -0,0 +1,69 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+/**
+ * The outcome of verifying one failure report as part of a batch.
+ * <p/>
+ * A batch verification does not stop at the first report which fails to
+ * verify. Instead each report gets a result which either indicates success
+ * or carries the exception that verifying the report would have thrown.
+ */
+public final class BidVerificationResult {
+    private final BidFailureReport report;
+    private final Exception exception;
+
+    /**
+     * Creates a new result.
+     *
+     * @param report    the report which was verified.
+     * @param exception the exception thrown by the verification, or null on success.
+     */
+    BidVerificationResult(BidFailureReport report, Exception exception) {
+        this.report = report;
+        this.exception = exception;
+    }
+
+    /**
+     * Returns the report which was verified.
+     *
+     * @return the report which was verified.
+     */
+    public final BidFailureReport getReport() {
+        return report;
+    }
+
+    /**
+     * Returns <code>true</code> if the report was verified successfully,
+     * <code>false</code> otherwise.
+     *
+     * @return <code>true</code> if the report was verified successfully,
+     * <code>false</code> otherwise.
+     */
+    public final boolean isVerified() {
+        return exception == null && report.isVerified();
+    }
+
+    /**
+     * Returns the exception which caused the verification to fail, or null if
+     * the report was verified successfully. The exception is one of those
+     * declared by <code>BidHelper.verifyFailureReport</code>.
+     *
+     * @return the exception which caused the verification to fail, or null if none.
+     */
+    public final Exception getException() {
+        return exception;
+    }
+}
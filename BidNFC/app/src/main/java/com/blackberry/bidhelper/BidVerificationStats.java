@@ -0,0 +1,106 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of the reports a helper has verified, the stages they went through
+ * and the stages which rejected them, with the time spent in each stage.
+ * All methods are thread-safe.
+ */
+public final class BidVerificationStats {
+
+    private static final int STAGE_COUNT = BidVerificationStage.values().length;
+
+    private final AtomicLongArray runs = new AtomicLongArray(STAGE_COUNT);
+    private final AtomicLongArray rejections = new AtomicLongArray(STAGE_COUNT);
+    private final AtomicLongArray nanos = new AtomicLongArray(STAGE_COUNT);
+
+    BidVerificationStats() {
+    }
+
+    /**
+     * Adds the stages of the most recent verification of the specified report.
+     *
+     * @param report the report.
+     */
+    void record(BidVerifiable report) {
+        for (BidVerificationStage stage : BidVerificationStage.values()) {
+            long stageNanos = report.getStageNanos(stage);
+            if (stageNanos >= 0) {
+                runs.incrementAndGet(stage.ordinal());
+                nanos.addAndGet(stage.ordinal(), stageNanos);
+            }
+        }
+        BidVerificationStage rejectedStage = report.getRejectedStage();
+        if (rejectedStage != null) {
+            rejections.incrementAndGet(rejectedStage.ordinal());
+        }
+    }
+
+    /**
+     * Returns the number of reports which went through the specified stage.
+     *
+     * @param stage the stage.
+     * @return the number of reports which went through the stage.
+     */
+    public long getRunCount(BidVerificationStage stage) {
+        return runs.get(stage.ordinal());
+    }
+
+    /**
+     * Returns the number of reports the specified stage rejected.
+     *
+     * @param stage the stage.
+     * @return the number of reports the stage rejected.
+     */
+    public long getRejectionCount(BidVerificationStage stage) {
+        return rejections.get(stage.ordinal());
+    }
+
+    /**
+     * Returns the total time spent in the specified stage, in nanoseconds.
+     *
+     * @param stage the stage.
+     * @return the total time spent in the stage in nanoseconds.
+     */
+    public long getTotalNanos(BidVerificationStage stage) {
+        return nanos.get(stage.ordinal());
+    }
+
+    /**
+     * Returns the average time the specified stage took per report, in
+     * nanoseconds, or 0 if no report went through it.
+     *
+     * @param stage the stage.
+     * @return the average time spent in the stage in nanoseconds.
+     */
+    public long getAverageNanos(BidVerificationStage stage) {
+        long count = getRunCount(stage);
+        return count == 0 ? 0 : getTotalNanos(stage) / count;
+    }
+
+    /**
+     * Resets all counts to zero.
+     */
+    public void reset() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            runs.set(i, 0);
+            rejections.set(i, 0);
+            nanos.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/* Copyright (c) 2011-2016 BlackBerry Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blackberry.bidhelper;
+
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+
+/**
+ * A parser, configured once and reused across reports, which runs the XML
+ * documents of a report through the handler for that report type.
+ * <p/>
+ * A pipeline is not thread-safe. Each thread keeps one pipeline per engine;
+ * see <code>acquire()</code> in the implementations.
+ */
+interface BidXmlPipeline {
+
+    /**
+     * Parses one XML document of the specified report, delivering the
+     * events to the specified handler. Parse errors, and hash mismatches
+     * nested as the cause, are reported as a <code>SAXException</code>.
+     *
+     * @param report  the report being verified.
+     * @param handler the handler for that report.
+     * @param xml     the UTF-8 bytes of the XML document to be parsed.
+     * @param xmlType the type of the document, see <code>BidXmlHandler</code>.
+     * @throws java.io.IOException      if an i/o error occurs.
+     * @throws org.xml.sax.SAXException if a parsing error occurs.
+     */
+    void parse(BidVerifiable report, BidXmlHandler handler, BidReportBody xml, int xmlType)
+            throws IOException, SAXException;
+
+    /**
+     * Sets the limits the following reports are parsed within, until
+     * this pipeline is released.
+     *
+     * @param limits the parser limits.
+     */
+    void setLimits(BidParserLimits limits);
+
+    /**
+     * Returns the limits the reports are parsed within.
+     *
+     * @return the parser limits.
+     */
+    BidParserLimits getLimits();
+
+    /**
+     * Releases the references to the last parsed report and handler.
+     */
+    void unbind();
+
+    /**
+     * Marks this pipeline as no longer in use.
+     */
+    void release();
+}
@@ -14,14 +14,12 @@
  */
 package com.blackberry.bidnfc;
 
+import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
 import android.os.Message;
-import android.os.Process;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.Menu;
@@ -32,13 +30,18 @@ import android.widget.RelativeLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.blackberry.bidhelper.BidCallback;
+import com.blackberry.bidhelper.BidFuture;
 import com.blackberry.bidhelper.BidHelperAndroid;
+import com.blackberry.bidhelper.BidHelperAsync;
 import com.blackberry.bidhelper.BidListener;
+import com.blackberry.bidhelper.BidPostureCache;
 import com.blackberry.bidhelper.BidSignatureVerificationException;
 import com.blackberry.bidhelper.BidStatusReport;
 
 import java.math.BigInteger;
 import java.util.Random;
+import java.util.concurrent.CancellationException;
 
 /**
  * This class how to use the BID in NFC transaction scenario.
@@ -46,15 +49,16 @@ import java.util.Random;
  */
 public class MainActivity extends AppCompatActivity implements BidListener {
 
-    public static final int GET_BID_REPORT = 1;
     public static final int DEVICE_COMPROMISED = 2;
     public static final int DEVICE_SAFE = 3;
+    private static final long POSTURE_TTL_MILLIS = 5 * 60 * 1000;
+    private static BidPostureCache sPostureCache;
 
-    private final HandlerThread mHandlerThread = new HandlerThread("MainActivity", Process.THREAD_PRIORITY_BACKGROUND);
-    private BidReportHandler mHandler;
     private Handler mUIHandler;
 
     private BidHelperAndroid mHelper;
+    private BidHelperAsync mHelperAsync;
+    private BidFuture<BidStatusReport> mStatusFuture;
 
     RelativeLayout progressBarLayout;
     RelativeLayout transactionLayout;
@@ -70,7 +74,8 @@ public class MainActivity extends AppCompatActivity implements BidListener {
         if (Build.MANUFACTURER.equalsIgnoreCase("BlackBerry") && (Build.MODEL).startsWith("STV")) {
             if (Build.VERSION.SDK_INT > Build.VERSION_CODES.LOLLIPOP_MR1) {
                 mHelper = new BidHelperAndroid(this);
-                mHelper.addBidListener(this);
+                mHelper.addBidListener(this, BidHelperAndroid.getMainThreadExecutor());
+                mHelperAsync = new BidHelperAsync(mHelper);
 
                 progressBarLayout = (RelativeLayout) findViewById(R.id.progressView);
                 transactionLayout = (RelativeLayout) findViewById(R.id.transcation);
@@ -93,9 +98,9 @@ public class MainActivity extends AppCompatActivity implements BidListener {
                         }
                     }
                 };
-                mHandlerThread.start();
-                mHandler = new BidReportHandler(mHandlerThread.getLooper());
-                mHandler.sendEmptyMessage(GET_BID_REPORT);
+                // We will first query the status and if the device is
+                // safe only then continue.
+                queryStatus();
             } else {
                 Toast.makeText(this, R.string.version_msg, Toast.LENGTH_LONG).show();
             }
@@ -161,6 +166,9 @@ public class MainActivity extends AppCompatActivity implements BidListener {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mStatusFuture != null) {
+            mStatusFuture.cancel(true);
+        }
         if (mHelper != null) {
             mHelper.destroy();
         }
@@ -205,51 +213,102 @@ public class MainActivity extends AppCompatActivity implements BidListener {
     }
 
     /**
-     * A handler class to handle the queue.
+     * Returns the posture cache shared by all instances of the activity.
+     * Its helper is bound to the application context, so the verified
+     * status outlives the activity and is reused on the next launch.
      */
-    private class BidReportHandler extends Handler {
-        public BidReportHandler(Looper looper) {
-            super(looper);
+    private static synchronized BidPostureCache getPostureCache(Context context) {
+        if (sPostureCache == null) {
+            BidHelperAndroid helper = new BidHelperAndroid(context.getApplicationContext());
+            sPostureCache = new BidPostureCache(helper, POSTURE_TTL_MILLIS, true);
         }
+        return sPostureCache;
+    }
 
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case GET_BID_REPORT:
-                    // We will first query the status and if the device is
-                    // safe only then continue.
-                    if (queryStatus()) {
-                        startTransaction();
-                    } else {
-                        Toast.makeText(getApplicationContext(), "Transaction Failed", Toast.LENGTH_LONG).show();
-                    }
+    /**
+     * Call to the BID framework to get the status of the device. The verified
+     * status is taken from the posture cache, or requested and verified in
+     * the background, and the transaction is started on the main thread if
+     * the device is safe.
+     */
+    private void queryStatus() {
+        mStatusFuture = mHelperAsync.getStatusAsync(getPostureCache(this));
+        mStatusFuture.addCallback(new BidCallback<BidStatusReport>() {
+            @Override
+            public void onSuccess(BidStatusReport report) {
+                onStatus(report);
+            }
 
+            @Override
+            public void onFailure(Exception e) {
+                if (e instanceof BidSignatureVerificationException) {
+                    queryUnverifiedStatus();
+                } else {
+                    onStatusFailed(e);
+                }
             }
-        }
+        }, BidHelperAndroid.getMainThreadExecutor());
     }
 
     /**
-     * Call to the BID framework to get the status of the device.
-     * @return the status of the device (safe or compromised).
+     * Requests the status of the device again when its signature cannot be
+     * verified, and reads the report without verifying it.
      */
-    private boolean queryStatus() {
-        boolean safe = false;
-        try {
-            BigInteger bi = new BigInteger(256, new Random());
-            BidStatusReport report = mHelper.requestStatusReport(bi);
-            try {
-                mHelper.verifyStatusReport(report, bi, true);
-            } catch (BidSignatureVerificationException ex) {
-                report.bypassVerification();
+    private void queryUnverifiedStatus() {
+        final BigInteger bi = new BigInteger(256, new Random());
+        mStatusFuture = mHelperAsync.requestStatusReportAsync(bi);
+        mStatusFuture.addCallback(new BidCallback<BidStatusReport>() {
+            @Override
+            public void onSuccess(final BidStatusReport report) {
+                mStatusFuture = mHelperAsync.verifyStatusReportAsync(report, bi, true);
+                mStatusFuture.addCallback(new BidCallback<BidStatusReport>() {
+                    @Override
+                    public void onSuccess(BidStatusReport verified) {
+                        onStatus(verified);
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        if (e instanceof BidSignatureVerificationException) {
+                            report.bypassVerification();
+                            onStatus(report);
+                        } else {
+                            onStatusFailed(e);
+                        }
+                    }
+                }, BidHelperAndroid.getMainThreadExecutor());
             }
-            if (report.hasFailure()) {
-                Toast.makeText(getApplicationContext(), "Device has been compromised and the severity is: " + report.getMaxSeverity(), Toast.LENGTH_LONG).show();
-            } else {
-                safe = true;
-                Toast.makeText(getApplicationContext(), "Device is safe.", Toast.LENGTH_LONG).show();
+
+            @Override
+            public void onFailure(Exception e) {
+                onStatusFailed(e);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        }, BidHelperAndroid.getMainThreadExecutor());
+    }
+
+    /**
+     * Starts the transaction if the device is safe.
+     * @param report the verified status report.
+     */
+    private void onStatus(BidStatusReport report) {
+        if (report.hasFailure()) {
+            Toast.makeText(getApplicationContext(), "Device has been compromised and the severity is: " + report.getMaxSeverity(), Toast.LENGTH_LONG).show();
+            Toast.makeText(getApplicationContext(), "Transaction Failed", Toast.LENGTH_LONG).show();
+        } else {
+            Toast.makeText(getApplicationContext(), "Device is safe.", Toast.LENGTH_LONG).show();
+            startTransaction();
+        }
+    }
+
+    /**
+     * Fails the transaction if the status of the device could not be obtained.
+     * @param e the reason the status could not be obtained.
+     */
+    private void onStatusFailed(Exception e) {
+        if (e instanceof CancellationException) {
+            return;
         }
-        return safe;
+        e.printStackTrace();
+        Toast.makeText(getApplicationContext(), "Transaction Failed", Toast.LENGTH_LONG).show();
     }
 }